@@ -0,0 +1,250 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.screen;
+
+import com.mojang.blaze3d.vertex.PoseStack;
+import net.minecraft.ChatFormatting;
+import net.minecraft.client.gui.components.MultiLineLabel;
+import net.minecraft.client.gui.screens.Screen;
+import net.minecraft.network.chat.CommonComponents;
+import net.minecraft.network.chat.MutableComponent;
+import net.minecraft.network.chat.TranslatableComponent;
+import net.minecraft.network.chat.Style;
+import net.minecraft.util.FormattedCharSequence;
+import org.jetbrains.annotations.NotNull;
+import ru.vidtu.ias.config.IASConfig;
+import ru.vidtu.ias.crypt.Keyring;
+import ru.vidtu.ias.crypt.KeyringEditor;
+import ru.vidtu.ias.legacy.LastPassRenderCallback;
+import ru.vidtu.ias.legacy.LegacyTooltip;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keyring master password screen.
+ *
+ * @author VidTu
+ */
+final class KeyringPopupScreen extends Screen implements LastPassRenderCallback {
+    /**
+     * Parent screen.
+     */
+    private final Screen parent;
+
+    /**
+     * Keyring state.
+     */
+    private final KeyringEditor editor = new KeyringEditor();
+
+    /**
+     * Last pass callbacks list.
+     */
+    private final List<Runnable> lastPass = new LinkedList<>();
+
+    /**
+     * Status label.
+     */
+    private MultiLineLabel label;
+
+    /**
+     * Master password box.
+     */
+    private PopupBox password;
+
+    /**
+     * Creates a new keyring screen.
+     *
+     * @param parent Parent screen
+     */
+    KeyringPopupScreen(Screen parent) {
+        super(new TranslatableComponent("ias.keyring"));
+        this.parent = parent;
+    }
+
+    @Override
+    protected void init() {
+        // Bruh.
+        assert this.minecraft != null;
+
+        // Init parent.
+        if (this.parent != null) {
+            this.parent.init(this.minecraft, this.width, this.height);
+        }
+
+        // Add password box.
+        this.password = new PopupBox(this.font, this.width / 2 - 100, this.height / 2 - 10 + 5, 200, 20, this.password, new TranslatableComponent("ias.keyring.password"), this::submit, true, new TranslatableComponent("ias.password.hint").withStyle(ChatFormatting.DARK_GRAY));
+        this.password.setFormatter((s, i) -> IASConfig.passwordEchoing ? FormattedCharSequence.forward("*".repeat(s.length()), Style.EMPTY) : FormattedCharSequence.EMPTY);
+        this.password.setMaxLength(KeyringEditor.MAX_LENGTH);
+        this.password.setEditable(!this.editor.busy());
+        this.addRenderableWidget(this.password);
+
+        // Add create/unlock/change button.
+        PopupButton button = new PopupButton(this.width / 2 - 112, this.height / 2 + 74 - 22, 74, 20,
+                new TranslatableComponent(this.editor.submitKey()),
+                btn -> this.submit(), LegacyTooltip.EMPTY);
+        button.active = this.editor.canSubmit(this.password.getValue());
+        this.addRenderableWidget(button);
+        this.password.setResponder(value -> button.active = this.editor.canSubmit(value));
+
+        // Add lock/reset button.
+        String secondaryKey = this.editor.secondaryKey();
+        if (secondaryKey != null) {
+            PopupButton secondary = new PopupButton(this.width / 2 - 37, this.height / 2 + 74 - 22, 74, 20,
+                    new TranslatableComponent(secondaryKey), btn -> {
+                // Lock or reset.
+                this.editor.secondary();
+
+                // Redraw.
+                this.init(this.minecraft, this.width, this.height);
+            }, this.editor.resets() ? new LegacyTooltip(this, this.font, new TranslatableComponent("ias.keyring.reset.tip"), 250) : LegacyTooltip.EMPTY);
+            if (this.editor.resets()) {
+                secondary.color(1.0F, 0.5F, 0.5F, true);
+            }
+            secondary.active = !this.editor.busy();
+            this.addRenderableWidget(secondary);
+        }
+
+        // Add done button.
+        this.addRenderableWidget(new PopupButton(this.width / 2 + 38, this.height / 2 + 74 - 22, 74, 20,
+                CommonComponents.GUI_DONE, btn -> this.onClose(), LegacyTooltip.EMPTY));
+
+        // Build label.
+        KeyringEditor.Status state = this.editor.status();
+        MutableComponent status = new TranslatableComponent(state.toString(), Keyring.size());
+        if (state.failed()) {
+            status.withStyle(ChatFormatting.RED);
+        } else if (state == KeyringEditor.Status.WORKING) {
+            status.withStyle(ChatFormatting.YELLOW);
+        }
+        this.label = MultiLineLabel.create(this.font, status, 240);
+    }
+
+    @Override
+    public void tick() {
+        super.tick();
+        if (this.password == null) return;
+        this.password.tick();
+    }
+
+    /**
+     * Creates, unlocks, or changes the keyring with the entered master password.
+     */
+    private void submit() {
+        // Bruh.
+        assert this.minecraft != null;
+
+        // Skip if busy or blank.
+        if (this.password == null) return;
+        String value = this.password.getValue();
+        if (!this.editor.canSubmit(value)) return;
+
+        // Derive the key and display progress.
+        CompletableFuture<Boolean> future = this.editor.submit(value, this.minecraft);
+        this.init(this.minecraft, this.width, this.height);
+        future.thenAccept(success -> {
+            // Clear the password.
+            if (success) {
+                this.password = null;
+            }
+
+            // Redraw, if still displayed.
+            if (this != this.minecraft.screen) return;
+            this.init(this.minecraft, this.width, this.height);
+        });
+    }
+
+    @Override
+    public void render(PoseStack pose, int mouseX, int mouseY, float delta) {
+        // Bruh.
+        assert this.minecraft != null;
+
+        // Render parent behind.
+        if (this.parent != null) {
+            pose.pushPose();
+            pose.translate(0.0F, 0.0F, -500.0F);
+            this.parent.render(pose, 0, 0, delta);
+            pose.popPose();
+        }
+
+        // Render background and widgets.
+        this.renderBackground(pose);
+        super.render(pose, mouseX, mouseY, delta);
+
+        // Render the title.
+        pose.pushPose();
+        pose.scale(2.0F, 2.0F, 2.0F);
+        drawCenteredString(pose, this.font, this.title, this.width / 4, this.height / 4 - 74 / 2, 0xFF_FF_FF_FF);
+        pose.popPose();
+
+        // Render the status and the password title.
+        this.label.renderCentered(pose, this.width / 2, this.height / 2 - 50);
+        drawCenteredString(pose, this.font, this.password.getMessage(), this.width / 2, this.height / 2 - 10 - 5, 0xFF_FF_FF_FF);
+
+        // Last pass.
+        for (Runnable callback : this.lastPass) {
+            callback.run();
+        }
+        this.lastPass.clear();
+    }
+
+    @Override
+    public void renderBackground(PoseStack pose) {
+        // Bruh.
+        assert this.minecraft != null;
+
+        // Render transparent background if parent exists.
+        if (this.parent != null) {
+            // Render gradient.
+            fill(pose, 0, 0, this.width, this.height, 0x80_00_00_00);
+        } else {
+            super.renderBackground(pose);
+        }
+
+        // Render "form".
+        int centerX = this.width / 2;
+        int centerY = this.height / 2;
+        fill(pose, centerX - 125, centerY - 75, centerX + 125, centerY + 75, 0xF8_20_20_30);
+        fill(pose, centerX - 124, centerY - 76, centerX + 124, centerY - 75, 0xF8_20_20_30);
+        fill(pose, centerX - 124, centerY + 75, centerX + 124, centerY + 76, 0xF8_20_20_30);
+    }
+
+    @Override
+    public void onClose() {
+        // Bruh.
+        assert this.minecraft != null;
+
+        // Close to parent.
+        this.minecraft.setScreen(this.parent);
+    }
+
+    @Override
+    public void lastPass(@NotNull Runnable callback) {
+        this.lastPass.add(callback);
+    }
+
+    @Override
+    public String toString() {
+        return "KeyringPopupScreen{" +
+                "editor=" + this.editor +
+                '}';
+    }
+}
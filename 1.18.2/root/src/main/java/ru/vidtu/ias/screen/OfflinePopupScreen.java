@@ -29,7 +29,7 @@ import org.jetbrains.annotations.NotNull;
 import org.lwjgl.glfw.GLFW;
 import ru.vidtu.ias.account.Account;
 import ru.vidtu.ias.account.OfflineAccount;
-import ru.vidtu.ias.auth.microsoft.MSAuth;
+import ru.vidtu.ias.auth.microsoft.ProfileResolver;
 import ru.vidtu.ias.config.IASConfig;
 import ru.vidtu.ias.legacy.LastPassRenderCallback;
 import ru.vidtu.ias.legacy.LegacyTooltip;
@@ -169,7 +169,7 @@ public final class OfflinePopupScreen extends Screen implements LastPassRenderCa
         // Create and accept.
         this.locked = true;
         this.type(false);
-        MSAuth.nameToMcp(value).whenCompleteAsync((profile, throwable) -> {
+        ProfileResolver.resolve(value).whenCompleteAsync((profile, throwable) -> {
             UUID skin = profile != null ? profile.uuid() : null;
             this.handler.accept(new OfflineAccount(value, skin));
         }, this.minecraft);
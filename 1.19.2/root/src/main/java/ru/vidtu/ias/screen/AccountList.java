@@ -31,6 +31,7 @@ import ru.vidtu.ias.IAS;
 import ru.vidtu.ias.account.Account;
 import ru.vidtu.ias.account.OfflineAccount;
 import ru.vidtu.ias.auth.LoginData;
+import ru.vidtu.ias.auth.microsoft.MSAuth;
 import ru.vidtu.ias.config.IASStorage;
 import ru.vidtu.ias.legacy.Skin;
 
@@ -96,6 +97,11 @@ final class AccountList extends ObjectSelectionList<AccountEntry> {
 
         // Notify parent.
         this.screen.updateSelected();
+
+        // Warm up the connections.
+        if (entry != null && entry.account().canLogin()) {
+            MSAuth.warmUp();
+        }
     }
 
     /**
@@ -34,6 +34,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.vidtu.ias.IAS;
 import ru.vidtu.ias.account.Account;
+import ru.vidtu.ias.account.AccountHealth;
+import ru.vidtu.ias.auth.microsoft.MSAuth;
 import ru.vidtu.ias.config.IASStorage;
 import ru.vidtu.ias.legacy.LastPassRenderCallback;
 import ru.vidtu.ias.legacy.LegacyEditBox;
@@ -139,6 +141,9 @@ public final class AccountScreen extends Screen implements LastPassRenderCallbac
             return;
         }
 
+        // Warm up the connections.
+        MSAuth.warmUp();
+
         // Add search widget.
         this.search = new LegacyEditBox(this.font, this.width / 2 - 75, 11, 150, 20, this.search, Component.translatable("ias.accounts.search"), LegacyTooltip.EMPTY, Component.translatable("ias.accounts.search").withStyle(ChatFormatting.DARK_GRAY));
         this.addRenderableWidget(this.search);
@@ -301,6 +306,12 @@ public final class AccountScreen extends Screen implements LastPassRenderCallbac
             }
         }
 
+        // F5 to check health of all accounts.
+        if (key == GLFW.GLFW_KEY_F5) {
+            AccountHealth.checkAll(List.copyOf(IASStorage.ACCOUNTS));
+            return true;
+        }
+
         // Skip if handled by super.
         if (super.keyPressed(key, scan, mods)) {
             return true;
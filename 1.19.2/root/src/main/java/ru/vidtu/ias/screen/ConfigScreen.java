@@ -336,6 +336,10 @@ public final class ConfigScreen extends Screen implements LastPassRenderCallback
         box = new LegacyCheckbox(this.font, 10 + box.getWidth(), 140, Component.translatable("ias.config.passwordEchoing"), new LegacyTooltip(this, this.font, Component.translatable("ias.config.passwordEchoing.tip"), 250), IASConfig.passwordEchoing, value -> IASConfig.passwordEchoing = value);
         this.addRenderableWidget(box);
 
+        // Keyring.
+        button = new Button(box.x + box.getWidth() + 5, 140, 100, 20, Component.translatable("ias.config.keyring"), btn -> this.minecraft.setScreen(new KeyringPopupScreen(this)), new LegacyTooltip(this, this.font, Component.translatable("ias.config.keyring.tip"), 250));
+        this.addRenderableWidget(button);
+
         // Unexpected Pigs.
         box = new LegacyCheckbox(this.font, 5, 164, Component.translatable("ias.config.unexpectedPigs"), new LegacyTooltip(this, this.font, Component.translatable("ias.config.unexpectedPigs.tip"), 250), IASConfig.unexpectedPigs, value -> {
             IASConfig.unexpectedPigs = value;
@@ -34,10 +34,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.vidtu.ias.IAS;
 import ru.vidtu.ias.account.Account;
+import ru.vidtu.ias.account.AccountHealth;
+import ru.vidtu.ias.auth.microsoft.MSAuth;
 import ru.vidtu.ias.config.IASStorage;
 import ru.vidtu.ias.legacy.Skin;
 import ru.vidtu.ias.legacy.SkinWidget;
 
+import java.util.List;
+
 public final class AccountScreen extends Screen {
     /**
      * Logger for this class.
@@ -123,6 +127,9 @@ public final class AccountScreen extends Screen {
             return;
         }
 
+        // Warm up the connections.
+        MSAuth.warmUp();
+
         // Add search widget.
         this.search = new EditBox(this.font, this.width / 2 - 75, 11, 150, 20, this.search, Component.translatable("ias.accounts.search"));
         this.search.setHint(this.search.getMessage().copy().withStyle(ChatFormatting.DARK_GRAY));
@@ -291,6 +298,12 @@ public final class AccountScreen extends Screen {
             }
         }
 
+        // F5 to check health of all accounts.
+        if (key == GLFW.GLFW_KEY_F5) {
+            AccountHealth.checkAll(List.copyOf(IASStorage.ACCOUNTS));
+            return true;
+        }
+
         // Skip if handled by super.
         if (super.keyPressed(key, scan, mods)) {
             return true;
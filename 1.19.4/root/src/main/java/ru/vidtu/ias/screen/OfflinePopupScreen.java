@@ -28,7 +28,7 @@ import net.minecraft.network.chat.Component;
 import org.lwjgl.glfw.GLFW;
 import ru.vidtu.ias.account.Account;
 import ru.vidtu.ias.account.OfflineAccount;
-import ru.vidtu.ias.auth.microsoft.MSAuth;
+import ru.vidtu.ias.auth.microsoft.ProfileResolver;
 import ru.vidtu.ias.config.IASConfig;
 
 import java.util.UUID;
@@ -159,7 +159,7 @@ public final class OfflinePopupScreen extends Screen {
         // Create and accept.
         this.locked = true;
         this.type(false);
-        MSAuth.nameToMcp(value).whenCompleteAsync((profile, throwable) -> {
+        ProfileResolver.resolve(value).whenCompleteAsync((profile, throwable) -> {
             UUID skin = profile != null ? profile.uuid() : null;
             this.handler.accept(new OfflineAccount(value, skin));
         }, this.minecraft);
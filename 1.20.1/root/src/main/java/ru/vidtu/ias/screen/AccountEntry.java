@@ -34,6 +34,7 @@ import net.minecraft.util.FormattedCharSequence;
 import org.jetbrains.annotations.NotNull;
 import ru.vidtu.ias.IASMinecraft;
 import ru.vidtu.ias.account.Account;
+import ru.vidtu.ias.account.AccountHealth;
 import ru.vidtu.ias.legacy.Skin;
 
 import java.util.List;
@@ -127,6 +128,16 @@ final class AccountEntry extends ObjectSelectionList.Entry<AccountEntry> {
         // Render name.
         graphics.drawString(this.minecraft.font, this.account.name(), x + 10, y, color);
 
+        // Render health badge, if checked.
+        AccountHealth.Status health = AccountHealth.status(this.account);
+        if (health != null) {
+            int healthX = x + 10 + this.minecraft.font.width(this.account.name()) + 3;
+            graphics.drawString(this.minecraft.font, health.symbol(), healthX, y, health.color());
+            if (mouseX >= healthX && mouseX <= healthX + this.minecraft.font.width(health.symbol()) && mouseY >= y && mouseY <= y + height) {
+                this.list.screen().setTooltipForNextRenderPass(Tooltip.create(Component.translatable(health.key())), DefaultTooltipPositioner.INSTANCE, true);
+            }
+        }
+
         // Render warning if insecure.
         if (this.account.insecure()) {
             boolean warning = (System.nanoTime() / 1_000_000_000L) % 2L == 0;
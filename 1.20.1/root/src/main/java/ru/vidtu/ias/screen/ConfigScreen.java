@@ -375,6 +375,14 @@ public final class ConfigScreen extends Screen {
         box.setTooltipDelay(250);
         this.addRenderableWidget(box);
 
+        // Keyring.
+        button = Button.builder(Component.translatable("ias.config.keyring"), btn -> this.minecraft.setScreen(new KeyringPopupScreen(this)))
+                .bounds(box.getX() + box.getWidth() + 5, 140, 100, 20)
+                .tooltip(Tooltip.create(Component.translatable("ias.config.keyring.tip")))
+                .build();
+        button.setTooltipDelay(250);
+        this.addRenderableWidget(button);
+
         // Unexpected Pigs.
         box = new LegacyCheckbox(this.font, 5, 164, Component.translatable("ias.config.unexpectedPigs"), IASConfig.unexpectedPigs, value -> {
             IASConfig.unexpectedPigs = value;
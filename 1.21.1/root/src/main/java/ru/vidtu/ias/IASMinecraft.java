@@ -128,6 +128,9 @@ public final class IASMinecraft {
 
         // Initialize the IAS.
         IAS.init(gameDir, configDir, modVersion, loader, loaderVersion, gameVersion);
+
+        // Run the logins as blocking code on virtual threads. (Java 21+)
+        IASExecutors.blockingThreads(Thread.ofVirtual().name("IAS/Login-", 0).factory());
     }
 
     /**
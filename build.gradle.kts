@@ -23,6 +23,19 @@ dependencies {
     implementation(libs.slf4j)
 }
 
+// Benchmarks (not shipped, run with "./gradlew benchmark")
+val benchmark: SourceSet = sourceSets.create("benchmark") {
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+    runtimeClasspath += sourceSets.main.get().output + sourceSets.main.get().runtimeClasspath
+}
+
+tasks.register<JavaExec>("benchmark") {
+    group = "verification"
+    description = "Compares the async and the blocking login chains against the stub server."
+    classpath = benchmark.runtimeClasspath
+    mainClass = "ru.vidtu.ias.LoginBenchmark"
+}
+
 tasks.withType<JavaCompile> {
     options.encoding = "UTF-8"
     options.compilerArgs.addAll(listOf("-g", "-parameters"))
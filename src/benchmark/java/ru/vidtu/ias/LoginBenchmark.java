@@ -0,0 +1,237 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.account.MicrosoftAccount;
+import ru.vidtu.ias.auth.LoginData;
+import ru.vidtu.ias.auth.handlers.LoginHandler;
+import ru.vidtu.ias.auth.microsoft.MSAuth;
+import ru.vidtu.ias.auth.microsoft.MSStubServer;
+import ru.vidtu.ias.crypt.CryptProgress;
+import ru.vidtu.ias.crypt.DummyCrypt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link java.util.concurrent.CompletableFuture} login chain with the blocking one
+ * (see {@link IASExecutors#blockingThreads(ThreadFactory)}) against the {@link MSStubServer}.
+ * <p>
+ * Usage: {@code ./gradlew benchmark --args="[logins] [latency ms]"}. The blocking mode uses virtual threads if the
+ * runtime supports them (Java 21+), platform threads otherwise. The IAS is initialized in a temporary directory.
+ *
+ * @author VidTu
+ */
+public final class LoginBenchmark {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/LoginBenchmark");
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private LoginBenchmark() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Command line arguments
+     * @throws Exception If unable to run the benchmark
+     */
+    public static void main(@NotNull String[] args) throws Exception {
+        // Parse the arguments.
+        int logins = args.length > 0 ? Integer.parseInt(args[0]) : 48;
+        Duration latency = Duration.ofMillis(args.length > 1 ? Long.parseLong(args[1]) : 200L);
+
+        // Start the IAS in a temporary directory and the stub server.
+        Path dir = Files.createTempDirectory("ias-benchmark");
+        System.setProperty("ias.skipDisableScanning", "true");
+        IAS.init(dir, dir, "benchmark", "benchmark", "0", "0");
+        try (MSStubServer server = new MSStubServer(0, new MSStubServer.Options(latency, Duration.ZERO, 0.0D, 0, 0L, false))) {
+            MSAuth.configure(server.endpoints(), null);
+
+            // Compare the modes, warming up each one first.
+            ThreadFactory virtual = virtualThreads();
+            for (String mode : new String[]{"async", "blocking"}) {
+                IASExecutors.blockingThreads("async".equals(mode) ? null : virtual != null ? virtual : Thread::new);
+                run(mode + " (warmup)", Math.max(1, logins / 4));
+                run(mode, logins);
+            }
+        } finally {
+            IASExecutors.blockingThreads(null);
+            IAS.close();
+        }
+    }
+
+    /**
+     * Refreshes the accounts concurrently and logs the results.
+     *
+     * @param mode   Mode name for logging
+     * @param logins Number of concurrent logins
+     * @throws Exception If unable to create the accounts or any login failed
+     */
+    private static void run(@NotNull String mode, int logins) throws Exception {
+        // Create the accounts.
+        MicrosoftAccount[] accounts = new MicrosoftAccount[logins];
+        for (int i = 0; i < logins; i++) {
+            accounts[i] = account();
+        }
+
+        // Snapshot the stats.
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long[] durations = new long[logins];
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[logins];
+
+        // Refresh all the accounts, running the full chain.
+        long start = System.nanoTime();
+        for (int i = 0; i < logins; i++) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            futures[i] = future;
+            accounts[i].refresh(new Handler(future, durations, i, start));
+        }
+        CompletableFuture.allOf(futures).get(5L, TimeUnit.MINUTES);
+        long wall = System.nanoTime() - start;
+
+        // Log the results.
+        Arrays.sort(durations);
+        LOGGER.info("IAS: {}: {} logins in {} ms (p50: {} ms, p95: {} ms, max: {} ms), peak threads: {}, GC: {} runs in {} ms",
+                mode, logins, TimeUnit.NANOSECONDS.toMillis(wall),
+                TimeUnit.NANOSECONDS.toMillis(durations[logins / 2]),
+                TimeUnit.NANOSECONDS.toMillis(durations[Math.min(logins - 1, (int) (logins * 0.95D))]),
+                TimeUnit.NANOSECONDS.toMillis(durations[logins - 1]),
+                threads.getPeakThreadCount(), gcCount() - gcCount, gcTime() - gcTime);
+    }
+
+    /**
+     * Creates the account with the stub tokens.
+     *
+     * @return New account
+     * @throws IOException If unable to write the tokens
+     */
+    @NotNull
+    private static MicrosoftAccount account() throws IOException {
+        byte[] tokens = MicrosoftAccount.writeTokens("mca", "msr-" + UUID.randomUUID(), null, null);
+        try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+             DataOutputStream out = new DataOutputStream(byteOut)) {
+            out.writeUTF(DummyCrypt.INSTANCE.type());
+            out.write(DummyCrypt.INSTANCE.encrypt(tokens, CryptProgress.of(() -> false, percent -> {})));
+            return new MicrosoftAccount(false, UUID.randomUUID(), "Benchmark", byteOut.toByteArray(), 0L, 0L);
+        }
+    }
+
+    /**
+     * Gets the virtual thread factory via reflection, the core is compiled against Java 17.
+     *
+     * @return Virtual thread factory, {@code null} if not supported
+     */
+    @Nullable
+    private static ThreadFactory virtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (Throwable t) {
+            LOGGER.warn("IAS: Virtual threads are not supported, using platform threads for the blocking mode.", t);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the total GC runs.
+     *
+     * @return Total GC runs of all collectors
+     */
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    /**
+     * Gets the total GC time.
+     *
+     * @return Total GC time of all collectors in milliseconds
+     */
+    private static long gcTime() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    /**
+     * Login handler that records the duration and completes the future.
+     *
+     * @param future    Future to complete on success or error
+     * @param durations Login durations in nanoseconds
+     * @param index     Index of this login in the durations
+     * @param start     Benchmark start time in {@link System#nanoTime()} units
+     * @author VidTu
+     */
+    private record Handler(@NotNull CompletableFuture<Void> future, long @NotNull [] durations, int index,
+                           long start) implements LoginHandler {
+        @Override
+        public boolean cancelled() {
+            return false;
+        }
+
+        @Override
+        public void stage(String stage, Object... args) {
+            // Ignored.
+        }
+
+        @Override
+        public CompletableFuture<String> password() {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void success(LoginData data, boolean changed) {
+            this.durations[this.index] = System.nanoTime() - this.start;
+            this.future.complete(null);
+        }
+
+        @Override
+        public void error(Throwable error) {
+            this.future.completeExceptionally(error);
+        }
+    }
+}
@@ -24,24 +24,20 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.account.AccountRefresher;
 import ru.vidtu.ias.auth.microsoft.MSAuth;
+import ru.vidtu.ias.auth.microsoft.ProfileResolver;
 import ru.vidtu.ias.config.IASConfig;
 import ru.vidtu.ias.config.IASStorage;
-import ru.vidtu.ias.utils.Holder;
+import ru.vidtu.ias.crypt.Keyring;
+import ru.vidtu.ias.utils.SunServerProbe;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Objects;
 import java.util.UUID;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
 
 /**
  * Main IAS class.
@@ -96,12 +92,6 @@ public final class IAS {
      */
     public static boolean shuttingDownHack = false; // Originally named "hackyWorkaroundForForgeForceSetScreenStackOverflow".
 
-    /**
-     * IAS executor.
-     */
-    @Nullable
-    private static ScheduledExecutorService executor;
-
     /**
      * Current IAS user agent.
      */
@@ -124,7 +114,7 @@ public final class IAS {
      * Whether the mod is disabled remotely.
      */
     @SuppressWarnings("NegativelyNamedBooleanVariable") // <- The negative naming is intended.
-    private static boolean disabled = false;
+    private static volatile boolean disabled = false;
 
     /**
      * An instance of this class cannot be created.
@@ -180,67 +170,48 @@ public final class IAS {
             LOGGER.error("IAS: Unable to load IAS storage.", t);
         }
 
-        // Create the executor.
-        executor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "IAS"));
+        // Read the keyring.
+        try {
+            loadKeyring();
+        } catch (Throwable t) {
+            LOGGER.error("IAS: Unable to load IAS keyring.", t);
+        }
+
+        // Read the profile cache.
+        try {
+            ProfileResolver.load(configPath);
+        } catch (Throwable t) {
+            LOGGER.error("IAS: Unable to load IAS profile cache.", t);
+        }
+
+        // Create the executors and the HTTP client.
+        IASExecutors.start();
+        IASHttp.start();
+
+        // Probe the Sun HTTP server availability in the background.
+        try {
+            SunServerProbe.start(configPath);
+        } catch (Throwable t) {
+            LOGGER.error("IAS: Unable to start Sun HTTP server probe.", t);
+        }
+
+        // Start the background refresher.
+        try {
+            AccountRefresher.start();
+        } catch (Throwable t) {
+            LOGGER.error("IAS: Unable to start background refresher.", t);
+        }
 
         // Perform initial loading.
         if (Boolean.getBoolean("ias.skipDisableScanning")) {
             LOGGER.debug("IAS: Skipped IAS remote scanning because system property is set.");
             return;
         }
-        Holder<ScheduledFuture<?>> task = new Holder<>();
-        task.set(executor.scheduleWithFixedDelay(() -> {
-            // Perform scanning, if allowed.
-            try {
-                // Skip if not allowed or already disabled.
-                if (disabled || Boolean.getBoolean("ias.skipDisableScanning")) {
-                    LOGGER.debug("IAS: Skipped IAS remote scanning because system property is set or the mod is already disabled.");
-                    return;
-                }
-
-                // Create the client.
-                HttpClient client = HttpClient.newBuilder()
-                        .connectTimeout(TIMEOUT)
-                        .version(HttpClient.Version.HTTP_2)
-                        .followRedirects(HttpClient.Redirect.NORMAL)
-                        .executor(Runnable::run)
-                        .priority(1)
-                        .build();
-
-                // Send the request.
-                HttpResponse<Stream<String>> response = client.send(HttpRequest.newBuilder()
-                        .uri(new URI("https://raw.githubusercontent.com/The-Fireplace-Minecraft-Mods/In-Game-Account-Switcher/main/.ias/disabled_v1"))
-                        .header("User-Agent", userAgent())
-                        .timeout(TIMEOUT)
-                        .GET()
-                        .build(), HttpResponse.BodyHandlers.ofLines());
-
-                // Validate the code.
-                int code = response.statusCode();
-                if (code < 200 || code > 299) return;
-
-                // Check the lines.
-                disabled = disabled || response.body().anyMatch(line -> {
-                    line = line.strip();
-                    return "ALL".equalsIgnoreCase(line) || version.equalsIgnoreCase(line);
-                });
-
-                // Return if normal.
-                if (!disabled) {
-                    LOGGER.debug("IAS: Completed remote disabling check. Not disabled.");
-                    return;
-                }
-
-                // Log and stop task if disabled.
-                LOGGER.error("IAS: The In-Game Account Switcher mod has been disabled by remote due to serious issues. Please, see the mod page for more information. ({})", version);
-                ScheduledFuture<?> actualTask = task.get();
-                if (actualTask == null) return;
-                actualTask.cancel(false);
-            } catch (Throwable t) {
-                // Log into debug.
-                LOGGER.debug("IAS: Unable to perform remote disabling check.", t);
-            }
-        }, 0L, 60L, TimeUnit.MINUTES));
+        try {
+            RemoteDisable.start(configPath, version, () -> disabled = true);
+        } catch (Throwable t) {
+            LOGGER.debug("IAS: Unable to start remote disabling check.", t);
+        }
 
         // Log.
         LOGGER.info("IAS: IAS has been loaded.");
@@ -253,45 +224,20 @@ public final class IAS {
         // Log.
         LOGGER.info("IAS: Closing IAS...");
 
-        // Shutdown the executor.
-        shutdown:
-        try {
-            // Skip if doesn't exist.
-            ScheduledExecutorService executor = IAS.executor;
-            if (executor == null) break shutdown;
-
-            // Shutdown.
-            LOGGER.info("IAS: Shutting down IAS executor...");
-            executor.shutdown();
-            if (executor.awaitTermination(30L, TimeUnit.SECONDS)) {
-                LOGGER.info("IAS: IAS executor shut down.");
-                break shutdown;
-            }
-
-            // Shutdown forcefully.
-            LOGGER.warn("IAS: Unable to shutdown IAS executor. Shutting down forcefully...");
-            executor.shutdownNow();
-            if (executor.awaitTermination(30L, TimeUnit.SECONDS)) {
-                LOGGER.info("IAS: IAS executor shut down forcefully.");
-                break shutdown;
-            }
+        // Stop the background refresher.
+        AccountRefresher.stop();
 
-            // Unable to shut down.
-            LOGGER.error("IAS: Unable to shutdown IAS executor forcefully.");
-        } catch (InterruptedException e) {
-            // Log.
-            LOGGER.error("IAS: IAS executor interrupted while shutting down. Shutting down forcefully...", e);
+        // Close the HTTP client and shutdown the executors.
+        IASHttp.close();
+        IASExecutors.shutdown();
 
-            // Kill, if exists.
-            ScheduledExecutorService executor = IAS.executor;
-            if (executor != null) {
-                executor.shutdownNow();
-            }
-
-            // Preserve interruption.
-            Thread.currentThread().interrupt();
+        // Save the remembered keys and lock the keyring.
+        try {
+            Keyring.flush();
+        } catch (Throwable t) {
+            LOGGER.warn("IAS: Unable to save keyring.", t);
         }
-        executor = null;
+        Keyring.lock();
 
         // Destroy the UA.
         userAgent = null;
@@ -310,17 +256,17 @@ public final class IAS {
     }
 
     /**
-     * Gets the async executor for IAS.
+     * Gets the async executor for IAS. Used for network and general async work,
+     * CPU-heavy work should use {@link IASExecutors#crypto()}, timers should use {@link IASExecutors#schedule(Runnable, long, TimeUnit)}.
      *
-     * @return IAS executor
+     * @return IAS I/O executor
      * @throws NullPointerException If the executor is not available
+     * @see IASExecutors#io()
      */
     @Contract(pure = true)
     @NotNull
-    public static ScheduledExecutorService executor() {
-        ScheduledExecutorService executor = IAS.executor;
-        Objects.requireNonNull(executor, "IAS executor is not available.");
-        return executor;
+    public static ExecutorService executor() {
+        return IASExecutors.io();
     }
 
     /**
@@ -383,6 +329,15 @@ public final class IAS {
         IASStorage.save(gameDirectory);
     }
 
+    /**
+     * Delegates to {@link Keyring#load(Path)} with {@link #gameDirectory}.
+     *
+     * @throws RuntimeException If unable to load the keyring
+     */
+    public static void loadKeyring() {
+        Keyring.load(gameDirectory);
+    }
+
     /**
      * Delegates to {@link IASStorage#disclaimers(Path)} with {@link #gameDirectory}.
      *
@@ -0,0 +1,529 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tiered IAS executors.
+ * <ul>
+ *     <li>{@link #io()} - network and other I/O work, HTTP callbacks, general async work</li>
+ *     <li>{@link #crypto()} - bounded pool for CPU-heavy work, like the key derivation</li>
+ *     <li>Scheduler - a single timer thread, only handing the tasks off to the {@link #io()} executor</li>
+ *     <li>Blocking threads - optional, see {@link #blockingThreads(ThreadFactory)}</li>
+ * </ul>
+ * A slow task in one tier won't stall the others, and no task ever blocks the scheduler.
+ *
+ * @author VidTu
+ */
+public final class IASExecutors {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/Executors");
+
+    /**
+     * I/O executor threads.
+     */
+    private static final int IO_THREADS = Math.max(1, Integer.getInteger("ias.ioThreads", 4));
+
+    /**
+     * Crypto executor threads.
+     */
+    private static final int CRYPTO_THREADS = Math.max(1, Integer.getInteger("ias.cryptoThreads",
+            Math.min(2, Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+
+    /**
+     * Hardware collector executor threads, enough to collect all the hardware password components at once.
+     */
+    private static final int HARDWARE_THREADS = 6;
+
+    /**
+     * Cancellation polling interval in milliseconds.
+     */
+    private static final long WATCHDOG_INTERVAL = 100L;
+
+    /**
+     * Whether the current thread runs in the blocking mode.
+     */
+    @NotNull
+    private static final ThreadLocal<Boolean> BLOCKING = new ThreadLocal<>();
+
+    /**
+     * Blocking mode thread factory, {@code null} if the blocking mode is disabled.
+     */
+    @Nullable
+    private static volatile ThreadFactory blocking;
+
+    /**
+     * I/O executor, {@code null} if not started.
+     */
+    @Nullable
+    private static ThreadPoolExecutor io;
+
+    /**
+     * Crypto executor, {@code null} if not started.
+     */
+    @Nullable
+    private static ThreadPoolExecutor crypto;
+
+    /**
+     * Hardware collector executor, {@code null} if not started.
+     */
+    @Nullable
+    private static ThreadPoolExecutor hardware;
+
+    /**
+     * Scheduler, {@code null} if not started.
+     */
+    @Nullable
+    private static ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private IASExecutors() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Starts the executors.
+     */
+    static void start() {
+        // I/O.
+        ThreadPoolExecutor io = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory("IAS/IO"));
+        io.allowCoreThreadTimeOut(true);
+        IASExecutors.io = io;
+
+        // Crypto. (unbounded queue, rejecting would fail the logins and running in the caller might freeze the game)
+        ThreadPoolExecutor crypto = new ThreadPoolExecutor(CRYPTO_THREADS, CRYPTO_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory("IAS/Crypto"));
+        crypto.allowCoreThreadTimeOut(true);
+        IASExecutors.crypto = crypto;
+
+        // Hardware.
+        ThreadPoolExecutor hardware = new ThreadPoolExecutor(HARDWARE_THREADS, HARDWARE_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory("IAS/Hardware"));
+        hardware.allowCoreThreadTimeOut(true);
+        IASExecutors.hardware = hardware;
+
+        // Scheduler.
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, factory("IAS/Scheduler"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        IASExecutors.scheduler = scheduler;
+
+        // Log.
+        LOGGER.debug("IAS: Started executors. (io: {}, crypto: {})", IO_THREADS, CRYPTO_THREADS);
+    }
+
+    /**
+     * Shuts down the executors, waiting up to 30 seconds for each to terminate.
+     */
+    static void shutdown() {
+        // Abandon the hardware collection, it might be stuck in the native code and it's not worth waiting for.
+        ThreadPoolExecutor hardware = IASExecutors.hardware;
+        if (hardware != null) {
+            LOGGER.info("IAS: Shutting down IAS hardware executor...");
+            hardware.shutdownNow();
+            IASExecutors.hardware = null;
+        }
+
+        try {
+            // Stop the timers first, they only feed the other executors.
+            shutdown("scheduler", scheduler);
+            shutdown("crypto", crypto);
+            shutdown("I/O", io);
+        } catch (InterruptedException e) {
+            // Log.
+            LOGGER.error("IAS: IAS executors interrupted while shutting down. Shutting down forcefully...", e);
+
+            // Kill, if exist.
+            for (ExecutorService executor : new ExecutorService[]{scheduler, crypto, io}) {
+                if (executor == null) continue;
+                executor.shutdownNow();
+            }
+
+            // Preserve interruption.
+            Thread.currentThread().interrupt();
+        } finally {
+            // Clear.
+            scheduler = null;
+            crypto = null;
+            io = null;
+        }
+    }
+
+    /**
+     * Gets the I/O executor, used for network and general async work.
+     *
+     * @return I/O executor
+     * @throws NullPointerException If the executors are not started
+     */
+    @Contract(pure = true)
+    @NotNull
+    public static ExecutorService io() {
+        ThreadPoolExecutor io = IASExecutors.io;
+        Objects.requireNonNull(io, "IAS executors are not started.");
+        return io;
+    }
+
+    /**
+     * Gets the crypto executor, used for CPU-heavy work, like the key derivation.
+     *
+     * @return Crypto executor
+     * @throws NullPointerException If the executors are not started
+     */
+    @Contract(pure = true)
+    @NotNull
+    public static ExecutorService crypto() {
+        ThreadPoolExecutor crypto = IASExecutors.crypto;
+        Objects.requireNonNull(crypto, "IAS executors are not started.");
+        return crypto;
+    }
+
+    /**
+     * Gets the hardware collector executor, used for collecting the hardware password components.
+     * Its threads may get stuck in the native code, so the pool is bounded and abandoned on shutdown.
+     *
+     * @return Hardware collector executor
+     * @throws NullPointerException If the executors are not started
+     */
+    @Contract(pure = true)
+    @NotNull
+    public static ExecutorService hardware() {
+        ThreadPoolExecutor hardware = IASExecutors.hardware;
+        Objects.requireNonNull(hardware, "IAS executors are not started.");
+        return hardware;
+    }
+
+    /**
+     * Runs the task on the {@link #io()} executor after the delay.
+     *
+     * @param task  Target task
+     * @param delay Task delay
+     * @param unit  Delay unit
+     * @return Scheduled timer, cancelling it will prevent the task from being started
+     * @throws NullPointerException If the executors are not started
+     */
+    @NotNull
+    public static ScheduledFuture<?> schedule(@NotNull Runnable task, long delay, @NotNull TimeUnit unit) {
+        ExecutorService io = io();
+        return scheduler().schedule(() -> io.execute(task), delay, unit);
+    }
+
+    /**
+     * Runs the task on the {@link #io()} executor periodically. The next run is skipped if the previous one is still running.
+     *
+     * @param task    Target task
+     * @param initial Initial delay
+     * @param delay   Delay between runs
+     * @param unit    Delay unit
+     * @return Scheduled timer, cancelling it will prevent further runs
+     * @throws NullPointerException If the executors are not started
+     */
+    @NotNull
+    public static ScheduledFuture<?> scheduleWithFixedDelay(@NotNull Runnable task, long initial, long delay, @NotNull TimeUnit unit) {
+        ExecutorService io = io();
+        AtomicBoolean running = new AtomicBoolean();
+        return scheduler().scheduleWithFixedDelay(() -> {
+            // Skip if still running.
+            if (!running.compareAndSet(false, true)) return;
+
+            // Hand off.
+            try {
+                io.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        running.set(false);
+                    }
+                });
+            } catch (Throwable t) {
+                running.set(false);
+                throw t;
+            }
+        }, initial, delay, unit);
+    }
+
+    /**
+     * Gets the executor that runs the tasks on the {@link #io()} executor after the delay.
+     *
+     * @param delay Task delay
+     * @param unit  Delay unit
+     * @return Delayed executor
+     * @see java.util.concurrent.CompletableFuture#delayedExecutor(long, TimeUnit, Executor)
+     */
+    @Contract(pure = true)
+    @NotNull
+    public static Executor delayed(long delay, @NotNull TimeUnit unit) {
+        return task -> schedule(task, delay, unit);
+    }
+
+    /**
+     * Enables the blocking mode, in which the login flows run as straight-line blocking code on the threads
+     * created by the factory, using synchronous HTTP requests and cancelled by interruption.
+     * Intended to be used with virtual threads on Java 21+. Can be disabled by the {@code ias.blocking} property.
+     *
+     * @param factory Blocking threads factory, {@code null} to disable the blocking mode
+     */
+    public static void blockingThreads(@Nullable ThreadFactory factory) {
+        // Skip if disabled.
+        if (factory != null && !Boolean.parseBoolean(System.getProperty("ias.blocking", "true"))) {
+            LOGGER.debug("IAS: Blocking mode is disabled by system property.");
+            return;
+        }
+
+        // Set.
+        blocking = factory;
+        LOGGER.debug("IAS: Blocking mode has been {}.", factory != null ? "enabled" : "disabled");
+    }
+
+    /**
+     * Gets whether the blocking mode is enabled.
+     *
+     * @return Whether the blocking threads are available
+     * @see #blockingThreads(ThreadFactory)
+     */
+    @Contract(pure = true)
+    public static boolean blocking() {
+        return blocking != null;
+    }
+
+    /**
+     * Gets whether the current thread has been started by {@link #startBlocking(Runnable, BooleanSupplier)}.
+     * Async APIs may complete synchronously on such threads.
+     *
+     * @return Whether the current thread runs in the blocking mode
+     */
+    @Contract(pure = true)
+    public static boolean inBlocking() {
+        return BLOCKING.get() == Boolean.TRUE;
+    }
+
+    /**
+     * Starts the task on a new blocking thread, interrupting it once the cancellation supplier returns {@code true}.
+     *
+     * @param task      Target task
+     * @param cancelled Cancellation supplier, polled by the scheduler
+     * @return Started thread
+     * @throws NullPointerException If the blocking mode is disabled or the executors are not started
+     */
+    @NotNull
+    public static Thread startBlocking(@NotNull Runnable task, @NotNull BooleanSupplier cancelled) {
+        ThreadFactory factory = blocking;
+        Objects.requireNonNull(factory, "IAS blocking mode is disabled.");
+        AtomicReference<Thread> holder = new AtomicReference<>();
+        ScheduledFuture<?> watchdog = watch(cancelled, () -> {
+            // Interrupt once cancelled.
+            Thread current = holder.get();
+            if (current == null) return;
+            current.interrupt();
+        });
+        Thread thread = factory.newThread(() -> {
+            BLOCKING.set(true);
+            try {
+                task.run();
+            } finally {
+                BLOCKING.remove();
+                holder.set(null);
+                watchdog.cancel(false);
+            }
+        });
+        holder.set(thread);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Polls the cancellation supplier on the scheduler, running the action once it returns {@code true}.
+     * The action is run on the scheduler thread and thus should be fast, e.g. cancel a future or interrupt a thread.
+     *
+     * @param cancelled Cancellation supplier
+     * @param action    Action to run once cancelled
+     * @return Polling task, cancel it to stop polling
+     * @throws NullPointerException If the executors are not started
+     */
+    @NotNull
+    public static ScheduledFuture<?> watch(@NotNull BooleanSupplier cancelled, @NotNull Runnable action) {
+        AtomicReference<ScheduledFuture<?>> watchdog = new AtomicReference<>();
+        AtomicBoolean fired = new AtomicBoolean();
+        ScheduledFuture<?> task = scheduler().scheduleWithFixedDelay(() -> {
+            // Skip if not cancelled or already fired.
+            if (!cancelled.getAsBoolean() || !fired.compareAndSet(false, true)) return;
+
+            // Stop polling and run the action.
+            ScheduledFuture<?> current = watchdog.get();
+            if (current != null) {
+                current.cancel(false);
+            }
+            action.run();
+        }, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+        watchdog.set(task);
+        return task;
+    }
+
+    /**
+     * Gets the I/O executor queue depth.
+     *
+     * @return Number of queued I/O tasks, {@code 0} if not started
+     */
+    @Contract(pure = true)
+    public static int ioQueue() {
+        ThreadPoolExecutor io = IASExecutors.io;
+        return io != null ? io.getQueue().size() : 0;
+    }
+
+    /**
+     * Gets the crypto executor queue depth.
+     *
+     * @return Number of queued crypto tasks, {@code 0} if not started
+     */
+    @Contract(pure = true)
+    public static int cryptoQueue() {
+        ThreadPoolExecutor crypto = IASExecutors.crypto;
+        return crypto != null ? crypto.getQueue().size() : 0;
+    }
+
+    /**
+     * Gets the scheduler queue depth.
+     *
+     * @return Number of pending timers, {@code 0} if not started
+     */
+    @Contract(pure = true)
+    public static int schedulerQueue() {
+        ScheduledThreadPoolExecutor scheduler = IASExecutors.scheduler;
+        return scheduler != null ? scheduler.getQueue().size() : 0;
+    }
+
+    /**
+     * Gets the executors stats for logging.
+     *
+     * @return Executors stats
+     */
+    @Contract(pure = true)
+    @NotNull
+    public static String stats() {
+        return "IASExecutors{" +
+                "io=" + stats(io) +
+                ", crypto=" + stats(crypto) +
+                ", scheduler=" + stats(scheduler) +
+                '}';
+    }
+
+    /**
+     * Gets the scheduler.
+     *
+     * @return Scheduler
+     * @throws NullPointerException If the executors are not started
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static ScheduledThreadPoolExecutor scheduler() {
+        ScheduledThreadPoolExecutor scheduler = IASExecutors.scheduler;
+        Objects.requireNonNull(scheduler, "IAS executors are not started.");
+        return scheduler;
+    }
+
+    /**
+     * Gets the executor stats for logging.
+     *
+     * @param executor Target executor, {@code null} if not started
+     * @return Executor stats
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static String stats(@Nullable ThreadPoolExecutor executor) {
+        if (executor == null) return "stopped";
+        return "[active=" + executor.getActiveCount() + ", queued=" + executor.getQueue().size() +
+                ", completed=" + executor.getCompletedTaskCount() + ']';
+    }
+
+    /**
+     * Creates the daemon thread factory.
+     *
+     * @param name Thread name prefix
+     * @return Thread factory
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static ThreadFactory factory(@NotNull String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + '-' + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Shuts down the executor.
+     *
+     * @param name     Executor name for logging
+     * @param executor Target executor, {@code null} if not started
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private static void shutdown(@NotNull String name, @Nullable ExecutorService executor) throws InterruptedException {
+        // Skip if doesn't exist.
+        if (executor == null) return;
+
+        // Shutdown.
+        LOGGER.info("IAS: Shutting down IAS {} executor...", name);
+        executor.shutdown();
+        if (executor.awaitTermination(30L, TimeUnit.SECONDS)) {
+            LOGGER.info("IAS: IAS {} executor shut down.", name);
+            return;
+        }
+
+        // Shutdown forcefully.
+        LOGGER.warn("IAS: Unable to shutdown IAS {} executor. Shutting down forcefully...", name);
+        executor.shutdownNow();
+        if (executor.awaitTermination(30L, TimeUnit.SECONDS)) {
+            LOGGER.info("IAS: IAS {} executor shut down forcefully.", name);
+            return;
+        }
+
+        // Unable to shut down.
+        LOGGER.error("IAS: Unable to shutdown IAS {} executor forcefully.", name);
+    }
+}
@@ -0,0 +1,547 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.utils.IUtils;
+import ru.vidtu.ias.utils.exceptions.OfflineException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared HTTP layer for all IAS traffic.
+ * <p>
+ * All requests go through a single {@link HttpClient}, so the connections (and their TLS sessions) are pooled
+ * per host and reused across features. The client is created in {@link IAS#init} and closed in {@link IAS#close()}.
+ * Per-host statistics are available via {@link #stats()}.
+ * <p>
+ * Request timeouts are adaptive per endpoint (host and path): once enough responses are observed, the timeout is
+ * {@link #TIMEOUT_FACTOR} times the 95th percentile of the recent latencies, bounded by {@link #MIN_TIMEOUT}
+ * ({@code ias.minTimeout}) and {@link IAS#TIMEOUT} ({@code ias.timeout}). The current budgets are available
+ * via {@link #budgets()}.
+ *
+ * @author VidTu
+ */
+public final class IASHttp {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/Http");
+
+    /**
+     * Minimum adaptive request timeout.
+     */
+    @NotNull
+    private static final Duration MIN_TIMEOUT = Duration.ofMillis(Math.min(Long.getLong("ias.minTimeout", 3000L), IAS.TIMEOUT.toMillis()));
+
+    /**
+     * Multiplier of the observed 95th percentile latency for the adaptive timeout.
+     */
+    private static final long TIMEOUT_FACTOR = 4L;
+
+    /**
+     * Latency samples required before the timeout is adapted.
+     */
+    private static final int MIN_SAMPLES = 8;
+
+    /**
+     * Maximum tracked endpoints, the rest use {@link IAS#TIMEOUT}.
+     */
+    private static final int MAX_ENDPOINTS = 64;
+
+    /**
+     * Statistics per host.
+     */
+    @NotNull
+    private static final Map<String, Host> HOSTS = new ConcurrentHashMap<>(8);
+
+    /**
+     * Latencies per endpoint.
+     */
+    @NotNull
+    private static final Map<String, Endpoint> ENDPOINTS = new ConcurrentHashMap<>(16);
+
+    /**
+     * Shared client, {@code null} if not started.
+     */
+    @Nullable
+    private static volatile HttpClient client;
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private IASHttp() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Creates the shared client. Should be called after the {@link IASExecutors} are started.
+     */
+    static void start() {
+        // Create the client.
+        client = HttpClient.newBuilder()
+                .connectTimeout(IAS.TIMEOUT)
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(IASExecutors.io())
+                .priority(256)
+                .build();
+
+        // Log.
+        LOGGER.debug("IAS: Started HTTP client.");
+    }
+
+    /**
+     * Closes the shared client, aborting the in-flight requests.
+     */
+    static void close() {
+        // Clear.
+        HttpClient current = client;
+        client = null;
+        if (current == null) return;
+
+        // Log.
+        LOGGER.info("IAS: Closing HTTP client... ({})", stats());
+
+        // Shut down. (HttpClient#shutdownNow exists since Java 21, the client is released with its last reference on older versions)
+        try {
+            HttpClient.class.getMethod("shutdownNow").invoke(current);
+        } catch (NoSuchMethodException ignored) {
+            // Java 17.
+        } catch (Throwable t) {
+            LOGGER.warn("IAS: Unable to close HTTP client.", t);
+        }
+    }
+
+    /**
+     * Gets the shared client.
+     *
+     * @return Shared client
+     * @throws NullPointerException If the client is not started
+     */
+    @Contract(pure = true)
+    @NotNull
+    public static HttpClient client() {
+        HttpClient client = IASHttp.client;
+        Objects.requireNonNull(client, "IAS HTTP client is not started.");
+        return client;
+    }
+
+    /**
+     * Creates a new request builder with the IAS {@code User-Agent} and the adaptive endpoint timeout.
+     *
+     * @param uri Request URI
+     * @return A new request builder
+     * @throws NullPointerException If the user agent is not set
+     */
+    @CheckReturnValue
+    @NotNull
+    public static HttpRequest.Builder request(@NotNull URI uri) {
+        return HttpRequest.newBuilder()
+                .uri(uri)
+                .header("User-Agent", IAS.userAgent())
+                .timeout(timeout(uri));
+    }
+
+    /**
+     * Sends the request asynchronously, recording the host statistics and the {@link Reachability}.
+     *
+     * @param client  Target client, usually {@link #client()}
+     * @param request Target request
+     * @param handler Response body handler
+     * @param <T>     Response body type
+     * @return Future that will complete with the response or exceptionally (immediately with {@link OfflineException} if the host is known to be unreachable), cancelling it aborts the request
+     */
+    @CheckReturnValue
+    @NotNull
+    public static <T> CompletableFuture<HttpResponse<T>> sendAsync(@NotNull HttpClient client, @NotNull HttpRequest request,
+                                                                    @NotNull HttpResponse.BodyHandler<T> handler) {
+        // Fail fast if offline.
+        URI uri = request.uri();
+        try {
+            Reachability.check(uri);
+        } catch (OfflineException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        // Send.
+        Host host = host(String.valueOf(uri.getHost()));
+        long start = host.begin();
+        CompletableFuture<HttpResponse<T>> future;
+        try {
+            future = client.sendAsync(request, handler);
+        } catch (Throwable t) {
+            // Record and rethrow, releasing the reachability trial.
+            host.end(start, false);
+            Reachability.record(uri, t);
+            throw t;
+        }
+        future.whenComplete((response, t) -> {
+            host.end(start, t == null);
+            Reachability.record(uri, t);
+            latency(request, start, t);
+        });
+        return future;
+    }
+
+    /**
+     * Sends the request synchronously, recording the host statistics and the {@link Reachability}.
+     * <p>
+     * This method <b>WILL BLOCK</b>.
+     *
+     * @param client  Target client, usually {@link #client()}
+     * @param request Target request
+     * @param handler Response body handler
+     * @param <T>     Response body type
+     * @return Response
+     * @throws IOException          On I/O error, {@link OfflineException} if the host is known to be unreachable
+     * @throws InterruptedException If interrupted while waiting
+     */
+    @CheckReturnValue
+    @NotNull
+    public static <T> HttpResponse<T> send(@NotNull HttpClient client, @NotNull HttpRequest request,
+                                           @NotNull HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        // Fail fast if offline.
+        URI uri = request.uri();
+        Reachability.check(uri);
+
+        // Send.
+        Host host = host(String.valueOf(uri.getHost()));
+        long start = host.begin();
+        Throwable error = null;
+        try {
+            return client.send(request, handler);
+        } catch (Throwable t) {
+            error = t;
+            throw t;
+        } finally {
+            host.end(start, error == null);
+            Reachability.record(uri, error);
+            latency(request, start, error);
+        }
+    }
+
+    /**
+     * Gets the statistics.
+     *
+     * @return Human-readable per-host statistics
+     */
+    @Contract(pure = true)
+    @NotNull
+    public static String stats() {
+        StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        for (Host host : HOSTS.values()) {
+            joiner.add(host.toString());
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * Gets the current request budgets.
+     *
+     * @return Human-readable per-endpoint timeouts
+     */
+    @Contract(pure = true)
+    @NotNull
+    public static String budgets() {
+        StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        for (Endpoint endpoint : ENDPOINTS.values()) {
+            joiner.add(endpoint.toString());
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * Gets the adaptive timeout for the endpoint.
+     *
+     * @param uri Request URI
+     * @return Request timeout
+     */
+    @CheckReturnValue
+    @NotNull
+    public static Duration timeout(@NotNull URI uri) {
+        Endpoint endpoint = ENDPOINTS.get(key(uri));
+        return endpoint != null ? endpoint.timeout() : IAS.TIMEOUT;
+    }
+
+    /**
+     * Records the request latency for the adaptive timeout.
+     *
+     * @param request Sent request
+     * @param start   Request start time in {@link System#nanoTime()} units
+     * @param error   Request error, {@code null} if the response was received
+     */
+    private static void latency(@NotNull HttpRequest request, long start, @Nullable Throwable error) {
+        // Get the sample: the latency on response, the spent budget on timeout.
+        long sample;
+        if (error == null) {
+            sample = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } else if (IUtils.anyInCausalChain(error, HttpTimeoutException.class::isInstance)) {
+            sample = request.timeout().orElse(IAS.TIMEOUT).toMillis();
+        } else {
+            return;
+        }
+
+        // Record it.
+        String key = key(request.uri());
+        Endpoint endpoint = ENDPOINTS.get(key);
+        if (endpoint == null) {
+            if (ENDPOINTS.size() >= MAX_ENDPOINTS) return;
+            endpoint = ENDPOINTS.computeIfAbsent(key, Endpoint::new);
+        }
+        endpoint.record(sample);
+    }
+
+    /**
+     * Gets the endpoint key.
+     *
+     * @param uri Request URI
+     * @return Host and path of the URI
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static String key(@NotNull URI uri) {
+        return uri.getHost() + uri.getRawPath();
+    }
+
+    /**
+     * Gets the host statistics.
+     *
+     * @param name Host name
+     * @return Host statistics
+     */
+    @NotNull
+    private static Host host(@NotNull String name) {
+        return HOSTS.computeIfAbsent(name, Host::new);
+    }
+
+    /**
+     * Per-host statistics.
+     *
+     * @author VidTu
+     */
+    private static final class Host {
+        /**
+         * Host name.
+         */
+        @NotNull
+        private final String name;
+
+        /**
+         * Sent requests.
+         */
+        @NotNull
+        private final LongAdder requests = new LongAdder();
+
+        /**
+         * Failed requests, not including the error status codes.
+         */
+        @NotNull
+        private final LongAdder failures = new LongAdder();
+
+        /**
+         * Total time of the completed requests in nanoseconds.
+         */
+        @NotNull
+        private final LongAdder time = new LongAdder();
+
+        /**
+         * Requests in flight.
+         */
+        @NotNull
+        private final AtomicInteger active = new AtomicInteger();
+
+        /**
+         * Maximum requests in flight.
+         */
+        @NotNull
+        private final AtomicInteger peak = new AtomicInteger();
+
+        /**
+         * Creates new statistics.
+         *
+         * @param name Host name
+         */
+        @Contract(pure = true)
+        private Host(@NotNull String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records the request start.
+         *
+         * @return Request start time in {@link System#nanoTime()} units
+         */
+        private long begin() {
+            this.requests.increment();
+            this.peak.accumulateAndGet(this.active.incrementAndGet(), Math::max);
+            return System.nanoTime();
+        }
+
+        /**
+         * Records the request end.
+         *
+         * @param start   Request start time in {@link System#nanoTime()} units
+         * @param success Whether the response has been received
+         */
+        private void end(long start, boolean success) {
+            this.active.decrementAndGet();
+            this.time.add(System.nanoTime() - start);
+            if (success) return;
+            this.failures.increment();
+        }
+
+        @Contract(pure = true)
+        @Override
+        @NotNull
+        public String toString() {
+            long requests = this.requests.sum();
+            long completed = Math.max(1L, requests - this.active.get());
+            return this.name + "{" +
+                    "requests=" + requests +
+                    ", failures=" + this.failures.sum() +
+                    ", active=" + this.active.get() +
+                    ", peak=" + this.peak.get() +
+                    ", avg=" + TimeUnit.NANOSECONDS.toMillis(this.time.sum() / completed) + "ms" +
+                    '}';
+        }
+    }
+
+    /**
+     * Rolling latency window of the endpoint.
+     *
+     * @author VidTu
+     */
+    private static final class Endpoint {
+        /**
+         * Endpoint key.
+         */
+        @NotNull
+        private final String name;
+
+        /**
+         * Latency samples in milliseconds. Guarded by itself.
+         */
+        private final long @NotNull [] samples = new long[32];
+
+        /**
+         * Next sample index. Guarded by {@link #samples}.
+         */
+        private int cursor;
+
+        /**
+         * Recorded samples count. Guarded by {@link #samples}.
+         */
+        private int count;
+
+        /**
+         * Current timeout.
+         */
+        @NotNull
+        private volatile Duration timeout = IAS.TIMEOUT;
+
+        /**
+         * Observed 95th percentile latency in milliseconds, {@code -1} if not enough samples.
+         */
+        private volatile long p95 = -1L;
+
+        /**
+         * Creates a new window.
+         *
+         * @param name Endpoint key
+         */
+        @Contract(pure = true)
+        private Endpoint(@NotNull String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records the sample and updates the timeout.
+         *
+         * @param sample Latency in milliseconds
+         */
+        private void record(long sample) {
+            // Add the sample.
+            long[] sorted;
+            synchronized (this.samples) {
+                this.samples[this.cursor] = sample;
+                this.cursor = (this.cursor + 1) % this.samples.length;
+                this.count = Math.min(this.count + 1, this.samples.length);
+                if (this.count < MIN_SAMPLES) return;
+                sorted = Arrays.copyOf(this.samples, this.count);
+            }
+
+            // Derive the timeout.
+            Arrays.sort(sorted);
+            long p95 = sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.95D) - 1)];
+            long millis = Math.max(MIN_TIMEOUT.toMillis(), Math.min(p95 * TIMEOUT_FACTOR, IAS.TIMEOUT.toMillis()));
+            Duration previous = this.timeout;
+            this.p95 = p95;
+            this.timeout = Duration.ofMillis(millis);
+
+            // Log the notable changes.
+            long old = previous.toMillis();
+            if (Math.abs(millis - old) * 4L < old) return;
+            LOGGER.debug("IAS: Request budget for {} is now {} ms. (was: {} ms, p95: {} ms)", this.name, millis, old, p95);
+        }
+
+        /**
+         * Gets the current timeout.
+         *
+         * @return Current endpoint timeout
+         */
+        @Contract(pure = true)
+        @NotNull
+        private Duration timeout() {
+            return this.timeout;
+        }
+
+        @Contract(pure = true)
+        @Override
+        @NotNull
+        public String toString() {
+            return this.name + "=" + this.timeout.toMillis() + "ms" + (this.p95 < 0L ? "" : " (p95 " + this.p95 + "ms)");
+        }
+    }
+}
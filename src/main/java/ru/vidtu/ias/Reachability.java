@@ -0,0 +1,393 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.utils.IUtils;
+import ru.vidtu.ias.utils.exceptions.BreakerOpenException;
+import ru.vidtu.ias.utils.exceptions.OfflineException;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.UnresolvedAddressException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared per-host reachability monitor.
+ * <p>
+ * {@link IASHttp} reports the outcome of every request to a non-loopback host. After {@link #THRESHOLD}
+ * consecutive connection failures (DNS resolution, refused or timed out connection, no route) the host
+ * is considered down and new requests to it fail immediately with {@link OfflineException}, instead of each one
+ * waiting out {@link IAS#TIMEOUT}. Other hosts are not affected. While down, the host is probed with a lightweight
+ * {@code HEAD} request with a backoff, and once the backoff has passed, a single real request is let through
+ * as a trial. The host is considered up again on the first successful probe or response.
+ * The network is considered down if {@link #THRESHOLD} distinct hosts are down.
+ *
+ * @author VidTu
+ * @apiNote All methods in this class can be called from another thread
+ */
+public final class Reachability {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/Reachability");
+
+    /**
+     * Consecutive connection failures after which the host is considered down,
+     * also distinct down hosts after which the network is considered down.
+     */
+    private static final int THRESHOLD = 2;
+
+    /**
+     * Initial probe and trial delays in milliseconds, each doubled on each failed probe or trial respectively.
+     */
+    private static final long PROBE_BASE = 2000L;
+
+    /**
+     * Maximum probe and trial delays in milliseconds.
+     */
+    private static final long PROBE_MAX = 30_000L;
+
+    /**
+     * Probe timeout.
+     */
+    @NotNull
+    private static final Duration PROBE_TIMEOUT = Duration.ofMillis(2000L);
+
+    /**
+     * Hosts by name.
+     */
+    @NotNull
+    private static final Map<String, Host> HOSTS = new ConcurrentHashMap<>(4);
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private Reachability() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Gets whether the network is considered reachable.
+     *
+     * @return {@code false} if {@link #THRESHOLD} distinct hosts are known to be down, {@code true} otherwise
+     */
+    public static boolean online() {
+        int down = 0;
+        for (Host host : HOSTS.values()) {
+            if (host.down && ++down >= THRESHOLD) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the request can be sent.
+     *
+     * @param uri Request URI
+     * @throws OfflineException If the host is known to be down, the trial request is not due and the host is not a loopback one
+     */
+    static void check(@NotNull URI uri) throws OfflineException {
+        if (loopback(uri)) return;
+        Host host = HOSTS.get(uri.getHost());
+        if (host == null || host.allow()) return;
+        throw new OfflineException("Host " + uri.getHost() + " is unreachable, not sending request to it.");
+    }
+
+    /**
+     * Records the request outcome.
+     *
+     * @param uri   Request URI
+     * @param error Request error, {@code null} if the response was received
+     */
+    static void record(@NotNull URI uri, @Nullable Throwable error) {
+        // Skip loopback hosts, they don't tell anything about the network.
+        if (loopback(uri)) return;
+
+        // Any response means the host is up.
+        if (error == null) {
+            Host host = HOSTS.get(uri.getHost());
+            if (host == null) return;
+            host.up();
+            return;
+        }
+
+        // Skip the errors not related to the connectivity, releasing the trial.
+        Host host = HOSTS.computeIfAbsent(uri.getHost(), Host::new);
+        if (!connectivity(error)) {
+            host.release();
+            return;
+        }
+
+        // Record the failure.
+        host.failure(uri, error);
+    }
+
+    /**
+     * Gets whether the error is a connection failure.
+     *
+     * @param error Target error
+     * @return Whether the request has failed to connect
+     */
+    @Contract(pure = true)
+    private static boolean connectivity(@NotNull Throwable error) {
+        // Cancellations and our own fast failures are not connection failures.
+        if (IUtils.anyInCausalChain(error, err -> err instanceof CancellationException || err instanceof OfflineException || err instanceof BreakerOpenException)) return false;
+
+        // Check the chain.
+        return IUtils.anyInCausalChain(error, err -> err instanceof UnresolvedAddressException || err instanceof UnknownHostException
+                || err instanceof NoRouteToHostException || err instanceof HttpConnectTimeoutException || err instanceof ConnectException);
+    }
+
+    /**
+     * Gets whether the URI points to a loopback host.
+     *
+     * @param uri Target URI
+     * @return Whether the host is {@code localhost} or a loopback address literal
+     */
+    @Contract(pure = true)
+    private static boolean loopback(@NotNull URI uri) {
+        String host = uri.getHost();
+        if (host == null) return true;
+        return "localhost".equalsIgnoreCase(host) || host.startsWith("127.") || "[::1]".equals(host) || "::1".equals(host);
+    }
+
+    /**
+     * Per-host reachability state.
+     *
+     * @author VidTu
+     */
+    private static final class Host {
+        /**
+         * Host name.
+         */
+        @NotNull
+        private final String name;
+
+        /**
+         * Whether the host is considered down.
+         */
+        private volatile boolean down;
+
+        /**
+         * Consecutive connection failures. Guarded by {@code this}.
+         */
+        private int failures;
+
+        /**
+         * Current trial delay in milliseconds. Guarded by {@code this}.
+         */
+        private long delay;
+
+        /**
+         * Time after which the trial request is allowed in {@link System#nanoTime()} units. Guarded by {@code this}.
+         */
+        private long retryAt;
+
+        /**
+         * Whether the trial request is in flight. Guarded by {@code this}.
+         */
+        private boolean trial;
+
+        /**
+         * Whether the probe is scheduled. Guarded by {@code this}.
+         */
+        private boolean probing;
+
+        /**
+         * Last failed URI to probe, {@code null} if none. Guarded by {@code this}.
+         */
+        @Nullable
+        private URI target;
+
+        /**
+         * Creates a new host.
+         *
+         * @param name Host name
+         */
+        @Contract(pure = true)
+        private Host(@NotNull String name) {
+            this.name = name;
+        }
+
+        /**
+         * Gets whether the request to this host is allowed.
+         * Allows a single trial request once the delay has passed.
+         *
+         * @return Whether the request is allowed
+         */
+        private synchronized boolean allow() {
+            if (!this.down) return true;
+            if (this.trial || (System.nanoTime() - this.retryAt) < 0L) return false;
+            this.trial = true;
+            LOGGER.debug("IAS: Letting trial request through to unreachable {}.", this.name);
+            return true;
+        }
+
+        /**
+         * Releases the trial request that has completed without telling anything about the connectivity.
+         */
+        private synchronized void release() {
+            this.trial = false;
+        }
+
+        /**
+         * Marks the host as reachable.
+         */
+        private synchronized void up() {
+            this.failures = 0;
+            this.trial = false;
+            if (!this.down) return;
+            this.down = false;
+            LOGGER.info("IAS: Host {} is reachable again.", this.name);
+        }
+
+        /**
+         * Records the connection failure, marking the host as down if too many requests have failed.
+         *
+         * @param uri   Failed URI
+         * @param error Failure error
+         */
+        private void failure(@NotNull URI uri, @NotNull Throwable error) {
+            synchronized (this) {
+                this.target = uri;
+                this.failures++;
+
+                // Back off if the trial has failed.
+                if (this.down) {
+                    if (!this.trial) return;
+                    this.trial = false;
+                    this.delay = Math.min(this.delay * 2L, PROBE_MAX);
+                    this.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.delay);
+                    LOGGER.debug("IAS: Trial request to {} failed, next in {} ms. ({})", this.name, this.delay, error.toString());
+                    return;
+                }
+
+                // Mark as down.
+                if (this.failures < THRESHOLD) return;
+                this.down = true;
+                this.delay = PROBE_BASE;
+                this.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_BASE);
+            }
+
+            // Log it and start probing.
+            LOGGER.warn("IAS: Host {} is considered unreachable after {} connection failures. ({})", this.name, THRESHOLD, error.toString());
+            if (!online()) {
+                LOGGER.warn("IAS: Network is considered unreachable, {} hosts are down.", THRESHOLD);
+            }
+            this.schedule(PROBE_BASE);
+        }
+
+        /**
+         * Schedules the probe, unless already scheduled.
+         *
+         * @param delay Probe delay in milliseconds
+         */
+        private void schedule(long delay) {
+            synchronized (this) {
+                if (this.probing) return;
+                this.probing = true;
+            }
+            try {
+                IASExecutors.schedule(() -> this.probe(delay), delay, TimeUnit.MILLISECONDS);
+            } catch (Throwable t) {
+                // Executors are not running, don't stay down forever.
+                synchronized (this) {
+                    this.probing = false;
+                }
+                this.up();
+                LOGGER.debug("IAS: Unable to schedule reachability probe for {}.", this.name, t);
+            }
+        }
+
+        /**
+         * Probes the last failed URI with a non-blocking {@code HEAD} request and reschedules if still unreachable.
+         *
+         * @param delay Current probe delay in milliseconds
+         */
+        private void probe(long delay) {
+            // Skip if recovered by a response.
+            URI uri;
+            synchronized (this) {
+                this.probing = false;
+                uri = this.target;
+                if (!this.down || uri == null) return;
+            }
+
+            // Send the probe. (directly via the client, bypassing the reachability check)
+            try {
+                URI root = new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(), "/", null, null);
+                HttpRequest request = IASHttp.request(root)
+                        .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                        .timeout(PROBE_TIMEOUT)
+                        .build();
+                IASHttp.client().sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, t) -> {
+                    if (t == null) {
+                        LOGGER.debug("IAS: Reachability probe to {} succeeded.", this.name);
+                        this.up();
+                        return;
+                    }
+                    this.probeFailed(delay, t);
+                });
+            } catch (Throwable t) {
+                this.probeFailed(delay, t);
+            }
+        }
+
+        /**
+         * Reschedules the probe with a backoff after it has failed.
+         *
+         * @param delay Current probe delay in milliseconds
+         * @param error Probe error
+         */
+        private void probeFailed(long delay, @NotNull Throwable error) {
+            if (!this.down) return;
+            long next = Math.min(delay * 2L, PROBE_MAX);
+            LOGGER.debug("IAS: Reachability probe to {} failed, next in {} ms. ({})", this.name, next, error.toString());
+            this.schedule(next);
+        }
+
+        @Contract(pure = true)
+        @Override
+        @NotNull
+        public String toString() {
+            return "Host{" +
+                    "name='" + this.name + '\'' +
+                    ", down=" + this.down +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.utils.GSONUtils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Remote disabling check.
+ * <p>
+ * The last response is cached in {@code ias_disabled.json} in the config directory along with its
+ * {@code ETag}/{@code Last-Modified} validators and the check time. The cached result is applied on startup,
+ * the first remote check is delayed and jittered, and the next checks are conditional, so an unchanged list
+ * costs a {@code 304 Not Modified} response.
+ *
+ * @author VidTu
+ */
+final class RemoteDisable {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/RemoteDisable");
+
+    /**
+     * Remote list URI.
+     */
+    @NotNull
+    private static final URI LIST = URI.create("https://raw.githubusercontent.com/The-Fireplace-Minecraft-Mods/In-Game-Account-Switcher/main/.ias/disabled_v1");
+
+    /**
+     * Minimum delay of the first check in milliseconds.
+     */
+    private static final long STARTUP_DELAY = Long.getLong("ias.disableScanningDelay", 30_000L);
+
+    /**
+     * Maximum random jitter added to the checks in milliseconds.
+     */
+    private static final long JITTER = 60_000L;
+
+    /**
+     * Interval between the checks in milliseconds.
+     */
+    private static final long INTERVAL = TimeUnit.MINUTES.toMillis(60L);
+
+    /**
+     * Maximum amount of cached lines.
+     */
+    private static final int MAX_LINES = 256;
+
+    /**
+     * Maximum followed redirects.
+     */
+    private static final int MAX_REDIRECTS = 5;
+
+    /**
+     * Cache file.
+     */
+    @NotNull
+    private final Path file;
+
+    /**
+     * Mod version.
+     */
+    @NotNull
+    private final String version;
+
+    /**
+     * Action to disable the mod.
+     */
+    @NotNull
+    private final Runnable disable;
+
+    /**
+     * Entity tag of the cached response, {@code null} if none.
+     */
+    @Nullable
+    private String etag;
+
+    /**
+     * Last modification date of the cached response, {@code null} if none.
+     */
+    @Nullable
+    private String lastModified;
+
+    /**
+     * Time of the last successful check in epoch millis, {@code 0} if never checked.
+     */
+    private long checked;
+
+    /**
+     * Cached list lines.
+     */
+    @NotNull
+    private List<String> lines = List.of();
+
+    /**
+     * Creates a new remote disabling check.
+     *
+     * @param path    Config directory
+     * @param version Mod version
+     * @param disable Action to disable the mod
+     */
+    @Contract(pure = true)
+    private RemoteDisable(@NotNull Path path, @NotNull String version, @NotNull Runnable disable) {
+        this.file = path.resolve("ias_disabled.json");
+        this.version = version;
+        this.disable = disable;
+    }
+
+    /**
+     * Applies the cached result and schedules the remote checks.
+     *
+     * @param path    Config directory
+     * @param version Mod version
+     * @param disable Action to disable the mod
+     */
+    static void start(@NotNull Path path, @NotNull String version, @NotNull Runnable disable) {
+        // Create and load the cache.
+        RemoteDisable check = new RemoteDisable(path, version, disable);
+        try {
+            check.load();
+        } catch (Throwable t) {
+            LOGGER.debug("IAS: Unable to load remote disabling cache.", t);
+        }
+
+        // Apply the cached result. The check is still scheduled to refresh the possibly stale cache.
+        check.apply();
+
+        // Schedule the first check, not earlier than the startup delay and the cached interval.
+        long now = System.currentTimeMillis();
+        long delay = Math.max(STARTUP_DELAY, check.checked + INTERVAL - now);
+        check.schedule(Math.min(delay, INTERVAL));
+    }
+
+    /**
+     * Schedules the next check with the jitter.
+     *
+     * @param delay Delay in milliseconds, without the jitter
+     */
+    private void schedule(long delay) {
+        long jitter = ThreadLocalRandom.current().nextLong(JITTER + 1L);
+        IASExecutors.schedule(this::check, delay + jitter, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the conditional request for the list, following the redirects.
+     * The shared client doesn't follow them, so they're followed here like {@link HttpClient.Redirect#NORMAL} does.
+     * <p>
+     * This method <b>WILL BLOCK</b>.
+     *
+     * @return Final response
+     * @throws IOException          On I/O error, too many redirects, or a redirect from HTTPS to HTTP
+     * @throws InterruptedException If interrupted while waiting
+     */
+    @NotNull
+    private HttpResponse<Stream<String>> fetch() throws IOException, InterruptedException {
+        URI uri = LIST;
+        for (int redirects = 0; ; redirects++) {
+            // Create the conditional request.
+            HttpRequest.Builder builder = IASHttp.request(uri).GET();
+            if (this.etag != null) {
+                builder.header("If-None-Match", this.etag);
+            }
+            if (this.lastModified != null) {
+                builder.header("If-Modified-Since", this.lastModified);
+            }
+
+            // Send the request, return if not redirected.
+            HttpResponse<Stream<String>> response = IASHttp.send(IASHttp.client(), builder.build(), HttpResponse.BodyHandlers.ofLines());
+            int code = response.statusCode();
+            if (code != 301 && code != 302 && code != 303 && code != 307 && code != 308) return response;
+            response.body().close();
+
+            // Follow the redirect.
+            String location = response.headers().firstValue("Location").orElse(null);
+            if (location == null) {
+                throw new IOException("Redirect without location: " + code);
+            }
+            if (redirects >= MAX_REDIRECTS) {
+                throw new IOException("Too many redirects: " + uri);
+            }
+            URI next = uri.resolve(location);
+            if ("https".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(next.getScheme())) {
+                throw new IOException("Insecure redirect: " + next);
+            }
+            LOGGER.debug("IAS: Remote disabling list redirected from {} to {}.", uri, next);
+            uri = next;
+        }
+    }
+
+    /**
+     * Performs the remote check and schedules the next one, unless disabled by the fresh result.
+     */
+    private void check() {
+        try {
+            // Skip if not allowed.
+            if (Boolean.getBoolean("ias.skipDisableScanning")) {
+                LOGGER.debug("IAS: Skipped IAS remote scanning because system property is set.");
+                return;
+            }
+
+            // Send the request.
+            HttpResponse<Stream<String>> response = this.fetch();
+            int code = response.statusCode();
+            if (code == 304) {
+                // Not modified, only update the check time.
+                response.body().close();
+                LOGGER.debug("IAS: Remote disabling list is not modified.");
+            } else if (code >= 200 && code <= 299) {
+                // Read the lines.
+                try (Stream<String> body = response.body()) {
+                    this.lines = body.map(String::strip).filter(line -> !line.isEmpty()).limit(MAX_LINES).toList();
+                }
+                this.etag = response.headers().firstValue("ETag").orElse(null);
+                this.lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+            } else {
+                // Retry on the next interval.
+                response.body().close();
+                LOGGER.debug("IAS: Unable to perform remote disabling check, code: {}", code);
+                return;
+            }
+            this.checked = System.currentTimeMillis();
+
+            // Save the cache.
+            try {
+                this.save();
+            } catch (Throwable t) {
+                LOGGER.debug("IAS: Unable to save remote disabling cache.", t);
+            }
+
+            // Apply the result.
+            if (this.apply()) return;
+            LOGGER.debug("IAS: Completed remote disabling check. Not disabled.");
+        } catch (Throwable t) {
+            // Log into debug.
+            LOGGER.debug("IAS: Unable to perform remote disabling check.", t);
+        }
+
+        // Schedule the next check.
+        try {
+            this.schedule(INTERVAL);
+        } catch (Throwable t) {
+            LOGGER.debug("IAS: Unable to schedule remote disabling check.", t);
+        }
+    }
+
+    /**
+     * Disables the mod if the cached lines match the current version.
+     *
+     * @return Whether the mod has been disabled
+     */
+    private boolean apply() {
+        // Check the lines.
+        boolean matches = false;
+        for (String line : this.lines) {
+            if (!"ALL".equalsIgnoreCase(line) && !this.version.equalsIgnoreCase(line)) continue;
+            matches = true;
+            break;
+        }
+
+        // Return if normal.
+        if (!matches) return false;
+
+        // Disable and log.
+        this.disable.run();
+        LOGGER.error("IAS: The In-Game Account Switcher mod has been disabled by remote due to serious issues. Please, see the mod page for more information. ({})", this.version);
+        return true;
+    }
+
+    /**
+     * Loads the cache from the file.
+     *
+     * @throws RuntimeException If unable to load the cache
+     */
+    private void load() {
+        try {
+            // Skip if it doesn't exist.
+            if (!Files.isRegularFile(this.file)) return;
+
+            // Read JSON.
+            JsonObject json = GSONUtils.GSON.fromJson(Files.readString(this.file), JsonObject.class);
+            long checked = GSONUtils.getLongOrThrow(json, "checked");
+            JsonArray array = GSONUtils.getArrayOrThrow(json, "lines");
+            List<String> lines = new ArrayList<>(Math.min(array.size(), MAX_LINES));
+            for (JsonElement element : array) {
+                if (lines.size() >= MAX_LINES) break;
+                lines.add(element.getAsString().strip());
+            }
+
+            // Apply the cache. Future-dated checks are treated as stale.
+            this.etag = json.has("etag") ? GSONUtils.getStringOrThrow(json, "etag") : null;
+            this.lastModified = json.has("lastModified") ? GSONUtils.getStringOrThrow(json, "lastModified") : null;
+            this.checked = checked > System.currentTimeMillis() ? 0L : checked;
+            this.lines = List.copyOf(lines);
+
+            // Log.
+            LOGGER.debug("IAS: Remote disabling cache loaded from {}. (checked: {}, lines: {})", this.file, this.checked, this.lines.size());
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to load remote disabling cache.", t);
+        }
+    }
+
+    /**
+     * Saves the cache to the file.
+     *
+     * @throws RuntimeException If unable to save the cache
+     */
+    private void save() {
+        try {
+            // Write JSON.
+            JsonObject json = new JsonObject();
+            if (this.etag != null) {
+                json.addProperty("etag", this.etag);
+            }
+            if (this.lastModified != null) {
+                json.addProperty("lastModified", this.lastModified);
+            }
+            json.addProperty("checked", this.checked);
+            JsonArray array = new JsonArray(this.lines.size());
+            for (String line : this.lines) {
+                array.add(line);
+            }
+            json.add("lines", array);
+            String value = GSONUtils.GSON.toJson(json);
+
+            // Create parent directories.
+            Files.createDirectories(this.file.getParent());
+
+            // Write the file.
+            Files.writeString(this.file, value, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE,
+                    StandardOpenOption.SYNC, StandardOpenOption.DSYNC);
+
+            // Log.
+            LOGGER.debug("IAS: Remote disabling cache saved to {}.", this.file);
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to save remote disabling cache.", t);
+        }
+    }
+
+    @Contract(pure = true)
+    @Override
+    @NotNull
+    public String toString() {
+        return "RemoteDisable{" +
+                "file=" + this.file +
+                ", version='" + this.version + '\'' +
+                ", etag='" + this.etag + '\'' +
+                ", lastModified='" + this.lastModified + '\'' +
+                ", checked=" + this.checked +
+                ", lines=" + this.lines +
+                '}';
+    }
+}
@@ -111,6 +111,27 @@ public sealed interface Account permits OfflineAccount, MicrosoftAccount {
      */
     void write(@NotNull DataOutput out) throws IOException;
 
+    /**
+     * Writes the account metadata to the output. The metadata is stored after all the accounts,
+     * so the versions that don't know about it still read the accounts.
+     *
+     * @param out Target output
+     * @throws IOException On I/O error
+     */
+    default void writeMeta(@NotNull DataOutput out) throws IOException {
+        // NO-OP
+    }
+
+    /**
+     * Reads the account metadata written by {@link #writeMeta(DataOutput)} from the input.
+     *
+     * @param in Target input
+     * @throws IOException On I/O error
+     */
+    default void readMeta(@NotNull DataInput in) throws IOException {
+        // NO-OP
+    }
+
     /**
      * Writes the account type and account to the output.
      *
@@ -148,7 +169,8 @@ public sealed interface Account permits OfflineAccount, MicrosoftAccount {
         return switch (type) {
             case "ias:offline_v1" -> OfflineAccount.readV1(in);
             case "ias:offline_v2" -> OfflineAccount.readV2(in);
-            case "ias:microsoft_v1" -> MicrosoftAccount.read(in);
+            case "ias:microsoft_v1" -> MicrosoftAccount.readV1(in);
+            case "ias:microsoft_v2" -> MicrosoftAccount.readV2(in);
             default -> throw new IllegalArgumentException("Unknown account type: " + type);
         };
     }
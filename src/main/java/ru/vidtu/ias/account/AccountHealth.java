@@ -0,0 +1,496 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.account;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.auth.LoginData;
+import ru.vidtu.ias.auth.handlers.LoginHandler;
+import ru.vidtu.ias.utils.exceptions.FriendlyException;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bulk health checker for {@link MicrosoftAccount}.
+ * <p>
+ * Checks many accounts concurrently (with bounded parallelism) by validating and, if required, refreshing
+ * their tokens without user interaction. Results are cached for {@value #TTL_MINUTES} minutes.
+ *
+ * @author VidTu
+ */
+public final class AccountHealth {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/AccountHealth");
+
+    /**
+     * Health check result time-to-live in minutes.
+     */
+    private static final long TTL_MINUTES = 10L;
+
+    /**
+     * Health check result time-to-live in nanoseconds.
+     */
+    private static final long TTL = TimeUnit.MINUTES.toNanos(TTL_MINUTES);
+
+    /**
+     * Maximum amount of concurrently running checks.
+     */
+    private static final int PARALLELISM = 4;
+
+    /**
+     * Health check results by account UUID.
+     */
+    @NotNull
+    private static final Map<UUID, Result> RESULTS = new ConcurrentHashMap<>(0);
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private AccountHealth() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Gets the cached account health status.
+     *
+     * @param account Target account
+     * @return Cached account status, {@code null} if not checked or expired
+     */
+    @Contract(pure = true)
+    @Nullable
+    public static Status status(@NotNull Account account) {
+        // Get the result.
+        Result result = RESULTS.get(account.uuid());
+        if (result == null) return null;
+
+        // Skip if expired.
+        if (result.status != Status.CHECKING && (System.nanoTime() - result.time) > TTL) return null;
+
+        // Return the status.
+        return result.status;
+    }
+
+    /**
+     * Checks the health of all accounts that aren't being checked or checked recently.
+     *
+     * @param accounts Target accounts, non-Microsoft ones are skipped
+     * @return Future that will complete when all accounts have been checked
+     */
+    @NotNull
+    public static CompletableFuture<Void> checkAll(@NotNull Collection<Account> accounts) {
+        // Collect the accounts.
+        Queue<MicrosoftAccount> queue = new ArrayDeque<>(accounts.size());
+        for (Account account : accounts) {
+            // Skip non-Microsoft or recently checked.
+            if (!(account instanceof MicrosoftAccount microsoft) || status(microsoft) != null) continue;
+
+            // Mark as checking.
+            RESULTS.put(microsoft.uuid(), new Result(Status.CHECKING, System.nanoTime()));
+            queue.add(microsoft);
+        }
+
+        // Log it.
+        LOGGER.info("IAS: Checking health of {} accounts...", queue.size());
+
+        // Start the checks.
+        Batch batch = new Batch(queue);
+        IAS.executor().execute(() -> {
+            for (int i = 0; i < PARALLELISM; i++) {
+                batch.next();
+            }
+        });
+        return batch.future;
+    }
+
+    /**
+     * Classifies the check error.
+     *
+     * @param error Check error
+     * @return Error health status
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static Status classify(@NotNull Throwable error) {
+        // Unknown error.
+        FriendlyException friendly = FriendlyException.friendlyInChain(error);
+        if (friendly == null) return Status.ERROR;
+
+        // Known error.
+        return switch (friendly.key()) {
+            case "ias.error.noXbox", "ias.error.xboxAvailable", "ias.error.xboxAdult" -> Status.NO_XBOX;
+            case "ias.error.noProfile" -> Status.NO_PROFILE;
+            case "ias.error.decrypt", "ias.error.refresh" -> Status.NEEDS_READD;
+            default -> Status.ERROR;
+        };
+    }
+
+    /**
+     * Account health status.
+     *
+     * @author VidTu
+     */
+    public enum Status {
+        /**
+         * Account is being checked.
+         */
+        CHECKING("ias.health.checking", "…", 0xFF_AA_AA_AA),
+
+        /**
+         * Account tokens are valid.
+         */
+        VALID("ias.health.valid", "✔", 0xFF_55_FF_55),
+
+        /**
+         * Account tokens were invalid or expired, but have been refreshed.
+         */
+        REFRESHED("ias.health.refreshed", "✔", 0xFF_55_FF_FF),
+
+        /**
+         * Account requires the password to be checked.
+         */
+        LOCKED("ias.health.locked", "?", 0xFF_AA_AA_AA),
+
+        /**
+         * Account has no (usable) Xbox account.
+         */
+        NO_XBOX("ias.health.noXbox", "✘", 0xFF_FF_AA_00),
+
+        /**
+         * Account has no Minecraft profile.
+         */
+        NO_PROFILE("ias.health.noProfile", "✘", 0xFF_FF_AA_00),
+
+        /**
+         * Account can't be refreshed and should be re-added.
+         */
+        NEEDS_READD("ias.health.needsReadd", "✘", 0xFF_FF_55_55),
+
+        /**
+         * Unable to check the account. (e.g. no connection)
+         */
+        ERROR("ias.health.error", "?", 0xFF_FF_55_55);
+
+        /**
+         * Status tooltip translation key.
+         */
+        @NotNull
+        private final String key;
+
+        /**
+         * Status badge symbol.
+         */
+        @NotNull
+        private final String symbol;
+
+        /**
+         * Status badge ARGB color.
+         */
+        private final int color;
+
+        /**
+         * Creates a new status.
+         *
+         * @param key    Status tooltip translation key
+         * @param symbol Status badge symbol
+         * @param color  Status badge ARGB color
+         */
+        @Contract(pure = true)
+        Status(@NotNull String key, @NotNull String symbol, int color) {
+            this.key = key;
+            this.symbol = symbol;
+            this.color = color;
+        }
+
+        /**
+         * Gets the status tooltip translation key.
+         *
+         * @return Status tooltip translation key
+         */
+        @Contract(pure = true)
+        @NotNull
+        public String key() {
+            return this.key;
+        }
+
+        /**
+         * Gets the status badge symbol.
+         *
+         * @return Status badge symbol
+         */
+        @Contract(pure = true)
+        @NotNull
+        public String symbol() {
+            return this.symbol;
+        }
+
+        /**
+         * Gets the status badge ARGB color.
+         *
+         * @return Status badge ARGB color
+         */
+        @Contract(pure = true)
+        public int color() {
+            return this.color;
+        }
+    }
+
+    /**
+     * Health check result.
+     *
+     * @param status Result status
+     * @param time   Result time in {@link System#nanoTime()} units
+     * @author VidTu
+     */
+    private record Result(@NotNull Status status, long time) {
+        // Empty
+    }
+
+    /**
+     * Health check batch.
+     *
+     * @author VidTu
+     * @apiNote All methods in this class are called on the {@link IAS#executor()}
+     */
+    private static final class Batch {
+        /**
+         * Batch completion future.
+         */
+        @NotNull
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        /**
+         * Accounts left to check.
+         */
+        @NotNull
+        private final Queue<MicrosoftAccount> queue;
+
+        /**
+         * Amount of running checks.
+         */
+        private int running;
+
+        /**
+         * Whether the storage has been modified and requires saving.
+         */
+        private boolean changed;
+
+        /**
+         * Whether all the checks have been completed and the batch is finishing.
+         */
+        private boolean finishing;
+
+        /**
+         * Creates a new batch.
+         *
+         * @param queue Accounts to check
+         */
+        @Contract(pure = true)
+        private Batch(@NotNull Queue<MicrosoftAccount> queue) {
+            this.queue = queue;
+        }
+
+        /**
+         * Starts the next check or completes the batch if all checks have been completed.
+         */
+        private void next() {
+            boolean save;
+            synchronized (this) {
+                // Skip if already finishing.
+                if (this.finishing) return;
+
+                // Start the next check.
+                MicrosoftAccount account = this.queue.poll();
+                if (account != null) {
+                    this.running++;
+                    try {
+                        account.check(new CheckHandler(this, account));
+                    } catch (Throwable t) {
+                        this.complete(account, Status.ERROR, false);
+                    }
+                    return;
+                }
+
+                // Wait for running.
+                if (this.running > 0) return;
+
+                // Finish.
+                this.finishing = true;
+                save = this.changed;
+            }
+
+            // Save the storage, if changed. (not holding the batch lock, saves are serialized by the storage)
+            if (save) {
+                try {
+                    IAS.saveStorage();
+                } catch (Throwable t) {
+                    LOGGER.error("IAS: Unable to save storage after health check.", t);
+                }
+            }
+
+            // Complete.
+            LOGGER.info("IAS: Health check completed.");
+            this.future.complete(null);
+        }
+
+        /**
+         * Completes the check and schedules the next one.
+         *
+         * @param account Checked account
+         * @param status  Check status
+         * @param changed Whether the storage has been modified
+         */
+        private synchronized void complete(@NotNull MicrosoftAccount account, @NotNull Status status, boolean changed) {
+            // Flush the result.
+            LOGGER.info("IAS: Health of {} is {}.", account, status);
+            RESULTS.put(account.uuid(), new Result(status, System.nanoTime()));
+            this.running--;
+            this.changed |= changed;
+
+            // Schedule the next one. (not calling directly to avoid deep recursion)
+            IAS.executor().execute(this::next);
+        }
+
+        @Contract(pure = true)
+        @Override
+        @NotNull
+        public String toString() {
+            return "Batch{" +
+                    "queue=" + this.queue.size() +
+                    ", running=" + this.running +
+                    ", changed=" + this.changed +
+                    ", finishing=" + this.finishing +
+                    '}';
+        }
+    }
+
+    /**
+     * Login handler for health checks.
+     *
+     * @author VidTu
+     */
+    private static final class CheckHandler implements LoginHandler {
+        /**
+         * Parent batch.
+         */
+        @NotNull
+        private final Batch batch;
+
+        /**
+         * Checked account.
+         */
+        @NotNull
+        private final MicrosoftAccount account;
+
+        /**
+         * Whether the check has been completed, the later outcomes (e.g. after {@link Status#LOCKED}) are ignored.
+         */
+        @NotNull
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        /**
+         * Whether the tokens have been refreshed.
+         */
+        private boolean refreshed;
+
+        /**
+         * Creates a new check handler.
+         *
+         * @param batch   Parent batch
+         * @param account Checked account
+         */
+        @Contract(pure = true)
+        private CheckHandler(@NotNull Batch batch, @NotNull MicrosoftAccount account) {
+            this.batch = batch;
+            this.account = account;
+        }
+
+        @Override
+        public boolean cancelled() {
+            // Cancelled once completed, e.g. if the flight is continued by another member after the password request.
+            return this.done.get();
+        }
+
+        @Override
+        public void stage(String stage, Object... args) {
+            // Mark as refreshed.
+            if (MicrosoftAccount.MSR_TO_MSA_MSR.equals(stage)) {
+                this.refreshed = true;
+            }
+        }
+
+        @Override
+        public CompletableFuture<String> password() {
+            // Can't ask for password in bulk, it will cancel the check.
+            this.complete(Status.LOCKED, false);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void success(LoginData data, boolean changed) {
+            this.complete(this.refreshed ? Status.REFRESHED : Status.VALID, changed);
+        }
+
+        @Override
+        public void error(Throwable error) {
+            if (this.done.get()) return;
+            LOGGER.warn("IAS: Unable to check health of {}.", this.account, error);
+            this.complete(classify(error), false);
+        }
+
+        /**
+         * Completes the check in the batch, unless already completed.
+         *
+         * @param status  Check status
+         * @param changed Whether the storage has been modified
+         */
+        private void complete(@NotNull Status status, boolean changed) {
+            if (!this.done.compareAndSet(false, true)) return;
+            this.batch.complete(this.account, status, changed);
+        }
+
+        @Contract(pure = true)
+        @Override
+        public String toString() {
+            return "CheckHandler{" +
+                    "account=" + this.account +
+                    ", refreshed=" + this.refreshed +
+                    ", done=" + this.done +
+                    '}';
+        }
+    }
+}
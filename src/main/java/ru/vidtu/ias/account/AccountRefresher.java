@@ -0,0 +1,288 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.account;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.auth.LoginData;
+import ru.vidtu.ias.auth.handlers.LoginHandler;
+import ru.vidtu.ias.config.IASConfig;
+import ru.vidtu.ias.config.IASStorage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background token refresher for {@link MicrosoftAccount}.
+ * <p>
+ * Refreshes the tokens of accounts shortly before they expire, so switching to them doesn't require
+ * the full refresh chain. Only accounts that can be decrypted without user interaction are refreshed:
+ * hardware-crypted ones and password-crypted ones known to the unlocked {@link ru.vidtu.ias.crypt.Keyring}.
+ * Accounts with an unknown expiry (stored before it was tracked) are skipped until their next login stores it,
+ * so upgrading doesn't refresh all the accounts at once.
+ *
+ * @author VidTu
+ * @apiNote All methods in this class (except {@link #start()} and {@link #stop()}) are called on the {@link IAS#executor()}
+ */
+public final class AccountRefresher {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/AccountRefresher");
+
+    /**
+     * Interval between the refresh checks in milliseconds.
+     */
+    private static final long INTERVAL = TimeUnit.MINUTES.toMillis(1L);
+
+    /**
+     * Time before the token expiry after which the token is refreshed, in milliseconds.
+     */
+    private static final long AHEAD = TimeUnit.MINUTES.toMillis(15L);
+
+    /**
+     * Maximum random per-account addition to {@link #AHEAD} in milliseconds.
+     */
+    private static final long JITTER = TimeUnit.MINUTES.toMillis(10L);
+
+    /**
+     * Minimum time between refresh attempts for one account in milliseconds.
+     */
+    private static final long RETRY = TimeUnit.MINUTES.toMillis(30L);
+
+    /**
+     * Minimum time between refresh attempts for one account after an error in milliseconds.
+     */
+    private static final long RETRY_ERROR = TimeUnit.HOURS.toMillis(6L);
+
+    /**
+     * Time after which the running refresh is considered lost, in milliseconds.
+     */
+    private static final long LOST = TimeUnit.MINUTES.toMillis(5L);
+
+    /**
+     * Maximum amount of concurrently running refreshes.
+     */
+    private static final int MAX_RUNNING = 2;
+
+    /**
+     * Per-account refresh jitter in milliseconds.
+     */
+    @NotNull
+    private static final Map<UUID, Long> JITTERS = new HashMap<>(0);
+
+    /**
+     * Per-account time in epoch milliseconds before which the account shouldn't be refreshed.
+     */
+    @NotNull
+    private static final Map<UUID, Long> NEXT = new HashMap<>(0);
+
+    /**
+     * Running refreshes start times in epoch milliseconds.
+     */
+    @NotNull
+    private static final Map<UUID, Long> RUNNING = new HashMap<>(0);
+
+    /**
+     * Whether the storage has been modified and requires saving after all running refreshes.
+     */
+    private static boolean dirty;
+
+    /**
+     * Current refresher task, {@code null} if stopped.
+     */
+    @Nullable
+    private static volatile ScheduledFuture<?> task;
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private AccountRefresher() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Starts the refresher, if enabled in the config.
+     */
+    public static synchronized void start() {
+        // Skip if disabled or already started.
+        if (!IASConfig.backgroundRefresh || task != null) return;
+
+        // Schedule.
+        long delay = INTERVAL + ThreadLocalRandom.current().nextLong(INTERVAL);
+        task = IASExecutors.scheduleWithFixedDelay(AccountRefresher::tick, delay, INTERVAL, TimeUnit.MILLISECONDS);
+        LOGGER.debug("IAS: Background refresher started.");
+    }
+
+    /**
+     * Stops the refresher. Running refreshes are cancelled.
+     */
+    public static synchronized void stop() {
+        // Skip if not started.
+        ScheduledFuture<?> current = task;
+        if (current == null) return;
+
+        // Stop.
+        current.cancel(false);
+        task = null;
+        LOGGER.debug("IAS: Background refresher stopped.");
+    }
+
+    /**
+     * Checks the accounts and starts the refreshes for expiring ones.
+     */
+    private static synchronized void tick() {
+        try {
+            // Skip if stopped.
+            if (task == null || IAS.disabled()) return;
+
+            // Forget lost refreshes.
+            long now = System.currentTimeMillis();
+            RUNNING.values().removeIf(start -> (now - start) > LOST);
+
+            // Start the refreshes.
+            for (Account account : IASStorage.ACCOUNTS) {
+                // Stop if too many.
+                if (RUNNING.size() >= MAX_RUNNING) break;
+
+                // Skip non-Microsoft, running, or recently attempted.
+                if (!(account instanceof MicrosoftAccount microsoft)) continue;
+                UUID uuid = microsoft.uuid();
+                if (RUNNING.containsKey(uuid)) continue;
+                Long next = NEXT.get(uuid);
+                if (next != null && now < next) continue;
+
+                // Skip if not expiring or unknown. (the unknown expiry is stored by the next login)
+                long expires = microsoft.expires();
+                if (expires == 0L) continue;
+                long jitter = JITTERS.computeIfAbsent(uuid, ignored -> ThreadLocalRandom.current().nextLong(JITTER));
+                if (now < (expires - AHEAD - jitter)) continue;
+
+                // Refresh.
+                LOGGER.info("IAS: Refreshing {} in background...", microsoft);
+                RUNNING.put(uuid, now);
+                microsoft.refresh(new BackgroundHandler(uuid));
+            }
+        } catch (Throwable t) {
+            // Log.
+            LOGGER.error("IAS: Unable to perform background refresh check.", t);
+        }
+    }
+
+    /**
+     * Marks the refresh as completed and saves the storage, if required and no more refreshes are running.
+     *
+     * @param uuid    Account UUID
+     * @param retry   Time before the next refresh attempt in milliseconds
+     * @param changed Whether the storage has been modified
+     */
+    private static synchronized void complete(@NotNull UUID uuid, long retry, boolean changed) {
+        // Mark as completed.
+        RUNNING.remove(uuid);
+        NEXT.put(uuid, System.currentTimeMillis() + retry);
+        dirty |= changed;
+
+        // Save in batch.
+        if (!dirty || !RUNNING.isEmpty()) return;
+        try {
+            IAS.saveStorage();
+            dirty = false;
+            LOGGER.debug("IAS: Saved storage after background refresh.");
+        } catch (Throwable t) {
+            LOGGER.error("IAS: Unable to save storage after background refresh.", t);
+        }
+    }
+
+    /**
+     * Login handler for background refreshes.
+     *
+     * @author VidTu
+     */
+    private static final class BackgroundHandler implements LoginHandler {
+        /**
+         * Account UUID.
+         */
+        @NotNull
+        private final UUID uuid;
+
+        /**
+         * Creates a new background handler.
+         *
+         * @param uuid Account UUID
+         */
+        @Contract(pure = true)
+        private BackgroundHandler(@NotNull UUID uuid) {
+            this.uuid = uuid;
+        }
+
+        @Override
+        public boolean cancelled() {
+            return task == null;
+        }
+
+        @Override
+        public void stage(String stage, Object... args) {
+            // Log into trace. (disabled for MOST users)
+            LOGGER.trace("IAS: Background refresh of {} stage: {}", this.uuid, stage);
+        }
+
+        @Override
+        public CompletableFuture<String> password() {
+            // Can't ask for password in background, it will cancel the refresh.
+            LOGGER.debug("IAS: Skipping background refresh of {}, password is required.", this.uuid);
+            complete(this.uuid, RETRY, false);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void success(LoginData data, boolean changed) {
+            LOGGER.info("IAS: Refreshed {} in background.", this.uuid);
+            complete(this.uuid, RETRY, changed);
+        }
+
+        @Override
+        public void error(Throwable error) {
+            LOGGER.warn("IAS: Unable to refresh {} in background.", this.uuid, error);
+            complete(this.uuid, RETRY_ERROR, false);
+        }
+
+        @Contract(pure = true)
+        @Override
+        public String toString() {
+            return "BackgroundHandler{" +
+                    "uuid=" + this.uuid +
+                    '}';
+        }
+    }
+}
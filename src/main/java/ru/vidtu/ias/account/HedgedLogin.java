@@ -0,0 +1,466 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.account;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.auth.AuthContext;
+import ru.vidtu.ias.auth.AuthPipeline;
+import ru.vidtu.ias.auth.AuthStage;
+import ru.vidtu.ias.auth.handlers.LoginHandler;
+import ru.vidtu.ias.auth.microsoft.fields.MCProfile;
+import ru.vidtu.ias.utils.Holder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedged login, racing the stored MCA to MCP check against a parallel refresh when the stored MCA is likely stale.
+ * <p>
+ * The refresh is started immediately if the stored MCA expires in less than {@link #REMAINING}, or when the check
+ * is slower than the observed 95th percentile of the recent checks. Whichever path produces a valid profile first wins.
+ * The stages are displayed from the check until the refresh is started, and from the refresh after that.
+ * The refresh runs in its own {@link AuthContext}; it is abandoned if it loses before rotating the refresh token,
+ * otherwise it is allowed to finish and its tokens are adopted, so the refresh token is never rotated twice
+ * or lost. All state is guarded by the instance lock.
+ *
+ * @author VidTu
+ */
+final class HedgedLogin {
+    /**
+     * Whether the hedging is enabled.
+     */
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("ias.hedge", "true"));
+
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/HedgedLogin");
+
+    /**
+     * Remaining stored MCA validity below which the refresh is started immediately, in milliseconds.
+     */
+    private static final long REMAINING = TimeUnit.HOURS.toMillis(Long.getLong("ias.hedgeRemaining", 8L));
+
+    /**
+     * Hedge delay if not enough checks have been observed, in milliseconds.
+     */
+    private static final long DEFAULT_DELAY = 2000L;
+
+    /**
+     * Minimum hedge delay in milliseconds.
+     */
+    private static final long MIN_DELAY = 250L;
+
+    /**
+     * Minimum observed checks for the percentile to be used.
+     */
+    private static final int MIN_SAMPLES = 8;
+
+    /**
+     * Recent successful check durations in milliseconds, a ring buffer.
+     */
+    private static final long[] SAMPLES = new long[32];
+
+    /**
+     * Next sample index. Guarded by {@link #SAMPLES}.
+     */
+    private static int cursor;
+
+    /**
+     * Recorded samples count. Guarded by {@link #SAMPLES}.
+     */
+    private static int samples;
+
+    /**
+     * Login handler.
+     */
+    @NotNull
+    private final LoginHandler handler;
+
+    /**
+     * Context with the stored tokens, updated with the winning tokens.
+     */
+    @NotNull
+    private final AuthContext ctx;
+
+    /**
+     * Context of the stored MCA check.
+     */
+    @NotNull
+    private final AuthContext check;
+
+    /**
+     * Context of the hedged refresh.
+     */
+    @NotNull
+    private final AuthContext fresh;
+
+    /**
+     * Whether the recrypting of the tokens is required.
+     */
+    @NotNull
+    private final Holder<Boolean> recrypt;
+
+    /**
+     * Hedged login result.
+     */
+    @NotNull
+    private final CompletableFuture<MCProfile> result = new CompletableFuture<>();
+
+    /**
+     * Delayed hedge start task, {@code null} if none.
+     */
+    @Nullable
+    private ScheduledFuture<?> timer;
+
+    /**
+     * Hedged refresh, {@code null} if not started.
+     */
+    @Nullable
+    private CompletableFuture<MCProfile> hedge;
+
+    /**
+     * Whether the hedged refresh has been abandoned.
+     */
+    private volatile boolean abandoned;
+
+    /**
+     * Whether the hedged refresh has been started. The check stages are not displayed after that.
+     */
+    private volatile boolean hedged;
+
+    /**
+     * Whether the stored check has completed.
+     */
+    private boolean checked;
+
+    /**
+     * Profile from the stored check, {@code null} if none.
+     */
+    @Nullable
+    private MCProfile stored;
+
+    /**
+     * Stored check error, {@code null} if none.
+     */
+    @Nullable
+    private Throwable checkError;
+
+    /**
+     * Hedged refresh error, {@code null} if none.
+     */
+    @Nullable
+    private Throwable hedgeError;
+
+    /**
+     * Creates a new hedged login.
+     *
+     * @param handler Login handler
+     * @param ctx     Context with the stored tokens
+     * @param recrypt Whether the recrypting of the tokens is required, will be set if the tokens are changed
+     */
+    private HedgedLogin(@NotNull LoginHandler handler, @NotNull AuthContext ctx, @NotNull Holder<Boolean> recrypt) {
+        this.handler = handler;
+        this.ctx = ctx;
+        this.recrypt = recrypt;
+        this.check = new AuthContext(() -> handler.cancelled() || this.result.isDone(), stage -> {
+            // Display only until the refresh is started.
+            if (this.hedged) return;
+            handler.stage(stage);
+        });
+        this.check.mca(ctx.mca());
+        this.fresh = new AuthContext(() -> handler.cancelled() || this.abandoned, handler::stage);
+        this.fresh.mca(ctx.mca());
+        this.fresh.msr(ctx.msr());
+        this.fresh.xbl(ctx.xbl());
+        this.fresh.xsts(ctx.xsts());
+    }
+
+    /**
+     * Runs the hedged login.
+     *
+     * @param handler Login handler
+     * @param ctx     Context with the stored tokens, will be updated with the winning tokens
+     * @param expires Stored MCA expiry in epoch milliseconds, {@code 0} if unknown
+     * @param recrypt Whether the recrypting of the tokens is required, will be set if the tokens are changed
+     * @return Future that will complete with the profile, with {@code null} on cancel, exceptionally on error
+     */
+    @CheckReturnValue
+    @NotNull
+    static CompletableFuture<MCProfile> run(@NotNull LoginHandler handler, @NotNull AuthContext ctx, long expires,
+                                            @NotNull Holder<Boolean> recrypt) {
+        HedgedLogin login = new HedgedLogin(handler, ctx, recrypt);
+        login.start(expires);
+        return login.result;
+    }
+
+    /**
+     * Starts the stored check and schedules the hedge.
+     *
+     * @param expires Stored MCA expiry in epoch milliseconds, {@code 0} if unknown
+     */
+    private synchronized void start(long expires) {
+        // Check the stored MCA.
+        long start = System.nanoTime();
+        AuthPipeline.run(this.check, List.of(AuthStage.MCA_TO_MCP)).whenCompleteAsync((value, t) ->
+                this.checked(value, t, start), IAS.executor());
+
+        // Hedge immediately if the MCA expires soon.
+        long remaining = expires == 0L ? Long.MAX_VALUE : expires - System.currentTimeMillis();
+        if (remaining < REMAINING) {
+            LOGGER.info("IAS: Stored MCA expires in {} minutes, refreshing in parallel.", TimeUnit.MILLISECONDS.toMinutes(remaining));
+            this.hedge();
+            return;
+        }
+
+        // Hedge if the check is slow.
+        long delay = delay();
+        LOGGER.debug("IAS: Hedging refresh in {} ms.", delay);
+        this.timer = IASExecutors.schedule(this::hedge, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts the hedged refresh, if not started yet.
+     */
+    private synchronized void hedge() {
+        // Skip if started, done, or cancelled.
+        if (this.hedge != null || this.result.isDone()) return;
+        if (this.handler.cancelled()) {
+            this.result.complete(null);
+            return;
+        }
+
+        // Start the refresh, displaying its stages from now on.
+        LOGGER.info("IAS: Starting hedged refresh...");
+        this.hedged = true;
+        CompletableFuture<MCProfile> hedge = MicrosoftAccount.refresh(this.fresh, null);
+        this.hedge = hedge;
+        hedge.whenCompleteAsync(this::hedged, IAS.executor());
+    }
+
+    /**
+     * Handles the stored check completion.
+     *
+     * @param value Check context, {@code null} if cancelled
+     * @param error Check error, {@code null} if none
+     * @param start Check start time in {@link System#nanoTime()} units
+     */
+    private synchronized void checked(@Nullable AuthContext value, @Nullable Throwable error, long start) {
+        try {
+            // Skip if done or cancelled.
+            if (this.result.isDone()) return;
+            if (this.handler.cancelled() || (value == null && error == null)) {
+                this.abandon();
+                this.result.complete(null);
+                return;
+            }
+            this.checked = true;
+            this.cancelTimer();
+
+            // Stored MCA is invalid, let the refresh win.
+            if (error != null) {
+                this.checkError = error;
+                LOGGER.warn("IAS: MCA is (probably) expired. Refreshing...");
+
+                // Fail if the refresh has failed too.
+                if (this.hedgeError != null) {
+                    this.hedgeError.addSuppressed(error);
+                    this.result.completeExceptionally(this.hedgeError);
+                    return;
+                }
+
+                // Start (or keep waiting for) the refresh.
+                this.hedge();
+                return;
+            }
+
+            // Record the check duration.
+            record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            MCProfile profile = value.profile();
+            this.stored = profile;
+
+            // Abandon the refresh, win if it hasn't been started or hasn't consumed the refresh token yet.
+            this.abandon();
+            if (this.hedge == null || !this.fresh.committed()) {
+                if (this.hedge != null) {
+                    LOGGER.info("IAS: Stored MCA is valid, abandoned hedged refresh.");
+                }
+                this.result.complete(profile);
+                return;
+            }
+
+            // Keep the rotated refresh token if the refresh has failed after consuming it.
+            if (this.hedgeError != null) {
+                this.keepRotated();
+                this.result.complete(profile);
+                return;
+            }
+
+            // Wait for the current refresh stage, it might be rotating the refresh token.
+            LOGGER.info("IAS: Stored MCA is valid, waiting for hedged refresh to finish its current stage...");
+        } catch (Throwable t) {
+            // Fail.
+            this.result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Handles the hedged refresh completion.
+     *
+     * @param profile Refreshed profile, {@code null} if cancelled or abandoned
+     * @param error   Refresh error, {@code null} if none
+     */
+    private synchronized void hedged(@Nullable MCProfile profile, @Nullable Throwable error) {
+        try {
+            // Skip if done or cancelled.
+            if (this.result.isDone()) return;
+            if (this.handler.cancelled()) {
+                this.result.complete(null);
+                return;
+            }
+
+            // Win with the stored profile if the refresh has been abandoned, keeping the rotated token.
+            MCProfile stored = this.stored;
+            if (error == null && profile == null) {
+                if (stored == null) return;
+                this.keepRotated();
+                this.result.complete(stored);
+                return;
+            }
+
+            // Adopt the refreshed tokens on success.
+            if (error == null) {
+                this.ctx.mca(this.fresh.mca());
+                this.ctx.msr(this.fresh.msr());
+                this.ctx.xbl(this.fresh.xbl());
+                this.ctx.xsts(this.fresh.xsts());
+                this.recrypt.set(true);
+                this.result.complete(profile);
+                return;
+            }
+
+            // Wait for the stored check.
+            this.hedgeError = error;
+            if (!this.checked) return;
+
+            // Use the stored profile, if valid.
+            if (stored != null) {
+                this.keepRotated();
+                this.result.complete(stored);
+                return;
+            }
+
+            // Both have failed.
+            if (this.checkError != null) {
+                error.addSuppressed(this.checkError);
+            }
+            this.result.completeExceptionally(error);
+        } catch (Throwable t) {
+            // Fail.
+            this.result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Keeps the refresh token rotated by the failed refresh, if any, with the stored MCA.
+     */
+    private void keepRotated() {
+        // Skip if not rotated.
+        if (!this.fresh.completed(AuthStage.MSR_TO_MSA_MSR)) return;
+
+        // Keep the token.
+        LOGGER.info("IAS: Keeping the rotated refresh token from the failed hedged refresh.");
+        this.ctx.msr(this.fresh.msr());
+        this.ctx.xbl(this.fresh.xbl());
+        this.ctx.xsts(this.fresh.xsts());
+        this.recrypt.set(true);
+    }
+
+    /**
+     * Abandons the hedged refresh, if any.
+     */
+    private void abandon() {
+        this.abandoned = true;
+        this.cancelTimer();
+    }
+
+    /**
+     * Cancels the delayed hedge start, if any.
+     */
+    private void cancelTimer() {
+        ScheduledFuture<?> timer = this.timer;
+        if (timer == null) return;
+        timer.cancel(false);
+        this.timer = null;
+    }
+
+    /**
+     * Records the successful check duration.
+     *
+     * @param duration Check duration in milliseconds
+     */
+    private static void record(long duration) {
+        synchronized (SAMPLES) {
+            SAMPLES[cursor] = duration;
+            cursor = (cursor + 1) % SAMPLES.length;
+            samples = Math.min(samples + 1, SAMPLES.length);
+        }
+    }
+
+    /**
+     * Gets the hedge delay, the observed 95th percentile of the check durations.
+     *
+     * @return Hedge delay in milliseconds
+     */
+    @CheckReturnValue
+    private static long delay() {
+        long[] sorted;
+        synchronized (SAMPLES) {
+            if (samples < MIN_SAMPLES) return DEFAULT_DELAY;
+            sorted = Arrays.copyOf(SAMPLES, samples);
+        }
+        Arrays.sort(sorted);
+        long p95 = sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.95D) - 1)];
+        return Math.max(MIN_DELAY, Math.min(p95, IAS.TIMEOUT.toMillis()));
+    }
+
+    @Contract(pure = true)
+    @Override
+    @NotNull
+    public String toString() {
+        return "HedgedLogin{" +
+                "hedge=" + (this.hedge != null) +
+                ", abandoned=" + this.abandoned +
+                ", checked=" + this.checked +
+                ", stored=" + this.stored +
+                '}';
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.account;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.auth.LoginData;
+import ru.vidtu.ias.auth.handlers.LoginHandler;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Single in-flight login of one account, shared by all the concurrent callers.
+ * <p>
+ * The first caller starts the login chain with this flight as its handler; the later callers join it instead
+ * of starting another chain, so the rotating refresh token is never used twice and the tokens are decrypted and
+ * re-encrypted once. The stages and the outcome are fanned out to every member, the password is requested from
+ * the members in the joining order until one provides it, and the flight is cancelled only when all the members
+ * are cancelled. A flight can't be joined once it has finished or has been cancelled, and it's joined only by the
+ * callers that don't require a stronger mode (forced refresh or validation) than the flight has been started with.
+ *
+ * @author VidTu
+ */
+final class LoginFlight implements LoginHandler {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/LoginFlight");
+
+    /**
+     * Flight members, in the joining order.
+     */
+    @NotNull
+    private final List<LoginHandler> members = new CopyOnWriteArrayList<>();
+
+    /**
+     * Whether the flight refreshes the tokens even if they're not expired.
+     */
+    private volatile boolean force;
+
+    /**
+     * Whether the flight validates the tokens even if they've been validated recently.
+     */
+    private volatile boolean validate;
+
+    /**
+     * Last reported stage with its args, replayed to the joining members, {@code null} if none.
+     */
+    private volatile Object[] stage;
+
+    /**
+     * Whether the outcome has been reported or the chain has ended.
+     */
+    private volatile boolean finished;
+
+    /**
+     * Creates a new flight.
+     *
+     * @param leader   Handler of the caller that starts the flight
+     * @param force    Whether to refresh the tokens even if they're not expired
+     * @param validate Whether to validate the tokens even if they've been validated recently
+     */
+    LoginFlight(@NotNull LoginHandler leader, boolean force, boolean validate) {
+        this.members.add(leader);
+        this.force = force;
+        this.validate = validate;
+    }
+
+    /**
+     * Gets whether the flight refreshes the tokens even if they're not expired.
+     *
+     * @return Whether the refresh is forced
+     */
+    @Contract(pure = true)
+    boolean force() {
+        return this.force;
+    }
+
+    /**
+     * Gets whether the flight validates the tokens even if they've been validated recently.
+     *
+     * @return Whether the validation is forced
+     */
+    @Contract(pure = true)
+    boolean validate() {
+        return this.validate;
+    }
+
+    /**
+     * Gets whether the flight is at least as strong as the requested mode.
+     *
+     * @param force    Whether the caller requires refreshing the tokens even if they're not expired
+     * @param validate Whether the caller requires validating the tokens even if they've been validated recently
+     * @return Whether the flight satisfies the requested mode
+     */
+    @Contract(pure = true)
+    boolean satisfies(boolean force, boolean validate) {
+        return (this.force || !force) && (this.validate || !validate);
+    }
+
+    /**
+     * Strengthens the mode of the flight that hasn't been started yet to satisfy the requested mode.
+     *
+     * @param force    Whether the caller requires refreshing the tokens even if they're not expired
+     * @param validate Whether the caller requires validating the tokens even if they've been validated recently
+     */
+    synchronized void strengthen(boolean force, boolean validate) {
+        this.force |= force;
+        this.validate |= validate;
+    }
+
+    /**
+     * Gets whether the flight has finished, i.e. its chain won't use the tokens anymore.
+     * A cancelled flight is not finished until its chain ends.
+     *
+     * @return Whether the outcome has been reported or the chain has ended
+     */
+    @Contract(pure = true)
+    boolean finished() {
+        return this.finished;
+    }
+
+    /**
+     * Joins the flight, if it's still running.
+     *
+     * @param handler Handler of the joining caller
+     * @return Whether the handler has joined the flight, {@code false} if the flight has finished or has been cancelled
+     */
+    boolean join(@NotNull LoginHandler handler) {
+        // Join, if possible.
+        Object[] stage;
+        synchronized (this) {
+            if (this.finished || this.cancelled()) return false;
+            this.members.add(handler);
+            stage = this.stage;
+        }
+
+        // Replay the current stage.
+        if (stage != null) {
+            handler.stage((String) stage[0], (Object[]) stage[1]);
+        }
+
+        // Joined.
+        return true;
+    }
+
+    /**
+     * Marks the flight as finished, so it can't be joined anymore.
+     */
+    synchronized void land() {
+        this.finished = true;
+    }
+
+    @Override
+    public boolean cancelled() {
+        // Cancelled only if every member is cancelled.
+        for (LoginHandler member : this.members) {
+            if (!member.cancelled()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void stage(String stage, Object... args) {
+        // Store for the joining members.
+        this.stage = new Object[]{stage, args};
+
+        // Fan out.
+        for (LoginHandler member : this.members) {
+            if (member.cancelled()) continue;
+            member.stage(stage, args);
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> password() {
+        return this.password(0);
+    }
+
+    /**
+     * Requests the password from the first non-cancelled member starting from the index,
+     * moving to the next member if the password is not provided.
+     *
+     * @param index Member index to start from
+     * @return Future that will complete with password string on password enter, with {@code null} if no member has provided it, exceptionally on error
+     */
+    @NotNull
+    private CompletableFuture<String> password(int index) {
+        // Find the member.
+        List<LoginHandler> members = this.members;
+        int size = members.size();
+        while (index < size && members.get(index).cancelled()) {
+            index++;
+        }
+
+        // No members left.
+        if (index >= size) return CompletableFuture.completedFuture(null);
+
+        // Request the password, asking the next member if not provided.
+        int next = index + 1;
+        return members.get(index).password().thenCompose(password -> {
+            if (password != null) return CompletableFuture.completedFuture(password);
+            return this.password(next);
+        });
+    }
+
+    @Override
+    public void success(LoginData data, boolean changed) {
+        // Finish the flight.
+        this.land();
+
+        // Fan out.
+        for (LoginHandler member : this.members) {
+            try {
+                member.success(data, changed);
+            } catch (Throwable t) {
+                LOGGER.error("IAS: Unable to report the login success to {}.", member, t);
+            }
+        }
+    }
+
+    @Override
+    public void error(Throwable error) {
+        // Finish the flight.
+        this.land();
+
+        // Fan out.
+        for (LoginHandler member : this.members) {
+            try {
+                member.error(error);
+            } catch (Throwable t) {
+                LOGGER.error("IAS: Unable to report the login error to {}.", member, t);
+            }
+        }
+    }
+
+    @Contract(pure = true)
+    @Override
+    public String toString() {
+        return "LoginFlight{" +
+                "members=" + this.members +
+                ", force=" + this.force +
+                ", validate=" + this.validate +
+                ", finished=" + this.finished +
+                '}';
+    }
+}
@@ -26,12 +26,18 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.auth.AuthContext;
+import ru.vidtu.ias.auth.AuthPipeline;
+import ru.vidtu.ias.auth.AuthStage;
 import ru.vidtu.ias.auth.LoginData;
 import ru.vidtu.ias.auth.handlers.LoginHandler;
 import ru.vidtu.ias.auth.microsoft.MSAuth;
+import ru.vidtu.ias.auth.microsoft.fields.MCProfile;
+import ru.vidtu.ias.auth.microsoft.fields.XHashedToken;
 import ru.vidtu.ias.crypt.Crypt;
+import ru.vidtu.ias.crypt.CryptProgress;
 import ru.vidtu.ias.utils.Holder;
-import ru.vidtu.ias.utils.IUtils;
 import ru.vidtu.ias.utils.exceptions.FriendlyException;
 
 import java.io.ByteArrayInputStream;
@@ -41,13 +47,13 @@ import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.ConnectException;
-import java.net.NoRouteToHostException;
-import java.net.http.HttpTimeoutException;
-import java.nio.channels.UnresolvedAddressException;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Encrypted Microsoft account instance.
@@ -97,6 +103,18 @@ public final class MicrosoftAccount implements Account {
     @NotNull
     public static final String ENCRYPTING = "ias.login.encrypting";
 
+    /**
+     * Decrypting tokens with progress percent.
+     */
+    @NotNull
+    public static final String DECRYPTING_PROGRESS = "ias.login.decrypting.progress";
+
+    /**
+     * Encrypting tokens with progress percent.
+     */
+    @NotNull
+    public static final String ENCRYPTING_PROGRESS = "ias.login.encrypting.progress";
+
     /**
      * Creating services.
      */
@@ -151,6 +169,32 @@ public final class MicrosoftAccount implements Account {
     @NotNull
     public static final Logger LOGGER = LoggerFactory.getLogger("IAS/MicrosoftAccount");
 
+    /**
+     * Time before the MCA expiry after which it's refreshed without validating, in milliseconds.
+     */
+    private static final long EXPIRY_MARGIN = TimeUnit.MINUTES.toMillis(5L);
+
+    /**
+     * Time after the successful MCA to MCP conversion during which it's not validated again, in milliseconds.
+     */
+    private static final long VALIDATION_TTL = TimeUnit.MINUTES.toMillis(10L);
+
+    /**
+     * Time after the failed login during which the MSA token it has obtained is still used, in nanoseconds.
+     */
+    private static final long STRANDED_TTL = TimeUnit.MINUTES.toNanos(30L);
+
+    /**
+     * Version of the cached Xbox tokens block written after the tokens in the encrypted data.
+     */
+    private static final int XBOX_CACHE_VERSION = 1;
+
+    /**
+     * Maximum size of the unencrypted tokens with cached Xbox tokens. The cache is dropped if exceeded,
+     * since the encrypted data length is stored as an unsigned short.
+     */
+    private static final int MAX_TOKENS_SIZE = 60_000;
+
     /**
      * Whether the account is insecurely stored.
      */
@@ -160,18 +204,53 @@ public final class MicrosoftAccount implements Account {
      * Account UUID.
      */
     @NotNull
-    private UUID uuid;
+    private volatile UUID uuid;
 
     /**
      * Account name.
      */
     @NotNull
-    private String name;
+    private volatile String name;
 
     /**
      * Encrypted account data.
      */
-    private byte @NotNull [] data;
+    private volatile byte @NotNull [] data;
+
+    /**
+     * Minecraft Access (MCA) token expiry time in epoch milliseconds, {@code 0} if unknown.
+     */
+    private volatile long expires;
+
+    /**
+     * Last successful Minecraft Access (MCA) token to Minecraft Profile (MCP) conversion time
+     * in epoch milliseconds, {@code 0} if unknown.
+     */
+    private volatile long validated;
+
+    /**
+     * Login currently in flight, {@code null} if none. Guarded by the instance lock.
+     */
+    @Nullable
+    private LoginFlight flight;
+
+    /**
+     * Context of the last failed login that has consumed the stored MSR, {@code null} if none.
+     * Its tokens are adopted by the next login instead of the stored (possibly rotated) ones.
+     */
+    @Nullable
+    private volatile AuthContext stranded;
+
+    /**
+     * Time when the {@link #stranded} context has failed in {@link System#nanoTime()} units.
+     */
+    private volatile long strandedAt;
+
+    /**
+     * Login queued after the one in flight, {@code null} if none. Guarded by the instance lock.
+     */
+    @Nullable
+    private LoginFlight queued;
 
     /**
      * Creates a new Microsoft account.
@@ -182,10 +261,27 @@ public final class MicrosoftAccount implements Account {
      * @param data     Encrypted account data
      */
     public MicrosoftAccount(boolean insecure, @NotNull UUID uuid, @NotNull String name, byte @NotNull [] data) {
+        this(insecure, uuid, name, data, 0L, 0L);
+    }
+
+    /**
+     * Creates a new Microsoft account.
+     *
+     * @param insecure  Whether the account is insecurely stored
+     * @param uuid      Account UUID
+     * @param name      Account name
+     * @param data      Encrypted account data
+     * @param expires   Access token expiry time in epoch milliseconds, {@code 0} if unknown
+     * @param validated Last access token validation time in epoch milliseconds, {@code 0} if unknown
+     */
+    public MicrosoftAccount(boolean insecure, @NotNull UUID uuid, @NotNull String name, byte @NotNull [] data,
+                            long expires, long validated) {
         this.insecure = insecure;
         this.uuid = uuid;
         this.name = name;
         this.data = data;
+        this.expires = expires;
+        this.validated = validated;
     }
 
     @Contract(pure = true)
@@ -236,11 +332,198 @@ public final class MicrosoftAccount implements Account {
         return this.uuid;
     }
 
+    /**
+     * Gets the Minecraft Access (MCA) token expiry time.
+     *
+     * @return Token expiry time in epoch milliseconds, {@code 0} if unknown
+     */
+    @Contract(pure = true)
+    public long expires() {
+        return this.expires;
+    }
+
     @Override
     public void login(@NotNull LoginHandler handler) {
+        this.login(handler, false, false);
+    }
+
+    /**
+     * Refreshes the tokens for this account, even if they're not expired yet.
+     *
+     * @param handler Login handler
+     */
+    public void refresh(@NotNull LoginHandler handler) {
+        this.login(handler, true, false);
+    }
+
+    /**
+     * Checks the tokens for this account, even if they've been validated recently.
+     * The tokens are refreshed if they're invalid.
+     *
+     * @param handler Login handler
+     */
+    public void check(@NotNull LoginHandler handler) {
+        this.login(handler, false, true);
+    }
+
+    /**
+     * Starts the authentication process for this account, or joins the one already in flight.
+     * If the flight in progress is weaker than the requested mode, the login is queued after it.
+     *
+     * @param handler  Login handler
+     * @param force    Whether to refresh the tokens even if they're not expired
+     * @param validate Whether to validate the tokens even if they've been validated recently
+     * @see LoginFlight
+     */
+    private void login(@NotNull LoginHandler handler, boolean force, boolean validate) {
+        LoginFlight flight;
+        synchronized (this) {
+            flight = this.flight;
+            if (flight != null && !flight.finished()) {
+                // Join the in-flight login, if it's strong enough and not cancelled.
+                if (flight.satisfies(force, validate) && flight.join(handler)) {
+                    LOGGER.info("IAS: Joined in-flight login (Microsoft) as {}/{}", this.uuid, this.name);
+                    return;
+                }
+
+                // Queue after the in-flight (even cancelled) login otherwise, so the tokens are never used by two chains at once.
+                LoginFlight queued = this.queued;
+                if (queued != null && queued.join(handler)) {
+                    queued.strengthen(force, validate);
+                } else {
+                    this.queued = new LoginFlight(handler, force, validate);
+                }
+                LOGGER.info("IAS: Queued login (Microsoft) after in-flight one as {}/{} (force: {}, validate: {})", this.uuid, this.name, force, validate);
+                return;
+            }
+
+            // Start the new flight.
+            flight = new LoginFlight(handler, force, validate);
+            this.flight = flight;
+        }
+
+        // Launch it.
+        this.launch(flight);
+    }
+
+    /**
+     * Runs the login chain for the started flight.
+     *
+     * @param flight Started flight
+     */
+    private void launch(@NotNull LoginFlight flight) {
+        boolean force = flight.force();
+        boolean validate = flight.validate();
+
+        // Run as blocking code, if enabled.
+        if (IASExecutors.inBlocking()) {
+            try {
+                this.loginBlocking(flight, force, validate);
+            } finally {
+                this.land(flight);
+            }
+            return;
+        }
+        if (IASExecutors.blocking()) {
+            try {
+                IASExecutors.startBlocking(() -> {
+                    try {
+                        this.loginBlocking(flight, force, validate);
+                    } finally {
+                        this.land(flight);
+                    }
+                }, flight::cancelled);
+            } catch (Throwable t) {
+                this.land(flight);
+                flight.error(new RuntimeException("Unable to begin MS auth.", t));
+            }
+            return;
+        }
+
+        // Run the chain.
+        this.loginAsync(flight, force, validate).whenComplete((value, error) -> this.land(flight));
+    }
+
+    /**
+     * Ends the flight, allowing the next login to start a new one, and launches the queued login, if any.
+     *
+     * @param flight Ended flight
+     */
+    private void land(@NotNull LoginFlight flight) {
+        // Take off the queued flight.
+        LoginFlight next;
+        synchronized (this) {
+            flight.land();
+            if (this.flight != flight) return;
+            next = this.queued;
+            this.queued = null;
+            this.flight = next;
+        }
+
+        // Launch the queued flight. (not in the current thread, it might be the blocking one of the landed flight)
+        if (next == null) return;
+        try {
+            IAS.executor().execute(() -> {
+                // Skip if cancelled while queued.
+                if (next.cancelled()) {
+                    this.land(next);
+                    return;
+                }
+
+                // Launch.
+                LOGGER.info("IAS: Launching queued login (Microsoft) as {}/{}", this.uuid, this.name);
+                this.launch(next);
+            });
+        } catch (Throwable t) {
+            this.land(next);
+            next.error(new RuntimeException("Unable to begin MS auth.", t));
+        }
+    }
+
+    /**
+     * Keeps the context of the failed login if it has consumed the stored MSR, so the next login adopts its tokens.
+     *
+     * @param ctx      Login context
+     * @param finished Whether the login has finished and its tokens are stored
+     */
+    private void strand(@NotNull AuthContext ctx, boolean finished) {
+        if (finished || !ctx.consumed()) return;
+        this.strandedAt = System.nanoTime();
+        this.stranded = ctx;
+        LOGGER.warn("IAS: Login as {}/{} has failed after consuming the MSR, keeping the new tokens for the next login. (checkpoints: {})", this.uuid, this.name, ctx.timings());
+    }
+
+    /**
+     * Adopts the tokens of the failed login that has consumed the stored MSR, if any.
+     * The MSA is adopted (and the MSR to MSA stage is skipped) only if it's still fresh.
+     *
+     * @param ctx Login context, the stored tokens should be already read into it
+     * @return Whether the tokens have been adopted and the refresh is required
+     */
+    private boolean adopt(@NotNull AuthContext ctx) {
+        AuthContext stranded = this.stranded;
+        if (stranded == null) return false;
+        this.stranded = null;
+        boolean fresh = (System.nanoTime() - this.strandedAt) < STRANDED_TTL;
+        LOGGER.info("IAS: Adopting tokens of the failed login as {}/{}. (fresh: {})", this.uuid, this.name, fresh);
+        ctx.adopt(stranded, fresh);
+        return true;
+    }
+
+    /**
+     * Starts the authentication process for this account as a chain of futures.
+     *
+     * @param handler  Login handler
+     * @param force    Whether to refresh the tokens even if they're not expired
+     * @param validate Whether to validate the tokens even if they've been validated recently
+     * @return Future that will complete after the chain ends, never exceptionally
+     */
+    @CheckReturnValue
+    @NotNull
+    private CompletableFuture<?> loginAsync(@NotNull LoginHandler handler, boolean force, boolean validate) {
         try {
             // Skip if cancelled.
-            if (handler.cancelled()) return;
+            if (handler.cancelled()) return CompletableFuture.completedFuture(null);
 
             // Log it and display progress.
             LOGGER.info("IAS: Logging (Microsoft) as {}/{}", this.uuid, this.name);
@@ -248,65 +531,40 @@ public final class MicrosoftAccount implements Account {
 
             // Value holders.
             Holder<Crypt> crypt = new Holder<>();
-            Holder<String> access = new Holder<>();
-            Holder<String> refresh = new Holder<>();
+            AuthContext ctx = new AuthContext(handler::cancelled, handler::stage);
             Holder<Boolean> recrypt = new Holder<>(false);
+            Holder<Boolean> skipped = new Holder<>(false);
+            Holder<Boolean> finished = new Holder<>(false);
 
             // Read the crypt.
             CompletableFuture<Crypt> future;
             byte[] crypted;
             try (ByteArrayInputStream byteIn = new ByteArrayInputStream(this.data);
                  DataInputStream in = new DataInputStream(byteIn)) {
-                // Read and process the crypt.
-                future = Crypt.readType(in, handler::password);
+                // Read the crypt type.
+                String type = in.readUTF();
 
                 // Crypted data.
                 crypted = in.readAllBytes();
+
+                // Process the crypt.
+                future = Crypt.readType(type, crypted, handler::password);
             }
 
             // Decrypt.
-            future.thenApplyAsync(value -> {
+            return future.thenApplyAsync(value -> {
                 // Skip if cancelled.
                 if (value == null || handler.cancelled()) return null;
 
-                // Log it and display progress.
-                LOGGER.info("IAS: Decrypting tokens...");
-                handler.stage(DECRYPTING);
-
-                // Decrypt.
-                byte[] data = value.decrypt(crypted);
-
-                // Migrate and set the crypt.
-                Crypt migrate = value.migrate();
-                if (migrate != null) {
-                    crypt.set(migrate);
-                    recrypt.set(true);
-                } else {
-                    crypt.set(value);
-                }
-
-                // Continue.
-                return data;
-            }, IAS.executor()).thenApplyAsync(value -> {
+                // Decrypt. (cancellable)
+                return decrypt(handler, value, crypted, crypt, recrypt);
+            }, IASExecutors.crypto()).thenApplyAsync(value -> {
                 // Skip if cancelled.
                 if (value == null || handler.cancelled()) return false;
 
                 // Read the decrypted data into tokens.
-                try (ByteArrayInputStream byteIn = new ByteArrayInputStream(value);
-                     DataInputStream in = new DataInputStream(byteIn)) {
-                    // Read the access token.
-                    access.set(in.readUTF());
-
-                    // Read the refresh token.
-                    refresh.set(in.readUTF());
-
-                    // Verify the buffer.
-                    int available = in.available();
-                    if (available != 0) {
-                        throw new IOException("Leftover: " + in.available());
-                    }
-
-                    // Return continue.
+                try {
+                    readTokens(value, ctx);
                     return true;
                 } catch (Throwable t) {
                     throw new RuntimeException("Unable to read the tokens.", t);
@@ -315,163 +573,582 @@ public final class MicrosoftAccount implements Account {
                 // Skip if cancelled.
                 if (!value || handler.cancelled()) return CompletableFuture.completedFuture(null);
 
-                // Log it and display progress.
-                LOGGER.info("IAS: Converting MCA to MCP... (stored)");
-                handler.stage(MCA_TO_MCP);
+                // Refresh directly if forced, the previous login has consumed the MSR, or the stored MCA is expired or about to expire.
+                long now = System.currentTimeMillis();
+                if (this.adopt(ctx) || force || (this.expires != 0L && now >= this.expires - EXPIRY_MARGIN)) {
+                    // Log it.
+                    LOGGER.info("IAS: MCA is expired. Refreshing...");
 
-                // Convert MCA to MCP.
-                return MSAuth.mcaToMcp(access.get()).exceptionallyComposeAsync(original -> {
+                    // Require recrypting data.
+                    recrypt.set(true);
+
+                    // Refresh.
+                    return refresh(ctx, null);
+                }
+
+                // Skip MCA to MCP conversion if the profile has been recently validated.
+                if (!validate && this.validated != 0L && now >= this.validated && now - this.validated < VALIDATION_TTL) {
+                    // Log it.
+                    LOGGER.info("IAS: Skipping MCA to MCP conversion, validated recently.");
+
+                    // Use the stored profile.
+                    skipped.set(true);
+                    return CompletableFuture.completedFuture(new MCProfile(this.uuid, this.name));
+                }
+
+                // Convert stored MCA to MCP, racing it against a refresh if it's likely stale.
+                if (HedgedLogin.ENABLED) {
+                    return HedgedLogin.run(handler, ctx, this.expires, recrypt);
+                }
+
+                // Convert stored MCA to MCP.
+                return AuthPipeline.run(ctx, List.of(AuthStage.MCA_TO_MCP)).thenApply(result -> result == null ? null : result.profile()).exceptionallyComposeAsync(original -> {
                     // Skip if cancelled.
                     if (handler.cancelled()) return CompletableFuture.completedFuture(null);
 
-                    // Log it and display progress.
+                    // Log it.
                     LOGGER.warn("IAS: MCA is (probably) expired. Refreshing...");
-                    LOGGER.info("IAS: Converting MSR to MSA/MSR...");
-                    handler.stage(MSR_TO_MSA_MSR);
 
                     // Require recrypting data.
                     recrypt.set(true);
 
-                    // Convert MSR to MSA/MSR.
-                    return MSAuth.msrToMsaMsr(refresh.get()).thenComposeAsync(ms -> {
-                        // Skip if cancelled.
-                        if (ms == null || handler.cancelled()) return CompletableFuture.completedFuture(null);
-
-                        // Update the refresh token.
-                        refresh.set(ms.refresh());
-
-                        // Log it and display progress.
-                        LOGGER.info("IAS: Converting MSA to XBL...");
-                        handler.stage(MSA_TO_XBL);
-
-                        // Convert MSA to XBL.
-                        return MSAuth.msaToXbl(ms.access());
-                    }, IAS.executor()).thenComposeAsync(xbl -> {
-                        // Skip if cancelled.
-                        if (xbl == null || handler.cancelled()) return CompletableFuture.completedFuture(null);
-
-                        // Log it and display progress.
-                        LOGGER.info("IAS: Converting XBL to XSTS...");
-                        handler.stage(XBL_TO_XSTS);
-
-                        // Convert XBL to XSTS.
-                        return MSAuth.xblToXsts(xbl.token(), xbl.hash());
-                    }, IAS.executor()).thenComposeAsync(xsts -> {
-                        // Skip if cancelled.
-                        if (xsts == null || handler.cancelled()) return CompletableFuture.completedFuture(null);
-
-                        // Log it and display progress.
-                        LOGGER.info("IAS: Converting XSTS to MCA...");
-                        handler.stage(XSTS_TO_MCA);
-
-                        // Convert XSTS to MCA.
-                        return MSAuth.xstsToMca(xsts.token(), xsts.hash());
-                    }, IAS.executor()).thenComposeAsync(token -> {
-                        // Skip if cancelled.
-                        if (token == null || handler.cancelled()) return CompletableFuture.completedFuture(null);
-
-                        // Update the access token.
-                        access.set(token);
-
-                        // Log it and display progress.
-                        LOGGER.info("IAS: Converting MCA TO MCP... (refreshed)");
-                        handler.stage(MCA_TO_MCP);
-
-                        // Convert MCA to MCP.
-                        return MSAuth.mcaToMcp(token);
-                    }, IAS.executor()).exceptionallyAsync(t -> {
-                        t.addSuppressed(original);
-
-                        // Probable case - no internet connection.
-                        if (IUtils.anyInCausalChain(t, err -> err instanceof UnresolvedAddressException || err instanceof NoRouteToHostException || err instanceof HttpTimeoutException || err instanceof ConnectException)) {
-                            throw new FriendlyException("Unable to connect to MSR servers.", t, "ias.error.connect");
-                        }
-
-                        // Handle error.
-                        throw new RuntimeException("Unable to perform MSR auth.", t);
-                    }, IAS.executor()).exceptionallyAsync(t -> {
-                        // Rethrow. (adding original)
-                        t.addSuppressed(original);
-                        throw new RuntimeException("Unable to refresh MSR.", t);
-                    }, IAS.executor());
+                    // Refresh.
+                    return refresh(ctx, original);
                 }, IAS.executor());
             }, IAS.executor()).thenAcceptAsync(profile -> {
                 // Skip if cancelled.
                 if (profile == null || handler.cancelled()) return;
 
-                // Re-encrypt if required.
-                boolean saveStorage = false;
-                if (recrypt.get()) {
-                    // Log it and display progress.
-                    LOGGER.info("IAS: Encrypting tokens...");
-                    handler.stage(ENCRYPTING);
-
-                    // Write the tokens.
-                    String accessMem = access.get();
-                    String refreshMem = refresh.get();
-                    byte[] unencrypted;
-                    try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream(accessMem.length() + refreshMem.length() + 4);
-                         DataOutputStream out = new DataOutputStream(byteOut)) {
-                        // Write the access token.
-                        out.writeUTF(accessMem);
-
-                        // Write the refresh token.
-                        out.writeUTF(refreshMem);
-
-                        // Flush it.
-                        unencrypted = byteOut.toByteArray();
-                    } catch (Throwable t) {
-                        throw new RuntimeException("Unable to write the tokens.", t);
-                    }
-
-                    // Encrypt the tokens.
-                    try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream(unencrypted.length + 32);
-                         DataOutputStream out = new DataOutputStream(byteOut)) {
-                        // Encrypt.
-                        Crypt val = crypt.get();
-                        byte[] encrypted = val.encrypt(unencrypted);
-
-                        // Write data.
-                        out.writeUTF(val.type());
-                        out.write(encrypted);
-
-                        // Flush it.
-                        this.data = byteOut.toByteArray();
-                        saveStorage = true;
-                    } catch (Throwable t) {
-                        throw new RuntimeException("Unable to encrypt the tokens.", t);
-                    }
-                }
-
-                // Authentication successful, refresh the profile.
-                UUID uuid = profile.uuid();
-                String name = profile.name();
-                if (!this.uuid.equals(uuid) || !this.name.equals(name)) {
-                    this.uuid = profile.uuid();
-                    this.name = profile.name();
-                    saveStorage = true;
-                }
-
-                // Log it and display progress.
-                LOGGER.info("IAS: Successful login as {}", profile);
-                handler.stage(FINALIZING);
-
-                // Create and return the data.
-                LoginData login = new LoginData(this.name, this.uuid, access.get(), true);
-                handler.success(login, saveStorage);
-            }, IAS.executor()).exceptionallyAsync(t -> {
+                // Finish the login.
+                this.finish(handler, ctx, crypt.get(), profile, recrypt.get(), skipped.get());
+                finished.set(true);
+            }, IASExecutors.crypto()).exceptionallyAsync(t -> {
                 // Handle error.
                 handler.error(new RuntimeException("Unable to login as MS account", t));
 
                 // Return null.
                 return null;
-            }, IAS.executor());
+            }, IAS.executor()).whenComplete((value, error) -> this.strand(ctx, finished.get()));
         } catch (Throwable t) {
             // Handle.
             handler.error(new RuntimeException("Unable to begin MS auth.", t));
+            return CompletableFuture.completedFuture(null);
         }
     }
 
+    /**
+     * Starts the authentication process for this account as a straight-line blocking code.
+     * Should be called from the {@link IASExecutors#startBlocking(Runnable, java.util.function.BooleanSupplier)} thread.
+     *
+     * @param handler  Login handler
+     * @param force    Whether to refresh the tokens even if they're not expired
+     * @param validate Whether to validate the tokens even if they've been validated recently
+     */
+    private void loginBlocking(@NotNull LoginHandler handler, boolean force, boolean validate) {
+        AuthContext ctx = null;
+        boolean finished = false;
+        try {
+            // Skip if cancelled.
+            if (handler.cancelled()) return;
+
+            // Log it and display progress.
+            LOGGER.info("IAS: Logging (Microsoft, blocking) as {}/{}", this.uuid, this.name);
+            handler.stage(INITIALIZING);
+
+            // Value holders.
+            Holder<Crypt> crypt = new Holder<>();
+            ctx = new AuthContext(handler::cancelled, handler::stage);
+            Holder<Boolean> recrypt = new Holder<>(false);
+
+            // Read the crypt.
+            Crypt value;
+            byte[] crypted;
+            try (ByteArrayInputStream byteIn = new ByteArrayInputStream(this.data);
+                 DataInputStream in = new DataInputStream(byteIn)) {
+                // Read the crypt type.
+                String type = in.readUTF();
+
+                // Crypted data.
+                crypted = in.readAllBytes();
+
+                // Process the crypt.
+                value = Crypt.readType(type, crypted, handler::password).get();
+            }
+
+            // Skip if cancelled.
+            if (value == null || handler.cancelled()) return;
+
+            // Decrypt. (cancellable, bounded by the crypto pool)
+            byte[] data = IASExecutors.crypto().submit(() -> decrypt(handler, value, crypted, crypt, recrypt)).get();
+
+            // Skip if cancelled.
+            if (data == null || handler.cancelled()) return;
+
+            // Read the decrypted data into tokens.
+            try {
+                readTokens(data, ctx);
+            } catch (Throwable t) {
+                throw new RuntimeException("Unable to read the tokens.", t);
+            }
+
+            // Get the profile.
+            MCProfile profile;
+            boolean skipped = false;
+            long now = System.currentTimeMillis();
+            if (this.adopt(ctx) || force || (this.expires != 0L && now >= this.expires - EXPIRY_MARGIN)) {
+                // Log it.
+                LOGGER.info("IAS: MCA is expired. Refreshing...");
+
+                // Require recrypting data.
+                recrypt.set(true);
+
+                // Refresh.
+                profile = refreshBlocking(ctx, null);
+            } else if (!validate && this.validated != 0L && now >= this.validated && now - this.validated < VALIDATION_TTL) {
+                // Log it.
+                LOGGER.info("IAS: Skipping MCA to MCP conversion, validated recently.");
+
+                // Use the stored profile.
+                skipped = true;
+                profile = new MCProfile(this.uuid, this.name);
+            } else if (HedgedLogin.ENABLED) {
+                // Convert stored MCA to MCP, racing it against a refresh if it's likely stale.
+                profile = HedgedLogin.run(handler, ctx, this.expires, recrypt).get();
+            } else {
+                // Convert stored MCA to MCP.
+                try {
+                    AuthContext result = AuthPipeline.runBlocking(ctx, List.of(AuthStage.MCA_TO_MCP));
+                    profile = result == null ? null : result.profile();
+                } catch (RuntimeException original) {
+                    // Skip if cancelled.
+                    if (handler.cancelled()) return;
+
+                    // Log it.
+                    LOGGER.warn("IAS: MCA is (probably) expired. Refreshing...");
+
+                    // Require recrypting data.
+                    recrypt.set(true);
+
+                    // Refresh.
+                    profile = refreshBlocking(ctx, original);
+                }
+            }
+
+            // Skip if cancelled.
+            if (profile == null || handler.cancelled()) return;
+
+            // Finish the login. (bounded by the crypto pool)
+            MCProfile result = profile;
+            boolean skip = skipped;
+            AuthContext context = ctx;
+            IASExecutors.crypto().submit(() -> this.finish(handler, context, crypt.get(), result, recrypt.get(), skip)).get();
+            finished = true;
+        } catch (InterruptedException | CancellationException e) {
+            // Cancelled, nothing to report.
+            LOGGER.debug("IAS: Blocking MS login has been interrupted.", e);
+        } catch (Throwable t) {
+            // Unwrap the pool failures.
+            Throwable cause = (t instanceof ExecutionException && t.getCause() != null) ? t.getCause() : t;
+
+            // Handle error.
+            handler.error(new RuntimeException("Unable to login as MS account", cause));
+        } finally {
+            // Keep the consumed tokens, if failed.
+            if (ctx != null) {
+                this.strand(ctx, finished);
+            }
+        }
+    }
+
+    /**
+     * Decrypts the tokens and migrates the crypt, if required.
+     *
+     * @param handler Login handler
+     * @param crypt   Crypt to decrypt with
+     * @param crypted Encrypted data
+     * @param holder  Holder for the crypt to re-encrypt with
+     * @param recrypt Holder for whether the data should be re-encrypted
+     * @return Decrypted data, {@code null} if cancelled
+     */
+    @CheckReturnValue
+    private static byte @Nullable [] decrypt(@NotNull LoginHandler handler, @NotNull Crypt crypt, byte @NotNull [] crypted,
+                                             @NotNull Holder<Crypt> holder, @NotNull Holder<Boolean> recrypt) {
+        // Log it and display progress.
+        LOGGER.info("IAS: Decrypting tokens...");
+        handler.stage(DECRYPTING);
+
+        // Decrypt. (cancellable)
+        byte[] data;
+        try {
+            data = crypt.decrypt(crypted, CryptProgress.of(handler::cancelled, percent -> handler.stage(DECRYPTING_PROGRESS, percent)));
+        } catch (RuntimeException e) {
+            // Skip if cancelled.
+            if (handler.cancelled()) return null;
+
+            // Rethrow.
+            throw e;
+        }
+
+        // Migrate and set the crypt.
+        Crypt migrate = crypt.migrate();
+        if (migrate != null) {
+            holder.set(migrate);
+            recrypt.set(true);
+        } else {
+            holder.set(crypt);
+        }
+
+        // Continue.
+        return data;
+    }
+
+    /**
+     * Re-encrypts the tokens if required, updates the account data, and reports the success.
+     *
+     * @param handler Login handler
+     * @param ctx     Auth context with the tokens
+     * @param crypt   Crypt to re-encrypt with
+     * @param profile Obtained profile
+     * @param recrypt Whether the data should be re-encrypted
+     * @param skipped Whether the profile validation has been skipped
+     */
+    private void finish(@NotNull LoginHandler handler, @NotNull AuthContext ctx, @NotNull Crypt crypt,
+                        @NotNull MCProfile profile, boolean recrypt, boolean skipped) {
+        // Re-encrypt if required.
+        boolean saveStorage = false;
+        if (recrypt) {
+            // Log it and display progress.
+            LOGGER.info("IAS: Encrypting tokens...");
+            handler.stage(ENCRYPTING);
+
+            // Write the tokens.
+            byte[] unencrypted = writeTokens(ctx.mca(), ctx.msr(), ctx.xbl(), ctx.xsts());
+
+            // Encrypt the tokens.
+            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream(unencrypted.length + 32);
+                 DataOutputStream out = new DataOutputStream(byteOut)) {
+                // Encrypt. (not cancellable, tokens might've been refreshed already)
+                byte[] encrypted = crypt.encrypt(unencrypted, CryptProgress.of(() -> false, percent -> handler.stage(ENCRYPTING_PROGRESS, percent)));
+
+                // Write data.
+                out.writeUTF(crypt.type());
+                out.write(encrypted);
+
+                // Flush it.
+                this.data = byteOut.toByteArray();
+                saveStorage = true;
+            } catch (Throwable t) {
+                throw new RuntimeException("Unable to encrypt the tokens.", t);
+            }
+        }
+
+        // Authentication successful, refresh the profile.
+        UUID uuid = profile.uuid();
+        String name = profile.name();
+        if (!this.uuid.equals(uuid) || !this.name.equals(name)) {
+            this.uuid = profile.uuid();
+            this.name = profile.name();
+            saveStorage = true;
+        }
+
+        // Update the expiry and validation time.
+        long expires = MSAuth.mcaExpiry(ctx.mca());
+        if (this.expires != expires) {
+            this.expires = expires;
+            saveStorage = true;
+        }
+        if (!skipped) {
+            this.validated = System.currentTimeMillis();
+            saveStorage = true;
+        }
+
+        // Log it and display progress.
+        LOGGER.info("IAS: Successful login as {}", profile);
+        handler.stage(FINALIZING);
+
+        // Create and return the data.
+        LoginData login = new LoginData(this.name, this.uuid, ctx.mca(), true);
+        handler.success(login, saveStorage);
+    }
+
+    /**
+     * Refreshes the tokens and gets the profile using the refreshed tokens. Resumes from the cached XSTS or XBL
+     * token if it's still valid, falling back to the full chain if the cached token is rejected.
+     *
+     * @param ctx      Auth context, will be updated with the refreshed tokens
+     * @param original Original MCA to MCP conversion error, {@code null} if refreshing without it
+     * @return Future that will complete with the profile, with {@code null} on cancel, exceptionally on error
+     */
+    @CheckReturnValue
+    @NotNull
+    static CompletableFuture<MCProfile> refresh(@NotNull AuthContext ctx, @Nullable Throwable original) {
+        // Resume from the furthest stage that is still valid.
+        long now = System.currentTimeMillis();
+        CompletableFuture<AuthContext> future;
+        if (usable(ctx.xsts(), now)) {
+            // Log it.
+            LOGGER.info("IAS: Resuming refresh from cached XSTS...");
+
+            // Skip MSR, MSA, and XBL.
+            future = AuthPipeline.run(ctx, AuthStage.FROM_XSTS).exceptionallyComposeAsync(t -> fallback(ctx, t), IAS.executor());
+        } else if (usable(ctx.xbl(), now)) {
+            // Log it.
+            LOGGER.info("IAS: Resuming refresh from cached XBL...");
+
+            // Skip MSR and MSA.
+            future = AuthPipeline.run(ctx, AuthStage.FROM_XBL).exceptionallyComposeAsync(t -> fallback(ctx, t), IAS.executor());
+        } else {
+            // Full chain.
+            future = AuthPipeline.run(ctx, AuthStage.FROM_MSR);
+        }
+
+        // Handle errors.
+        return future.thenApply(result -> result == null ? null : result.profile()).exceptionallyAsync(t -> {
+            // Add the original, if any.
+            if (original != null) {
+                t.addSuppressed(original);
+            }
+
+            // Probable case - no internet connection.
+            if (AuthPipeline.offline(t)) {
+                throw new FriendlyException("Unable to connect to MSR servers.", t, "ias.error.connect");
+            }
+
+            // Handle error.
+            throw new RuntimeException("Unable to perform MSR auth.", t);
+        }, IAS.executor()).exceptionallyAsync(t -> {
+            // Rethrow. (adding original, if any)
+            if (original != null) {
+                t.addSuppressed(original);
+            }
+
+            throw new RuntimeException("Unable to refresh MSR.", t);
+        }, IAS.executor());
+    }
+
+    /**
+     * Falls back to the full chain if the cached Xbox tokens were rejected.
+     *
+     * @param ctx   Auth context
+     * @param error Error from the chain resumed from the cached tokens
+     * @return Future that will complete with the context, with {@code null} on cancel, exceptionally on error
+     */
+    @CheckReturnValue
+    @NotNull
+    private static CompletableFuture<AuthContext> fallback(@NotNull AuthContext ctx, @NotNull Throwable error) {
+        // Skip if cancelled.
+        if (ctx.cancelled()) return CompletableFuture.completedFuture(null);
+
+        // Rethrow if the cached tokens are not the cause.
+        if (AuthPipeline.offline(error) || FriendlyException.friendlyInChain(error) != null) {
+            return CompletableFuture.failedFuture(error);
+        }
+
+        // Log it.
+        LOGGER.warn("IAS: Cached Xbox tokens were rejected. Refreshing from MSR...", error);
+
+        // Drop the cache and refresh fully.
+        ctx.reset();
+        ctx.xbl(null);
+        ctx.xsts(null);
+        return AuthPipeline.run(ctx, AuthStage.FROM_MSR);
+    }
+
+    /**
+     * Refreshes the tokens and gets the profile using the refreshed tokens as a straight-line blocking code.
+     * Blocking counterpart of {@link #refresh(AuthContext, Throwable)}.
+     *
+     * @param ctx      Auth context, will be updated with the refreshed tokens
+     * @param original Original MCA to MCP conversion error, {@code null} if refreshing without it
+     * @return Refreshed profile, {@code null} on cancel
+     * @throws RuntimeException If unable to refresh
+     */
+    @CheckReturnValue
+    @Nullable
+    private static MCProfile refreshBlocking(@NotNull AuthContext ctx, @Nullable Throwable original) {
+        try {
+            // Resume from the furthest stage that is still valid.
+            long now = System.currentTimeMillis();
+            List<AuthStage<?, ?>> stages;
+            if (usable(ctx.xsts(), now)) {
+                // Log it.
+                LOGGER.info("IAS: Resuming refresh from cached XSTS...");
+
+                // Skip MSR, MSA, and XBL.
+                stages = AuthStage.FROM_XSTS;
+            } else if (usable(ctx.xbl(), now)) {
+                // Log it.
+                LOGGER.info("IAS: Resuming refresh from cached XBL...");
+
+                // Skip MSR and MSA.
+                stages = AuthStage.FROM_XBL;
+            } else {
+                // Full chain.
+                stages = AuthStage.FROM_MSR;
+            }
+
+            // Run the chain.
+            AuthContext result;
+            try {
+                result = AuthPipeline.runBlocking(ctx, stages);
+            } catch (RuntimeException e) {
+                // Rethrow if the cached tokens are not the cause.
+                if (stages == AuthStage.FROM_MSR || ctx.cancelled() || AuthPipeline.offline(e) || FriendlyException.friendlyInChain(e) != null) {
+                    throw e;
+                }
+
+                // Log it.
+                LOGGER.warn("IAS: Cached Xbox tokens were rejected. Refreshing from MSR...", e);
+
+                // Drop the cache and refresh fully.
+                ctx.reset();
+                ctx.xbl(null);
+                ctx.xsts(null);
+                result = AuthPipeline.runBlocking(ctx, AuthStage.FROM_MSR);
+            }
+
+            // Return the profile.
+            return result == null ? null : result.profile();
+        } catch (RuntimeException e) {
+            // Add the original, if any.
+            if (original != null) {
+                e.addSuppressed(original);
+            }
+
+            // Probable case - no internet connection.
+            if (AuthPipeline.offline(e)) {
+                throw new FriendlyException("Unable to connect to MSR servers.", e, "ias.error.connect");
+            }
+
+            // Handle error.
+            throw new RuntimeException("Unable to refresh MSR.", e);
+        }
+    }
+
+    /**
+     * Gets whether the cached Xbox token can be used.
+     *
+     * @param token Target token, {@code null} if none
+     * @param now   Current time in epoch milliseconds
+     * @return Whether the token is present and won't expire soon
+     */
+    @Contract(value = "null, _ -> false", pure = true)
+    private static boolean usable(@Nullable XHashedToken token, long now) {
+        return token != null && token.expires() != 0L && now < token.expires() - EXPIRY_MARGIN;
+    }
+
+    /**
+     * Writes the unencrypted tokens data.
+     *
+     * @param access  Minecraft Access (MCA) token
+     * @param refresh Microsoft Refresh (MSR) token
+     * @param xbl     Cached Xbox Live (XBL) token, {@code null} if none
+     * @param xsts    Cached Xbox Secure Token Service (XSTS) token, {@code null} if none
+     * @return Unencrypted tokens data
+     * @throws RuntimeException If unable to write
+     */
+    @CheckReturnValue
+    public static byte @NotNull [] writeTokens(@NotNull String access, @NotNull String refresh,
+                                               @Nullable XHashedToken xbl, @Nullable XHashedToken xsts) {
+        try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream(access.length() + refresh.length() + 4);
+             DataOutputStream out = new DataOutputStream(byteOut)) {
+            // Write the access token.
+            out.writeUTF(access);
+
+            // Write the refresh token.
+            out.writeUTF(refresh);
+
+            // Write the cached Xbox tokens, if any.
+            if (xbl != null || xsts != null) {
+                int size = out.size();
+                out.writeByte(XBOX_CACHE_VERSION);
+                writeXboxToken(out, xbl);
+                writeXboxToken(out, xsts);
+
+                // Drop the cache if too big.
+                if (out.size() > MAX_TOKENS_SIZE) {
+                    LOGGER.warn("IAS: Cached Xbox tokens are too big ({} bytes), not storing them.", out.size() - size);
+                    out.flush();
+                    return writeTokens(access, refresh, null, null);
+                }
+            }
+
+            // Flush it.
+            out.flush();
+            return byteOut.toByteArray();
+        } catch (Throwable t) {
+            throw new RuntimeException("Unable to write the tokens.", t);
+        }
+    }
+
+    /**
+     * Reads the unencrypted tokens data.
+     *
+     * @param data Unencrypted tokens data
+     * @param ctx  Auth context to read into
+     * @throws IOException On I/O error while reading the MCA or MSR
+     */
+    private static void readTokens(byte @NotNull [] data, @NotNull AuthContext ctx) throws IOException {
+        try (ByteArrayInputStream byteIn = new ByteArrayInputStream(data);
+             DataInputStream in = new DataInputStream(byteIn)) {
+            // Read the access token.
+            ctx.mca(in.readUTF());
+
+            // Read the refresh token.
+            ctx.msr(in.readUTF());
+
+            // Read the cached Xbox tokens, if any. (discarded if unreadable, the chain is restarted from the MSR)
+            if (in.available() == 0) return;
+            try {
+                int version = in.readUnsignedByte();
+                if (version != XBOX_CACHE_VERSION) {
+                    throw new IOException("Unknown Xbox cache version: " + version);
+                }
+                ctx.xbl(readXboxToken(in));
+                ctx.xsts(readXboxToken(in));
+
+                // Verify the buffer.
+                int available = in.available();
+                if (available != 0) {
+                    throw new IOException("Leftover: " + available);
+                }
+            } catch (IOException e) {
+                LOGGER.debug("IAS: Discarding unreadable Xbox token cache.", e);
+                ctx.xbl(null);
+                ctx.xsts(null);
+            }
+        }
+    }
+
+    /**
+     * Writes the cached Xbox token.
+     *
+     * @param out   Target output
+     * @param token Target token, {@code null} if none
+     * @throws IOException On I/O error
+     */
+    private static void writeXboxToken(@NotNull DataOutput out, @Nullable XHashedToken token) throws IOException {
+        out.writeBoolean(token != null);
+        if (token == null) return;
+        out.writeUTF(token.token());
+        out.writeUTF(token.hash());
+        out.writeLong(token.expires());
+    }
+
+    /**
+     * Reads the cached Xbox token.
+     *
+     * @param in Target input
+     * @return Read token, {@code null} if none
+     * @throws IOException On I/O error
+     */
+    @CheckReturnValue
+    @Nullable
+    private static XHashedToken readXboxToken(@NotNull DataInput in) throws IOException {
+        if (!in.readBoolean()) return null;
+        return new XHashedToken(in.readUTF(), in.readUTF(), in.readLong());
+    }
+
     @Contract(value = "null -> false", pure = true)
     @Override
     public boolean equals(@Nullable Object obj) {
@@ -517,8 +1194,22 @@ public final class MicrosoftAccount implements Account {
         out.write(this.data);
     }
 
+    @Override
+    public void writeMeta(@NotNull DataOutput out) throws IOException {
+        // Write the expiry and validation time.
+        out.writeLong(this.expires);
+        out.writeLong(this.validated);
+    }
+
+    @Override
+    public void readMeta(@NotNull DataInput in) throws IOException {
+        // Read the expiry and validation time.
+        this.expires = in.readLong();
+        this.validated = in.readLong();
+    }
+
     /**
-     * Reads the account from the input.
+     * Reads the account (version 1) from the input.
      *
      * @param in Target input
      * @return Read account
@@ -526,7 +1217,7 @@ public final class MicrosoftAccount implements Account {
      */
     @CheckReturnValue
     @NotNull
-    public static MicrosoftAccount read(@NotNull DataInput in) throws IOException {
+    public static MicrosoftAccount readV1(@NotNull DataInput in) throws IOException {
         // Read the insecure.
         boolean insecure = in.readBoolean();
 
@@ -544,4 +1235,37 @@ public final class MicrosoftAccount implements Account {
         // Create and return.
         return new MicrosoftAccount(insecure, uuid, name, data);
     }
+
+    /**
+     * Reads the account (version 2) from the input. This version has been written by the earlier builds
+     * and is unreadable for the older versions, the expiry and validation time are now written by {@link #writeMeta(DataOutput)}.
+     *
+     * @param in Target input
+     * @return Read account
+     * @throws IOException On I/O error
+     */
+    @CheckReturnValue
+    @NotNull
+    public static MicrosoftAccount readV2(@NotNull DataInput in) throws IOException {
+        // Read the insecure.
+        boolean insecure = in.readBoolean();
+
+        // Read the UUID.
+        UUID uuid = new UUID(in.readLong(), in.readLong());
+
+        // Read the name.
+        String name = in.readUTF();
+
+        // Read the data.
+        int length = in.readUnsignedShort();
+        byte[] data = new byte[length];
+        in.readFully(data);
+
+        // Read the expiry and validation time.
+        long expires = in.readLong();
+        long validated = in.readLong();
+
+        // Create and return.
+        return new MicrosoftAccount(insecure, uuid, name, data, expires, validated);
+    }
 }
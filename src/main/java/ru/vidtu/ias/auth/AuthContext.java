@@ -0,0 +1,411 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.auth;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.vidtu.ias.auth.microsoft.fields.MCProfile;
+import ru.vidtu.ias.auth.microsoft.fields.XHashedToken;
+import ru.vidtu.ias.utils.CancelToken;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * State of the {@link AuthPipeline}: tokens produced by the stages, checkpoints of completed stages, and their timings.
+ * <p>
+ * Completed stages are skipped when the pipeline is run again with the same context, so a resumed pipeline
+ * never repeats a stage whose tokens have already been obtained (e.g. a rotated refresh token).
+ *
+ * @author VidTu
+ */
+public final class AuthContext {
+    /**
+     * Cancellation token, aborting the in-flight stage on cancel.
+     */
+    @NotNull
+    private final CancelToken token;
+
+    /**
+     * Stage display consumer.
+     */
+    @NotNull
+    private final Consumer<String> display;
+
+    /**
+     * Completed stages with their durations in nanoseconds.
+     */
+    @NotNull
+    private final Map<AuthStage<?, ?>, Long> checkpoints = new LinkedHashMap<>(8);
+
+    /**
+     * Whether any non-resumable stage has been started.
+     */
+    private boolean committed;
+
+    /**
+     * Microsoft Authentication Code (MSAC), {@code null} if none.
+     */
+    @Nullable
+    private String code;
+
+    /**
+     * Redirect URI used to obtain the {@link #code}, {@code null} if none.
+     */
+    @Nullable
+    private String redirect;
+
+    /**
+     * Microsoft Access (MSA) token, {@code null} if none.
+     */
+    @Nullable
+    private String msa;
+
+    /**
+     * Microsoft Refresh (MSR) token, {@code null} if none.
+     */
+    @Nullable
+    private String msr;
+
+    /**
+     * Xbox Live (XBL) token, {@code null} if none.
+     */
+    @Nullable
+    private XHashedToken xbl;
+
+    /**
+     * Xbox Secure Token Service (XSTS) token, {@code null} if none.
+     */
+    @Nullable
+    private XHashedToken xsts;
+
+    /**
+     * Minecraft Access (MCA) token, {@code null} if none.
+     */
+    @Nullable
+    private String mca;
+
+    /**
+     * Minecraft Profile (MCP), {@code null} if none.
+     */
+    @Nullable
+    private MCProfile profile;
+
+    /**
+     * Creates a new context.
+     *
+     * @param cancelled Cancellation supplier
+     * @param display   Stage display consumer, accepting the stage translation key
+     */
+    @Contract(pure = true)
+    public AuthContext(@NotNull BooleanSupplier cancelled, @NotNull Consumer<String> display) {
+        this.token = new CancelToken(cancelled);
+        this.display = display;
+    }
+
+    /**
+     * Gets whether the auth has been cancelled.
+     *
+     * @return Whether the auth has been cancelled
+     */
+    public boolean cancelled() {
+        return this.token.cancelled();
+    }
+
+    /**
+     * Gets the cancellation token. Stage futures bound to it are cancelled as soon as the auth is cancelled.
+     *
+     * @return Cancellation token
+     */
+    @Contract(pure = true)
+    @NotNull
+    public CancelToken token() {
+        return this.token;
+    }
+
+    /**
+     * Displays the stage.
+     *
+     * @param key Stage translation key
+     */
+    void display(@NotNull String key) {
+        this.display.accept(key);
+    }
+
+    /**
+     * Gets whether the stage has been completed.
+     *
+     * @param stage Target stage
+     * @return Whether the stage has a checkpoint
+     */
+    @Contract(pure = true)
+    public boolean completed(@NotNull AuthStage<?, ?> stage) {
+        return this.checkpoints.containsKey(stage);
+    }
+
+    /**
+     * Records the stage completion.
+     *
+     * @param stage    Completed stage
+     * @param duration Stage duration in nanoseconds
+     */
+    void checkpoint(@NotNull AuthStage<?, ?> stage, long duration) {
+        this.checkpoints.put(stage, duration);
+    }
+
+    /**
+     * Gets whether any non-resumable stage has been started, i.e. whether a single-use code or
+     * the refresh token might've been consumed. Not affected by {@link #reset()}.
+     *
+     * @return Whether the context has been committed
+     */
+    @Contract(pure = true)
+    public boolean committed() {
+        return this.committed;
+    }
+
+    /**
+     * Marks the context as committed.
+     *
+     * @see #committed()
+     */
+    void commit() {
+        this.committed = true;
+    }
+
+    /**
+     * Gets whether any non-resumable stage has been completed, i.e. whether a single-use code or the refresh token
+     * has been exchanged for the new tokens that are only held by this context.
+     *
+     * @return Whether the context holds the consumed tokens
+     */
+    @Contract(pure = true)
+    public boolean consumed() {
+        for (AuthStage<?, ?> stage : this.checkpoints.keySet()) {
+            if (!stage.resumable()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adopts the tokens consumed by the previous (failed) context, so they're not used again.
+     * The refresh token is always adopted, the access token and the non-resumable checkpoints only if requested.
+     *
+     * @param previous    Previous context, {@link #consumed()} should be {@code true}
+     * @param checkpoints Whether to adopt the access token and skip the consumed stages
+     */
+    public void adopt(@NotNull AuthContext previous, boolean checkpoints) {
+        this.msr = previous.msr;
+        if (!checkpoints) return;
+        this.msa = previous.msa;
+        previous.checkpoints.forEach((stage, duration) -> {
+            if (stage.resumable()) return;
+            this.checkpoints.put(stage, duration);
+        });
+    }
+
+    /**
+     * Removes all checkpoints, so all stages will be run again.
+     */
+    public void reset() {
+        this.checkpoints.clear();
+    }
+
+    /**
+     * Gets the stage timings.
+     *
+     * @return Human-readable durations of the completed stages
+     */
+    @Contract(pure = true)
+    @NotNull
+    public String timings() {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        this.checkpoints.forEach((stage, duration) -> joiner.add(stage + "=" + TimeUnit.NANOSECONDS.toMillis(duration) + "ms"));
+        return joiner.toString();
+    }
+
+    /**
+     * Gets the MSAC.
+     *
+     * @return Microsoft Authentication Code (MSAC), {@code null} if none
+     */
+    @Contract(pure = true)
+    @Nullable
+    public String code() {
+        return this.code;
+    }
+
+    /**
+     * Gets the redirect URI.
+     *
+     * @return Redirect URI used to obtain the MSAC, {@code null} if none
+     */
+    @Contract(pure = true)
+    @Nullable
+    public String redirect() {
+        return this.redirect;
+    }
+
+    /**
+     * Sets the MSAC.
+     *
+     * @param code     Microsoft Authentication Code (MSAC)
+     * @param redirect Redirect URI used to obtain the MSAC
+     */
+    public void code(@NotNull String code, @NotNull String redirect) {
+        this.code = code;
+        this.redirect = redirect;
+    }
+
+    /**
+     * Gets the MSA token.
+     *
+     * @return Microsoft Access (MSA) token, {@code null} if none
+     */
+    @Contract(pure = true)
+    @Nullable
+    public String msa() {
+        return this.msa;
+    }
+
+    /**
+     * Sets the MSA token.
+     *
+     * @param msa Microsoft Access (MSA) token, {@code null} if none
+     */
+    public void msa(@Nullable String msa) {
+        this.msa = msa;
+    }
+
+    /**
+     * Gets the MSR token.
+     *
+     * @return Microsoft Refresh (MSR) token, {@code null} if none
+     */
+    @Contract(pure = true)
+    @Nullable
+    public String msr() {
+        return this.msr;
+    }
+
+    /**
+     * Sets the MSR token.
+     *
+     * @param msr Microsoft Refresh (MSR) token, {@code null} if none
+     */
+    public void msr(@Nullable String msr) {
+        this.msr = msr;
+    }
+
+    /**
+     * Gets the XBL token.
+     *
+     * @return Xbox Live (XBL) token, {@code null} if none
+     */
+    @Contract(pure = true)
+    @Nullable
+    public XHashedToken xbl() {
+        return this.xbl;
+    }
+
+    /**
+     * Sets the XBL token.
+     *
+     * @param xbl Xbox Live (XBL) token, {@code null} if none
+     */
+    public void xbl(@Nullable XHashedToken xbl) {
+        this.xbl = xbl;
+    }
+
+    /**
+     * Gets the XSTS token.
+     *
+     * @return Xbox Secure Token Service (XSTS) token, {@code null} if none
+     */
+    @Contract(pure = true)
+    @Nullable
+    public XHashedToken xsts() {
+        return this.xsts;
+    }
+
+    /**
+     * Sets the XSTS token.
+     *
+     * @param xsts Xbox Secure Token Service (XSTS) token, {@code null} if none
+     */
+    public void xsts(@Nullable XHashedToken xsts) {
+        this.xsts = xsts;
+    }
+
+    /**
+     * Gets the MCA token.
+     *
+     * @return Minecraft Access (MCA) token, {@code null} if none
+     */
+    @Contract(pure = true)
+    @Nullable
+    public String mca() {
+        return this.mca;
+    }
+
+    /**
+     * Sets the MCA token.
+     *
+     * @param mca Minecraft Access (MCA) token, {@code null} if none
+     */
+    public void mca(@Nullable String mca) {
+        this.mca = mca;
+    }
+
+    /**
+     * Gets the MCP.
+     *
+     * @return Minecraft Profile (MCP), {@code null} if none
+     */
+    @Contract(pure = true)
+    @Nullable
+    public MCProfile profile() {
+        return this.profile;
+    }
+
+    /**
+     * Sets the MCP.
+     *
+     * @param profile Minecraft Profile (MCP), {@code null} if none
+     */
+    public void profile(@Nullable MCProfile profile) {
+        this.profile = profile;
+    }
+
+    @Contract(pure = true)
+    @Override
+    @NotNull
+    public String toString() {
+        return "AuthContext{" +
+                "checkpoints=" + this.timings() +
+                ", profile=" + this.profile +
+                '}';
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.auth;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.IASHttp;
+import ru.vidtu.ias.utils.IUtils;
+import ru.vidtu.ias.utils.exceptions.BreakerOpenException;
+import ru.vidtu.ias.utils.exceptions.FriendlyException;
+import ru.vidtu.ias.utils.exceptions.OfflineException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Staged auth pipeline engine, running the {@link AuthStage}s one after another over the {@link AuthContext}.
+ * <p>
+ * Each completed stage is checkpointed in the context. If a stage fails with a transient (network) error,
+ * the pipeline resumes from that stage after a delay instead of starting over. Stages that are not
+ * {@link AuthStage#resumable()} (single-use codes and rotating refresh tokens) are resumed only if
+ * the request has (probably) never been sent. Stages whose transport already retries the requests
+ * ({@link AuthStage#retrying()}) are resumed only once the context has {@link AuthContext#consumed()} a single-use
+ * token, since failing then would discard the freshly obtained tokens. Known offline failures and open circuit
+ * breakers are never resumed.
+ *
+ * @author VidTu
+ */
+public final class AuthPipeline {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/AuthPipeline");
+
+    /**
+     * Maximum resumes per pipeline run.
+     */
+    private static final int MAX_RESUMES = 2;
+
+    /**
+     * Delay before the first resume in milliseconds, doubled on each resume.
+     */
+    private static final long RESUME_DELAY = 1000L;
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private AuthPipeline() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Runs the stages, skipping the ones that are already completed in the context.
+     *
+     * @param ctx    Auth context
+     * @param stages Stages to run
+     * @return Future that will complete with the context, with {@code null} on cancel, exceptionally on error
+     */
+    @CheckReturnValue
+    @NotNull
+    public static CompletableFuture<AuthContext> run(@NotNull AuthContext ctx, @NotNull List<AuthStage<?, ?>> stages) {
+        CompletableFuture<AuthContext> result = new CompletableFuture<>();
+        IAS.executor().execute(() -> step(ctx, stages, 0, 0, System.nanoTime(), result));
+        return result;
+    }
+
+    /**
+     * Runs the stages in the current thread, skipping the ones that are already completed in the context.
+     * Intended for the {@link IASExecutors#inBlocking()} threads, cancelled by interruption.
+     *
+     * @param ctx    Auth context
+     * @param stages Stages to run
+     * @return Context, {@code null} on cancel
+     * @throws RuntimeException If unable to run the stages
+     * @see #run(AuthContext, List)
+     */
+    @Nullable
+    public static AuthContext runBlocking(@NotNull AuthContext ctx, @NotNull List<AuthStage<?, ?>> stages) {
+        long start = System.nanoTime();
+        int resumes = 0;
+        for (int index = 0; index < stages.size(); ) {
+            // Stop if cancelled.
+            if (ctx.cancelled() || Thread.currentThread().isInterrupted()) return null;
+
+            // Skip if checkpointed.
+            AuthStage<?, ?> stage = stages.get(index);
+            if (ctx.completed(stage)) {
+                LOGGER.debug("IAS: Skipping checkpointed {} stage.", stage);
+                index++;
+                continue;
+            }
+
+            // Log it and display progress.
+            LOGGER.info("IAS: Converting {}...", stage);
+            ctx.display(stage.key());
+
+            // Run the stage, committing the context if the stage can't be repeated.
+            if (!stage.resumable()) {
+                ctx.commit();
+            }
+            long stageStart = System.nanoTime();
+            try {
+                stage.runBlocking(ctx);
+            } catch (Throwable t) {
+                // Stop if cancelled.
+                Throwable cause = (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+                if (ctx.cancelled() || cause instanceof InterruptedException || Thread.currentThread().isInterrupted()) return null;
+
+                // Fail if not transient.
+                if (resumes >= MAX_RESUMES || !resumable(ctx, stage, cause)) {
+                    throw new RuntimeException("Unable to run " + stage + " stage.", cause);
+                }
+
+                // Resume from this stage.
+                long delay = RESUME_DELAY << resumes;
+                LOGGER.warn("IAS: {} stage failed, resuming from it in {} ms. (checkpoints: {}) ({})", stage, delay, ctx.timings(), cause.toString());
+                resumes++;
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                continue;
+            }
+
+            // Checkpoint and continue.
+            ctx.checkpoint(stage, System.nanoTime() - stageStart);
+            index++;
+        }
+
+        // Log it and return.
+        LOGGER.info("IAS: Auth pipeline completed in {} ms with {} resumes. (blocking) {}", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), resumes, ctx.timings());
+        LOGGER.debug("IAS: Request budgets: {}", IASHttp.budgets());
+        return ctx;
+    }
+
+    /**
+     * Gets whether the error is (probably) caused by no internet connection.
+     *
+     * @param error Target error
+     * @return Whether any connection error is in the causal chain
+     */
+    @Contract(pure = true)
+    public static boolean offline(@NotNull Throwable error) {
+        return IUtils.anyInCausalChain(error, err -> err instanceof UnresolvedAddressException || err instanceof NoRouteToHostException || err instanceof HttpTimeoutException || err instanceof ConnectException);
+    }
+
+    /**
+     * Runs the stage.
+     *
+     * @param ctx     Auth context
+     * @param stages  Stages to run
+     * @param index   Current stage index
+     * @param resumes Resumes performed
+     * @param start   Pipeline start time in {@link System#nanoTime()} units
+     * @param result  Future to complete with the result
+     */
+    private static void step(@NotNull AuthContext ctx, @NotNull List<AuthStage<?, ?>> stages, int index, int resumes,
+                             long start, @NotNull CompletableFuture<AuthContext> result) {
+        try {
+            // Stop if cancelled.
+            if (ctx.cancelled()) {
+                result.complete(null);
+                return;
+            }
+
+            // Complete if done.
+            if (index >= stages.size()) {
+                LOGGER.info("IAS: Auth pipeline completed in {} ms with {} resumes. {}", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), resumes, ctx.timings());
+                LOGGER.debug("IAS: Request budgets: {}", IASHttp.budgets());
+                result.complete(ctx);
+                return;
+            }
+
+            // Skip if checkpointed.
+            AuthStage<?, ?> stage = stages.get(index);
+            if (ctx.completed(stage)) {
+                LOGGER.debug("IAS: Skipping checkpointed {} stage.", stage);
+                step(ctx, stages, index + 1, resumes, start, result);
+                return;
+            }
+
+            // Log it and display progress.
+            LOGGER.info("IAS: Converting {}...", stage);
+            ctx.display(stage.key());
+
+            // Run the stage, committing the context if the stage can't be repeated.
+            if (!stage.resumable()) {
+                ctx.commit();
+            }
+            long stageStart = System.nanoTime();
+            stage.run(ctx).whenCompleteAsync((ignored, t) -> {
+                try {
+                    // Checkpoint and continue on success.
+                    if (t == null) {
+                        ctx.checkpoint(stage, System.nanoTime() - stageStart);
+                        step(ctx, stages, index + 1, resumes, start, result);
+                        return;
+                    }
+
+                    // Stop if cancelled.
+                    Throwable cause = (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+                    if (ctx.cancelled()) {
+                        result.complete(null);
+                        return;
+                    }
+
+                    // Fail if not transient.
+                    if (resumes >= MAX_RESUMES || !resumable(ctx, stage, cause)) {
+                        result.completeExceptionally(cause);
+                        return;
+                    }
+
+                    // Resume from this stage.
+                    long delay = RESUME_DELAY << resumes;
+                    LOGGER.warn("IAS: {} stage failed, resuming from it in {} ms. (checkpoints: {}) ({})", stage, delay, ctx.timings(), cause.toString());
+                    IASExecutors.delayed(delay, TimeUnit.MILLISECONDS).execute(() ->
+                            step(ctx, stages, index, resumes + 1, start, result));
+                } catch (Throwable th) {
+                    // Fail.
+                    result.completeExceptionally(th);
+                }
+            }, IAS.executor());
+        } catch (Throwable t) {
+            // Fail.
+            result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Gets whether the stage failure is transient and the stage can be run again.
+     *
+     * @param ctx   Auth context
+     * @param stage Failed stage
+     * @param error Stage error
+     * @return Whether the stage can be resumed
+     */
+    @Contract(pure = true)
+    private static boolean resumable(@NotNull AuthContext ctx, @NotNull AuthStage<?, ?> stage, @NotNull Throwable error) {
+        // Friendly errors are never transient, known offline or open breaker won't recover in time.
+        if (FriendlyException.friendlyInChain(error) != null) return false;
+        if (IUtils.anyInCausalChain(error, err -> err instanceof OfflineException || err instanceof BreakerOpenException)) {
+            return false;
+        }
+
+        // Consumed single-use token - resume the repeatable stages instead of discarding the new tokens.
+        if (ctx.consumed()) return stage.resumable();
+
+        // Transport has already retried - resuming would only stack the attempts.
+        if (stage.retrying()) return false;
+
+        // Request was never sent.
+        if (IUtils.anyInCausalChain(error, err -> err instanceof UnresolvedAddressException || err instanceof NoRouteToHostException || err instanceof HttpConnectTimeoutException || err instanceof ConnectException)) {
+            return true;
+        }
+
+        // Other network errors.
+        return stage.resumable() && IUtils.anyInCausalChain(error, IOException.class::isInstance);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.auth;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.account.MicrosoftAccount;
+import ru.vidtu.ias.auth.microsoft.MSAuth;
+import ru.vidtu.ias.auth.microsoft.fields.MCProfile;
+import ru.vidtu.ias.auth.microsoft.fields.MSTokens;
+import ru.vidtu.ias.auth.microsoft.fields.XHashedToken;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Typed stage of the {@link AuthPipeline}, taking its input from the {@link AuthContext} and storing its output into it.
+ *
+ * @param <I> Stage input type
+ * @param <O> Stage output type
+ * @author VidTu
+ */
+public final class AuthStage<I, O> {
+    /**
+     * Converts the Microsoft Authentication Code (MSAC) to Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens.
+     * The code is single-use, so the stage is not resumable.
+     */
+    @NotNull
+    public static final AuthStage<String, MSTokens> MSAC_TO_MSA_MSR = new AuthStage<>("MSAC to MSA/MSR",
+            MicrosoftAccount.MSAC_TO_MSA_MSR, false, true, AuthContext::code,
+            (ctx, code) -> MSAuth.msacToMsaMsr(code, require(ctx.redirect(), "redirect")), (ctx, ms) -> {
+        ctx.msa(ms.access());
+        ctx.msr(ms.refresh());
+    });
+
+    /**
+     * Converts the Microsoft Refresh (MSR) token to Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens.
+     * The refresh token may be rotated, so the stage is not resumable.
+     */
+    @NotNull
+    public static final AuthStage<String, MSTokens> MSR_TO_MSA_MSR = new AuthStage<>("MSR to MSA/MSR",
+            MicrosoftAccount.MSR_TO_MSA_MSR, false, true, AuthContext::msr, (ctx, msr) -> MSAuth.msrToMsaMsr(msr), (ctx, ms) -> {
+        ctx.msa(ms.access());
+        ctx.msr(ms.refresh());
+    });
+
+    /**
+     * Converts the Microsoft Access (MSA) token to Xbox Live (XBL) token.
+     */
+    @NotNull
+    public static final AuthStage<String, XHashedToken> MSA_TO_XBL = new AuthStage<>("MSA to XBL",
+            MicrosoftAccount.MSA_TO_XBL, true, true, AuthContext::msa, (ctx, msa) -> MSAuth.msaToXbl(msa), AuthContext::xbl);
+
+    /**
+     * Converts the Xbox Live (XBL) token to Xbox Secure Token Service (XSTS) token.
+     */
+    @NotNull
+    public static final AuthStage<XHashedToken, XHashedToken> XBL_TO_XSTS = new AuthStage<>("XBL to XSTS",
+            MicrosoftAccount.XBL_TO_XSTS, true, true, AuthContext::xbl, (ctx, xbl) -> MSAuth.xblToXsts(xbl.token(), xbl.hash()), AuthContext::xsts);
+
+    /**
+     * Converts the Xbox Secure Token Service (XSTS) token to Minecraft Access (MCA) token.
+     */
+    @NotNull
+    public static final AuthStage<XHashedToken, String> XSTS_TO_MCA = new AuthStage<>("XSTS to MCA",
+            MicrosoftAccount.XSTS_TO_MCA, true, true, AuthContext::xsts, (ctx, xsts) -> MSAuth.xstsToMca(xsts.token(), xsts.hash()), AuthContext::mca);
+
+    /**
+     * Converts the Minecraft Access (MCA) token to Minecraft Profile. (MCP)
+     */
+    @NotNull
+    public static final AuthStage<String, MCProfile> MCA_TO_MCP = new AuthStage<>("MCA to MCP",
+            MicrosoftAccount.MCA_TO_MCP, true, true, AuthContext::mca, (ctx, mca) -> MSAuth.mcaToMcp(mca), AuthContext::profile);
+
+    /**
+     * Stages after the MSA token has been obtained.
+     */
+    @NotNull
+    public static final List<AuthStage<?, ?>> FROM_MSA = List.of(MSA_TO_XBL, XBL_TO_XSTS, XSTS_TO_MCA, MCA_TO_MCP);
+
+    /**
+     * Stages after the XSTS token has been obtained.
+     */
+    @NotNull
+    public static final List<AuthStage<?, ?>> FROM_XSTS = List.of(XSTS_TO_MCA, MCA_TO_MCP);
+
+    /**
+     * Stages after the XBL token has been obtained.
+     */
+    @NotNull
+    public static final List<AuthStage<?, ?>> FROM_XBL = List.of(XBL_TO_XSTS, XSTS_TO_MCA, MCA_TO_MCP);
+
+    /**
+     * Stages of the full refresh chain.
+     */
+    @NotNull
+    public static final List<AuthStage<?, ?>> FROM_MSR = List.of(MSR_TO_MSA_MSR, MSA_TO_XBL, XBL_TO_XSTS, XSTS_TO_MCA, MCA_TO_MCP);
+
+    /**
+     * Stages of the full authorization code chain.
+     */
+    @NotNull
+    public static final List<AuthStage<?, ?>> FROM_MSAC = List.of(MSAC_TO_MSA_MSR, MSA_TO_XBL, XBL_TO_XSTS, XSTS_TO_MCA, MCA_TO_MCP);
+
+    /**
+     * Stage name for logging.
+     */
+    @NotNull
+    private final String name;
+
+    /**
+     * Stage translation key.
+     */
+    @NotNull
+    private final String key;
+
+    /**
+     * Whether the stage can be run again after it has failed in an unknown state.
+     */
+    private final boolean resumable;
+
+    /**
+     * Whether the stage transport retries the failed requests by itself.
+     */
+    private final boolean retrying;
+
+    /**
+     * Stage input getter.
+     */
+    @NotNull
+    private final Function<AuthContext, I> input;
+
+    /**
+     * Stage action.
+     */
+    @NotNull
+    private final BiFunction<AuthContext, I, CompletableFuture<O>> action;
+
+    /**
+     * Stage output setter.
+     */
+    @NotNull
+    private final BiConsumer<AuthContext, O> output;
+
+    /**
+     * Creates a new stage.
+     *
+     * @param name      Stage name for logging
+     * @param key       Stage translation key
+     * @param resumable Whether the stage can be run again after it has failed in an unknown state
+     * @param retrying  Whether the stage transport retries the failed requests by itself
+     * @param input     Stage input getter, returning {@code null} if the input is missing
+     * @param action    Stage action
+     * @param output    Stage output setter
+     */
+    @Contract(pure = true)
+    private AuthStage(@NotNull String name, @NotNull String key, boolean resumable, boolean retrying,
+                      @NotNull Function<AuthContext, I> input,
+                      @NotNull BiFunction<AuthContext, I, CompletableFuture<O>> action,
+                      @NotNull BiConsumer<AuthContext, O> output) {
+        this.name = name;
+        this.key = key;
+        this.resumable = resumable;
+        this.retrying = retrying;
+        this.input = input;
+        this.action = action;
+        this.output = output;
+    }
+
+    /**
+     * Gets the translation key.
+     *
+     * @return Stage translation key
+     */
+    @Contract(pure = true)
+    @NotNull
+    public String key() {
+        return this.key;
+    }
+
+    /**
+     * Gets whether the stage can be run again after it has failed in an unknown state.
+     *
+     * @return Whether the stage is resumable
+     */
+    @Contract(pure = true)
+    public boolean resumable() {
+        return this.resumable;
+    }
+
+    /**
+     * Gets whether the stage transport retries the failed requests by itself.
+     *
+     * @return Whether the stage is retrying
+     */
+    @Contract(pure = true)
+    public boolean retrying() {
+        return this.retrying;
+    }
+
+    /**
+     * Runs the stage. Resumable stages are aborted as soon as the context is cancelled, non-resumable ones
+     * are allowed to finish, so the tokens they might've rotated are not lost.
+     *
+     * @param ctx Auth context
+     * @return Future that will complete when the output is stored into the context, or exceptionally
+     */
+    @CheckReturnValue
+    @NotNull
+    CompletableFuture<Void> run(@NotNull AuthContext ctx) {
+        I in = require(this.input.apply(ctx), this.name + " input");
+        CompletableFuture<O> future = this.action.apply(ctx, in);
+        if (this.resumable) {
+            ctx.token().bind(future);
+        }
+        return future.thenAcceptAsync(out -> this.output.accept(ctx, require(out, this.name + " output")), IAS.executor());
+    }
+
+    /**
+     * Runs the stage in the current thread.
+     *
+     * @param ctx Auth context
+     * @throws CompletionException If the stage has failed
+     * @throws CancellationException If the stage has been cancelled
+     */
+    void runBlocking(@NotNull AuthContext ctx) {
+        I in = require(this.input.apply(ctx), this.name + " input");
+        O out = this.action.apply(ctx, in).join();
+        this.output.accept(ctx, require(out, this.name + " output"));
+    }
+
+    @Contract(pure = true)
+    @Override
+    @NotNull
+    public String toString() {
+        return this.name;
+    }
+
+    /**
+     * Requires the value to be present.
+     *
+     * @param value Target value
+     * @param name  Value name
+     * @param <T>   Value type
+     * @return Value
+     * @throws IllegalStateException If the value is {@code null}
+     */
+    @Contract(value = "null, _ -> fail; !null, _ -> param1", pure = true)
+    @NotNull
+    private static <T> T require(@Nullable T value, @NotNull String name) {
+        if (value == null) {
+            throw new IllegalStateException("Missing " + name + ".");
+        }
+        return value;
+    }
+}
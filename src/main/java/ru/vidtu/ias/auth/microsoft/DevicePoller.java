@@ -0,0 +1,308 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.auth.microsoft;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.auth.microsoft.fields.DeviceAuth;
+import ru.vidtu.ias.auth.microsoft.fields.MSTokens;
+import ru.vidtu.ias.utils.CancelToken;
+import ru.vidtu.ias.utils.IUtils;
+import ru.vidtu.ias.utils.exceptions.DevicePendingException;
+import ru.vidtu.ias.utils.exceptions.FriendlyException;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multiplexed device code poller.
+ * <p>
+ * All device code sessions are driven by a single timer that runs while there are any sessions.
+ * Each session is polled with non-blocking requests, one in flight at a time, honoring the {@code interval}
+ * and {@code expires_in} of the {@link DeviceAuth} and increasing the interval on {@code slow_down} responses.
+ *
+ * @author VidTu
+ * @apiNote All methods in this class can be called from another thread
+ * @see <a href="https://datatracker.ietf.org/doc/html/rfc8628#section-3.5">RFC 8628, Section 3.5</a>
+ */
+public final class DevicePoller {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/DevicePoller");
+
+    /**
+     * Timer period in milliseconds.
+     */
+    private static final long TICK = 250L;
+
+    /**
+     * Interval increase on the {@code slow_down} response.
+     */
+    @NotNull
+    private static final Duration SLOW_DOWN = Duration.ofSeconds(5L);
+
+    /**
+     * Active sessions.
+     */
+    @NotNull
+    private static final Set<Session> SESSIONS = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Polling timer, {@code null} if there are no sessions. Guarded by {@link #SESSIONS}.
+     */
+    @Nullable
+    private static ScheduledFuture<?> timer;
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private DevicePoller() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Starts polling the device auth.
+     *
+     * @param auth  Target device auth
+     * @param token Cancellation token, polling will be stopped once cancelled
+     * @return Future that will complete with Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens,
+     * with null (on cancel) or exceptionally, cancelling it stops the polling and aborts the in-flight request
+     */
+    @CheckReturnValue
+    @NotNull
+    public static CompletableFuture<MSTokens> poll(@NotNull DeviceAuth auth, @NotNull CancelToken token) {
+        // Create the session.
+        Session session = new Session(auth, token);
+        session.result.whenComplete((ms, error) -> {
+            // Remove the session.
+            SESSIONS.remove(session);
+
+            // Abort the in-flight request, if any.
+            CompletableFuture<MSTokens> request = session.request;
+            if (request != null) {
+                request.cancel(true);
+            }
+        });
+
+        // Add the session and start the timer.
+        int sessions;
+        synchronized (SESSIONS) {
+            SESSIONS.add(session);
+            sessions = SESSIONS.size();
+            if (timer == null || timer.isDone()) {
+                timer = IASExecutors.scheduleWithFixedDelay(DevicePoller::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+                LOGGER.debug("IAS: Device polling timer started.");
+            }
+        }
+
+        // Log and return.
+        LOGGER.info("IAS: HTTP polling started with delay of {}. ({} sessions)", auth.interval(), sessions);
+        return session.result;
+    }
+
+    /**
+     * Gets the number of active sessions.
+     *
+     * @return Number of sessions that are being polled
+     */
+    public static int sessions() {
+        return SESSIONS.size();
+    }
+
+    /**
+     * Ticks all sessions and stops the timer if there are none.
+     */
+    private static void tick() {
+        // Tick the sessions.
+        long now = System.nanoTime();
+        for (Session session : SESSIONS) {
+            try {
+                session.tick(now);
+            } catch (Throwable t) {
+                session.result.completeExceptionally(new RuntimeException("HTTP polling error.", t));
+            }
+        }
+
+        // Stop the timer if there are no sessions.
+        synchronized (SESSIONS) {
+            if (timer == null || !SESSIONS.isEmpty()) return;
+            timer.cancel(false);
+            timer = null;
+            LOGGER.debug("IAS: Device polling timer stopped.");
+        }
+    }
+
+    /**
+     * Device code polling session.
+     *
+     * @author VidTu
+     */
+    private static final class Session {
+        /**
+         * Device auth.
+         */
+        @NotNull
+        private final DeviceAuth auth;
+
+        /**
+         * Cancellation token.
+         */
+        @NotNull
+        private final CancelToken token;
+
+        /**
+         * Session result.
+         */
+        @NotNull
+        private final CompletableFuture<MSTokens> result = new CompletableFuture<>();
+
+        /**
+         * Expiration time in {@link System#nanoTime()} units.
+         */
+        private final long expire;
+
+        /**
+         * Current polling interval.
+         */
+        @NotNull
+        private volatile Duration interval;
+
+        /**
+         * Next poll time in {@link System#nanoTime()} units.
+         */
+        private volatile long next;
+
+        /**
+         * In-flight request, if any.
+         */
+        @Nullable
+        private volatile CompletableFuture<MSTokens> request;
+
+        /**
+         * Creates a new session.
+         *
+         * @param auth  Device auth
+         * @param token Cancellation token
+         */
+        private Session(@NotNull DeviceAuth auth, @NotNull CancelToken token) {
+            long now = System.nanoTime();
+            this.auth = auth;
+            this.token = token;
+            this.expire = now + auth.expire().toNanos();
+            this.interval = auth.interval();
+            this.next = now + auth.interval().toNanos();
+        }
+
+        /**
+         * Ticks the session.
+         *
+         * @param now Current time in {@link System#nanoTime()} units
+         */
+        private void tick(long now) {
+            // Skip if completed.
+            if (this.result.isDone()) return;
+
+            // Stop if cancelled.
+            if (this.token.cancelled()) {
+                this.result.complete(null);
+                return;
+            }
+
+            // Stop if expired.
+            if (now - this.expire >= 0L) {
+                this.result.completeExceptionally(new FriendlyException("Device code has expired.", "ias.error.expired"));
+                return;
+            }
+
+            // Skip if the previous poll is still in flight or it's too early.
+            if (this.request != null || now - this.next < 0L) return;
+
+            // Poll the state.
+            CompletableFuture<MSTokens> request = MSAuth.dacToMsaMsr(this.auth.device());
+            this.request = request;
+            request.whenComplete(this::polled);
+
+            // Abort if completed in the meantime.
+            if (!this.result.isDone()) return;
+            request.cancel(true);
+        }
+
+        /**
+         * Handles the poll result.
+         *
+         * @param ms    Polled tokens, {@code null} on error
+         * @param error Poll error, {@code null} on success
+         */
+        private void polled(@Nullable MSTokens ms, @Nullable Throwable error) {
+            // Skip if completed.
+            if (this.result.isDone()) return;
+
+            // Complete on success.
+            if (ms != null) {
+                this.result.complete(ms);
+                return;
+            }
+
+            // Stop if cancelled.
+            if (error instanceof CancellationException || this.token.cancelled()) {
+                this.result.complete(null);
+                return;
+            }
+
+            // Increase the interval if polling too fast, fail on any other than pending.
+            if (IUtils.anyInCausalChain(error, t -> t instanceof DevicePendingException pending && pending.slowDown())) {
+                this.interval = this.interval.plus(SLOW_DOWN);
+                LOGGER.debug("IAS: Device polling slowed down to {}.", this.interval);
+            } else if (error != null && !IUtils.anyInCausalChain(error, DevicePendingException.class::isInstance)) {
+                this.result.completeExceptionally(error);
+                return;
+            }
+
+            // Schedule the next poll.
+            this.next = System.nanoTime() + this.interval.toNanos();
+            this.request = null;
+        }
+
+        @Contract(pure = true)
+        @Override
+        @NotNull
+        public String toString() {
+            return "Session{" +
+                    "interval=" + this.interval +
+                    ", result=" + this.result +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.auth.microsoft;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.config.IASConfig;
+import ru.vidtu.ias.utils.IUtils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Shared loopback HTTP server for MS authentication.
+ * <p>
+ * The server is started lazily by the first {@link #register(String, String, Consumer, Consumer) registered}
+ * sign-in, routes the browser callbacks to the pending sign-ins by their {@code state}, and is stopped
+ * once it has been idle for {@link #IDLE} seconds, so back-to-back sign-ins reuse the bound port.
+ *
+ * @author VidTu
+ * @apiNote All methods in this class can be called from another thread
+ */
+final class LoopbackServer {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/LoopbackServer");
+
+    /**
+     * End URI with one {@code %s} argument to be replaced by port.
+     */
+    @NotNull
+    private static final String END_URI = "http://localhost:%s/end";
+
+    /**
+     * State extraction pattern.
+     */
+    @NotNull
+    private static final Pattern STATE_EXTRACT_PATTERN = Pattern.compile("(?:^|&)state=([^&]*)");
+
+    /**
+     * Idle time before stopping the server in seconds.
+     */
+    private static final long IDLE = 30L;
+
+    /**
+     * Lock guarding the server state.
+     */
+    @NotNull
+    private static final Object LOCK = new Object();
+
+    /**
+     * Pending sign-ins by their state. Guarded by {@link #LOCK}.
+     */
+    @NotNull
+    private static final Map<String, Session> SESSIONS = new HashMap<>(4);
+
+    /**
+     * Auth page template, {@code null} if not yet read.
+     */
+    @Nullable
+    private static volatile String template;
+
+    /**
+     * Running server, {@code null} if stopped. Guarded by {@link #LOCK}.
+     */
+    @Nullable
+    private static HttpServer server;
+
+    /**
+     * Bound port, {@code 0} if stopped. Guarded by {@link #LOCK}.
+     */
+    private static int port;
+
+    /**
+     * Idle shutdown task, if any. Guarded by {@link #LOCK}.
+     */
+    @Nullable
+    private static ScheduledFuture<?> idle;
+
+    /**
+     * Page to serve on the "end" endpoint.
+     */
+    private static volatile byte @Nullable [] end;
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private LoopbackServer() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Registers the pending sign-in, starting the server if needed.
+     *
+     * @param state    Sign-in state
+     * @param message  Message to display on the "done" page
+     * @param callback Callback for the request URI, called once at most
+     * @param error    Error handler for the sign-in request
+     * @return Bound server port
+     * @throws RuntimeException If unable to start the server
+     */
+    static int register(@NotNull String state, @NotNull String message, @NotNull Consumer<URI> callback,
+                        @NotNull Consumer<Throwable> error) {
+        // Pre-render the page.
+        byte[] page = page(message);
+
+        synchronized (LOCK) {
+            // Stop the idle shutdown.
+            if (idle != null) {
+                idle.cancel(false);
+                idle = null;
+            }
+
+            // Start the server.
+            if (server == null) {
+                start();
+            } else {
+                LOGGER.debug("IAS: Reusing HTTP server on {} port.", port);
+            }
+
+            // Add the session.
+            SESSIONS.put(state, new Session(page, callback, error));
+            return port;
+        }
+    }
+
+    /**
+     * Unregisters the pending sign-in, if any, scheduling the idle shutdown if none are left.
+     *
+     * @param state Sign-in state
+     */
+    static void unregister(@NotNull String state) {
+        synchronized (LOCK) {
+            SESSIONS.remove(state);
+            idleCheck();
+        }
+    }
+
+    /**
+     * Schedules the idle shutdown if there are no pending sign-ins. Must be called with {@link #LOCK} held.
+     */
+    private static void idleCheck() {
+        if (server == null || !SESSIONS.isEmpty() || idle != null) return;
+        idle = IASExecutors.schedule(LoopbackServer::stopIdle, IDLE, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the server if there are still no pending sign-ins.
+     */
+    private static void stopIdle() {
+        synchronized (LOCK) {
+            // Skip if reused.
+            idle = null;
+            if (server == null || !SESSIONS.isEmpty()) return;
+
+            // Stop the server.
+            server.stop(0);
+            server = null;
+            port = 0;
+            end = null;
+
+            // Log it.
+            LOGGER.info("IAS: HTTP server stopped.");
+        }
+    }
+
+    /**
+     * Creates and starts the server. Must be called with {@link #LOCK} held.
+     *
+     * @throws RuntimeException If unable to start the server
+     */
+    private static void start() {
+        HttpServer created = null;
+        try {
+            // Log it.
+            LOGGER.info("IAS: Booting up local HTTP server...");
+
+            // Create the server.
+            created = HttpServer.create();
+            created.createContext("/", LoopbackServer::root);
+            created.createContext("/end", LoopbackServer::end);
+
+            // Start the server.
+            int bound = bindToSupportedPort(created);
+            created.start();
+            server = created;
+            port = bound;
+
+            // Log it.
+            LOGGER.info("IAS: HTTP server started.");
+        } catch (Throwable t) {
+            // Try to close the server.
+            if (created != null) {
+                try {
+                    created.stop(0);
+                } catch (Throwable th) {
+                    t.addSuppressed(th);
+                }
+            }
+
+            // Rethrow.
+            throw new RuntimeException("Unable to start the server.", t);
+        }
+    }
+
+    /**
+     * Handles the request to the root endpoint.
+     *
+     * @param ex Target exchange
+     */
+    private static void root(@NotNull HttpExchange ex) {
+        Session session = null;
+        try {
+            // Log it.
+            LOGGER.info("IAS: Requested HTTP to '/'.");
+
+            // Close and ignore if not localhost.
+            if (!ex.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                LOGGER.warn("IAS: Closed not loopback HTTP request to '/'.");
+                ex.close();
+                return;
+            }
+
+            // Capture the query.
+            URI uri = ex.getRequestURI();
+            String query = uri.getRawQuery();
+
+            // Find the session by state, or the only one if there's no state.
+            int redirect;
+            synchronized (LOCK) {
+                Matcher matcher = query != null ? STATE_EXTRACT_PATTERN.matcher(query) : null;
+                if (matcher != null && matcher.find()) {
+                    session = SESSIONS.remove(matcher.group(1));
+                } else if (SESSIONS.size() == 1) {
+                    session = SESSIONS.remove(SESSIONS.keySet().iterator().next());
+                }
+                idleCheck();
+                redirect = port;
+            }
+
+            // Close if unknown or already requested.
+            if (session == null) {
+                LOGGER.debug("IAS: Closed HTTP request to '/' without pending sign-in.");
+                ex.close();
+                return;
+            }
+
+            // Redirect. (to try and increase security)
+            byte[] data = session.page();
+            end = data;
+            Headers headers = ex.getResponseHeaders();
+            headers.add("Content-Type", "text/html; charset=UTF-8");
+            headers.add("Content-Length", Integer.toString(data.length));
+            headers.add("Server", IAS.userAgent());
+            headers.add("Location", END_URI.formatted(redirect));
+            ex.sendResponseHeaders(302, data.length);
+
+            // Write the response.
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(data);
+            }
+
+            // Close the request.
+            ex.close();
+
+            // Send the query.
+            session.callback().accept(uri);
+        } catch (Throwable t) {
+            // Try to close the request.
+            try {
+                ex.close();
+            } catch (Throwable th) {
+                t.addSuppressed(th);
+            }
+
+            // Rethrow to the session, if any.
+            RuntimeException wrapped = new RuntimeException("Unexpected exception on '/': " + ex, t);
+            if (session == null) {
+                LOGGER.error("IAS: Unexpected exception on '/'.", wrapped);
+                return;
+            }
+            session.error().accept(wrapped);
+        }
+    }
+
+    /**
+     * Handles the request to the end endpoint. (safe spot)
+     *
+     * @param ex Target exchange
+     */
+    private static void end(@NotNull HttpExchange ex) {
+        try {
+            // Log it.
+            LOGGER.info("IAS: Requested HTTP to '/end'.");
+
+            // Close and ignore if not localhost.
+            if (!ex.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                LOGGER.warn("IAS: Closed not loopback request to '/end'.");
+                ex.close();
+                return;
+            }
+
+            // Get the last served page.
+            byte[] data = end;
+            if (data == null) {
+                LOGGER.debug("IAS: Closed HTTP request to '/end' without served sign-in.");
+                ex.close();
+                return;
+            }
+
+            // Send headers.
+            Headers headers = ex.getResponseHeaders();
+            headers.add("Content-Type", "text/html; charset=UTF-8");
+            headers.add("Content-Length", Integer.toString(data.length));
+            headers.add("Server", IAS.userAgent());
+            ex.sendResponseHeaders(200, data.length);
+
+            // Write the response.
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(data);
+            }
+
+            // Close the request.
+            ex.close();
+        } catch (Throwable t) {
+            // Try to close the request.
+            try {
+                ex.close();
+            } catch (Throwable th) {
+                t.addSuppressed(th);
+            }
+
+            // Log it.
+            LOGGER.error("IAS: Unexpected exception on '/end': {}", ex, t);
+        }
+    }
+
+    /**
+     * Renders the auth page from the template, reading it once.
+     *
+     * @param message Message to display on the page
+     * @return Rendered page
+     * @throws RuntimeException If unable to read the template
+     */
+    private static byte @NotNull [] page(@NotNull String message) {
+        try {
+            // Read the template once.
+            String page = template;
+            if (page == null) {
+                try (InputStream in = LoopbackServer.class.getResourceAsStream("/ias_auth.html")) {
+                    Objects.requireNonNull(in, "Auth page is null.");
+                    page = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+                template = page;
+            }
+
+            // Replace the page data.
+            return page
+                    .replace("%%ias_icon%%", IASConfig.unexpectedPigs ? "🐷👍" : "✅")
+                    .replace("%%ias_message%%", message)
+                    .getBytes(StandardCharsets.UTF_8);
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to render auth page.", t);
+        }
+    }
+
+    /**
+     * Bind the server to any supported port.
+     *
+     * @param server Target server
+     * @return Bound port
+     * @throws RuntimeException If unable to bind
+     */
+    private static int bindToSupportedPort(@NotNull HttpServer server) {
+        // Any thrown exceptions.
+        List<RuntimeException> thrown = new LinkedList<>();
+
+        // Note that this port range MUST be declared in Microsoft valid
+        // redirect URIs, so using any port won't work. I did register some
+        // ports in the UI.
+        for (int candidate : IUtils.tryBindPorts()) {
+            try {
+                // Try to bind.
+                server.bind(new InetSocketAddress(candidate), 0);
+
+                // No exception is thrown, return and do not process throwing.
+                LOGGER.info("IAS: Bound HTTP server to {} port.", candidate);
+                return candidate;
+            } catch (Throwable t) {
+                // Add to thrown exceptions.
+                thrown.add(new RuntimeException("Unable to bind: " + candidate, t));
+            }
+        }
+
+        // Rethrow all errors.
+        RuntimeException holder = new RuntimeException("Unable to bind to any port.");
+        thrown.forEach(holder::addSuppressed);
+        throw holder;
+    }
+
+    /**
+     * Pending sign-in.
+     *
+     * @param page     Pre-rendered "done" page
+     * @param callback Callback for the request URI
+     * @param error    Error handler
+     * @author VidTu
+     */
+    private record Session(byte @NotNull [] page, @NotNull Consumer<URI> callback,
+                           @NotNull Consumer<Throwable> error) {
+        @Contract(pure = true)
+        @Override
+        @NotNull
+        public String toString() {
+            return "Session{" +
+                    "page=" + this.page.length +
+                    '}';
+        }
+    }
+}
@@ -22,10 +22,16 @@ package ru.vidtu.ias.auth.microsoft;
 import com.google.errorprone.annotations.CheckReturnValue;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Unmodifiable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.IASHttp;
 import ru.vidtu.ias.auth.microsoft.fields.DeviceAuth;
 import ru.vidtu.ias.auth.microsoft.fields.MCProfile;
 import ru.vidtu.ias.auth.microsoft.fields.MSTokens;
@@ -41,8 +47,14 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 /**
  * Class for Microsoft authentication system.
@@ -52,28 +64,32 @@ import java.util.concurrent.CompletableFuture;
  */
 public final class MSAuth {
     /**
-     * Request client.
+     * Maximum amount of names per {@link #namesToMcp(List)} request.
+     */
+    public static final int BULK_NAMES = 10;
+
+    /**
+     * Logger for this class.
      */
     @NotNull
-    private static final HttpClient CLIENT = HttpClient.newBuilder()
-            .connectTimeout(IAS.TIMEOUT)
-            .version(HttpClient.Version.HTTP_2)
-            .followRedirects(HttpClient.Redirect.NEVER)
-            .executor(IAS.executor())
-            .priority(256)
-            .build();
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/MSAuth");
 
     /**
-     * Request client with sync.
+     * Minimum interval between connection warm-ups in nanoseconds.
+     */
+    private static final long WARM_UP_INTERVAL = TimeUnit.SECONDS.toNanos(30L);
+
+    /**
+     * Last connection warm-up time in {@link System#nanoTime()} units, {@code 0} if never.
      */
     @NotNull
-    private static final HttpClient CLIENT_SYNC = HttpClient.newBuilder()
-            .connectTimeout(IAS.TIMEOUT)
-            .version(HttpClient.Version.HTTP_2)
-            .followRedirects(HttpClient.Redirect.NEVER)
-            .executor(Runnable::run)
-            .priority(256)
-            .build();
+    private static final AtomicLong LAST_WARM_UP = new AtomicLong();
+
+    /**
+     * Current endpoints and client.
+     */
+    @NotNull
+    private static volatile Transport transport = new Transport(initialEndpoints(), null);
 
     /**
      * An instance of this class cannot be created.
@@ -84,6 +100,74 @@ public final class MSAuth {
         throw new AssertionError("No instances.");
     }
 
+    /**
+     * Gets the current endpoints.
+     *
+     * @return Current endpoints
+     */
+    @Contract(pure = true)
+    @NotNull
+    public static MSEndpoints endpoints() {
+        return transport.endpoints();
+    }
+
+    /**
+     * Sets the endpoints and the client used by this class, e.g. to use the {@link MSStubServer}.
+     *
+     * @param endpoints New endpoints
+     * @param client    New client, {@code null} to use the shared {@link IASHttp#client()}
+     */
+    public static void configure(@NotNull MSEndpoints endpoints, @Nullable HttpClient client) {
+        // Log it.
+        if (!MSEndpoints.DEFAULT.equals(endpoints)) {
+            LOGGER.warn("IAS: Using non-default MS auth endpoints: {}", endpoints);
+        }
+
+        // Set the transport.
+        transport = new Transport(endpoints, client);
+        LAST_WARM_UP.set(0L);
+    }
+
+    /**
+     * Establishes the connections to all login chain hosts in parallel, so they are reused by the {@link IASHttp#client()}
+     * when the login chain starts. Does nothing if the connections were warmed up less than 30 seconds ago.
+     *
+     * @apiNote This method doesn't block and never throws, the responses are ignored
+     */
+    public static void warmUp() {
+        try {
+            // Rate limit.
+            long now = System.nanoTime();
+            long last = LAST_WARM_UP.get();
+            if (last != 0L && (now - last) < WARM_UP_INTERVAL) return;
+            if (!LAST_WARM_UP.compareAndSet(last, now)) return;
+
+            // Log it.
+            Transport transport = MSAuth.transport;
+            List<URI> hosts = transport.endpoints().hosts();
+            LOGGER.debug("IAS: Warming up connections to {}...", hosts);
+
+            // Send the requests.
+            HttpClient client = transport.client();
+            for (URI uri : hosts) {
+                IASHttp.sendAsync(client, IASHttp.request(uri)
+                        .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                        .build(), HttpResponse.BodyHandlers.discarding()).whenCompleteAsync((response, t) -> {
+                    // Log it.
+                    long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - now);
+                    if (t != null) {
+                        LOGGER.debug("IAS: Unable to warm up connection to {} in {} ms.", uri, time, t);
+                        return;
+                    }
+                    LOGGER.debug("IAS: Warmed up connection to {} in {} ms. ({})", uri, time, response.version());
+                }, IAS.executor());
+            }
+        } catch (Throwable t) {
+            // Log.
+            LOGGER.debug("IAS: Unable to warm up connections.", t);
+        }
+    }
+
     /**
      * Requests the Device Auth Code. (DAC)
      *
@@ -98,14 +182,12 @@ public final class MSAuth {
                 "&scope=XboxLive.signin%20XboxLive.offline_access";
 
         // Send the request.
-        return CLIENT.sendAsync(HttpRequest.newBuilder()
-                .uri(createURIUnchecked("https://login.microsoftonline.com/consumers/oauth2/v2.0/devicecode"))
-                .header("User-Agent", IAS.userAgent())
+        Transport transport = MSAuth.transport;
+        return exchange(transport.client(), IASHttp.request(transport.endpoints().deviceCode())
                 .header("Accept", "application/json")
                 .header("Content-Type", "application/x-www-form-urlencoded")
-                .timeout(IAS.TIMEOUT)
                 .POST(HttpRequest.BodyPublishers.ofString(payload))
-                .build(), HttpResponse.BodyHandlers.ofString()).thenApplyAsync(response -> {
+                .build(), true, response -> {
             // Process the response.
             try {
                 // Check the code.
@@ -115,89 +197,87 @@ public final class MSAuth {
                 }
 
                 // Decode the tokens and return them.
-                JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
-                Objects.requireNonNull(json, "Response is null");
-                return DeviceAuth.fromJson(json);
+                return DeviceAuth.read(GSONUtils.reader(response.body()));
             } catch (Throwable t) {
                 // Rethrow, trying to remove sensitive data.
-                String message = "Unable to request Device Auth Code (DAC) from (" + response + " with " + response.headers() + "): " + response.body();
+                String message = "Unable to request Device Auth Code (DAC) from (" + response + " with " + response.headers() + "): " + body(response);
                 throw new RuntimeException(message, t);
             }
-        }, IAS.executor());
+        });
     }
 
     /**
      * Gets the Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens from the Device Auth Code. (DAC)
-     * <p>
-     * Unlike other methods in this class, this method <b>WILL BLOCK</b>.
      *
-     * @param code Microsoft Authentication Code (MSAC; e.g. from user auth redirect)
-     * @return Future that will complete with Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens or exceptionally
+     * @param code Device Auth Code (DAC)
+     * @return Future that will complete with Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens or exceptionally,
+     * with {@link DevicePendingException} in the causal chain if the user hasn't finished the auth yet
+     * (see {@link DevicePendingException#slowDown()} for the {@code slow_down} response)
      * @see <a href="https://wiki.vg/Microsoft_Authentication_Scheme#Microsoft_OAuth2_Flow">Reference</a>
      * @see #msrToMsaMsr(String)
      */
     @CheckReturnValue
     @NotNull
-    public static MSTokens dacToMsaMsr(@NotNull String code) {
+    public static CompletableFuture<MSTokens> dacToMsaMsr(@NotNull String code) {
         // Create the payload.
         String payload = "grant_type=urn:ietf:params:oauth:grant-type:device_code" +
                 "&client_id=" + IAS.CLIENT_ID +
                 "&device_code=" + URLEncoder.encode(code, StandardCharsets.UTF_8);
 
-        // Send the request.
-        HttpResponse<String> response;
-        try {
-            response = CLIENT_SYNC.send(HttpRequest.newBuilder()
-                    .uri(createURIUnchecked("https://login.microsoftonline.com/consumers/oauth2/v2.0/token"))
-                    .header("User-Agent", IAS.userAgent())
-                    .header("Accept", "application/json")
-                    .header("Content-Type", "application/x-www-form-urlencoded")
-                    .timeout(IAS.TIMEOUT)
-                    .POST(HttpRequest.BodyPublishers.ofString(payload))
-                    .build(), HttpResponse.BodyHandlers.ofString());
-        } catch (Throwable t) {
-            // Rethrow.
-            throw new RuntimeException("Unable to send DAC request.", t);
-        }
+        // Send the request. (not idempotent, the next poll will repeat it anyway)
+        Transport transport = MSAuth.transport;
+        return exchange(transport.client(), IASHttp.request(transport.endpoints().deviceToken())
+                .header("Accept", "application/json")
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(payload))
+                .build(), false, response -> {
+            // Process the response.
+            try {
+                // Check the code.
+                int status = response.statusCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    // Check for auth pending.
+                    try {
+                        JsonObject json = GSONUtils.GSON.fromJson(body(response), JsonObject.class);
+                        String error = GSONUtils.getStringOrThrow(json, "error");
 
-        // Process the response.
-        try {
-            // Check the code.
-            int status = response.statusCode();
-            if (status != HttpURLConnection.HTTP_OK) {
-                // Check for auth pending.
-                try {
-                    JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
-                    String error = GSONUtils.getStringOrThrow(json, "error");
-
-                    // Declined
-                    if ("authorization_declined".equals(error)) {
-                        throw new FriendlyException("Cancelled: " + json, "ias.error.cancel");
-                    }
+                        // Declined
+                        if ("authorization_declined".equals(error)) {
+                            throw new FriendlyException("Cancelled: " + json, "ias.error.cancel");
+                        }
 
-                    // Pending.
-                    if ("authorization_pending".equals(error)) {
-                        throw new DevicePendingException("Pending auth: " + json);
-                    }
+                        // Pending.
+                        if ("authorization_pending".equals(error)) {
+                            throw new DevicePendingException("Pending auth: " + json);
+                        }
+
+                        // Pending, polling too fast.
+                        if ("slow_down".equals(error)) {
+                            throw new DevicePendingException("Slow down: " + json, true);
+                        }
+
+                        // Expired.
+                        if ("expired_token".equals(error)) {
+                            throw new FriendlyException("Expired: " + json, "ias.error.expired");
+                        }
 
-                    // Other.
-                    throw new IllegalStateException("Not pending auth.");
-                } catch (Throwable t) {
-                    // Other error.
-                    throw new IllegalArgumentException("Invalid status code: " + status, t);
+                        // Other.
+                        throw new IllegalStateException("Not pending auth.");
+                    } catch (Throwable t) {
+                        // Other error.
+                        throw new IllegalArgumentException("Invalid status code: " + status, t);
+                    }
                 }
-            }
 
-            // Decode the tokens and return them.
-            JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
-            Objects.requireNonNull(json, "Response is null");
-            return MSTokens.fromJson(json);
-        } catch (Throwable t) {
-            // Rethrow, trying to remove sensitive data.
-            String message = "Unable to convert Device Auth Code (DAC) to Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens (" + response + " with " + response.headers() + "): " + response.body();
-            message = message.replace(code, "[DAC]");
-            throw new RuntimeException(message, t);
-        }
+                // Decode the tokens and return them.
+                return MSTokens.read(GSONUtils.reader(response.body()));
+            } catch (Throwable t) {
+                // Rethrow, trying to remove sensitive data.
+                String message = "Unable to convert Device Auth Code (DAC) to Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens (" + response + " with " + response.headers() + "): " + body(response);
+                message = message.replace(code, "[DAC]");
+                throw new RuntimeException(message, t);
+            }
+        });
     }
 
     /**
@@ -220,14 +300,12 @@ public final class MSAuth {
                 "&scope=XboxLive.signin%20XboxLive.offline_access";
 
         // Send the request.
-        return CLIENT.sendAsync(HttpRequest.newBuilder()
-                .uri(createURIUnchecked("https://login.live.com/oauth20_token.srf"))
-                .header("User-Agent", IAS.userAgent())
+        Transport transport = MSAuth.transport;
+        return exchange(transport.client(), IASHttp.request(transport.endpoints().token())
                 .header("Accept", "application/json")
                 .header("Content-Type", "application/x-www-form-urlencoded")
-                .timeout(IAS.TIMEOUT)
                 .POST(HttpRequest.BodyPublishers.ofString(payload))
-                .build(), HttpResponse.BodyHandlers.ofString()).thenApplyAsync(response -> {
+                .build(), false, response -> {
             // Process the response.
             try {
                 // Check the code.
@@ -237,16 +315,14 @@ public final class MSAuth {
                 }
 
                 // Decode the tokens and return them.
-                JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
-                Objects.requireNonNull(json, "Response is null");
-                return MSTokens.fromJson(json);
+                return MSTokens.read(GSONUtils.reader(response.body()));
             } catch (Throwable t) {
                 // Rethrow, trying to remove sensitive data.
-                String message = "Unable to convert Microsoft Authentication Code (MSAC) to Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens (" + response + " with " + response.headers() + "): " + response.body();
+                String message = "Unable to convert Microsoft Authentication Code (MSAC) to Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens (" + response + " with " + response.headers() + "): " + body(response);
                 message = message.replace(code, "[MSAC]");
                 throw new RuntimeException(message, t);
             }
-        }, IAS.executor());
+        });
     }
 
     /**
@@ -266,33 +342,32 @@ public final class MSAuth {
                 "&scope=XboxLive.signin%20XboxLive.offline_access";
 
         // Send the request.
-        return CLIENT.sendAsync(HttpRequest.newBuilder()
-                .uri(createURIUnchecked("https://login.live.com/oauth20_token.srf"))
-                .header("User-Agent", IAS.userAgent())
+        Transport transport = MSAuth.transport;
+        return exchange(transport.client(), IASHttp.request(transport.endpoints().token())
                 .header("Accept", "application/json")
                 .header("Content-Type", "application/x-www-form-urlencoded")
-                .timeout(IAS.TIMEOUT)
                 .POST(HttpRequest.BodyPublishers.ofString(payload))
-                .build(), HttpResponse.BodyHandlers.ofString()).thenApplyAsync(response -> {
+                .build(), false, response -> {
             // Process the response.
             try {
                 // Check the code.
                 int status = response.statusCode();
+                if (status == HttpURLConnection.HTTP_BAD_REQUEST && body(response).contains("invalid_grant")) {
+                    throw new FriendlyException("Microsoft Refresh (MSR) token has expired or has been revoked.", "ias.error.refresh");
+                }
                 if (status != HttpURLConnection.HTTP_OK) {
                     throw new IllegalArgumentException("Invalid status code: " + status);
                 }
 
                 // Decode the tokens and return them.
-                JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
-                Objects.requireNonNull(json, "Response is null");
-                return MSTokens.fromJson(json);
+                return MSTokens.read(GSONUtils.reader(response.body()));
             } catch (Throwable t) {
                 // Rethrow, trying to remove sensitive data.
-                String message = "Unable to convert Microsoft Refresh (MSR) token to Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens (" + response + " with " + response.headers() + "): " + response.body();
+                String message = "Unable to convert Microsoft Refresh (MSR) token to Microsoft Access (MSA) and Microsoft Refresh (MSR) tokens (" + response + " with " + response.headers() + "): " + body(response);
                 message = message.replace(refresh, "[MSR]");
                 throw new RuntimeException(message, t);
             }
-        }, IAS.executor());
+        });
     }
 
     /**
@@ -325,14 +400,12 @@ public final class MSAuth {
         String payload = GSONUtils.GSON.toJson(request);
 
         // Send the request.
-        return CLIENT.sendAsync(HttpRequest.newBuilder()
-                .uri(createURIUnchecked("https://user.auth.xboxlive.com/user/authenticate"))
-                .header("User-Agent", IAS.userAgent())
+        Transport transport = MSAuth.transport;
+        return exchange(transport.client(), IASHttp.request(transport.endpoints().xbl())
                 .header("Content-Type", "application/json")
                 .header("Accept", "application/json")
-                .timeout(IAS.TIMEOUT)
                 .POST(HttpRequest.BodyPublishers.ofString(payload))
-                .build(), HttpResponse.BodyHandlers.ofString()).thenApplyAsync(response -> {
+                .build(), true, response -> {
             // Process the response.
             try {
                 // Check the code.
@@ -342,16 +415,14 @@ public final class MSAuth {
                 }
 
                 // Decode the XBL and return it.
-                JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
-                Objects.requireNonNull(json, "Response is null");
-                return XHashedToken.fromJson(json);
+                return XHashedToken.read(GSONUtils.reader(response.body()));
             } catch (Throwable t) {
                 // Rethrow, trying to remove sensitive data.
-                String message = "Unable to convert Microsoft Access (MSA) token to Xbox Live (XBL) token (" + response + " with " + response.headers() + "): " + response.body();
+                String message = "Unable to convert Microsoft Access (MSA) token to Xbox Live (XBL) token (" + response + " with " + response.headers() + "): " + body(response);
                 message = message.replace(authToken, "[MSA]");
                 throw new RuntimeException(message, t);
             }
-        }, IAS.executor());
+        });
     }
 
     /**
@@ -382,14 +453,12 @@ public final class MSAuth {
         String payload = GSONUtils.GSON.toJson(request);
 
         // Send the request.
-        return CLIENT.sendAsync(HttpRequest.newBuilder()
-                .uri(createURIUnchecked("https://xsts.auth.xboxlive.com/xsts/authorize"))
-                .header("User-Agent", IAS.userAgent())
+        Transport transport = MSAuth.transport;
+        return exchange(transport.client(), IASHttp.request(transport.endpoints().xsts())
                 .header("Content-Type", "application/json")
                 .header("Accept", "application/json")
-                .timeout(IAS.TIMEOUT)
                 .POST(HttpRequest.BodyPublishers.ofString(payload))
-                .build(), HttpResponse.BodyHandlers.ofString()).thenApplyAsync(response -> {
+                .build(), true, response -> {
             // Process the response.
             try {
                 // Check the code.
@@ -398,7 +467,7 @@ public final class MSAuth {
                 // 401 - special cases.
                 if (status == HttpURLConnection.HTTP_UNAUTHORIZED) {
                     try {
-                        JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
+                        JsonObject json = GSONUtils.GSON.fromJson(body(response), JsonObject.class);
                         long err = GSONUtils.getLongOrThrow(json, "XErr");
                         if (err == 2148916233L) {
                             throw new FriendlyException("XErr from 401 status: 2148916233 (No Xbox linked)", "ias.error.noXbox");
@@ -422,11 +491,9 @@ public final class MSAuth {
                 }
 
                 // Decode the XSTS.
-                JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
+                XHashedToken token = XHashedToken.read(GSONUtils.reader(response.body()));
 
                 // Validate it.
-                Objects.requireNonNull(json, "Response is null");
-                XHashedToken token = XHashedToken.fromJson(json);
                 if (hash != null && !hash.equals(token.hash())) {
                     throw new IllegalStateException("Mismatching XBL and XSTS user hashes.");
                 }
@@ -435,14 +502,14 @@ public final class MSAuth {
                 return token;
             } catch (Throwable t) {
                 // Rethrow, trying to remove sensitive data.
-                String message = "Unable to convert Xbox Live (XBL) token to Xbox Secure Token Service (XSTS) token (" + response + " with " + response.headers() + "): " + response.body();
+                String message = "Unable to convert Xbox Live (XBL) token to Xbox Secure Token Service (XSTS) token (" + response + " with " + response.headers() + "): " + body(response);
                 message = message.replace(xbl, "[XBL]");
                 if (hash != null) {
                     message = message.replace(hash, "[HASH]");
                 }
                 throw new RuntimeException(message, t);
             }
-        }, IAS.executor());
+        });
     }
 
     /**
@@ -463,14 +530,12 @@ public final class MSAuth {
         String payload = GSONUtils.GSON.toJson(request);
 
         // Send the request.
-        return CLIENT.sendAsync(HttpRequest.newBuilder()
-                .uri(createURIUnchecked("https://api.minecraftservices.com/authentication/login_with_xbox"))
-                .header("User-Agent", IAS.userAgent())
+        Transport transport = MSAuth.transport;
+        return exchange(transport.client(), IASHttp.request(transport.endpoints().mca())
                 .header("Content-Type", "application/json")
                 .header("Accept", "application/json")
-                .timeout(IAS.TIMEOUT)
                 .POST(HttpRequest.BodyPublishers.ofString(payload))
-                .build(), HttpResponse.BodyHandlers.ofString()).thenApplyAsync(response -> {
+                .build(), true, response -> {
             // Process the response.
             try {
                 // Check the code.
@@ -480,17 +545,15 @@ public final class MSAuth {
                 }
 
                 // Decode the token and return it.
-                JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
-                Objects.requireNonNull(json, "Response is null");
-                return GSONUtils.getStringOrThrow(json, "access_token");
+                return GSONUtils.readStringOrThrow(GSONUtils.reader(response.body()), "access_token");
             } catch (Throwable t) {
                 // Rethrow, trying to remove sensitive data.
-                String message = "Unable to convert Xbox Secure Token Service (XSTS) token to Minecraft Access (MCA) token (" + response + " with " + response.headers() + "): " + response.body();
+                String message = "Unable to convert Xbox Secure Token Service (XSTS) token to Minecraft Access (MCA) token (" + response + " with " + response.headers() + "): " + body(response);
                 message = message.replace(xsts, "[XSTS]");
                 message = message.replace(hash, "[HASH]");
                 throw new RuntimeException(message, t);
             }
-        }, IAS.executor());
+        });
     }
 
     /**
@@ -504,13 +567,11 @@ public final class MSAuth {
     @NotNull
     public static CompletableFuture<MCProfile> mcaToMcp(@NotNull String access) {
         // Send the request.
-        return CLIENT.sendAsync(HttpRequest.newBuilder()
-                .uri(createURIUnchecked("https://api.minecraftservices.com/minecraft/profile"))
-                .header("User-Agent", IAS.userAgent())
+        Transport transport = MSAuth.transport;
+        return exchange(transport.client(), IASHttp.request(transport.endpoints().mcp())
                 .header("Authorization", "Bearer " + access)
-                .timeout(IAS.TIMEOUT)
                 .GET()
-                .build(), HttpResponse.BodyHandlers.ofString()).thenApplyAsync(response -> {
+                .build(), true, response -> {
             // Process the response.
             try {
                 // Check the code.
@@ -527,16 +588,14 @@ public final class MSAuth {
                 }
 
                 // Decode the profile and return it.
-                JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
-                Objects.requireNonNull(json, "Response is null");
-                return MCProfile.fromJson(json);
+                return MCProfile.read(GSONUtils.reader(response.body()));
             } catch (Throwable t) {
                 // Rethrow, trying to remove sensitive data.
-                String message = "Unable to convert Minecraft Access (MCA) token to Minecraft Profile (MCP) (" + response + " with " + response.headers() + "): " + response.body();
+                String message = "Unable to convert Minecraft Access (MCA) token to Minecraft Profile (MCP) (" + response + " with " + response.headers() + "): " + body(response);
                 message = message.replace(access, "[MCA]");
                 throw new RuntimeException(message, t);
             }
-        }, IAS.executor());
+        });
     }
 
     /**
@@ -549,12 +608,10 @@ public final class MSAuth {
     @NotNull
     public static CompletableFuture<MCProfile> nameToMcp(@NotNull String name) {
         // Send the request.
-        return CLIENT.sendAsync(HttpRequest.newBuilder()
-                .uri(createURIUnchecked("https://api.mojang.com/users/profiles/minecraft/" + URLEncoder.encode(name, StandardCharsets.UTF_8)))
-                .header("User-Agent", IAS.userAgent())
-                .timeout(IAS.TIMEOUT)
+        Transport transport = MSAuth.transport;
+        return exchange(transport.client(), IASHttp.request(transport.endpoints().names().resolve(URLEncoder.encode(name, StandardCharsets.UTF_8)))
                 .GET()
-                .build(), HttpResponse.BodyHandlers.ofString()).thenApplyAsync(response -> {
+                .build(), true, response -> {
             try {
                 // Check the code.
                 int status = response.statusCode();
@@ -563,14 +620,158 @@ public final class MSAuth {
                 }
 
                 // Decode the profile and return it.
-                JsonObject json = GSONUtils.GSON.fromJson(response.body(), JsonObject.class);
-                Objects.requireNonNull(json, "Response is null");
-                return MCProfile.fromJson(json);
+                return MCProfile.read(GSONUtils.reader(response.body()));
             } catch (Throwable t) {
                 // Rethrow.
-                throw new RuntimeException("Unable to obtain Minecraft profile by name '" + name + "' (" + response + " with " + response.headers() + "): " + response.body(), t);
+                throw new RuntimeException("Unable to obtain Minecraft profile by name '" + name + "' (" + response + " with " + response.headers() + "): " + body(response), t);
             }
-        }, IAS.executor());
+        });
+    }
+
+    /**
+     * Resolve Minecraft Profiles (MCP) from names in bulk using Mojang API.
+     *
+     * @param names Player names, up to {@link #BULK_NAMES}
+     * @return Future with resolved profiles, names without profiles are omitted
+     * @throws IllegalArgumentException If there are more than {@link #BULK_NAMES} names
+     * @see ProfileResolver
+     */
+    @CheckReturnValue
+    @NotNull
+    public static CompletableFuture<List<MCProfile>> namesToMcp(@NotNull List<String> names) {
+        // Validate the size.
+        if (names.size() > BULK_NAMES) {
+            throw new IllegalArgumentException("Too many names: " + names.size());
+        }
+
+        // Create the payload.
+        JsonArray payload = new JsonArray(names.size());
+        names.forEach(payload::add);
+
+        // Send the request. (idempotent, only reads the profiles)
+        Transport transport = MSAuth.transport;
+        return exchange(transport.client(), IASHttp.request(transport.endpoints().profiles())
+                .header("Accept", "application/json")
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(GSONUtils.GSON.toJson(payload)))
+                .build(), true, response -> {
+            try {
+                // Check the code.
+                int status = response.statusCode();
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IllegalArgumentException("Invalid status code: " + status);
+                }
+
+                // Decode the profiles and return them.
+                List<MCProfile> profiles = new ArrayList<>(names.size());
+                try (JsonReader reader = GSONUtils.reader(response.body())) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        profiles.add(MCProfile.read(reader));
+                    }
+                    reader.endArray();
+                }
+                return profiles;
+            } catch (Throwable t) {
+                // Rethrow.
+                throw new RuntimeException("Unable to obtain Minecraft profiles by names " + names + " (" + response + " with " + response.headers() + "): " + body(response), t);
+            }
+        });
+    }
+
+    /**
+     * Sends the request and processes the response. Completes synchronously on the {@link IASExecutors#inBlocking()}
+     * threads, using the blocking {@link HttpClient#send(HttpRequest, HttpResponse.BodyHandler)}.
+     *
+     * @param client     Target client
+     * @param request    Target request
+     * @param idempotent Whether the request can be safely repeated
+     * @param processor  Response processor
+     * @param <T>        Result type
+     * @return Future that will complete with the processed response or exceptionally, cancelling it aborts the request
+     */
+    @CheckReturnValue
+    @NotNull
+    private static <T> CompletableFuture<T> exchange(@NotNull HttpClient client, @NotNull HttpRequest request,
+                                                     boolean idempotent, @NotNull Function<HttpResponse<byte[]>, T> processor) {
+        // Send and process asynchronously, propagating the cancellation to the request.
+        if (!IASExecutors.inBlocking()) {
+            CompletableFuture<HttpResponse<byte[]>> sent = MSRetry.send(client, request, HttpResponse.BodyHandlers.ofByteArray(), idempotent);
+            CompletableFuture<T> processed = sent.thenApplyAsync(processor, IAS.executor());
+            processed.whenComplete((result, t) -> {
+                if (!processed.isCancelled()) return;
+                sent.cancel(true);
+            });
+            return processed;
+        }
+
+        // Send and process in the current thread.
+        try {
+            return CompletableFuture.completedFuture(processor.apply(MSRetry.sendBlocking(client, request, HttpResponse.BodyHandlers.ofByteArray(), idempotent)));
+        } catch (InterruptedException e) {
+            // Preserve interruption.
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        } catch (Throwable t) {
+            // Fail.
+            return CompletableFuture.failedFuture(t);
+        }
+    }
+
+    /**
+     * Gets the Minecraft Access (MCA) token expiry time from its JWT {@code exp} claim.
+     *
+     * @param access Minecraft Access (MCA) token
+     * @return Token expiry time in epoch milliseconds, {@code 0} if unable to get
+     */
+    @Contract(pure = true)
+    public static long mcaExpiry(@NotNull String access) {
+        try {
+            // Decode the payload.
+            int start = access.indexOf('.');
+            int end = access.indexOf('.', start + 1);
+            if (start == -1 || end == -1) return 0L;
+            byte[] payload = Base64.getUrlDecoder().decode(access.substring(start + 1, end));
+            JsonObject json = GSONUtils.GSON.fromJson(new String(payload, StandardCharsets.UTF_8), JsonObject.class);
+            Objects.requireNonNull(json, "Payload is null");
+
+            // Extract the expiry.
+            return Math.multiplyExact(GSONUtils.getLongOrThrow(json, "exp"), 1000L);
+        } catch (Throwable t) {
+            // Log.
+            LOGGER.debug("IAS: Unable to get MCA expiry.", t);
+            return 0L;
+        }
+    }
+
+    /**
+     * Decodes the response body as a string, e.g. for error messages.
+     *
+     * @param response Target response
+     * @return Decoded response body
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static String body(@NotNull HttpResponse<byte[]> response) {
+        return new String(response.body(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the initial endpoints from the {@code ias.endpoints} system property.
+     *
+     * @return Endpoints on the property base URI, {@link MSEndpoints#DEFAULT} if none
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static MSEndpoints initialEndpoints() {
+        // Use the default if no property.
+        String base = System.getProperty("ias.endpoints");
+        if (base == null || base.isBlank()) return MSEndpoints.DEFAULT;
+
+        // Log it and create.
+        MSEndpoints endpoints = MSEndpoints.at(createURIUnchecked(base.strip()));
+        LOGGER.warn("IAS: Using non-default MS auth endpoints from 'ias.endpoints' property: {}", endpoints);
+        return endpoints;
     }
 
     /**
@@ -589,4 +790,26 @@ public final class MSAuth {
             throw new RuntimeException("Unable to create URI: " + value, t);
         }
     }
+
+    /**
+     * Endpoints paired with the clients used to query them.
+     *
+     * @param endpoints Target endpoints
+     * @param override  Request client, {@code null} to use the shared {@link IASHttp#client()}
+     * @author VidTu
+     */
+    private record Transport(@NotNull MSEndpoints endpoints, @Nullable HttpClient override) {
+        /**
+         * Gets the request client.
+         *
+         * @return Overridden request client or the shared one
+         * @throws NullPointerException If not overridden and the shared client is not started
+         */
+        @Contract(pure = true)
+        @NotNull
+        private HttpClient client() {
+            HttpClient override = this.override;
+            return override != null ? override : IASHttp.client();
+        }
+    }
 }
@@ -26,29 +26,29 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.IASExecutors;
 import ru.vidtu.ias.account.MicrosoftAccount;
+import ru.vidtu.ias.auth.AuthContext;
+import ru.vidtu.ias.auth.AuthPipeline;
+import ru.vidtu.ias.auth.AuthStage;
 import ru.vidtu.ias.auth.handlers.CreateHandler;
 import ru.vidtu.ias.auth.microsoft.fields.DeviceAuth;
+import ru.vidtu.ias.auth.microsoft.fields.MCProfile;
 import ru.vidtu.ias.auth.microsoft.fields.MSTokens;
 import ru.vidtu.ias.crypt.Crypt;
+import ru.vidtu.ias.crypt.CryptProgress;
+import ru.vidtu.ias.utils.CancelToken;
 import ru.vidtu.ias.utils.Holder;
-import ru.vidtu.ias.utils.IUtils;
-import ru.vidtu.ias.utils.exceptions.DevicePendingException;
 import ru.vidtu.ias.utils.exceptions.FriendlyException;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
-import java.net.ConnectException;
-import java.net.NoRouteToHostException;
-import java.net.http.HttpTimeoutException;
-import java.nio.channels.UnresolvedAddressException;
-import java.time.Duration;
 import java.time.Instant;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
 
 /**
  * HTTP client for MS authentication.
@@ -74,6 +74,12 @@ public final class MSAuthClient implements Closeable {
     @NotNull
     private final CreateHandler handler;
 
+    /**
+     * Cancellation token of the {@link #handler}.
+     */
+    @NotNull
+    private final CancelToken token;
+
     /**
      * Device auth.
      */
@@ -87,16 +93,10 @@ public final class MSAuthClient implements Closeable {
     private Instant expire;
 
     /**
-     * Next poll instant.
+     * Polling session result, if any.
      */
     @Nullable
-    private Instant poll;
-
-    /**
-     * Polling task, if any.
-     */
-    @Nullable
-    private ScheduledFuture<?> task;
+    private volatile CompletableFuture<MSTokens> request;
 
     /**
      * Creates an HTTP client for MS auth.
@@ -108,6 +108,7 @@ public final class MSAuthClient implements Closeable {
     public MSAuthClient(@NotNull Crypt crypt, @NotNull CreateHandler handler) {
         this.crypt = crypt;
         this.handler = handler;
+        this.token = new CancelToken(handler::cancelled);
     }
 
     /**
@@ -119,24 +120,23 @@ public final class MSAuthClient implements Closeable {
     @NotNull
     public CompletableFuture<DeviceAuth> start() {
         // Stop if cancelled.
-        if (this.handler.cancelled()) return CompletableFuture.completedFuture(null);
+        if (this.token.cancelled()) return CompletableFuture.completedFuture(null);
 
-        // Request DAC.
-        return MSAuth.requestDac().thenApplyAsync(auth -> {
+        // Request DAC. (aborted on cancel)
+        return this.token.bind(MSAuth.requestDac()).thenApplyAsync(auth -> {
             // Stop if cancelled.
-            if (this.handler.cancelled()) return null;
+            if (this.token.cancelled()) return null;
             LOGGER.info("IAS: Got device auth code.");
 
             // Flush the auth.
-            Duration interval = auth.interval();
             this.auth = auth;
             this.expire = Instant.now().plus(auth.expire());
-            this.poll = Instant.now().plus(interval);
 
-            // Flush the task.
+            // Flush the polling. (stopped on cancel)
             this.close();
-            this.task = IAS.executor().scheduleWithFixedDelay(this::tick, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
-            LOGGER.info("IAS: HTTP polling started with delay of {}.", interval);
+            CompletableFuture<MSTokens> request = DevicePoller.poll(auth, this.token);
+            this.request = request;
+            request.whenCompleteAsync(this::polled, IAS.executor());
 
             // Return as-is.
             return auth;
@@ -144,93 +144,49 @@ public final class MSAuthClient implements Closeable {
     }
 
     /**
-     * Ticks the task.
+     * Handles the poll result.
+     *
+     * @param ms    Polled tokens, {@code null} on error
+     * @param error Poll error, {@code null} on success
      */
-    private void tick() {
+    private void polled(@Nullable MSTokens ms, @Nullable Throwable error) {
         try {
-            // Stop if cancelled.
-            if (this.handler.cancelled()) {
-                this.close();
-                return;
-            }
+            // Flush the polling.
+            this.request = null;
 
-            // Get state.
-            MSTokens ms;
-            try {
-                ms = MSAuth.dacToMsaMsr(this.auth.device());
-            } catch (Throwable t) {
-                // Pending exception, ignore.
-                if (IUtils.anyInCausalChain(t, DevicePendingException.class::isInstance)) {
-                    return;
-                }
+            // Stop if cancelled or closed.
+            if (this.token.cancelled() || error instanceof CancellationException) return;
+
+            // Handle the error.
+            if (ms == null) {
+                // Null on cancel.
+                if (error == null) return;
 
-                // Close and throw for any other.
-                this.close();
-                this.handler.error(new RuntimeException("HTTP polling error.", t));
+                // Throw for any other.
+                this.handler.error(new RuntimeException("HTTP polling error.", error));
                 return;
             }
 
-            // Stop task.
-            this.close();
-
-            // Stop if cancelled.
-            if (this.handler.cancelled()) return;
-
             // Log it and display progress.
             LOGGER.info("IAS: Processing response...");
             this.handler.stage(MicrosoftAccount.PROCESSING);
 
             // Value holders.
-            Holder<String> access = new Holder<>();
-            Holder<byte[]> data = new Holder<>();
+            AuthContext context = new AuthContext(this.handler::cancelled, this.handler::stage);
+            context.msa(ms.access());
+            context.msr(ms.refresh());
 
-            // Extract the MSAC.
-            CompletableFuture.completedFuture(null).thenComposeAsync(ignored -> {
-                // Stop if cancelled.
-                if (this.handler.cancelled()) return CompletableFuture.completedFuture(null);
-
-                // Log it and display progress.
-                LOGGER.info("IAS: Converting MSA to XBL...");
-                this.handler.stage(MicrosoftAccount.MSA_TO_XBL);
-
-                // Convert MSA to XBL.
-                return MSAuth.msaToXbl(ms.access());
-            }, IAS.executor()).thenComposeAsync(xbl -> {
-                // Stop if cancelled.
-                if (xbl == null || this.handler.cancelled()) return CompletableFuture.completedFuture(null);
-
-                // Log it and display progress.
-                LOGGER.info("IAS: Converting XBL to XSTS...");
-                this.handler.stage(MicrosoftAccount.XBL_TO_XSTS);
-
-                // Convert XBL to XSTS.
-                return MSAuth.xblToXsts(xbl.token(), xbl.hash());
-            }, IAS.executor()).thenComposeAsync(xsts -> {
-                // Stop if cancelled.
-                if (xsts == null || this.handler.cancelled()) return CompletableFuture.completedFuture(null);
-
-                // Log it and display progress.
-                LOGGER.info("IAS: Converting XSTS to MCA...");
-                this.handler.stage(MicrosoftAccount.XSTS_TO_MCA);
-
-                // Convert XSTS to MCA.
-                return MSAuth.xstsToMca(xsts.token(), xsts.hash());
-            }, IAS.executor()).thenComposeAsync(token -> {
-                // Stop if cancelled.
-                if (token == null || this.handler.cancelled()) return CompletableFuture.completedFuture(null);
-
-                // Update the access token.
-                access.set(token);
-
-                // Log it and display progress.
-                LOGGER.info("IAS: Converting MCA to MCP...");
-                this.handler.stage(MicrosoftAccount.MCA_TO_MCP);
+            // Run as blocking code, if enabled.
+            if (IASExecutors.blocking()) {
+                IASExecutors.startBlocking(() -> this.authBlocking(context), this.handler::cancelled);
+                return;
+            }
+            Holder<byte[]> data = new Holder<>();
 
-                // Convert MCA to MCP.
-                return MSAuth.mcaToMcp(token);
-            }, IAS.executor()).exceptionallyAsync(t -> {
+            // Run the stages after the MSA.
+            AuthPipeline.run(context, AuthStage.FROM_MSA).thenApply(result -> result == null ? null : result.profile()).exceptionallyAsync(t -> {
                 // Probable case - no internet connection.
-                if (IUtils.anyInCausalChain(t, err -> err instanceof UnresolvedAddressException || err instanceof NoRouteToHostException || err instanceof HttpTimeoutException || err instanceof ConnectException)) {
+                if (AuthPipeline.offline(t)) {
                     throw new FriendlyException("Unable to connect to MS servers.", t,  "ias.error.connect");
                 }
 
@@ -240,59 +196,17 @@ public final class MSAuthClient implements Closeable {
                 // Stop if cancelled.
                 if (profile == null || this.handler.cancelled()) return null;
 
-                // Log it and display progress.
-                LOGGER.info("IAS: Encrypting tokens...");
-                this.handler.stage(MicrosoftAccount.ENCRYPTING);
-
-                // Write the tokens.
-                byte[] unencrypted;
-                try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-                     DataOutputStream out = new DataOutputStream(byteOut)) {
-                    // Write the access token.
-                    out.writeUTF(access.get());
-
-                    // Write the refresh token.
-                    out.writeUTF(ms.refresh());
-
-                    // Flush it.
-                    unencrypted = byteOut.toByteArray();
-                } catch (Throwable t) {
-                    throw new RuntimeException("Unable to write the tokens.", t);
-                }
-
-                // Encrypt the tokens.
-                try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-                     DataOutputStream out = new DataOutputStream(byteOut)) {
-                    // Encrypt.
-                    byte[] encrypted = this.crypt.encrypt(unencrypted);
+                // Encrypt the tokens. (cancellable)
+                data.set(this.encrypt(context));
 
-                    // Write data.
-                    out.writeUTF(this.crypt.type());
-                    out.write(encrypted);
-
-                    // Flush it.
-                    data.set(byteOut.toByteArray());
-                } catch (Throwable t) {
-                    throw new RuntimeException("Unable to encrypt the tokens.", t);
-                }
-
-                // Return the profile as-is.
-                return profile;
-            }, IAS.executor()).thenAcceptAsync(profile -> {
+                // Return the profile, if not cancelled.
+                return data.get() == null ? null : profile;
+            }, IASExecutors.crypto()).thenAcceptAsync(profile -> {
                 // Stop if cancelled.
                 if (profile == null || this.handler.cancelled()) return;
 
-                // Authentication successful, refresh the profile.
-                UUID uuid = profile.uuid();
-                String name = profile.name();
-
-                // Log it and display progress.
-                LOGGER.info("IAS: Successfully added {}", profile);
-                this.handler.stage(MicrosoftAccount.FINALIZING);
-
-                // Create and return the data.
-                MicrosoftAccount account = new MicrosoftAccount(this.crypt.insecure(), uuid, name, data.get());
-                this.handler.success(account);
+                // Create the account.
+                this.success(context, profile, data.get());
             }, IAS.executor()).exceptionallyAsync(t -> {
                 // Handle error.
                 this.handler.error(new RuntimeException("Unable to create an MS account.", t));
@@ -306,14 +220,116 @@ public final class MSAuthClient implements Closeable {
         }
     }
 
+    /**
+     * Runs the auth after the MSA in the current thread as a straight-line blocking code.
+     * Blocking counterpart of the {@link #polled(MSTokens, Throwable)} chain.
+     *
+     * @param context Auth context with the MSA and MSR
+     */
+    private void authBlocking(@NotNull AuthContext context) {
+        try {
+            // Run the stages after the MSA.
+            AuthContext result;
+            try {
+                result = AuthPipeline.runBlocking(context, AuthStage.FROM_MSA);
+            } catch (RuntimeException e) {
+                // Probable case - no internet connection.
+                if (AuthPipeline.offline(e)) {
+                    throw new FriendlyException("Unable to connect to MS servers.", e, "ias.error.connect");
+                }
+
+                // Handle error.
+                throw new RuntimeException("Unable to perform MS auth.", e);
+            }
+
+            // Stop if cancelled.
+            if (result == null || this.handler.cancelled()) return;
+
+            // Encrypt the tokens. (cancellable, bounded by the crypto pool)
+            byte[] data = IASExecutors.crypto().submit(() -> this.encrypt(context)).get();
+
+            // Stop if cancelled.
+            if (data == null || this.handler.cancelled()) return;
+
+            // Create the account.
+            this.success(context, result.profile(), data);
+        } catch (InterruptedException | CancellationException e) {
+            // Cancelled, nothing to report.
+            LOGGER.debug("IAS: Blocking MS auth has been interrupted.", e);
+        } catch (Throwable t) {
+            // Unwrap the pool failures.
+            Throwable cause = (t instanceof ExecutionException && t.getCause() != null) ? t.getCause() : t;
+
+            // Handle error.
+            this.handler.error(new RuntimeException("Unable to create an MS account.", cause));
+        }
+    }
+
+    /**
+     * Writes and encrypts the tokens from the context.
+     *
+     * @param context Auth context with the tokens
+     * @return Encrypted data, {@code null} if cancelled
+     * @throws RuntimeException If unable to encrypt
+     */
+    @CheckReturnValue
+    private byte @Nullable [] encrypt(@NotNull AuthContext context) {
+        // Log it and display progress.
+        LOGGER.info("IAS: Encrypting tokens...");
+        this.handler.stage(MicrosoftAccount.ENCRYPTING);
+
+        // Write the tokens.
+        byte[] unencrypted = MicrosoftAccount.writeTokens(context.mca(), context.msr(), context.xbl(), context.xsts());
+
+        // Encrypt the tokens.
+        try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+             DataOutputStream out = new DataOutputStream(byteOut)) {
+            // Encrypt. (cancellable)
+            byte[] encrypted = this.crypt.encrypt(unencrypted, CryptProgress.of(this.handler::cancelled, percent -> this.handler.stage(MicrosoftAccount.ENCRYPTING_PROGRESS, percent)));
+
+            // Write data.
+            out.writeUTF(this.crypt.type());
+            out.write(encrypted);
+
+            // Flush it.
+            return byteOut.toByteArray();
+        } catch (Throwable t) {
+            // Skip if cancelled.
+            if (this.handler.cancelled()) return null;
+
+            // Rethrow.
+            throw new RuntimeException("Unable to encrypt the tokens.", t);
+        }
+    }
+
+    /**
+     * Creates the account and reports it to the handler.
+     *
+     * @param context Auth context with the tokens
+     * @param profile Obtained profile
+     * @param data    Encrypted tokens data
+     */
+    private void success(@NotNull AuthContext context, @NotNull MCProfile profile, byte @NotNull [] data) {
+        // Authentication successful, refresh the profile.
+        UUID uuid = profile.uuid();
+        String name = profile.name();
+
+        // Log it and display progress.
+        LOGGER.info("IAS: Successfully added {}", profile);
+        this.handler.stage(MicrosoftAccount.FINALIZING);
+
+        // Create and return the data.
+        MicrosoftAccount account = new MicrosoftAccount(this.crypt.insecure(), uuid, name, data,
+                MSAuth.mcaExpiry(context.mca()), System.currentTimeMillis());
+        this.handler.success(account);
+    }
+
     @Override
     public void close() {
-        // Cancel any task.
-        if (this.task != null) {
-            this.task.cancel(false);
-            this.task = null;
-            LOGGER.info("IAS: HTTP polling stopped.");
-        }
+        // Stop the polling, if any.
+        CompletableFuture<MSTokens> request = this.request;
+        if (request == null || !request.cancel(true)) return;
+        LOGGER.info("IAS: HTTP polling stopped.");
     }
 
     @Contract(pure = true)
@@ -323,7 +339,6 @@ public final class MSAuthClient implements Closeable {
         return "MSAuthClient{" +
                 "crypt=" + this.crypt +
                 ", expire=" + this.expire +
-                ", poll=" + this.poll +
                 '}';
     }
 }
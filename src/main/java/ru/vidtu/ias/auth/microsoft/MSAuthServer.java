@@ -19,56 +19,50 @@
 
 package ru.vidtu.ias.auth.microsoft;
 
-import com.sun.net.httpserver.Headers;
-import com.sun.net.httpserver.HttpServer;
+import com.google.errorprone.annotations.CheckReturnValue;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.IASExecutors;
 import ru.vidtu.ias.account.MicrosoftAccount;
+import ru.vidtu.ias.auth.AuthContext;
+import ru.vidtu.ias.auth.AuthPipeline;
+import ru.vidtu.ias.auth.AuthStage;
 import ru.vidtu.ias.auth.handlers.CreateHandler;
-import ru.vidtu.ias.config.IASConfig;
+import ru.vidtu.ias.auth.microsoft.fields.MCProfile;
 import ru.vidtu.ias.crypt.Crypt;
+import ru.vidtu.ias.crypt.CryptProgress;
 import ru.vidtu.ias.utils.Holder;
-import ru.vidtu.ias.utils.IUtils;
 import ru.vidtu.ias.utils.exceptions.FriendlyException;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ConnectException;
-import java.net.InetSocketAddress;
-import java.net.NoRouteToHostException;
 import java.net.URI;
-import java.net.http.HttpTimeoutException;
-import java.nio.channels.UnresolvedAddressException;
-import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Locale;
-import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * HTTP server for MS authentication.
+ * Browser sign-in for MS authentication via the shared {@link LoopbackServer}.
  *
  * @author VidTu
  */
 public final class MSAuthServer implements Runnable, Closeable {
     /**
-     * Auth URI with {@code %%port%%} to be replaced by port and {@code %%state%%} to be replaced by state.
+     * Auth URI query with {@code %%port%%} to be replaced by port and {@code %%state%%} to be replaced by state.
+     * Appended to the {@link MSEndpoints#authorize()}.
      */
     @NotNull
-    private static final String MICROSOFT_AUTH_URL = "https://login.live.com/oauth20_authorize.srf" +
-            "?client_id=54fd49e4-2103-4044-9603-2b028c814ec3" +
+    private static final String MICROSOFT_AUTH_QUERY = "?client_id=54fd49e4-2103-4044-9603-2b028c814ec3" +
             "&response_type=code" +
             "&scope=XboxLive.signin%20XboxLive.offline_access" +
             "&redirect_uri=http://localhost:%%port%%/in_game_account_switcher_long_enough_uri_to_prevent_accidental_leaks_on_screensharing_even_if_you_have_like_extremely_big_screen_though_it_might_not_mork_but_we_will_try_it_anyway_to_prevent_funny_things_from_happening_or_something" +
@@ -81,12 +75,6 @@ public final class MSAuthServer implements Runnable, Closeable {
     @NotNull
     private static final String REDIRECT_URI = "http://localhost:%s/in_game_account_switcher_long_enough_uri_to_prevent_accidental_leaks_on_screensharing_even_if_you_have_like_extremely_big_screen_though_it_might_not_mork_but_we_will_try_it_anyway_to_prevent_funny_things_from_happening_or_something";
 
-    /**
-     * End URI with one {@code %s} argument to be replaced by port.
-     */
-    @NotNull
-    private static final String END_URI = "http://localhost:%s/end";
-
     /**
      * Random state.
      */
@@ -129,12 +117,6 @@ public final class MSAuthServer implements Runnable, Closeable {
     @NotNull
     private final CreateHandler handler;
 
-    /**
-     * Created HTTP server.
-     */
-    @NotNull
-    private final HttpServer server;
-
     /**
      * Validation state.
      */
@@ -142,23 +124,18 @@ public final class MSAuthServer implements Runnable, Closeable {
     private final String state;
 
     /**
-     * Bound port.
-     * {@code 0} if not yet bound.
+     * Bound port of the shared {@link LoopbackServer}.
+     * {@code 0} if not yet registered.
      */
     private int port;
 
-    /**
-     * Whether the request to the main endpoint has been received once.
-     */
-    private boolean once;
-
     /**
      * Creates an HTTP server for MS auth.
      *
      * @param doneMessage Message on the "done" screen
      * @param crypt       Account crypt
      * @param handler     Creation handler
-     * @throws RuntimeException If unable to create an HTTP server
+     * @throws RuntimeException If unable to generate the state
      */
     public MSAuthServer(@NotNull String doneMessage, @NotNull Crypt crypt, @NotNull CreateHandler handler) {
         try {
@@ -167,9 +144,6 @@ public final class MSAuthServer implements Runnable, Closeable {
             this.crypt = crypt;
             this.handler = handler;
 
-            // Create the server.
-            this.server = HttpServer.create();
-
             // Generate the state.
             SecureRandom random = SecureRandom.getInstanceStrong();
             int length = random.nextInt(96, 128);
@@ -191,161 +165,15 @@ public final class MSAuthServer implements Runnable, Closeable {
             if (this.handler.cancelled()) return;
 
             // Log it and display progress.
-            LOGGER.info("IAS: Booting up local HTTP server...");
+            LOGGER.info("IAS: Registering HTTP sign-in...");
             this.handler.stage(MicrosoftAccount.SERVER);
 
-            // Create the root handler.
-            this.server.createContext("/", ex -> {
-                try {
-                    // Close if already requested.
-                    if (this.once) {
-                        LOGGER.debug("IAS: Closed non-once HTTP request to '/'.");
-                        ex.close();
-                        return;
-                    }
-
-                    // Log it.
-                    LOGGER.info("IAS: Requested HTTP to '/'.");
-
-                    // Close and ignore if not localhost.
-                    if (!ex.getRemoteAddress().getAddress().isLoopbackAddress()) {
-                        LOGGER.warn("IAS: Closed not loopback HTTP request to '/'.");
-                        ex.close();
-                        return;
-                    }
-
-                    // Mark as once.
-                    this.once = true;
-
-                    // Capture the query.
-                    URI uri = ex.getRequestURI();
-
-                    // Get the auth page.
-                    byte[] data;
-                    try (InputStream in = MSAuthServer.class.getResourceAsStream("/ias_auth.html")) {
-                        Objects.requireNonNull(in, "Auth page is null.");
-
-                        // Read and replace the page data.
-                        String page = new String(in.readAllBytes(), StandardCharsets.UTF_8);
-                        page = page
-                                .replace("%%ias_icon%%", IASConfig.unexpectedPigs ? "🐷👍" : "✅")
-                                .replace("%%ias_message%%", this.doneMessage);
-                        data = page.getBytes(StandardCharsets.UTF_8);
-                    }
-
-                    // Redirect. (to try and increase security)
-                    Headers headers = ex.getResponseHeaders();
-                    headers.add("Content-Type", "text/html; charset=UTF-8");
-                    headers.add("Content-Length", Integer.toString(data.length));
-                    headers.add("Server", IAS.userAgent());
-                    headers.add("Location", END_URI.formatted(this.port));
-                    ex.sendResponseHeaders(302, data.length);
-
-                    // Write the response.
-                    try (OutputStream out = ex.getResponseBody()) {
-                        out.write(data);
-                    }
-
-                    // Close the request.
-                    ex.close();
-
-                    // Send the query.
-                    this.auth(uri);
-
-                    // Close the server.
-                    IAS.executor().schedule(this::close, 10L, TimeUnit.SECONDS);
-                } catch (Throwable t) {
-                    // Try to close the request.
-                    try {
-                        ex.close();
-                    } catch (Throwable th) {
-                        t.addSuppressed(th);
-                    }
-
-                    // Try to close the server.
-                    try {
-                        this.close();
-                    } catch (Throwable th) {
-                        t.addSuppressed(th);
-                    }
-
-                    // Rethrow.
-                    this.handler.error(new RuntimeException("Unexpected exception on '/': " + ex, t));
-                }
-            });
-
-            // Create the end handler. (safe spot)
-            this.server.createContext("/end", ex -> {
-                try {
-                    // Log it.
-                    LOGGER.info("IAS: Requested HTTP to '/end'.");
-
-                    // Close and ignore if not localhost.
-                    if (!ex.getRemoteAddress().getAddress().isLoopbackAddress()) {
-                        LOGGER.warn("IAS: Closed not loopback request to '/end'.");
-                        ex.close();
-                        return;
-                    }
-
-                    // Get the auth page.
-                    byte[] data;
-                    try (InputStream in = MSAuthServer.class.getResourceAsStream("/ias_auth.html")) {
-                        Objects.requireNonNull(in, "Auth page is null.");
-
-                        // Read and replace the page data.
-                        String page = new String(in.readAllBytes(), StandardCharsets.UTF_8);
-                        page = page
-                                .replace("%%ias_icon%%", IASConfig.unexpectedPigs ? "🐷👍" : "✅")
-                                .replace("%%ias_message%%", this.doneMessage);
-                        data = page.getBytes(StandardCharsets.UTF_8);
-                    }
-
-                    // Send headers.
-                    Headers headers = ex.getResponseHeaders();
-                    headers.add("Content-Type", "text/html; charset=UTF-8");
-                    headers.add("Content-Length", Integer.toString(data.length));
-                    headers.add("Server", IAS.userAgent());
-                    ex.sendResponseHeaders(200, data.length);
-
-                    // Write the response.
-                    try (OutputStream out = ex.getResponseBody()) {
-                        out.write(data);
-                    }
-
-                    // Close the request.
-                    ex.close();
-
-                    // Close the server.
-                    IAS.executor().schedule(this::close, 10L, TimeUnit.SECONDS);
-                } catch (Throwable t) {
-                    // Try to close the request.
-                    try {
-                        ex.close();
-                    } catch (Throwable th) {
-                        t.addSuppressed(th);
-                    }
-
-                    // Try to close the server.
-                    try {
-                        this.close();
-                    } catch (Throwable th) {
-                        t.addSuppressed(th);
-                    }
-
-                    // Rethrow.
-                    this.handler.error(new RuntimeException("Unexpected exception on '/end': " + ex, t));
-                }
-            });
+            // Register the sign-in, starting the shared server if needed.
+            this.port = LoopbackServer.register(this.state, this.doneMessage, this::auth, this.handler::error);
 
-            // Stop if cancelled.
-            if (this.handler.cancelled()) return;
-
-            // Start the server.
-            this.bindToSupportedPort();
-            this.server.start();
-
-            // Log it.
-            LOGGER.info("IAS: HTTP server started.");
+            // Close if cancelled in the meantime.
+            if (!this.handler.cancelled()) return;
+            this.close();
         } catch (Throwable t) {
             // Try to close the server.
             try {
@@ -359,39 +187,6 @@ public final class MSAuthServer implements Runnable, Closeable {
         }
     }
 
-    /**
-     * Bind the server to any supported port.
-     *
-     * @throws RuntimeException If unable to bind
-     */
-    private void bindToSupportedPort() {
-        // Any thrown exceptions.
-        List<RuntimeException> thrown = new LinkedList<>();
-
-        // Note that this port range MUST be declared in Microsoft valid
-        // redirect URIs, so using any port won't work. I did register some
-        // ports in the UI.
-        for (int port : IUtils.tryBindPorts()) {
-            try {
-                // Try to bind.
-                this.server.bind(new InetSocketAddress(port), 0);
-
-                // No exception is thrown, return and do not process throwing.
-                this.port = port;
-                LOGGER.info("IAS: Bound HTTP server to {} port.", this.port);
-                return;
-            } catch (Throwable t) {
-                // Add to thrown exceptions.
-                thrown.add(new RuntimeException("Unable to bind: " + port, t));
-            }
-        }
-
-        // Rethrow all errors.
-        RuntimeException holder = new RuntimeException("Unable to bind to any port.");
-        thrown.forEach(holder::addSuppressed);
-        throw holder;
-    }
-
     /**
      * Gets the auth URL.
      *
@@ -400,7 +195,7 @@ public final class MSAuthServer implements Runnable, Closeable {
     @Contract(pure = true)
     @NotNull
     public String authUrl() {
-        return MICROSOFT_AUTH_URL
+        return MSAuth.endpoints().authorize() + MICROSOFT_AUTH_QUERY
                 .replace("%%port%%", Integer.toString(this.port))
                 .replace("%%state%%", this.state);
     }
@@ -422,9 +217,14 @@ public final class MSAuthServer implements Runnable, Closeable {
             // Extract the query.
             String query = uri.getQuery();
 
+            // Run as blocking code, if enabled.
+            if (IASExecutors.blocking()) {
+                IASExecutors.startBlocking(() -> this.authBlocking(query), this.handler::cancelled);
+                return;
+            }
+
             // Value holders.
-            Holder<String> access = new Holder<>();
-            Holder<String> refresh = new Holder<>();
+            AuthContext context = new AuthContext(this.handler::cancelled, this.handler::stage);
             Holder<byte[]> data = new Holder<>();
 
             // Extract the MSAC.
@@ -432,181 +232,214 @@ public final class MSAuthServer implements Runnable, Closeable {
                 // Stop if cancelled.
                 if (this.handler.cancelled()) return null;
 
-                // Log it and display progress.
-                LOGGER.info("IAS: Extracting MSAC from query...");
-
-                // Probable case - direct URL.
-                if (query == null) {
-                    throw new FriendlyException("Null query.", "ias.error.query");
-                }
-
-                // Probable case - User aborted the auth.
-                if (query.toLowerCase(Locale.ROOT).contains("access_denied")) {
-                    // Throw, suppressing possible another code location.
-                    throw new FriendlyException("Invalid query (access denied): " + CODE_OBFUSCATE_PATTERN.matcher(query)
-                            .replaceAll("code=[CODE]"), "ias.error.cancel");
-                }
-
-                // Query won't start with code. Weird query.
-                Matcher matcher = DATA_EXTRACT_PATTERN.matcher(query);
-                if (!matcher.matches()) {
-                    // Throw, suppressing possible another code location.
-                    throw new IllegalStateException("Invalid query: " + CODE_OBFUSCATE_PATTERN.matcher(query)
-                            .replaceAll("code=[CODE]"));
-                }
-
-                // Extract and validate the state.
-                String state = matcher.group(2);
-                if (!this.state.equals(state)) {
-                    throw new IllegalStateException("Expected state " + state + ", got " + this.state);
-                }
-
                 // Extract the MSAC.
-                return matcher.group(1);
+                return this.code(query);
             }, IAS.executor()).thenComposeAsync(code -> {
                 // Stop if cancelled.
                 if (code == null || this.handler.cancelled()) return CompletableFuture.completedFuture(null);
 
-                // Log it and display progress.
-                LOGGER.info("IAS: Converting MSAC to MSA/MSR...");
-                this.handler.stage(MicrosoftAccount.MSAC_TO_MSA_MSR);
-
-                // Convert MSAC to MSA/MSR.
-                return MSAuth.msacToMsaMsr(code, REDIRECT_URI.formatted(this.port));
-            }, IAS.executor()).thenComposeAsync(ms -> {
-                // Stop if cancelled.
-                if (ms == null || this.handler.cancelled()) return CompletableFuture.completedFuture(null);
-
-                // Update the refresh token.
-                refresh.set(ms.refresh());
-
-                // Log it and display progress.
-                LOGGER.info("IAS: Converting MSA to XBL...");
-                this.handler.stage(MicrosoftAccount.MSA_TO_XBL);
+                // Run the stages from the MSAC.
+                context.code(code, REDIRECT_URI.formatted(this.port));
+                return AuthPipeline.run(context, AuthStage.FROM_MSAC).thenApply(result -> result == null ? null : result.profile());
+            }, IAS.executor()).exceptionallyAsync(t -> {
+                // Probable case - no internet connection.
+                if (AuthPipeline.offline(t)) {
+                    throw new FriendlyException("Unable to connect to MS servers.", t,  "ias.error.connect");
+                }
 
-                // Convert MSA to XBL.
-                return MSAuth.msaToXbl(ms.access());
-            }, IAS.executor()).thenComposeAsync(xbl -> {
+                // Handle error.
+                throw new RuntimeException("Unable to perform MS auth.", t);
+            }, IAS.executor()).thenApplyAsync(profile -> {
                 // Stop if cancelled.
-                if (xbl == null || this.handler.cancelled()) return CompletableFuture.completedFuture(null);
+                if (profile == null || this.handler.cancelled()) return null;
 
-                // Log it and display progress.
-                LOGGER.info("IAS: Converting XBL to XSTS...");
-                this.handler.stage(MicrosoftAccount.XBL_TO_XSTS);
+                // Encrypt the tokens. (cancellable)
+                data.set(this.encrypt(context));
 
-                // Convert XBL to XSTS.
-                return MSAuth.xblToXsts(xbl.token(), xbl.hash());
-            }, IAS.executor()).thenComposeAsync(xsts -> {
+                // Return the profile, if not cancelled.
+                return data.get() == null ? null : profile;
+            }, IASExecutors.crypto()).thenAcceptAsync(profile -> {
                 // Stop if cancelled.
-                if (xsts == null || this.handler.cancelled()) return CompletableFuture.completedFuture(null);
-
-                // Log it and display progress.
-                LOGGER.info("IAS: Converting XSTS to MCA...");
-                this.handler.stage(MicrosoftAccount.XSTS_TO_MCA);
+                if (profile == null || this.handler.cancelled()) return;
 
-                // Convert XSTS to MCA.
-                return MSAuth.xstsToMca(xsts.token(), xsts.hash());
-            }, IAS.executor()).thenComposeAsync(token -> {
-                // Stop if cancelled.
-                if (token == null || this.handler.cancelled()) return CompletableFuture.completedFuture(null);
+                // Create the account.
+                this.success(context, profile, data.get());
+            }, IAS.executor()).exceptionallyAsync(t -> {
+                // Handle error.
+                this.handler.error(new RuntimeException("Unable to create an MS account.", t));
 
-                // Update the access token.
-                access.set(token);
+                // Return null.
+                return null;
+            }, IAS.executor());
+        } catch (Throwable t) {
+            // Handle.
+            this.handler.error(new RuntimeException("Unable to finalize MS auth.", t));
+        }
+    }
 
-                // Log it and display progress.
-                LOGGER.info("IAS: Converting MCA to MCP...");
-                this.handler.stage(MicrosoftAccount.MCA_TO_MCP);
+    /**
+     * Runs the auth from the MSAC in the current thread as a straight-line blocking code.
+     * Blocking counterpart of the {@link #auth(URI)} chain.
+     *
+     * @param query Request query, {@code null} if none
+     */
+    private void authBlocking(@Nullable String query) {
+        try {
+            // Extract the MSAC.
+            String code = this.code(query);
 
-                // Convert MCA to MCP.
-                return MSAuth.mcaToMcp(token);
-            }, IAS.executor()).exceptionallyAsync(t -> {
+            // Run the stages from the MSAC.
+            AuthContext context = new AuthContext(this.handler::cancelled, this.handler::stage);
+            context.code(code, REDIRECT_URI.formatted(this.port));
+            AuthContext result;
+            try {
+                result = AuthPipeline.runBlocking(context, AuthStage.FROM_MSAC);
+            } catch (RuntimeException e) {
                 // Probable case - no internet connection.
-                if (IUtils.anyInCausalChain(t, err -> err instanceof UnresolvedAddressException || err instanceof NoRouteToHostException || err instanceof HttpTimeoutException || err instanceof ConnectException)) {
-                    throw new FriendlyException("Unable to connect to MS servers.", t,  "ias.error.connect");
+                if (AuthPipeline.offline(e)) {
+                    throw new FriendlyException("Unable to connect to MS servers.", e, "ias.error.connect");
                 }
 
                 // Handle error.
-                throw new RuntimeException("Unable to perform MS auth.", t);
-            }, IAS.executor()).thenApplyAsync(profile -> {
-                // Stop if cancelled.
-                if (profile == null || this.handler.cancelled()) return null;
+                throw new RuntimeException("Unable to perform MS auth.", e);
+            }
 
-                // Log it and display progress.
-                LOGGER.info("IAS: Encrypting tokens...");
-                this.handler.stage(MicrosoftAccount.ENCRYPTING);
+            // Stop if cancelled.
+            if (result == null || this.handler.cancelled()) return;
 
-                // Write the tokens.
-                byte[] unencrypted;
-                try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-                     DataOutputStream out = new DataOutputStream(byteOut)) {
-                    // Write the access token.
-                    out.writeUTF(access.get());
+            // Encrypt the tokens. (cancellable, bounded by the crypto pool)
+            byte[] data = IASExecutors.crypto().submit(() -> this.encrypt(context)).get();
 
-                    // Write the refresh token.
-                    out.writeUTF(refresh.get());
+            // Stop if cancelled.
+            if (data == null || this.handler.cancelled()) return;
 
-                    // Flush it.
-                    unencrypted = byteOut.toByteArray();
-                } catch (Throwable t) {
-                    throw new RuntimeException("Unable to write the tokens.", t);
-                }
+            // Create the account.
+            this.success(context, result.profile(), data);
+        } catch (InterruptedException | CancellationException e) {
+            // Cancelled, nothing to report.
+            LOGGER.debug("IAS: Blocking MS auth has been interrupted.", e);
+        } catch (Throwable t) {
+            // Unwrap the pool failures.
+            Throwable cause = (t instanceof ExecutionException && t.getCause() != null) ? t.getCause() : t;
 
-                // Encrypt the tokens.
-                try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-                     DataOutputStream out = new DataOutputStream(byteOut)) {
-                    // Encrypt.
-                    byte[] encrypted = this.crypt.encrypt(unencrypted);
+            // Handle error.
+            this.handler.error(new RuntimeException("Unable to create an MS account.", cause));
+        }
+    }
 
-                    // Write data.
-                    out.writeUTF(this.crypt.type());
-                    out.write(encrypted);
+    /**
+     * Extracts the MSAC from the query.
+     *
+     * @param query Request query, {@code null} if none
+     * @return Extracted MSAC
+     * @throws FriendlyException     If the query is missing or the user aborted the auth
+     * @throws IllegalStateException If the query or its state is invalid
+     */
+    @CheckReturnValue
+    @NotNull
+    private String code(@Nullable String query) {
+        // Log it and display progress.
+        LOGGER.info("IAS: Extracting MSAC from query...");
 
-                    // Flush it.
-                    data.set(byteOut.toByteArray());
-                } catch (Throwable t) {
-                    throw new RuntimeException("Unable to encrypt the tokens.", t);
-                }
+        // Probable case - direct URL.
+        if (query == null) {
+            throw new FriendlyException("Null query.", "ias.error.query");
+        }
 
-                // Return the profile as-is.
-                return profile;
-            }, IAS.executor()).thenAcceptAsync(profile -> {
-                // Stop if cancelled.
-                if (profile == null || this.handler.cancelled()) return;
+        // Probable case - User aborted the auth.
+        if (query.toLowerCase(Locale.ROOT).contains("access_denied")) {
+            // Throw, suppressing possible another code location.
+            throw new FriendlyException("Invalid query (access denied): " + CODE_OBFUSCATE_PATTERN.matcher(query)
+                    .replaceAll("code=[CODE]"), "ias.error.cancel");
+        }
 
-                // Authentication successful, refresh the profile.
-                UUID uuid = profile.uuid();
-                String name = profile.name();
+        // Query won't start with code. Weird query.
+        Matcher matcher = DATA_EXTRACT_PATTERN.matcher(query);
+        if (!matcher.matches()) {
+            // Throw, suppressing possible another code location.
+            throw new IllegalStateException("Invalid query: " + CODE_OBFUSCATE_PATTERN.matcher(query)
+                    .replaceAll("code=[CODE]"));
+        }
 
-                // Log it and display progress.
-                LOGGER.info("IAS: Successfully added {}", profile);
-                this.handler.stage(MicrosoftAccount.FINALIZING);
+        // Extract and validate the state.
+        String state = matcher.group(2);
+        if (!this.state.equals(state)) {
+            throw new IllegalStateException("Expected state " + state + ", got " + this.state);
+        }
 
-                // Create and return the data.
-                MicrosoftAccount account = new MicrosoftAccount(this.crypt.insecure(), uuid, name, data.get());
-                this.handler.success(account);
-            }, IAS.executor()).exceptionallyAsync(t -> {
-                // Handle error.
-                this.handler.error(new RuntimeException("Unable to create an MS account.", t));
+        // Extract the MSAC.
+        return matcher.group(1);
+    }
 
-                // Return null.
-                return null;
-            }, IAS.executor());
+    /**
+     * Writes and encrypts the tokens from the context.
+     *
+     * @param context Auth context with the tokens
+     * @return Encrypted data, {@code null} if cancelled
+     * @throws RuntimeException If unable to encrypt
+     */
+    @CheckReturnValue
+    private byte @Nullable [] encrypt(@NotNull AuthContext context) {
+        // Log it and display progress.
+        LOGGER.info("IAS: Encrypting tokens...");
+        this.handler.stage(MicrosoftAccount.ENCRYPTING);
+
+        // Write the tokens.
+        byte[] unencrypted = MicrosoftAccount.writeTokens(context.mca(), context.msr(), context.xbl(), context.xsts());
+
+        // Encrypt the tokens.
+        try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+             DataOutputStream out = new DataOutputStream(byteOut)) {
+            // Encrypt. (cancellable)
+            byte[] encrypted = this.crypt.encrypt(unencrypted, CryptProgress.of(this.handler::cancelled, percent -> this.handler.stage(MicrosoftAccount.ENCRYPTING_PROGRESS, percent)));
+
+            // Write data.
+            out.writeUTF(this.crypt.type());
+            out.write(encrypted);
+
+            // Flush it.
+            return byteOut.toByteArray();
         } catch (Throwable t) {
-            // Handle.
-            this.handler.error(new RuntimeException("Unable to finalize MS auth.", t));
+            // Skip if cancelled.
+            if (this.handler.cancelled()) return null;
+
+            // Rethrow.
+            throw new RuntimeException("Unable to encrypt the tokens.", t);
         }
     }
 
     /**
-     * Closes the server.
+     * Creates the account and reports it to the handler.
+     *
+     * @param context Auth context with the tokens
+     * @param profile Obtained profile
+     * @param data    Encrypted tokens data
+     */
+    private void success(@NotNull AuthContext context, @NotNull MCProfile profile, byte @NotNull [] data) {
+        // Authentication successful, refresh the profile.
+        UUID uuid = profile.uuid();
+        String name = profile.name();
+
+        // Log it and display progress.
+        LOGGER.info("IAS: Successfully added {}", profile);
+        this.handler.stage(MicrosoftAccount.FINALIZING);
+
+        // Create and return the data.
+        MicrosoftAccount account = new MicrosoftAccount(this.crypt.insecure(), uuid, name, data,
+                MSAuth.mcaExpiry(context.mca()), System.currentTimeMillis());
+        this.handler.success(account);
+    }
+
+    /**
+     * Unregisters the sign-in from the shared server. The server is stopped once idle.
      */
     @Override
     public void close() {
-        // Close the server.
-        this.server.stop(0);
+        // Unregister the sign-in.
+        LoopbackServer.unregister(this.state);
 
         // Log it.
-        LOGGER.info("IAS: HTTP server stopped.");
+        LOGGER.info("IAS: HTTP sign-in closed.");
     }
 
     @Contract(pure = true)
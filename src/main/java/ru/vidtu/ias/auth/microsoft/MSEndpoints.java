@@ -0,0 +1,109 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.auth.microsoft;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+import java.net.URI;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Endpoints used by the Microsoft authentication chain.
+ *
+ * @param authorize   Browser authorization page, used by {@link MSAuthServer}
+ * @param deviceCode  Device Auth Code (DAC) request endpoint
+ * @param deviceToken Device Auth Code (DAC) token endpoint
+ * @param token       Microsoft Authentication Code (MSAC) and Microsoft Refresh (MSR) token endpoint
+ * @param xbl         Xbox Live (XBL) authentication endpoint
+ * @param xsts        Xbox Secure Token Service (XSTS) authorization endpoint
+ * @param mca         Minecraft Access (MCA) login endpoint
+ * @param mcp         Minecraft Profile (MCP) endpoint
+ * @param names       Minecraft profile by name endpoint, the name is appended to it
+ * @param profiles    Minecraft profiles by names bulk endpoint, up to {@link MSAuth#BULK_NAMES} names per request
+ * @author VidTu
+ * @see MSAuth#configure(MSEndpoints, java.net.http.HttpClient)
+ */
+public record MSEndpoints(@NotNull URI authorize, @NotNull URI deviceCode, @NotNull URI deviceToken,
+                          @NotNull URI token, @NotNull URI xbl, @NotNull URI xsts, @NotNull URI mca,
+                          @NotNull URI mcp, @NotNull URI names, @NotNull URI profiles) {
+    /**
+     * Live Microsoft, Xbox, and Minecraft services.
+     */
+    @NotNull
+    public static final MSEndpoints DEFAULT = new MSEndpoints(
+            URI.create("https://login.live.com/oauth20_authorize.srf"),
+            URI.create("https://login.microsoftonline.com/consumers/oauth2/v2.0/devicecode"),
+            URI.create("https://login.microsoftonline.com/consumers/oauth2/v2.0/token"),
+            URI.create("https://login.live.com/oauth20_token.srf"),
+            URI.create("https://user.auth.xboxlive.com/user/authenticate"),
+            URI.create("https://xsts.auth.xboxlive.com/xsts/authorize"),
+            URI.create("https://api.minecraftservices.com/authentication/login_with_xbox"),
+            URI.create("https://api.minecraftservices.com/minecraft/profile"),
+            URI.create("https://api.mojang.com/users/profiles/minecraft/"),
+            URI.create("https://api.mojang.com/profiles/minecraft"));
+
+    /**
+     * Creates the endpoints with the live service paths on a single host, e.g. {@link MSStubServer}.
+     *
+     * @param base Base URI, e.g. {@code http://127.0.0.1:8080/}
+     * @return New endpoints
+     */
+    @Contract(value = "_ -> new", pure = true)
+    @NotNull
+    public static MSEndpoints at(@NotNull URI base) {
+        return new MSEndpoints(rebase(base, DEFAULT.authorize), rebase(base, DEFAULT.deviceCode),
+                rebase(base, DEFAULT.deviceToken), rebase(base, DEFAULT.token), rebase(base, DEFAULT.xbl),
+                rebase(base, DEFAULT.xsts), rebase(base, DEFAULT.mca), rebase(base, DEFAULT.mcp),
+                rebase(base, DEFAULT.names), rebase(base, DEFAULT.profiles));
+    }
+
+    /**
+     * Gets the distinct hosts used in the login chain.
+     *
+     * @return Origin URIs of the login chain hosts
+     */
+    @Contract(pure = true)
+    @NotNull
+    @Unmodifiable
+    public List<URI> hosts() {
+        Set<URI> hosts = new LinkedHashSet<>(4);
+        for (URI uri : List.of(this.token, this.xbl, this.xsts, this.mca)) {
+            hosts.add(uri.resolve("/"));
+        }
+        return List.copyOf(hosts);
+    }
+
+    /**
+     * Moves the path of the URI to the base.
+     *
+     * @param base Base URI
+     * @param uri  Target URI
+     * @return Target path resolved against the base
+     */
+    @Contract(value = "_, _ -> new", pure = true)
+    @NotNull
+    private static URI rebase(@NotNull URI base, @NotNull URI uri) {
+        return base.resolve(uri.getRawPath());
+    }
+}
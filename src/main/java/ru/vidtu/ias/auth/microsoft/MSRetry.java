@@ -0,0 +1,567 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.auth.microsoft;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.IASHttp;
+import ru.vidtu.ias.utils.IUtils;
+import ru.vidtu.ias.utils.exceptions.BreakerOpenException;
+import ru.vidtu.ias.utils.exceptions.OfflineException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.UnresolvedAddressException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resilience layer for {@link MSAuth} requests with retries, {@code Retry-After} handling and per-host circuit breakers.
+ *
+ * @author VidTu
+ */
+final class MSRetry {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/MSRetry");
+
+    /**
+     * Maximum attempts per request, including the first one.
+     */
+    private static final int MAX_ATTEMPTS = Math.max(1, Integer.getInteger("ias.retries", 3));
+
+    /**
+     * Initial backoff delay in milliseconds, doubled on each retry.
+     */
+    private static final long BACKOFF_BASE = 500L;
+
+    /**
+     * Maximum backoff delay in milliseconds.
+     */
+    private static final long BACKOFF_MAX = 8000L;
+
+    /**
+     * Maximum honored {@code Retry-After} delay in milliseconds. Requests asking for longer delays are not retried.
+     */
+    private static final long RETRY_AFTER_MAX = 30_000L;
+
+    /**
+     * Consecutive failures after which the host circuit breaker opens.
+     */
+    private static final int BREAKER_THRESHOLD = 5;
+
+    /**
+     * Time for which the open circuit breaker rejects requests in nanoseconds.
+     */
+    private static final long BREAKER_COOLDOWN = TimeUnit.SECONDS.toNanos(30L);
+
+    /**
+     * Circuit breakers and counters per host.
+     */
+    @NotNull
+    private static final Map<String, Host> HOSTS = new ConcurrentHashMap<>(8);
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private MSRetry() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Sends the request, retrying it if it failed and can be safely retried.
+     * <p>
+     * Idempotent requests are retried on any transport error and on {@code 408}, {@code 429}, and {@code 5xx} responses.
+     * Non-idempotent requests (e.g. one-time code or refresh token exchanges) are retried only if the request
+     * was never sent (connection failure) or the server has signalled that it was not processed ({@code 429}, {@code 503}).
+     *
+     * @param client     Target client
+     * @param request    Target request
+     * @param handler    Response body handler
+     * @param idempotent Whether the request can be safely repeated
+     * @param <T>        Response body type
+     * @return Future that will complete with the last response or exceptionally with the last error, cancelling it aborts the request
+     */
+    @CheckReturnValue
+    @NotNull
+    static <T> CompletableFuture<HttpResponse<T>> send(@NotNull HttpClient client, @NotNull HttpRequest request,
+                                                       @NotNull HttpResponse.BodyHandler<T> handler, boolean idempotent) {
+        Host host = HOSTS.computeIfAbsent(String.valueOf(request.uri().getHost()), Host::new);
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        attempt(client, request, handler, idempotent, host, 1, result);
+        return result;
+    }
+
+    /**
+     * Sends the request synchronously, retrying it the same way as {@link #send(HttpClient, HttpRequest, HttpResponse.BodyHandler, boolean)}.
+     * <p>
+     * This method <b>WILL BLOCK</b> and is intended for the {@link IASExecutors#inBlocking()} threads.
+     *
+     * @param client     Target client
+     * @param request    Target request
+     * @param handler    Response body handler
+     * @param idempotent Whether the request can be safely repeated
+     * @param <T>        Response body type
+     * @return Last response
+     * @throws IOException          Last error
+     * @throws InterruptedException If interrupted while sending or waiting for the retry
+     */
+    @CheckReturnValue
+    @NotNull
+    static <T> HttpResponse<T> sendBlocking(@NotNull HttpClient client, @NotNull HttpRequest request,
+                                            @NotNull HttpResponse.BodyHandler<T> handler, boolean idempotent) throws IOException, InterruptedException {
+        Host host = HOSTS.computeIfAbsent(String.valueOf(request.uri().getHost()), Host::new);
+        for (int attempt = 1; ; attempt++) {
+            // Fail fast if the host is down.
+            Permit permit = host.allow();
+            if (permit == Permit.DENIED) {
+                host.rejected.increment();
+                LOGGER.warn("IAS: Rejected request to {} by the open circuit breaker. ({})", safeUri(request.uri()), host);
+                throw new BreakerOpenException("Circuit breaker for " + host.name + " is open.");
+            }
+
+            // Send the request.
+            host.requests.increment();
+            long delay;
+            boolean recorded = false;
+            try {
+                HttpResponse<T> response = IASHttp.send(client, request, handler);
+
+                // Record the result.
+                int status = response.statusCode();
+                if (status == 429 || status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    host.failure();
+                } else {
+                    host.success();
+                }
+                recorded = true;
+
+                // Return if can't retry.
+                delay = attempt < MAX_ATTEMPTS ? delay(response, idempotent, attempt) : -1L;
+                if (delay < 0L) return response;
+
+                // Log it.
+                LOGGER.warn("IAS: Request to {} returned status {} (attempt {}/{}), retrying in {} ms. ({})", safeUri(request.uri()), status, attempt, MAX_ATTEMPTS, delay, host);
+            } catch (IOException e) {
+                // Fail if can't retry. (known offline is not a host failure)
+                if (!(e instanceof OfflineException)) {
+                    host.failure();
+                    recorded = true;
+                }
+                delay = (attempt < MAX_ATTEMPTS && retryable(e, idempotent)) ? backoff(attempt) : -1L;
+                if (delay < 0L) throw e;
+
+                // Log it.
+                LOGGER.warn("IAS: Request to {} failed (attempt {}/{}), retrying in {} ms. ({}) ({})", safeUri(request.uri()), attempt, MAX_ATTEMPTS, delay, e.toString(), host);
+            } finally {
+                // Release the trial without a result. (offline, interrupted, etc.)
+                if (!recorded && permit == Permit.TRIAL) {
+                    host.release();
+                }
+            }
+
+            // Retry.
+            host.retries.increment();
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Performs the request attempt.
+     *
+     * @param client     Target client
+     * @param request    Target request
+     * @param handler    Response body handler
+     * @param idempotent Whether the request can be safely repeated
+     * @param host       Request host
+     * @param attempt    Current attempt, starting from {@code 1}
+     * @param result     Future to complete with the result
+     * @param <T>        Response body type
+     */
+    private static <T> void attempt(@NotNull HttpClient client, @NotNull HttpRequest request,
+                                    @NotNull HttpResponse.BodyHandler<T> handler, boolean idempotent,
+                                    @NotNull Host host, int attempt, @NotNull CompletableFuture<HttpResponse<T>> result) {
+        Permit permit = null;
+        try {
+            // Skip if cancelled.
+            if (result.isDone()) return;
+
+            // Fail fast if the host is down.
+            permit = host.allow();
+            if (permit == Permit.DENIED) {
+                host.rejected.increment();
+                LOGGER.warn("IAS: Rejected request to {} by the open circuit breaker. ({})", safeUri(request.uri()), host);
+                result.completeExceptionally(new BreakerOpenException("Circuit breaker for " + host.name + " is open."));
+                return;
+            }
+
+            // Send the request, aborting it if cancelled.
+            host.requests.increment();
+            Permit held = permit;
+            CompletableFuture<HttpResponse<T>> exchange = IASHttp.sendAsync(client, request, handler);
+            permit = null;
+            result.whenComplete((response, t) -> {
+                if (!result.isCancelled()) return;
+                exchange.cancel(true);
+            });
+            exchange.whenCompleteAsync((response, t) -> {
+                boolean recorded = false;
+                try {
+                    // Skip if cancelled, it's not a host failure.
+                    if (result.isDone()) return;
+
+                    // Handle the error.
+                    long delay;
+                    if (t != null) {
+                        Throwable cause = (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+                        if (!(cause instanceof OfflineException)) {
+                            host.failure();
+                            recorded = true;
+                        }
+
+                        // Fail if can't retry.
+                        delay = (attempt < MAX_ATTEMPTS && retryable(cause, idempotent)) ? backoff(attempt) : -1L;
+                        if (delay < 0L) {
+                            result.completeExceptionally(cause);
+                            return;
+                        }
+
+                        // Log it.
+                        LOGGER.warn("IAS: Request to {} failed (attempt {}/{}), retrying in {} ms. ({}) ({})", safeUri(request.uri()), attempt, MAX_ATTEMPTS, delay, cause.toString(), host);
+                    } else {
+                        // Record the result.
+                        int status = response.statusCode();
+                        if (status == 429 || status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                            host.failure();
+                        } else {
+                            host.success();
+                        }
+                        recorded = true;
+
+                        // Return if can't retry.
+                        delay = attempt < MAX_ATTEMPTS ? delay(response, idempotent, attempt) : -1L;
+                        if (delay < 0L) {
+                            result.complete(response);
+                            return;
+                        }
+
+                        // Log it.
+                        LOGGER.warn("IAS: Request to {} returned status {} (attempt {}/{}), retrying in {} ms. ({})", safeUri(request.uri()), status, attempt, MAX_ATTEMPTS, delay, host);
+                    }
+
+                    // Retry.
+                    host.retries.increment();
+                    IASExecutors.delayed(delay, TimeUnit.MILLISECONDS).execute(() ->
+                            attempt(client, request, handler, idempotent, host, attempt + 1, result));
+                } catch (Throwable th) {
+                    // Fail.
+                    result.completeExceptionally(th);
+                } finally {
+                    // Release the trial without a result. (cancelled, offline, etc.)
+                    if (!recorded && held == Permit.TRIAL) {
+                        host.release();
+                    }
+                }
+            }, IAS.executor());
+        } catch (Throwable t) {
+            // Release the trial, the request has not been sent.
+            if (permit == Permit.TRIAL) {
+                host.release();
+            }
+
+            // Fail.
+            result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Gets whether the request that failed with the error can be retried.
+     *
+     * @param error      Request error
+     * @param idempotent Whether the request can be safely repeated
+     * @return Whether the request can be retried
+     */
+    @Contract(pure = true)
+    private static boolean retryable(@NotNull Throwable error, boolean idempotent) {
+        // Known offline - no point in waiting for the backoff.
+        if (IUtils.anyInCausalChain(error, OfflineException.class::isInstance)) {
+            return false;
+        }
+
+        // Connection failures - the request was never sent.
+        if (IUtils.anyInCausalChain(error, err -> err instanceof UnresolvedAddressException || err instanceof NoRouteToHostException || err instanceof HttpConnectTimeoutException || err instanceof ConnectException)) {
+            return true;
+        }
+
+        // Other transport errors - the request may have been processed.
+        return idempotent && IUtils.anyInCausalChain(error, IOException.class::isInstance);
+    }
+
+    /**
+     * Gets the delay before retrying the request with the response.
+     *
+     * @param response   Request response
+     * @param idempotent Whether the request can be safely repeated
+     * @param attempt    Current attempt, starting from {@code 1}
+     * @return Retry delay in milliseconds, {@code -1} if the request should not be retried
+     */
+    @Contract(pure = true)
+    private static long delay(@NotNull HttpResponse<?> response, boolean idempotent, int attempt) {
+        // Check the status.
+        int status = response.statusCode();
+        boolean unprocessed = status == 429 || status == HttpURLConnection.HTTP_UNAVAILABLE;
+        if (!unprocessed && !(idempotent && (status == HttpURLConnection.HTTP_CLIENT_TIMEOUT || status >= HttpURLConnection.HTTP_INTERNAL_ERROR))) {
+            return -1L;
+        }
+
+        // Honor the Retry-After, if any.
+        long retryAfter = unprocessed ? retryAfter(response) : -1L;
+        if (retryAfter > RETRY_AFTER_MAX) return -1L;
+        return retryAfter >= 0L ? retryAfter : backoff(attempt);
+    }
+
+    /**
+     * Gets the jittered exponential backoff delay.
+     *
+     * @param attempt Current attempt, starting from {@code 1}
+     * @return Backoff delay in milliseconds
+     */
+    @Contract(pure = true)
+    private static long backoff(int attempt) {
+        long max = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(attempt - 1, 16));
+        return (max / 2L) + ThreadLocalRandom.current().nextLong((max / 2L) + 1L);
+    }
+
+    /**
+     * Parses the {@code Retry-After} header.
+     *
+     * @param response Target response
+     * @return Delay in milliseconds, {@code -1} if none or invalid
+     */
+    @Contract(pure = true)
+    private static long retryAfter(@NotNull HttpResponse<?> response) {
+        String value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null || (value = value.strip()).isEmpty()) return -1L;
+        try {
+            // Delay in seconds.
+            return Math.multiplyExact(Math.max(0L, Long.parseLong(value)), 1000L);
+        } catch (NumberFormatException ignored) {
+            // Otherwise, HTTP date.
+        } catch (ArithmeticException ignored) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            Instant date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return Math.max(0L, Duration.between(Instant.now(), date).toMillis());
+        } catch (Throwable t) {
+            LOGGER.debug("IAS: Invalid Retry-After: {}", value, t);
+            return -1L;
+        }
+    }
+
+    /**
+     * Gets the URI without the query part, which may contain sensitive data.
+     *
+     * @param uri Target URI
+     * @return URI without query
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static String safeUri(@NotNull URI uri) {
+        return uri.getScheme() + "://" + uri.getHost() + uri.getPath();
+    }
+
+    /**
+     * Circuit breaker permit.
+     *
+     * @author VidTu
+     */
+    private enum Permit {
+        /**
+         * Request is rejected by the open breaker.
+         */
+        DENIED,
+
+        /**
+         * Request is allowed by the closed breaker.
+         */
+        ALLOWED,
+
+        /**
+         * Request is allowed as the single trial of the half-open breaker.
+         */
+        TRIAL
+    }
+
+    /**
+     * Per-host circuit breaker and counters.
+     *
+     * @author VidTu
+     */
+    private static final class Host {
+        /**
+         * Host name.
+         */
+        @NotNull
+        private final String name;
+
+        /**
+         * Sent requests.
+         */
+        @NotNull
+        private final LongAdder requests = new LongAdder();
+
+        /**
+         * Retried requests.
+         */
+        @NotNull
+        private final LongAdder retries = new LongAdder();
+
+        /**
+         * Failed requests.
+         */
+        @NotNull
+        private final LongAdder failures = new LongAdder();
+
+        /**
+         * Requests rejected by the open breaker.
+         */
+        @NotNull
+        private final LongAdder rejected = new LongAdder();
+
+        /**
+         * Times the breaker has opened.
+         */
+        @NotNull
+        private final LongAdder trips = new LongAdder();
+
+        /**
+         * Consecutive failures.
+         */
+        private int consecutive;
+
+        /**
+         * Time until which the breaker is open in {@link System#nanoTime()} units, {@code 0} if closed.
+         */
+        private long openUntil;
+
+        /**
+         * Whether the trial request of the half-open breaker is in flight.
+         */
+        private boolean trial;
+
+        /**
+         * Creates a new host.
+         *
+         * @param name Host name
+         */
+        @Contract(pure = true)
+        private Host(@NotNull String name) {
+            this.name = name;
+        }
+
+        /**
+         * Gets whether the request to this host is allowed by the breaker.
+         * Allows a single trial request once the cooldown has passed.
+         *
+         * @return Request permit
+         */
+        @NotNull
+        private synchronized Permit allow() {
+            if (this.openUntil == 0L) return Permit.ALLOWED;
+            if (this.trial || (System.nanoTime() - this.openUntil) < 0L) return Permit.DENIED;
+            this.trial = true;
+            return Permit.TRIAL;
+        }
+
+        /**
+         * Releases the trial request that has completed without a result, allowing the next trial.
+         * Used for cancelled, offline and interrupted requests that say nothing about the host.
+         */
+        private synchronized void release() {
+            this.trial = false;
+        }
+
+        /**
+         * Records the successful request, closing the breaker.
+         */
+        private synchronized void success() {
+            if (this.openUntil != 0L) {
+                LOGGER.info("IAS: Circuit breaker for {} has closed. ({})", this.name, this);
+            }
+            this.consecutive = 0;
+            this.openUntil = 0L;
+            this.trial = false;
+        }
+
+        /**
+         * Records the failed request, opening the breaker if too many requests have failed.
+         */
+        private synchronized void failure() {
+            this.failures.increment();
+            this.consecutive++;
+            if (!this.trial && this.consecutive < BREAKER_THRESHOLD) return;
+            this.openUntil = System.nanoTime() + BREAKER_COOLDOWN;
+            this.trial = false;
+            this.trips.increment();
+            LOGGER.warn("IAS: Circuit breaker for {} has opened for {} ms after {} consecutive failures. ({})", this.name, TimeUnit.NANOSECONDS.toMillis(BREAKER_COOLDOWN), this.consecutive, this);
+        }
+
+        @Contract(pure = true)
+        @Override
+        @NotNull
+        public String toString() {
+            return "Host{" +
+                    "name='" + this.name + '\'' +
+                    ", requests=" + this.requests +
+                    ", retries=" + this.retries +
+                    ", failures=" + this.failures +
+                    ", rejected=" + this.rejected +
+                    ", trips=" + this.trips +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,618 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.auth.microsoft;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.utils.GSONUtils;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in HTTP server for the whole Microsoft, Xbox, and Minecraft authentication chain.
+ * Used to measure and load-test the login pipeline offline via {@link MSAuth#configure(MSEndpoints, java.net.http.HttpClient)}
+ * or the {@code ias.endpoints} system property.
+ * <p>
+ * Serves the same paths as the live services ({@link MSEndpoints#at(URI)}) with random tokens, simulates device code
+ * pending states, refresh token rotation, and {@code XErr} errors, and injects latency, jitter, and failures.
+ *
+ * @author VidTu
+ */
+public final class MSStubServer implements Closeable {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/MSStubServer");
+
+    /**
+     * Server options.
+     */
+    @NotNull
+    private final Options options;
+
+    /**
+     * Created HTTP server.
+     */
+    @NotNull
+    private final HttpServer server;
+
+    /**
+     * Request handler executor.
+     */
+    @NotNull
+    private final ExecutorService executor;
+
+    /**
+     * Issued device codes with the remaining pending polls.
+     */
+    @NotNull
+    private final Map<String, AtomicInteger> devices = new ConcurrentHashMap<>();
+
+    /**
+     * Issued Microsoft Authentication Codes. (MSAC)
+     */
+    @NotNull
+    private final Set<String> codes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Rotated (revoked) Microsoft Refresh (MSR) tokens.
+     */
+    @NotNull
+    private final Set<String> spent = ConcurrentHashMap.newKeySet();
+
+    /**
+     * User hash of the simulated account.
+     */
+    @NotNull
+    private final String hash = Long.toUnsignedString(ThreadLocalRandom.current().nextLong());
+
+    /**
+     * Profile UUID of the simulated account.
+     */
+    @NotNull
+    private final UUID uuid = UUID.randomUUID();
+
+    /**
+     * Creates and starts a new stub server on the loopback address.
+     *
+     * @param port    Target port, {@code 0} for any
+     * @param options Server options
+     * @throws RuntimeException If unable to start the server
+     */
+    public MSStubServer(int port, @NotNull Options options) {
+        try {
+            // Assign the values.
+            this.options = options;
+            this.executor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "IAS Stub Server");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            // Create the server.
+            this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            this.server.setExecutor(this.executor);
+
+            // Create the handlers.
+            MSEndpoints paths = MSEndpoints.DEFAULT;
+            this.route(paths.authorize(), false, this::authorize);
+            this.route(paths.deviceCode(), true, this::deviceCode);
+            this.route(paths.deviceToken(), true, this::token);
+            this.route(paths.token(), true, this::token);
+            this.route(paths.xbl(), true, this::xbl);
+            this.route(paths.xsts(), true, this::xsts);
+            this.route(paths.mca(), true, this::mca);
+            this.route(paths.mcp(), true, this::mcp);
+            this.route(paths.names(), true, this::names);
+            this.route(paths.profiles(), true, this::profiles);
+
+            // Start the server.
+            this.server.start();
+            LOGGER.info("IAS: Stub server started at {} with {}.", this.base(), options);
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to start stub server.", t);
+        }
+    }
+
+    /**
+     * Gets the base URI of this server.
+     *
+     * @return Server base URI
+     */
+    @Contract(pure = true)
+    @NotNull
+    public URI base() {
+        InetSocketAddress address = this.server.getAddress();
+        return URI.create("http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + "/");
+    }
+
+    /**
+     * Gets the endpoints of this server.
+     *
+     * @return Server endpoints
+     */
+    @Contract(pure = true)
+    @NotNull
+    public MSEndpoints endpoints() {
+        return MSEndpoints.at(this.base());
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+        LOGGER.info("IAS: Stub server stopped.");
+    }
+
+    /**
+     * Registers the route handler.
+     *
+     * @param path   Path URI
+     * @param faulty Whether the failures should be injected
+     * @param route  Route handler
+     */
+    private void route(@NotNull URI path, boolean faulty, @NotNull Route route) {
+        this.server.createContext(path.getPath(), ex -> {
+            try (ex) {
+                // Simulate the latency.
+                long jitter = this.options.jitter().toMillis();
+                long delay = this.options.latency().toMillis() + (jitter > 0L ? ThreadLocalRandom.current().nextLong(jitter + 1L) : 0L);
+                if (delay > 0L) {
+                    Thread.sleep(delay);
+                }
+
+                // Inject the failure.
+                Reply reply;
+                if (faulty && ThreadLocalRandom.current().nextDouble() < this.options.failure()) {
+                    JsonObject json = new JsonObject();
+                    json.addProperty("error", "stub_failure");
+                    reply = new Reply(503, json, null);
+                } else {
+                    // Read the request.
+                    Map<String, String> form;
+                    try (InputStream in = ex.getRequestBody()) {
+                        String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                        form = body.startsWith("[") ? Map.of("json", body) : parseForm(body.isEmpty() || body.startsWith("{") ? ex.getRequestURI().getRawQuery() : body);
+                    }
+
+                    // Handle it.
+                    reply = route.handle(ex, form);
+                }
+
+                // Send the headers.
+                byte[] data = reply.json() != null ? GSONUtils.GSON.toJson(reply.json()).getBytes(StandardCharsets.UTF_8) : new byte[0];
+                Headers headers = ex.getResponseHeaders();
+                headers.add("Content-Type", "application/json; charset=UTF-8");
+                if (reply.location() != null) {
+                    headers.add("Location", reply.location());
+                }
+                ex.sendResponseHeaders(reply.status(), data.length == 0 ? -1L : data.length);
+
+                // Write the response.
+                if (data.length != 0) {
+                    try (OutputStream out = ex.getResponseBody()) {
+                        out.write(data);
+                    }
+                }
+
+                // Log it.
+                LOGGER.debug("IAS: Stub {} {} -> {} in {} ms.", ex.getRequestMethod(), path.getPath(), reply.status(), delay);
+            } catch (Throwable t) {
+                // Log.
+                LOGGER.warn("IAS: Stub request to {} failed.", path.getPath(), t);
+            }
+        });
+    }
+
+    /**
+     * Handles the browser authorization, redirecting back with the new code.
+     *
+     * @param ex   Target exchange
+     * @param form Request query
+     * @return Redirect reply
+     */
+    @NotNull
+    private Reply authorize(@NotNull HttpExchange ex, @NotNull Map<String, String> form) {
+        String redirect = form.get("redirect_uri");
+        if (redirect == null) return error(400, "invalid_request");
+        String code = token("msac");
+        this.codes.add(code);
+        String state = form.getOrDefault("state", "");
+        return new Reply(302, null, redirect + "?code=" + code + "&state=" + URLEncoder.encode(state, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Issues the Device Auth Code. (DAC)
+     *
+     * @param ex   Target exchange
+     * @param form Request form
+     * @return Device auth reply
+     */
+    @NotNull
+    private Reply deviceCode(@NotNull HttpExchange ex, @NotNull Map<String, String> form) {
+        String device = token("dac");
+        this.devices.put(device, new AtomicInteger(this.options.pending()));
+        JsonObject json = new JsonObject();
+        json.addProperty("device_code", device);
+        json.addProperty("user_code", "STUB" + ThreadLocalRandom.current().nextInt(1000, 10000));
+        json.addProperty("verification_uri", "https://www.microsoft.com/link");
+        json.addProperty("expires_in", 900);
+        json.addProperty("interval", 1);
+        json.addProperty("message", "Stub device code.");
+        return new Reply(200, json, null);
+    }
+
+    /**
+     * Exchanges the device code, the authentication code, or the refresh token for the Microsoft tokens.
+     *
+     * @param ex   Target exchange
+     * @param form Request form
+     * @return Tokens reply
+     */
+    @NotNull
+    private Reply token(@NotNull HttpExchange ex, @NotNull Map<String, String> form) {
+        String grant = form.getOrDefault("grant_type", "");
+        switch (grant) {
+            case "urn:ietf:params:oauth:grant-type:device_code" -> {
+                String device = form.getOrDefault("device_code", "");
+                AtomicInteger pending = this.devices.get(device);
+                if (pending == null) return error(400, "expired_token");
+                if (pending.getAndDecrement() > 0) return error(400, "authorization_pending");
+                this.devices.remove(device);
+            }
+            case "authorization_code" -> {
+                if (!this.codes.remove(form.getOrDefault("code", ""))) return error(400, "invalid_grant");
+            }
+            case "refresh_token" -> {
+                String refresh = form.getOrDefault("refresh_token", "");
+                if (refresh.isEmpty() || !this.spent.add(refresh)) return error(400, "invalid_grant");
+            }
+            default -> {
+                return error(400, "unsupported_grant_type");
+            }
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("token_type", "bearer");
+        json.addProperty("expires_in", 3600);
+        json.addProperty("scope", "XboxLive.signin XboxLive.offline_access");
+        json.addProperty("access_token", token("msa"));
+        json.addProperty("refresh_token", token("msr"));
+        return new Reply(200, json, null);
+    }
+
+    /**
+     * Issues the Xbox Live (XBL) token.
+     *
+     * @param ex   Target exchange
+     * @param form Request query
+     * @return XBL reply
+     */
+    @NotNull
+    private Reply xbl(@NotNull HttpExchange ex, @NotNull Map<String, String> form) {
+        return new Reply(200, this.xToken("xbl"), null);
+    }
+
+    /**
+     * Issues the Xbox Secure Token Service (XSTS) token or the configured {@code XErr}.
+     *
+     * @param ex   Target exchange
+     * @param form Request query
+     * @return XSTS reply
+     */
+    @NotNull
+    private Reply xsts(@NotNull HttpExchange ex, @NotNull Map<String, String> form) {
+        long xerr = this.options.xerr();
+        if (xerr != 0L) {
+            JsonObject json = new JsonObject();
+            json.addProperty("Identity", "0");
+            json.addProperty("XErr", xerr);
+            json.addProperty("Message", "");
+            json.addProperty("Redirect", "https://start.ui.xboxlive.com/");
+            return new Reply(401, json, null);
+        }
+        return new Reply(200, this.xToken("xsts"), null);
+    }
+
+    /**
+     * Issues the Minecraft Access (MCA) token as an unsigned JWT.
+     *
+     * @param ex   Target exchange
+     * @param form Request query
+     * @return MCA reply
+     */
+    @NotNull
+    private Reply mca(@NotNull HttpExchange ex, @NotNull Map<String, String> form) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        long exp = Instant.now().plus(Duration.ofDays(1L)).getEpochSecond();
+        String header = encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8));
+        String payload = encoder.encodeToString(("{\"exp\":" + exp + ",\"xuid\":\"" + this.hash + "\"}").getBytes(StandardCharsets.UTF_8));
+        JsonObject json = new JsonObject();
+        json.addProperty("username", this.uuid.toString());
+        json.add("roles", new JsonArray());
+        json.addProperty("access_token", header + "." + payload + "." + token("sig"));
+        json.addProperty("token_type", "Bearer");
+        json.addProperty("expires_in", 86400);
+        return new Reply(200, json, null);
+    }
+
+    /**
+     * Returns the Minecraft Profile (MCP) of the simulated account.
+     *
+     * @param ex   Target exchange
+     * @param form Request query
+     * @return MCP reply
+     */
+    @NotNull
+    private Reply mcp(@NotNull HttpExchange ex, @NotNull Map<String, String> form) {
+        String auth = ex.getRequestHeaders().getFirst("Authorization");
+        if (auth == null || !auth.startsWith("Bearer ")) return error(401, "UNAUTHORIZED");
+        if (this.options.noProfile()) return error(404, "NOT_FOUND");
+        return new Reply(200, profile(this.uuid, "IASStub"), null);
+    }
+
+    /**
+     * Returns the profile by name with a name-based UUID.
+     *
+     * @param ex   Target exchange
+     * @param form Request query
+     * @return Profile reply
+     */
+    @NotNull
+    private Reply names(@NotNull HttpExchange ex, @NotNull Map<String, String> form) {
+        String path = ex.getRequestURI().getPath();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (name.isEmpty() || name.length() > 16) return error(404, "NOT_FOUND");
+        UUID uuid = UUID.nameUUIDFromBytes(("IASStub:" + name).getBytes(StandardCharsets.UTF_8));
+        return new Reply(200, profile(uuid, name), null);
+    }
+
+    /**
+     * Returns the existing profiles by names with name-based UUIDs.
+     *
+     * @param ex   Target exchange
+     * @param form Request with the JSON array body
+     * @return Profiles reply
+     */
+    @NotNull
+    private Reply profiles(@NotNull HttpExchange ex, @NotNull Map<String, String> form) {
+        JsonArray names = GSONUtils.GSON.fromJson(form.getOrDefault("json", "[]"), JsonArray.class);
+        if (names.size() > MSAuth.BULK_NAMES) return error(400, "CONSTRAINT_VIOLATION");
+        JsonArray profiles = new JsonArray(names.size());
+        for (JsonElement element : names) {
+            String name = element.getAsString();
+            if (name.isEmpty() || name.length() > 16 || name.startsWith("_")) continue;
+            UUID uuid = UUID.nameUUIDFromBytes(("IASStub:" + name).getBytes(StandardCharsets.UTF_8));
+            profiles.add(profile(uuid, name));
+        }
+        return new Reply(200, profiles, null);
+    }
+
+    /**
+     * Creates the XBL or XSTS token response.
+     *
+     * @param type Token type
+     * @return Token JSON
+     */
+    @Contract(pure = true)
+    @NotNull
+    private JsonObject xToken(@NotNull String type) {
+        Instant now = Instant.now();
+        JsonObject xui = new JsonObject();
+        xui.addProperty("uhs", this.hash);
+        JsonArray xuis = new JsonArray();
+        xuis.add(xui);
+        JsonObject claims = new JsonObject();
+        claims.add("xui", xuis);
+        JsonObject json = new JsonObject();
+        json.addProperty("IssueInstant", now.toString());
+        json.addProperty("NotAfter", now.plus(Duration.ofHours(16L)).toString());
+        json.addProperty("Token", token(type));
+        json.add("DisplayClaims", claims);
+        return json;
+    }
+
+    @Contract(pure = true)
+    @Override
+    @NotNull
+    public String toString() {
+        return "MSStubServer{" +
+                "options=" + this.options +
+                ", server=" + this.server +
+                '}';
+    }
+
+    /**
+     * Creates the profile response.
+     *
+     * @param uuid Profile UUID
+     * @param name Profile name
+     * @return Profile JSON
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static JsonObject profile(@NotNull UUID uuid, @NotNull String name) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", uuid.toString().replace("-", ""));
+        json.addProperty("name", name);
+        json.add("skins", new JsonArray());
+        json.add("capes", new JsonArray());
+        return json;
+    }
+
+    /**
+     * Creates the error response.
+     *
+     * @param status Response status
+     * @param error  Error code
+     * @return Error reply
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static Reply error(int status, @NotNull String error) {
+        JsonObject json = new JsonObject();
+        json.addProperty("error", error);
+        return new Reply(status, json, null);
+    }
+
+    /**
+     * Creates the random token.
+     *
+     * @param type Token type
+     * @return Random token
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static String token(@NotNull String type) {
+        return "stub-" + type + "-" + UUID.randomUUID();
+    }
+
+    /**
+     * Parses the URL-encoded form.
+     *
+     * @param form Target form, {@code null} if none
+     * @return Parsed form
+     */
+    @Contract(pure = true)
+    @NotNull
+    private static Map<String, String> parseForm(@Nullable String form) {
+        if (form == null || form.isEmpty()) return Map.of();
+        Map<String, String> map = new HashMap<>(8);
+        for (String pair : form.split("&")) {
+            int index = pair.indexOf('=');
+            if (index == -1) continue;
+            map.put(URLDecoder.decode(pair.substring(0, index), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(index + 1), StandardCharsets.UTF_8));
+        }
+        return map;
+    }
+
+    /**
+     * Starts the stub server until the process is killed.
+     * <p>
+     * Usage: {@code MSStubServer [port]}, options are read from {@link Options#fromProperties()}.
+     *
+     * @param args Command line arguments
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public static void main(@NotNull String[] args) throws InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        MSStubServer server = new MSStubServer(port, Options.fromProperties());
+        LOGGER.info("IAS: Run the game with -Dias.endpoints={} to use the stub server.", server.base());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Stub server options.
+     *
+     * @param latency   Base latency of every response
+     * @param jitter    Maximum random latency added to every response
+     * @param failure   Chance of any API request to fail with {@code 503}, from {@code 0.0} to {@code 1.0}
+     * @param pending   Device code polls answered with {@code authorization_pending} before succeeding
+     * @param xerr      {@code XErr} returned by every XSTS request with {@code 401}, {@code 0} to succeed
+     * @param noProfile Whether the profile requests should fail with {@code 404}
+     * @author VidTu
+     */
+    public record Options(@NotNull Duration latency, @NotNull Duration jitter, double failure, int pending,
+                          long xerr, boolean noProfile) {
+        /**
+         * Instant successful responses.
+         */
+        @NotNull
+        public static final Options DEFAULT = new Options(Duration.ZERO, Duration.ZERO, 0.0D, 0, 0L, false);
+
+        /**
+         * Reads the options from {@code ias.stub.*} system properties.
+         *
+         * @return Read options
+         */
+        @Contract(value = "-> new", pure = true)
+        @NotNull
+        public static Options fromProperties() {
+            return new Options(Duration.ofMillis(Long.getLong("ias.stub.latency", 0L)),
+                    Duration.ofMillis(Long.getLong("ias.stub.jitter", 0L)),
+                    Double.parseDouble(System.getProperty("ias.stub.failure", "0")),
+                    Integer.getInteger("ias.stub.pending", 0),
+                    Long.getLong("ias.stub.xerr", 0L),
+                    Boolean.getBoolean("ias.stub.noProfile"));
+        }
+    }
+
+    /**
+     * Stub route handler.
+     *
+     * @author VidTu
+     */
+    @FunctionalInterface
+    private interface Route {
+        /**
+         * Handles the request.
+         *
+         * @param ex   Target exchange
+         * @param form Request form or query, or the JSON array body under the {@code json} key
+         * @return Response reply
+         * @throws Exception If unable to handle
+         */
+        @NotNull
+        Reply handle(@NotNull HttpExchange ex, @NotNull Map<String, String> form) throws Exception;
+    }
+
+    /**
+     * Stub response.
+     *
+     * @param status   Response status
+     * @param json     Response JSON, {@code null} if none
+     * @param location Redirect location, {@code null} if none
+     * @author VidTu
+     */
+    private record Reply(int status, @Nullable JsonElement json, @Nullable String location) {
+        // Empty
+    }
+}
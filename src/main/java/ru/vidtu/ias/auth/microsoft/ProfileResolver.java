@@ -0,0 +1,335 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.auth.microsoft;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.auth.microsoft.fields.MCProfile;
+import ru.vidtu.ias.utils.GSONUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batched and cached Minecraft profile by name resolver.
+ * <p>
+ * Lookups are deduplicated while in flight, queued for {@link #BATCH_DELAY} milliseconds and sent in batches
+ * of up to {@link MSAuth#BULK_NAMES} names via {@link MSAuth#namesToMcp(List)}. The results are cached
+ * in {@code ias_profiles.json} in the config directory, found profiles for {@link #POSITIVE_TTL} days and
+ * missing profiles for {@link #NEGATIVE_TTL} hours. Failed lookups are not cached.
+ *
+ * @author VidTu
+ * @apiNote All methods in this class can be called from another thread
+ */
+public final class ProfileResolver {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/ProfileResolver");
+
+    /**
+     * Delay before sending a non-full batch in milliseconds.
+     */
+    private static final long BATCH_DELAY = 50L;
+
+    /**
+     * Found profile cache lifetime in days.
+     */
+    private static final long POSITIVE_TTL = 7L;
+
+    /**
+     * Missing profile cache lifetime in hours.
+     */
+    private static final long NEGATIVE_TTL = 1L;
+
+    /**
+     * Maximum amount of cached names.
+     */
+    private static final int MAX_CACHED = 1024;
+
+    /**
+     * Cached lookups by lowercase name.
+     */
+    @NotNull
+    private static final Map<String, Cached> CACHE = new ConcurrentHashMap<>(16);
+
+    /**
+     * In-flight lookups by lowercase name. Guarded by itself.
+     */
+    @NotNull
+    private static final Map<String, CompletableFuture<MCProfile>> PENDING = new LinkedHashMap<>(16);
+
+    /**
+     * Queued names for the next batch in request order. Guarded by {@link #PENDING}.
+     */
+    @NotNull
+    private static final List<String> QUEUE = new ArrayList<>(MSAuth.BULK_NAMES);
+
+    /**
+     * Whether the batch flush is scheduled. Guarded by {@link #PENDING}.
+     */
+    private static boolean scheduled;
+
+    /**
+     * Cache file, {@code null} if not loaded.
+     */
+    @Nullable
+    private static volatile Path file;
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private ProfileResolver() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Loads the cache from the config directory.
+     *
+     * @param path Config directory
+     * @throws RuntimeException If unable to load the cache
+     */
+    public static void load(@NotNull Path path) {
+        try {
+            // Get the file.
+            Path cache = path.resolve("ias_profiles.json");
+            file = cache;
+
+            // Skip if it doesn't exist.
+            if (!Files.isRegularFile(cache)) return;
+
+            // Read JSON.
+            JsonObject json = GSONUtils.GSON.fromJson(Files.readString(cache), JsonObject.class);
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+                JsonObject value = entry.getValue().getAsJsonObject();
+                long expires = GSONUtils.getLongOrThrow(value, "expires");
+                if (expires <= now) continue;
+                UUID uuid = value.has("uuid") ? UUID.fromString(GSONUtils.getStringOrThrow(value, "uuid")) : null;
+                String name = value.has("name") ? GSONUtils.getStringOrThrow(value, "name") : entry.getKey();
+                CACHE.put(entry.getKey().toLowerCase(Locale.ROOT), new Cached(uuid == null ? null : new MCProfile(uuid, name), expires));
+            }
+
+            // Log it.
+            LOGGER.debug("IAS: Loaded {} cached profiles from {}.", CACHE.size(), cache);
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to load IAS profile cache.", t);
+        }
+    }
+
+    /**
+     * Resolves the profile by name.
+     *
+     * @param name Player name
+     * @return Future that will complete with the profile, with null if there's no such profile, or exceptionally
+     */
+    @CheckReturnValue
+    @NotNull
+    public static CompletableFuture<MCProfile> resolve(@NotNull String name) {
+        // Return cached, if any.
+        String key = name.toLowerCase(Locale.ROOT);
+        Cached cached = CACHE.get(key);
+        if (cached != null && cached.expires() > System.currentTimeMillis()) {
+            return CompletableFuture.completedFuture(cached.profile());
+        }
+
+        synchronized (PENDING) {
+            // Join the in-flight lookup, if any.
+            CompletableFuture<MCProfile> pending = PENDING.get(key);
+            if (pending != null) return pending.thenApply(profile -> profile);
+
+            // Queue the lookup.
+            CompletableFuture<MCProfile> future = new CompletableFuture<>();
+            PENDING.put(key, future);
+            QUEUE.add(name);
+
+            // Flush the full batch or schedule the flush.
+            if (QUEUE.size() >= MSAuth.BULK_NAMES) {
+                IASExecutors.io().execute(ProfileResolver::flush);
+            } else if (!scheduled) {
+                scheduled = true;
+                IASExecutors.schedule(ProfileResolver::flush, BATCH_DELAY, TimeUnit.MILLISECONDS);
+            }
+
+            // Return a copy, so the shared lookup can't be cancelled.
+            return future.thenApply(profile -> profile);
+        }
+    }
+
+    /**
+     * Sends the queued names in batches.
+     */
+    private static void flush() {
+        while (true) {
+            // Take the batch.
+            List<String> batch;
+            synchronized (PENDING) {
+                if (QUEUE.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+                int size = Math.min(QUEUE.size(), MSAuth.BULK_NAMES);
+                batch = List.copyOf(QUEUE.subList(0, size));
+                QUEUE.subList(0, size).clear();
+            }
+
+            // Send the batch.
+            LOGGER.debug("IAS: Resolving {} profiles...", batch.size());
+            CompletableFuture<List<MCProfile>> request;
+            try {
+                request = MSAuth.namesToMcp(batch);
+            } catch (Throwable t) {
+                request = CompletableFuture.failedFuture(t);
+            }
+            request.whenComplete((profiles, error) -> complete(batch, profiles, error));
+        }
+    }
+
+    /**
+     * Completes the batch lookups.
+     *
+     * @param batch    Requested names
+     * @param profiles Resolved profiles, {@code null} on error
+     * @param error    Lookup error, {@code null} on success
+     */
+    private static void complete(@NotNull List<String> batch, @Nullable List<MCProfile> profiles, @Nullable Throwable error) {
+        // Index the found profiles.
+        Map<String, MCProfile> found = new HashMap<>(batch.size());
+        if (profiles != null) {
+            for (MCProfile profile : profiles) {
+                found.put(profile.name().toLowerCase(Locale.ROOT), profile);
+            }
+        }
+
+        // Cache and complete the lookups.
+        long now = System.currentTimeMillis();
+        for (String name : batch) {
+            String key = name.toLowerCase(Locale.ROOT);
+            CompletableFuture<MCProfile> future;
+            synchronized (PENDING) {
+                future = PENDING.remove(key);
+            }
+            if (future == null) continue;
+            if (error != null) {
+                future.completeExceptionally(new RuntimeException("Unable to resolve profile by name '" + name + "'.", error));
+                continue;
+            }
+            MCProfile profile = found.get(key);
+            long ttl = profile != null ? TimeUnit.DAYS.toMillis(POSITIVE_TTL) : TimeUnit.HOURS.toMillis(NEGATIVE_TTL);
+            CACHE.put(key, new Cached(profile, now + ttl));
+            future.complete(profile);
+        }
+
+        // Save the cache.
+        if (error != null) {
+            LOGGER.debug("IAS: Unable to resolve profiles {}.", batch, error);
+            return;
+        }
+        try {
+            save();
+        } catch (Throwable t) {
+            LOGGER.debug("IAS: Unable to save IAS profile cache.", t);
+        }
+    }
+
+    /**
+     * Saves the cache, dropping the expired and the oldest entries.
+     *
+     * @throws RuntimeException If unable to save the cache
+     */
+    private static void save() {
+        try {
+            // Skip if not loaded.
+            Path cache = file;
+            if (cache == null) return;
+
+            // Prune the cache.
+            long now = System.currentTimeMillis();
+            CACHE.values().removeIf(cached -> cached.expires() <= now);
+            Iterator<String> overflow = CACHE.keySet().iterator();
+            for (int excess = CACHE.size() - MAX_CACHED; excess > 0 && overflow.hasNext(); excess--) {
+                overflow.next();
+                overflow.remove();
+            }
+
+            // Write JSON.
+            JsonObject json = new JsonObject();
+            CACHE.forEach((key, cached) -> {
+                JsonObject value = new JsonObject();
+                MCProfile profile = cached.profile();
+                if (profile != null) {
+                    value.addProperty("uuid", profile.uuid().toString());
+                    value.addProperty("name", profile.name());
+                }
+                value.addProperty("expires", cached.expires());
+                json.add(key, value);
+            });
+            String value = GSONUtils.GSON.toJson(json);
+
+            // Create parent directories.
+            Files.createDirectories(cache.getParent());
+
+            // Write the file.
+            synchronized (CACHE) {
+                Files.writeString(cache, value, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE,
+                        StandardOpenOption.SYNC, StandardOpenOption.DSYNC);
+            }
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to save IAS profile cache.", t);
+        }
+    }
+
+    /**
+     * Cached lookup.
+     *
+     * @param profile Resolved profile, {@code null} if there's no such profile
+     * @param expires Expiration time in epoch millis
+     * @author VidTu
+     */
+    private record Cached(@Nullable MCProfile profile, long expires) {
+        // Empty
+    }
+}
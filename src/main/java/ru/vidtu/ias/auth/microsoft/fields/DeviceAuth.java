@@ -19,11 +19,10 @@
 
 package ru.vidtu.ias.auth.microsoft.fields;
 
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
-import ru.vidtu.ias.utils.GSONUtils;
 
 import java.net.URI;
 import java.time.Duration;
@@ -41,30 +40,47 @@ import java.time.Duration;
 public record DeviceAuth(@NotNull String device, @NotNull String user, @NotNull URI uri,
                          @NotNull Duration expire, @NotNull Duration interval) {
     /**
-     * Extracts the device auth from the JSON.
+     * Reads the device auth from the JSON stream, skipping unknown fields.
      *
-     * @param json Target JSON
-     * @return Extracted MS tokens
-     * @throws JsonParseException If unable to extract
+     * @param reader Target JSON reader
+     * @return Read device auth
+     * @throws JsonParseException If unable to read
      */
-    @Contract(value = "_ -> new", pure = true)
+    @Contract(value = "_ -> new")
     @NotNull
-    public static DeviceAuth fromJson(@NotNull JsonObject json) {
+    public static DeviceAuth read(@NotNull JsonReader reader) {
         try {
-            // Extract.
-            String device = GSONUtils.getStringOrThrow(json, "device_code");
-            String user = GSONUtils.getStringOrThrow(json, "user_code");
-            String rawVerificationUri = GSONUtils.getStringOrThrow(json, "verification_uri");
+            // Read.
+            String device = null;
+            String user = null;
+            String rawVerificationUri = null;
+            long rawExpire = -1L;
+            long rawInterval = -1L;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "device_code" -> device = reader.nextString();
+                    case "user_code" -> user = reader.nextString();
+                    case "verification_uri" -> rawVerificationUri = reader.nextString();
+                    case "expires_in" -> rawExpire = reader.nextLong();
+                    case "interval" -> rawInterval = reader.nextLong();
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (device == null) throw new IllegalStateException("Missing 'device_code'.");
+            if (user == null) throw new IllegalStateException("Missing 'user_code'.");
+            if (rawVerificationUri == null) throw new IllegalStateException("Missing 'verification_uri'.");
+
+            // Validate.
             URI uri = new URI(rawVerificationUri).parseServerAuthority();
             if (!"https".equals(uri.getScheme())) {
                 throw new IllegalStateException("Invalid URL scheme: " + uri);
             }
-            long rawExpire = GSONUtils.getLongOrThrow(json, "expires_in");
             Duration expire = Duration.ofSeconds(rawExpire);
             if (expire.isNegative() || expire.isZero() || expire.toDays() > 2) {
                 throw new IllegalStateException("Invalid expire: " + expire + " (" + rawExpire + ")");
             }
-            long rawInterval = GSONUtils.getLongOrThrow(json, "interval");
             Duration interval = Duration.ofSeconds(rawInterval);
             if (interval.isNegative() || interval.isZero() || interval.compareTo(expire) >= 0) {
                 throw new IllegalStateException("Invalid interval (with expire of " + expire + ": " + interval + " (" + rawInterval + ")");
@@ -74,7 +90,7 @@ public record DeviceAuth(@NotNull String device, @NotNull String user, @NotNull
             return new DeviceAuth(device, user, uri, expire, interval);
         } catch (Throwable t) {
             // Rethrow.
-            throw new JsonParseException("Unable to parse DeviceAuth: " + json, t);
+            throw new JsonParseException("Unable to parse DeviceAuth at " + reader.getPath(), t);
         }
     }
 }
@@ -19,16 +19,13 @@
 
 package ru.vidtu.ias.auth.microsoft.fields;
 
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import ru.vidtu.ias.auth.microsoft.MSAuth;
-import ru.vidtu.ias.utils.GSONUtils;
 
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Minecraft player profile.
@@ -41,45 +38,70 @@ import java.util.regex.Pattern;
  */
 public record MCProfile(@NotNull UUID uuid, @NotNull String name) {
     /**
-     * Dashless UUID pattern.
+     * Reads the profile from the JSON stream, skipping unknown fields.
+     *
+     * @param reader Target JSON reader
+     * @return Read profile
+     * @throws JsonParseException If unable to read
      */
+    @Contract(value = "_ -> new")
     @NotNull
-    private static final Pattern UUID_DASHLESS = Pattern.compile("(\\w{8})(\\w{4})(\\w{4})(\\w{4})(\\w{12})");
+    public static MCProfile read(@NotNull JsonReader reader) {
+        try {
+            // Read the ID and name.
+            String id = null;
+            String name = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id" -> id = reader.nextString();
+                    case "name" -> name = reader.nextString();
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
 
-    /**
-     * Dashed UUID replacer.
-     */
-    @NotNull
-    private static final String UUID_DASHED = "$1-$2-$3-$4-$5";
+            // Create and return.
+            if (id == null) throw new IllegalStateException("Missing 'id'.");
+            if (name == null) throw new IllegalStateException("Missing 'name'.");
+            return new MCProfile(parseUuid(id), name);
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new JsonParseException("Unable to parse MCProfile at " + reader.getPath(), t);
+        }
+    }
 
     /**
-     * Extracts the MS tokens from the JSON.
+     * Parses the dashless UUID directly from its hex digits.
      *
-     * @param json Target JSON
-     * @return Extracted MS tokens
-     * @throws JsonParseException If unable to extract
+     * @param id Dashless UUID
+     * @return Parsed UUID
+     * @throws IllegalArgumentException If the UUID is not 32 hex digits
      */
     @Contract(value = "_ -> new", pure = true)
     @NotNull
-    public static MCProfile fromJson(@NotNull JsonObject json) {
-        try {
-            // Extract the ID and name.
-            String id = GSONUtils.getStringOrThrow(json, "id");
-            String name = GSONUtils.getStringOrThrow(json, "name");
+    public static UUID parseUuid(@NotNull String id) {
+        // Validate the length.
+        if (id.length() != 32) {
+            throw new IllegalArgumentException("Invalid UUID: " + id);
+        }
 
-            // Validate and convert the UUID.
-            Matcher matcher = UUID_DASHLESS.matcher(id);
-            if (!matcher.matches()) {
-                throw new IllegalStateException("Invalid UUID: " + id);
+        // Parse the halves.
+        long most = 0L;
+        long least = 0L;
+        for (int i = 0; i < 32; i++) {
+            int digit = Character.digit(id.charAt(i), 16);
+            if (digit == -1) {
+                throw new IllegalArgumentException("Invalid UUID: " + id);
+            }
+            if (i < 16) {
+                most = (most << 4) | digit;
+            } else {
+                least = (least << 4) | digit;
             }
-            id = matcher.replaceAll(UUID_DASHED);
-            UUID uuid = UUID.fromString(id);
-
-            // Create and return.
-            return new MCProfile(uuid, name);
-        } catch (Throwable t) {
-            // Rethrow.
-            throw new JsonParseException("Unable to parse MCProfile: " + json, t);
         }
+
+        // Create.
+        return new UUID(most, least);
     }
 }
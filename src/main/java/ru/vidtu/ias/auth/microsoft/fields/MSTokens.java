@@ -19,13 +19,12 @@
 
 package ru.vidtu.ias.auth.microsoft.fields;
 
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import ru.vidtu.ias.auth.LoginData;
 import ru.vidtu.ias.auth.microsoft.MSAuth;
-import ru.vidtu.ias.utils.GSONUtils;
 
 /**
  * A pair of Microsoft access and refresh tokens.
@@ -40,25 +39,36 @@ import ru.vidtu.ias.utils.GSONUtils;
  */
 public record MSTokens(@NotNull String access, @NotNull String refresh) {
     /**
-     * Extracts the MS tokens from the JSON.
+     * Reads the MS tokens from the JSON stream, skipping unknown fields.
      *
-     * @param json Target JSON
-     * @return Extracted MS tokens
-     * @throws JsonParseException If unable to extract
+     * @param reader Target JSON reader
+     * @return Read MS tokens
+     * @throws JsonParseException If unable to read
      */
-    @Contract(value = "_ -> new", pure = true)
+    @Contract(value = "_ -> new")
     @NotNull
-    public static MSTokens fromJson(@NotNull JsonObject json) {
+    public static MSTokens read(@NotNull JsonReader reader) {
         try {
-            // Extract the tokens.
-            String access = GSONUtils.getStringOrThrow(json, "access_token");
-            String refresh = GSONUtils.getStringOrThrow(json, "refresh_token");
+            // Read the tokens.
+            String access = null;
+            String refresh = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "access_token" -> access = reader.nextString();
+                    case "refresh_token" -> refresh = reader.nextString();
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
 
             // Create the tokens.
+            if (access == null) throw new IllegalStateException("Missing 'access_token'.");
+            if (refresh == null) throw new IllegalStateException("Missing 'refresh_token'.");
             return new MSTokens(access, refresh);
         } catch (Throwable t) {
             // Rethrow.
-            throw new JsonParseException("Unable to parse MSTokens: " + json, t);
+            throw new JsonParseException("Unable to parse MSTokens at " + reader.getPath(), t);
         }
     }
 }
@@ -19,59 +19,86 @@
 
 package ru.vidtu.ias.auth.microsoft.fields;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import ru.vidtu.ias.auth.microsoft.MSAuth;
-import ru.vidtu.ias.utils.GSONUtils;
+
+import java.time.Instant;
 
 /**
  * XBL or XSTS token paired with user hash.
  *
- * @param token Target token
- * @param hash  User hash
+ * @param token   Target token
+ * @param hash    User hash
+ * @param expires Token expiry time ({@code NotAfter}) in epoch milliseconds, {@code 0} if unknown
  * @author VidTu
  * @see MSAuth#msaToXbl(String)
  * @see MSAuth#xblToXsts(String, String)
  * @see MSAuth#xstsToMca(String, String)
  */
-public record XHashedToken(@NotNull String token, @NotNull String hash) {
+public record XHashedToken(@NotNull String token, @NotNull String hash, long expires) {
     /**
-     * Extracts the MS tokens from the JSON.
+     * Reads the hashed token from the JSON stream, skipping unknown fields.
      *
-     * @param json Target JSON
-     * @return Extracted MS tokens
-     * @throws JsonParseException If unable to extract
+     * @param reader Target JSON reader
+     * @return Read hashed token
+     * @throws JsonParseException If unable to read
      */
-    @Contract(value = "_ -> new", pure = true)
+    @Contract(value = "_ -> new")
     @NotNull
-    public static XHashedToken fromJson(@NotNull JsonObject json) {
+    public static XHashedToken read(@NotNull JsonReader reader) {
         try {
-            // Extract the token.
-            String token = GSONUtils.getStringOrThrow(json, "Token");
-            JsonObject displayClaims = GSONUtils.getObjectOrThrow(json, "DisplayClaims");
-
-            // Extract the XUI (UHS) token.
-            JsonArray xui = GSONUtils.getArrayOrThrow(displayClaims, "xui");
-            int size = xui.size();
-            if (size != 1) {
-                throw new IllegalArgumentException("Unexpected 'xui' size: " + size);
-            }
-            JsonElement xuiEntry = xui.get(0);
-            if (!xuiEntry.isJsonObject()) {
-                throw new IllegalArgumentException("Entry of 'xui' is not a JSON object: " + xuiEntry);
+            // Read the token and the XUI (UHS) hash.
+            String token = null;
+            String uhs = null;
+            long expires = 0L;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "Token" -> token = reader.nextString();
+                    case "NotAfter" -> expires = Instant.parse(reader.nextString()).toEpochMilli();
+                    case "DisplayClaims" -> {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (!"xui".equals(reader.nextName())) {
+                                reader.skipValue();
+                                continue;
+                            }
+                            reader.beginArray();
+                            int size = 0;
+                            while (reader.hasNext()) {
+                                size++;
+                                reader.beginObject();
+                                while (reader.hasNext()) {
+                                    if ("uhs".equals(reader.nextName())) {
+                                        uhs = reader.nextString();
+                                    } else {
+                                        reader.skipValue();
+                                    }
+                                }
+                                reader.endObject();
+                            }
+                            reader.endArray();
+                            if (size != 1) {
+                                throw new IllegalArgumentException("Unexpected 'xui' size: " + size);
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    default -> reader.skipValue();
+                }
             }
-            JsonObject xuiJson = xuiEntry.getAsJsonObject();
-            String uhs = GSONUtils.getStringOrThrow(xuiJson, "uhs");
+            reader.endObject();
 
             // Create the token.
-            return new XHashedToken(token, uhs);
+            if (token == null) throw new IllegalStateException("Missing 'Token'.");
+            if (uhs == null) throw new IllegalStateException("Missing 'DisplayClaims.xui[0].uhs'.");
+            return new XHashedToken(token, uhs, expires);
         } catch (Throwable t) {
             // Rethrow.
-            throw new JsonParseException("Unable to parse XHashedToken: " + json, t);
+            throw new JsonParseException("Unable to parse XHashedToken at " + reader.getPath(), t);
         }
     }
 }
@@ -167,6 +167,16 @@ public final class IASConfig {
      */
     public static boolean passwordEchoing = true;
 
+    /**
+     * Whether to remember password-crypted account keys in the master keyring.
+     */
+    public static boolean keyring = false;
+
+    /**
+     * Whether to refresh Microsoft account tokens in background before they expire.
+     */
+    public static boolean backgroundRefresh = false;
+
     /**
      * Creates a new config for GSON.
      */
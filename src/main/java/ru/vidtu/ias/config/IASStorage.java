@@ -29,14 +29,17 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Predicate;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
@@ -94,6 +97,11 @@ public final class IASStorage {
             "ПРОЧТИ_МЕНЯ_ВАЖНО.txt" // Russian
     );
 
+    /**
+     * Version of the account metadata block written after all the accounts.
+     */
+    private static final int META_VERSION = 1;
+
     /**
      * Logger for this class.
      */
@@ -101,10 +109,10 @@ public final class IASStorage {
     public static final Logger LOGGER = LoggerFactory.getLogger("IAS/IASStorage");
 
     /**
-     * Account data, encrypted or not.
+     * Account data, encrypted or not. Modified on the game thread, but can be read (and saved) from any thread.
      */
     @NotNull
-    public static final List<Account> ACCOUNTS = new ArrayList<>(0);
+    public static final List<Account> ACCOUNTS = new CopyOnWriteArrayList<>();
 
     /**
      * Whether the game disclaimer was shown.
@@ -195,6 +203,25 @@ public final class IASStorage {
                     list.add(Account.readTyped(in));
                 }
 
+                // Read the metadata, if any. (older versions don't write it)
+                int version = in.read();
+                if (version == META_VERSION) {
+                    try {
+                        for (Account account : list) {
+                            byte[] meta = new byte[in.readUnsignedShort()];
+                            in.readFully(meta);
+                            if (meta.length == 0) continue;
+                            try (DataInputStream metaIn = new DataInputStream(new ByteArrayInputStream(meta))) {
+                                account.readMeta(metaIn);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        LOGGER.warn("IAS: Unable to read accounts metadata, skipping.", t);
+                    }
+                } else if (version != -1) {
+                    LOGGER.warn("IAS: Unknown accounts metadata version {}, skipping.", version);
+                }
+
                 // Flush the list.
                 ACCOUNTS.addAll(list);
 
@@ -212,12 +239,13 @@ public final class IASStorage {
     }
 
     /**
-     * Saves the storage.
+     * Saves the storage. The saves are serialized, so the last captured accounts list is always the one written,
+     * and the file is replaced atomically, if supported, so it's never left partially written.
      *
      * @param path Game directory
      * @throws RuntimeException If unable to save the storage
      */
-    public static void save(@NotNull Path path) {
+    public static synchronized void save(@NotNull Path path) {
         try {
             // Log.
             LOGGER.debug("IAS: Saving storage into {}...", path);
@@ -243,6 +271,18 @@ public final class IASStorage {
                     Account.writeTyped(out, account);
                 }
 
+                // Write the metadata. (after the accounts, so the older versions can still read them)
+                out.writeByte(META_VERSION);
+                for (Account account : list) {
+                    try (ByteArrayOutputStream metaBytes = new ByteArrayOutputStream();
+                         DataOutputStream metaOut = new DataOutputStream(metaBytes)) {
+                        account.writeMeta(metaOut);
+                        byte[] meta = metaBytes.toByteArray();
+                        out.writeShort(meta.length);
+                        out.write(meta);
+                    }
+                }
+
                 // Flush the data.
                 defOut.finish();
                 data = byteOut.toByteArray();
@@ -265,11 +305,19 @@ public final class IASStorage {
                 // Ignored
             }
 
-            // Write the data.
-            Files.write(file, data, StandardOpenOption.CREATE,
+            // Write the data into the temporary file.
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, data, StandardOpenOption.CREATE,
                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE,
                     StandardOpenOption.SYNC, StandardOpenOption.DSYNC, LinkOption.NOFOLLOW_LINKS);
 
+            // Replace the file.
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+
             // Log it.
             LOGGER.debug("IAS: Saved {} accounts to {}.", list.length, file);
         } catch (Throwable t) {
@@ -23,18 +23,20 @@ import com.google.errorprone.annotations.CheckReturnValue;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import ru.vidtu.ias.IAS;
 import ru.vidtu.ias.utils.exceptions.FriendlyException;
 
 import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.DataInput;
+import java.nio.charset.StandardCharsets;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 
@@ -44,6 +46,16 @@ import java.util.function.Supplier;
  * @author VidTu
  */
 public sealed interface Crypt permits DummyCrypt, HardwareCrypt, PasswordCrypt {
+    /**
+     * Amount of PBKDF2 iterations.
+     */
+    int PBKDF_ITERATIONS = 500_000;
+
+    /**
+     * Amount of PBKDF2 iterations between cancellation checks and progress reports.
+     */
+    int PBKDF_CHUNK = 10_000;
+
     /**
      * Gets whether this crypt is insecure.
      *
@@ -78,7 +90,19 @@ public sealed interface Crypt permits DummyCrypt, HardwareCrypt, PasswordCrypt {
      * @throws RuntimeException On encryption error
      */
     @Contract(pure = true)
-    byte @NotNull [] encrypt(byte @NotNull [] decrypted);
+    default byte @NotNull [] encrypt(byte @NotNull [] decrypted) {
+        return this.encrypt(decrypted, CryptProgress.NONE);
+    }
+
+    /**
+     * Encrypts the value.
+     *
+     * @param decrypted Decrypted data
+     * @param progress  Key derivation progress listener
+     * @return Encrypted value
+     * @throws RuntimeException On encryption error or if cancelled via {@code progress}
+     */
+    byte @NotNull [] encrypt(byte @NotNull [] decrypted, @NotNull CryptProgress progress);
 
     /**
      * Decrypts the value.
@@ -88,28 +112,38 @@ public sealed interface Crypt permits DummyCrypt, HardwareCrypt, PasswordCrypt {
      * @throws RuntimeException On decryption error
      */
     @Contract(pure = true)
-    byte @NotNull [] decrypt(byte @NotNull [] encrypted);
+    default byte @NotNull [] decrypt(byte @NotNull [] encrypted) {
+        return this.decrypt(encrypted, CryptProgress.NONE);
+    }
+
+    /**
+     * Decrypts the value.
+     *
+     * @param encrypted Encrypted data
+     * @param progress  Key derivation progress listener
+     * @return Decrypted value
+     * @throws RuntimeException On decryption error or if cancelled via {@code progress}
+     */
+    byte @NotNull [] decrypt(byte @NotNull [] encrypted, @NotNull CryptProgress progress);
 
     /**
      * Reads the typed crypt.
      *
-     * @param input    Target input
-     * @param password Password provider, if required
+     * @param type      Crypt type
+     * @param encrypted Encrypted data following the type, used to look up the {@link Keyring}
+     * @param password  Password provider, if required
      * @return Future will contain crypt on success, will contain {@code null} if {@code password} returns {@code null} on request, will complete exceptionally on error or unknown crypt type
      */
     @CheckReturnValue
     @NotNull
-    static CompletableFuture<Crypt> readType(@NotNull DataInput input, @NotNull Supplier<CompletableFuture<String>> password) {
+    static CompletableFuture<Crypt> readType(@NotNull String type, byte @NotNull [] encrypted, @NotNull Supplier<CompletableFuture<String>> password) {
         try {
-            // Read type.
-            String type = input.readUTF();
-
             // Create
             return switch (type) {
                 case "ias:dummy_crypt_v1" -> CompletableFuture.completedFuture(DummyCrypt.INSTANCE);
                 case "ias:hardware_crypt_v1" -> CompletableFuture.completedFuture(HardwareCrypt.INSTANCE_V1);
                 case "ias:hardware_crypt_v2" -> CompletableFuture.completedFuture(HardwareCrypt.INSTANCE_V2);
-                case "ias:password_crypt_v1" -> password.get().thenApplyAsync(pass -> pass == null ? null : new PasswordCrypt(pass), IAS.executor());
+                case "ias:password_crypt_v1" -> PasswordCrypt.read(encrypted, password);
                 default -> CompletableFuture.failedFuture(new IllegalArgumentException("Unknown crypt type: " + type));
             };
         } catch (Throwable t) {
@@ -124,50 +158,173 @@ public sealed interface Crypt permits DummyCrypt, HardwareCrypt, PasswordCrypt {
      * @param password  Target password
      * @param salt      Target salt
      * @param iv        IV for AES
+     * @param progress  Key derivation progress listener
+     * @return Encrypted data
+     * @throws RuntimeException If unable to encrypt the data or if cancelled via {@code progress}
+     */
+    static byte @NotNull [] pbkdfAesEncrypt(byte @NotNull [] decrypted, @NotNull String password,
+                                            byte @NotNull [] salt, byte @NotNull [] iv,
+                                            @NotNull CryptProgress progress) {
+        try {
+            // Create the key, encrypt and return.
+            return aesEncrypt(decrypted, pbkdf(password, salt, progress), iv);
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to encrypt data using AES via PBKDF2-hashed password.", t);
+        }
+    }
+
+    /**
+     * Decrypts the data using password and salt.
+     *
+     * @param encrypted Encrypted data
+     * @param password  Target password
+     * @param salt      Target salt
+     * @param iv        IV for AES
+     * @param progress  Key derivation progress listener
+     * @return Decrypted data
+     * @throws RuntimeException If unable to decrypt the data or if cancelled via {@code progress}
+     */
+    static byte @NotNull [] pbkdfAesDecrypt(byte @NotNull [] encrypted, @NotNull String password,
+                                            byte @NotNull [] salt, byte @NotNull [] iv,
+                                            @NotNull CryptProgress progress) {
+        try {
+            // Create the key, decrypt and return.
+            return aesDecrypt(encrypted, pbkdf(password, salt, progress), iv);
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to decrypt data using AES via PBKDF2-hashed password.", t);
+        }
+    }
+
+    /**
+     * Derives the AES key from the password and salt.
+     *
+     * @param password Target password
+     * @param salt     Target salt
+     * @return Derived 256-bit key
+     * @throws RuntimeException If unable to derive the key
+     */
+    @Contract(pure = true)
+    static byte @NotNull [] pbkdf(@NotNull String password, byte @NotNull [] salt) {
+        return pbkdf(password, salt, CryptProgress.NONE);
+    }
+
+    /**
+     * Derives the AES key from the password and salt using {@code PBKDF2WithHmacSHA512}
+     * with {@value #PBKDF_ITERATIONS} iterations and a 256-bit key.
+     * <p>
+     * This is a chunked implementation that is bit-compatible with the JCE one (the password is encoded
+     * using UTF-8), but checks the cancellation and reports the progress every
+     * {@value #PBKDF_CHUNK} iterations.
+     *
+     * @param password Target password
+     * @param salt     Target salt
+     * @param progress Derivation progress listener
+     * @return Derived 256-bit key
+     * @throws RuntimeException If unable to derive the key or if cancelled via {@code progress}
+     */
+    static byte @NotNull [] pbkdf(@NotNull String password, byte @NotNull [] salt, @NotNull CryptProgress progress) {
+        try {
+            // Check for cancellation.
+            if (progress.cancelled()) {
+                throw new CancellationException("Key derivation cancelled before start.");
+            }
+            progress.progress(0);
+
+            // Use JCE for empty passwords, HMAC doesn't accept empty keys.
+            byte[] pass = password.getBytes(StandardCharsets.UTF_8);
+            if (pass.length == 0) {
+                SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+                KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, PBKDF_ITERATIONS, 256);
+                byte[] key = factory.generateSecret(spec).getEncoded();
+                progress.progress(100);
+                return key;
+            }
+
+            // Create the HMAC.
+            Mac mac = Mac.getInstance("HmacSHA512");
+            mac.init(new SecretKeySpec(pass, "HmacSHA512"));
+            Arrays.fill(pass, (byte) 0);
+
+            // First iteration. (single block, key is shorter than HMAC output)
+            byte[] u = new byte[mac.getMacLength()];
+            mac.update(salt);
+            mac.update(new byte[]{0, 0, 0, 1});
+            mac.doFinal(u, 0);
+            byte[] t = u.clone();
+
+            // Other iterations.
+            for (int i = 1; i < PBKDF_ITERATIONS; i++) {
+                // Check for cancellation and report progress.
+                if (i % PBKDF_CHUNK == 0) {
+                    if (progress.cancelled()) {
+                        throw new CancellationException("Key derivation cancelled at iteration " + i + '.');
+                    }
+                    progress.progress((int) (i * 100L / PBKDF_ITERATIONS));
+                }
+
+                // Iterate.
+                mac.update(u);
+                mac.doFinal(u, 0);
+                for (int j = 0; j < t.length; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+
+            // Truncate and return.
+            byte[] key = Arrays.copyOf(t, 32);
+            Arrays.fill(t, (byte) 0);
+            Arrays.fill(u, (byte) 0);
+            progress.progress(100);
+            return key;
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to derive key via PBKDF2.", t);
+        }
+    }
+
+    /**
+     * Encrypts the data using the derived key.
+     *
+     * @param decrypted Decrypted data
+     * @param key       Derived key (e.g. from {@link #pbkdf(String, byte[])})
+     * @param iv        IV for AES
      * @return Encrypted data
      * @throws RuntimeException If unable to encrypt the data
      */
     @Contract(pure = true)
-    static byte @NotNull [] pbkdfAesEncrypt(byte @NotNull [] decrypted, @NotNull String password,
-                                            byte @NotNull [] salt, byte @NotNull [] iv) {
+    static byte @NotNull [] aesEncrypt(byte @NotNull [] decrypted, byte @NotNull [] key, byte @NotNull [] iv) {
         try {
-            // Create the key.
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
-            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 500_000, 256);
-            byte[] secret = factory.generateSecret(spec).getEncoded();
-            SecretKey key = new SecretKeySpec(secret, "AES");
+            // Create the cipher.
+            SecretKey secret = new SecretKeySpec(key, "AES");
             Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+            cipher.init(Cipher.ENCRYPT_MODE, secret, new GCMParameterSpec(128, iv));
 
             // Encrypt and return.
             return cipher.doFinal(decrypted);
         } catch (Throwable t) {
             // Rethrow.
-            throw new RuntimeException("Unable to encrypt data using AES via PBKDF2-hashed password.", t);
+            throw new RuntimeException("Unable to encrypt data using AES.", t);
         }
     }
 
     /**
-     * Decrypts the data using password and salt.
+     * Decrypts the data using the derived key.
      *
      * @param encrypted Encrypted data
-     * @param password  Target password
-     * @param salt      Target salt
+     * @param key       Derived key (e.g. from {@link #pbkdf(String, byte[])})
      * @param iv        IV for AES
      * @return Decrypted data
      * @throws RuntimeException If unable to decrypt the data
      */
     @Contract(pure = true)
-    static byte @NotNull [] pbkdfAesDecrypt(byte @NotNull [] encrypted, @NotNull String password,
-                                            byte @NotNull [] salt, byte @NotNull [] iv) {
+    static byte @NotNull [] aesDecrypt(byte @NotNull [] encrypted, byte @NotNull [] key, byte @NotNull [] iv) {
         try {
-            // Create the key.
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
-            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 500_000, 256);
-            byte[] secret = factory.generateSecret(spec).getEncoded();
-            SecretKey key = new SecretKeySpec(secret, "AES");
+            // Create the cipher.
+            SecretKey secret = new SecretKeySpec(key, "AES");
             Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+            cipher.init(Cipher.DECRYPT_MODE, secret, new GCMParameterSpec(128, iv));
 
             // Decrypt and return.
             try {
@@ -178,7 +335,7 @@ public sealed interface Crypt permits DummyCrypt, HardwareCrypt, PasswordCrypt {
             }
         } catch (Throwable t) {
             // Rethrow.
-            throw new RuntimeException("Unable to decrypt data using AES via PBKDF2-hashed password.", t);
+            throw new RuntimeException("Unable to decrypt data using AES.", t);
         }
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.crypt;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+/**
+ * Crypt key derivation progress listener.
+ *
+ * @author VidTu
+ * @apiNote All methods in this class can be called from another thread
+ */
+public interface CryptProgress {
+    /**
+     * Progress listener that ignores the progress and is never cancelled.
+     */
+    CryptProgress NONE = new CryptProgress() {
+        @Contract(value = "-> false", pure = true)
+        @Override
+        public boolean cancelled() {
+            return false;
+        }
+
+        @Contract(pure = true)
+        @Override
+        public void progress(int percent) {
+            // NO-OP
+        }
+
+        @Contract(pure = true)
+        @Override
+        public String toString() {
+            return "CryptProgress{NONE}";
+        }
+    };
+
+    /**
+     * Gets the cancelled state. Checked between key derivation iteration blocks.
+     *
+     * @return Whether the derivation should be cancelled
+     */
+    boolean cancelled();
+
+    /**
+     * Reports the key derivation progress.
+     *
+     * @param percent Derivation progress percent, from {@code 0} to {@code 100}
+     */
+    void progress(int percent);
+
+    /**
+     * Creates a new progress listener.
+     *
+     * @param cancelled Cancelled state supplier
+     * @param progress  Progress percent consumer
+     * @return A new progress listener
+     */
+    @Contract(value = "_, _ -> new", pure = true)
+    @NotNull
+    static CryptProgress of(@NotNull BooleanSupplier cancelled, @NotNull IntConsumer progress) {
+        return new CryptProgress() {
+            @Override
+            public boolean cancelled() {
+                return cancelled.getAsBoolean();
+            }
+
+            @Override
+            public void progress(int percent) {
+                progress.accept(percent);
+            }
+
+            @Contract(pure = true)
+            @Override
+            public String toString() {
+                return "CryptProgress{" +
+                        "cancelled=" + cancelled +
+                        ", progress=" + progress +
+                        '}';
+            }
+        };
+    }
+}
@@ -67,15 +67,15 @@ public final class DummyCrypt implements Crypt {
         return true;
     }
 
-    @Contract(value = "_ -> param1", pure = true)
+    @Contract(value = "_, _ -> param1", pure = true)
     @Override
-    public byte @NotNull [] encrypt(byte @NotNull [] decrypted) {
+    public byte @NotNull [] encrypt(byte @NotNull [] decrypted, @NotNull CryptProgress progress) {
         return decrypted;
     }
 
-    @Contract(value = "_ -> param1", pure = true)
+    @Contract(value = "_, _ -> param1", pure = true)
     @Override
-    public byte @NotNull [] decrypt(byte @NotNull [] encrypted) {
+    public byte @NotNull [] decrypt(byte @NotNull [] encrypted, @NotNull CryptProgress progress) {
         return encrypted;
     }
 
@@ -19,18 +19,21 @@
 
 package ru.vidtu.ias.crypt;
 
+import com.google.errorprone.annotations.CheckReturnValue;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Unmodifiable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IASExecutors;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.reflect.Method;
@@ -38,9 +41,15 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.Base64;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Crypt with "hardware ID".
@@ -66,6 +75,12 @@ public final class HardwareCrypt implements Crypt {
     @NotNull
     private static final Logger LOGGER = LoggerFactory.getLogger("IAS/HardwareCrypt");
 
+    /**
+     * Timeout for collecting each hardware password component.
+     */
+    @NotNull
+    private static final Duration TIMEOUT = Duration.ofSeconds(Long.getLong("ias.hardwareTimeout", 15L));
+
     /**
      * Empty byte array for unknown MAC.
      */
@@ -143,9 +158,8 @@ public final class HardwareCrypt implements Crypt {
         return false;
     }
 
-    @Contract(pure = true)
     @Override
-    public byte @NotNull [] encrypt(byte @NotNull [] decrypted) {
+    public byte @NotNull [] encrypt(byte @NotNull [] decrypted, @NotNull CryptProgress progress) {
         try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
             // Generate and write salt.
             SecureRandom random = SecureRandom.getInstanceStrong();
@@ -162,7 +176,7 @@ public final class HardwareCrypt implements Crypt {
             String pwd = this.hardwarePassword();
 
             // Encrypt and write the data.
-            byte[] data = Crypt.pbkdfAesEncrypt(decrypted, pwd, salt, iv);
+            byte[] data = Crypt.pbkdfAesEncrypt(decrypted, pwd, salt, iv, progress);
             out.write(data);
 
             // Return data.
@@ -173,9 +187,8 @@ public final class HardwareCrypt implements Crypt {
         }
     }
 
-    @Contract(pure = true)
     @Override
-    public byte @NotNull [] decrypt(byte @NotNull [] encrypted) {
+    public byte @NotNull [] decrypt(byte @NotNull [] encrypted, @NotNull CryptProgress progress) {
         try (ByteArrayInputStream in = new ByteArrayInputStream(encrypted)) {
             // Read the salt.
             byte[] salt = new byte[128];
@@ -198,7 +211,7 @@ public final class HardwareCrypt implements Crypt {
             byte[] data = in.readAllBytes();
 
             // Decrypt and return.
-            return Crypt.pbkdfAesDecrypt(data, pwd, salt, iv);
+            return Crypt.pbkdfAesDecrypt(data, pwd, salt, iv, progress);
         } catch (Throwable t) {
             // Rethrow.
             throw new RuntimeException("Unable to decrypt using HardwareCrypt.", t);
@@ -245,6 +258,17 @@ public final class HardwareCrypt implements Crypt {
     @NotNull
     private String hardwarePassword() {
         try {
+            // Start collecting slow components.
+            long start = System.nanoTime();
+            long deadline = start + TIMEOUT.toNanos();
+            ExecutorService hardware = IASExecutors.hardware();
+            CompletableFuture<Part> netFuture = CompletableFuture.supplyAsync(() -> collect("network", null, HardwareCrypt::network), hardware);
+            CompletableFuture<OshiLayer> layerFuture = CompletableFuture.supplyAsync(HardwareCrypt::oshiLayer, hardware);
+            CompletableFuture<Part> osFuture = layerFuture.thenApplyAsync(layer -> collect("OSHI OS", layer, HardwareCrypt::oshiOs), hardware);
+            CompletableFuture<Part> sysFuture = layerFuture.thenApplyAsync(layer -> collect("OSHI system", layer, HardwareCrypt::oshiSystem), hardware);
+            CompletableFuture<Part> disksFuture = layerFuture.thenApplyAsync(layer -> collect("OSHI disks", layer, HardwareCrypt::oshiDisks), hardware);
+            CompletableFuture<Part> cardsFuture = layerFuture.thenApplyAsync(layer -> collect("OSHI cards", layer, this.version < 2 ? HardwareCrypt::oshiCards : HardwareCrypt::oshiCardsFetch), hardware);
+
             // Calculate the "hardware ID".
             try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
                  DataOutputStream out = new DataOutputStream(byteOut)) {
@@ -274,138 +298,33 @@ public final class HardwareCrypt implements Crypt {
                     out.write(value.getBytes(StandardCharsets.UTF_8));
                 }
 
-                // Network interfaces.
-                List<NetworkInterface> nets;
-                try {
-                    nets = NetworkInterface.networkInterfaces().toList();
-                } catch (SocketException ignored) {
-                    nets = List.of();
+                // Network interfaces. Errors are propagated.
+                Part net = await("network", netFuture, deadline);
+                if (net.error != null) {
+                    throw new RuntimeException("Unable to collect network interfaces.", net.error);
                 }
-                for (NetworkInterface net : nets) {
-                    if (net.isVirtual() || net.isLoopback()) continue;
-                    out.write(net.getName().getBytes(StandardCharsets.UTF_8));
-                    String displayName = net.getDisplayName();
-                    if (displayName != null) {
-                        out.write(displayName.getBytes(StandardCharsets.UTF_8));
-                    }
-                    byte[] mac = EMPTY_MAC;
-                    try {
-                        mac = Objects.requireNonNullElse(net.getHardwareAddress(), EMPTY_MAC);
-                    } catch (SocketException e) {
-                        // Log into trace. (disabled for MOST users)
-                        LOGGER.trace("Unable to get MAC: {}", net, e);
-                    }
-                    out.write(mac);
-                    try {
-                        out.writeInt(net.getMTU());
-                    } catch (SocketException e) {
+                net.bytes.writeTo(out);
+
+                // OSHI data, if available. If any of the OSHI data is unable to be fetched, none of it is used.
+                // If the data is fetched, but some part of it is unable to be extracted, everything before it is used.
+                List<Part> oshi = List.of(await("OSHI OS", osFuture, deadline), await("OSHI system", sysFuture, deadline),
+                        await("OSHI disks", disksFuture, deadline), await("OSHI cards", cardsFuture, deadline));
+                if (oshi.stream().allMatch(part -> part.fetched)) {
+                    for (Part part : oshi) {
+                        part.bytes.writeTo(out);
+                        if (part.error == null) continue;
                         // Log into trace. (disabled for MOST users)
-                        LOGGER.trace("Unable to get MTU: {}", net, e);
-                    }
-                }
-
-                // OSHI data, if available.
-                try {
-                    // Generate the basic OSHI data.
-                    Class<?> sysInfoClass = Class.forName("oshi.SystemInfo");
-                    Class<?> osClass = Class.forName("oshi.software.os.OperatingSystem");
-                    Class<?> hwLayerClass = Class.forName("oshi.hardware.HardwareAbstractionLayer");
-                    Object sysInfo = sysInfoClass.getConstructor().newInstance();
-                    Object os = sysInfoClass.getMethod("getOperatingSystem").invoke(sysInfo);
-                    Object hwLayer = sysInfoClass.getMethod("getHardware").invoke(sysInfo);
-
-                    // Generate other OSHI data.
-                    Class<?> sysClass = Class.forName("oshi.hardware.ComputerSystem");
-                    Object sys = hwLayerClass.getMethod("getComputerSystem").invoke(hwLayer);
-                    Class<?> boardClass = Class.forName("oshi.hardware.Baseboard");
-                    Object board = sysClass.getMethod("getBaseboard").invoke(sys);
-                    Class<?> firmwareClass = Class.forName("oshi.hardware.Firmware");
-                    Object firmware = sysClass.getMethod("getFirmware").invoke(sys);
-                    Class<?> diskClass = Class.forName("oshi.hardware.HWDiskStore");
-                    List<?> disks = (List<?>) hwLayerClass.getMethod("getDiskStores").invoke(hwLayer);
-                    Method diskNameMethod = diskClass.getMethod("getName");
-                    Method diskModelMethod = diskClass.getMethod("getModel");
-                    Method diskSerialMethod = diskClass.getMethod("getSerial");
-                    Method diskSizeMethod = diskClass.getMethod("getSize");
-                    // Not using displays - some cheap ones report unplugging when turned off.
-                    Class<?> cardClass = Class.forName("oshi.hardware.GraphicsCard");
-                    List<?> cards = (List<?>) hwLayerClass.getMethod("getGraphicsCards").invoke(hwLayer);
-                    Method cardNameMethod = cardClass.getMethod("getName");
-                    Method cardIdMethod = cardClass.getMethod("getDeviceId");
-                    Method cardVendorMethod = cardClass.getMethod("getVendor");
-                    Method cardRamMethod = cardClass.getMethod("getVRam");
-
-                    // Extract OS data.
-                    int osBit = (int) osClass.getMethod("getBitness").invoke(os);
-                    String osFamily = (String) osClass.getMethod("getFamily").invoke(os);
-                    String osManufacturer = (String) osClass.getMethod("getManufacturer").invoke(os);
-                    out.writeInt(osBit);
-                    out.write(osFamily.getBytes(StandardCharsets.UTF_8));
-                    out.write(osManufacturer.getBytes(StandardCharsets.UTF_8));
-
-                    // Extract Sys data.
-                    String hwUid = (String) sysClass.getMethod("getHardwareUUID").invoke(sys);
-                    String hwManufacturer = (String) sysClass.getMethod("getManufacturer").invoke(sys);
-                    String hwModel = (String) sysClass.getMethod("getModel").invoke(sys);
-                    out.write(hwUid.getBytes(StandardCharsets.UTF_8));
-                    out.write(hwManufacturer.getBytes(StandardCharsets.UTF_8));
-                    out.write(hwModel.getBytes(StandardCharsets.UTF_8));
-
-                    // Extract Board data.
-                    String boardSerial = (String) boardClass.getMethod("getSerialNumber").invoke(board);
-                    String boardManufacturer = (String) boardClass.getMethod("getManufacturer").invoke(board);
-                    String boardModel = (String) boardClass.getMethod("getModel").invoke(board);
-                    String boardVersion = (String) boardClass.getMethod("getVersion").invoke(board);
-                    out.write(boardSerial.getBytes(StandardCharsets.UTF_8));
-                    out.write(boardManufacturer.getBytes(StandardCharsets.UTF_8));
-                    out.write(boardModel.getBytes(StandardCharsets.UTF_8));
-                    out.write(boardVersion.getBytes(StandardCharsets.UTF_8));
-
-                    // Extract Firmware data.
-                    String firmwareName = (String) firmwareClass.getMethod("getName").invoke(firmware);
-                    // Not using BIOS version and release date - can be updated.
-                    String firmwareDescription = (String) firmwareClass.getMethod("getDescription").invoke(firmware);
-                    String firmwareManufacturer = (String) firmwareClass.getMethod("getManufacturer").invoke(firmware);
-                    out.write(firmwareName.getBytes(StandardCharsets.UTF_8));
-                    out.write(firmwareDescription.getBytes(StandardCharsets.UTF_8));
-                    out.write(firmwareManufacturer.getBytes(StandardCharsets.UTF_8));
-
-                    // Extract DiscStore[] data.
-                    // Not using partitions - can be changed.
-                    for (Object disk : disks) {
-                        String diskName = (String) diskNameMethod.invoke(disk);
-                        String diskModel = (String) diskModelMethod.invoke(disk);
-                        String diskSerial = (String) diskSerialMethod.invoke(disk);
-                        long diskSize = (long) diskSizeMethod.invoke(disk);
-                        out.write(diskName.getBytes(StandardCharsets.UTF_8));
-                        out.write(diskModel.getBytes(StandardCharsets.UTF_8));
-                        out.write(diskSerial.getBytes(StandardCharsets.UTF_8));
-                        out.writeLong(diskSize);
+                        LOGGER.trace("Unable to write OSHI data.", part.error);
+                        break;
                     }
-
-                    // Not using graphics card data in V2, because
-                    // OSHI changed it video card data on Windows:
-                    // https://github.com/oshi/oshi/pull/2533
-                    // and this is bumped between 1.20.4 and 1.20.5.
-                    if (this.version < 2) {
-                        // Extract GraphicsCard[] data.
-                        // Not using version - can be a driver.
-                        for (Object card : cards) {
-                            String cardName = (String) cardNameMethod.invoke(card);
-                            String cardId = (String) cardIdMethod.invoke(card);
-                            String cardVendor = (String) cardVendorMethod.invoke(card);
-                            long cardRam = (long) cardRamMethod.invoke(card);
-                            out.write(cardName.getBytes(StandardCharsets.UTF_8));
-                            out.write(cardId.getBytes(StandardCharsets.UTF_8));
-                            out.write(cardVendor.getBytes(StandardCharsets.UTF_8));
-                            out.writeLong(cardRam);
-                        }
-                    }
-                } catch (Throwable t) {
+                } else {
                     // Log into trace. (disabled for MOST users)
-                    LOGGER.trace("Unable to write OSHI data.", t);
+                    LOGGER.trace("Unable to fetch OSHI data: {}", oshi);
                 }
 
+                // Log it.
+                LOGGER.debug("IAS: Collected hardware password in {} ms.", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
                 // Bake and return the "HWID".
                 return Base64.getEncoder().encodeToString(byteOut.toByteArray());
             }
@@ -414,4 +333,357 @@ public final class HardwareCrypt implements Crypt {
             throw new RuntimeException("Unable to create a hardware password.", t);
         }
     }
+
+    /**
+     * Collects the hardware component.
+     *
+     * @param name      Component name for logging
+     * @param layer     OSHI layer, {@code null} if unavailable or not required
+     * @param component Target component
+     * @return Collected component part
+     */
+    @CheckReturnValue
+    @NotNull
+    private static Part collect(@NotNull String name, @Nullable OshiLayer layer, @NotNull Component component) {
+        long start = System.nanoTime();
+        Part part = new Part();
+        try {
+            component.collect(layer, part);
+        } catch (Throwable t) {
+            part.error = t;
+        } finally {
+            LOGGER.debug("IAS: Collected hardware component {} in {} ms. (fetched: {}, error: {})", name,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), part.fetched, part.error);
+        }
+        return part;
+    }
+
+    /**
+     * Awaits for the hardware component.
+     *
+     * @param name     Component name for logging
+     * @param future   Component future
+     * @param deadline Collection deadline in {@link System#nanoTime()} units
+     * @return Collected component part
+     * @throws TimeoutException     If the component hasn't been collected before the deadline
+     * @throws ExecutionException   If the component collection has failed unexpectedly
+     * @throws InterruptedException If interrupted while waiting
+     */
+    @CheckReturnValue
+    @NotNull
+    private static Part await(@NotNull String name, @NotNull CompletableFuture<Part> future, long deadline)
+            throws TimeoutException, ExecutionException, InterruptedException {
+        try {
+            return future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            TimeoutException timeout = new TimeoutException("Hardware component " + name + " hasn't been collected in " + TIMEOUT + '.');
+            timeout.initCause(e);
+            throw timeout;
+        }
+    }
+
+    /**
+     * Collects the network interfaces data.
+     *
+     * @param layer Ignored
+     * @param part  Target part
+     * @throws SocketException If unable to get network interface data
+     * @throws IOException     If unable to write the data
+     */
+    private static void network(@Nullable OshiLayer layer, @NotNull Part part) throws IOException {
+        DataOutputStream out = part.out;
+        List<NetworkInterface> nets;
+        try {
+            nets = NetworkInterface.networkInterfaces().toList();
+        } catch (SocketException ignored) {
+            nets = List.of();
+        }
+        part.fetched = true;
+        for (NetworkInterface net : nets) {
+            if (net.isVirtual() || net.isLoopback()) continue;
+            out.write(net.getName().getBytes(StandardCharsets.UTF_8));
+            String displayName = net.getDisplayName();
+            if (displayName != null) {
+                out.write(displayName.getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] mac = EMPTY_MAC;
+            try {
+                mac = Objects.requireNonNullElse(net.getHardwareAddress(), EMPTY_MAC);
+            } catch (SocketException e) {
+                // Log into trace. (disabled for MOST users)
+                LOGGER.trace("Unable to get MAC: {}", net, e);
+            }
+            out.write(mac);
+            try {
+                out.writeInt(net.getMTU());
+            } catch (SocketException e) {
+                // Log into trace. (disabled for MOST users)
+                LOGGER.trace("Unable to get MTU: {}", net, e);
+            }
+        }
+    }
+
+    /**
+     * Creates the basic OSHI data.
+     *
+     * @return OSHI layer, {@code null} if OSHI is unavailable
+     */
+    @CheckReturnValue
+    @Nullable
+    private static OshiLayer oshiLayer() {
+        long start = System.nanoTime();
+        try {
+            // Generate the basic OSHI data.
+            Class<?> sysInfoClass = Class.forName("oshi.SystemInfo");
+            Class<?> osClass = Class.forName("oshi.software.os.OperatingSystem");
+            Class<?> hwLayerClass = Class.forName("oshi.hardware.HardwareAbstractionLayer");
+            Object sysInfo = sysInfoClass.getConstructor().newInstance();
+            Object os = sysInfoClass.getMethod("getOperatingSystem").invoke(sysInfo);
+            Object hwLayer = sysInfoClass.getMethod("getHardware").invoke(sysInfo);
+            return new OshiLayer(osClass, os, hwLayerClass, hwLayer);
+        } catch (Throwable t) {
+            // Log into trace. (disabled for MOST users)
+            LOGGER.trace("Unable to create OSHI data.", t);
+            return null;
+        } finally {
+            LOGGER.debug("IAS: Collected hardware component OSHI layer in {} ms.", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Collects the OSHI OS data.
+     *
+     * @param layer OSHI layer, {@code null} if unavailable
+     * @param part  Target part
+     * @throws Throwable If unable to collect the data
+     */
+    private static void oshiOs(@Nullable OshiLayer layer, @NotNull Part part) throws Throwable {
+        // Fetch.
+        if (layer == null) return;
+        Class<?> osClass = layer.osClass();
+        Object os = layer.os();
+        part.fetched = true;
+
+        // Extract OS data.
+        DataOutputStream out = part.out;
+        int osBit = (int) osClass.getMethod("getBitness").invoke(os);
+        String osFamily = (String) osClass.getMethod("getFamily").invoke(os);
+        String osManufacturer = (String) osClass.getMethod("getManufacturer").invoke(os);
+        out.writeInt(osBit);
+        out.write(osFamily.getBytes(StandardCharsets.UTF_8));
+        out.write(osManufacturer.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Collects the OSHI computer system, baseboard, and firmware data.
+     *
+     * @param layer OSHI layer, {@code null} if unavailable
+     * @param part  Target part
+     * @throws Throwable If unable to collect the data
+     */
+    private static void oshiSystem(@Nullable OshiLayer layer, @NotNull Part part) throws Throwable {
+        // Fetch.
+        if (layer == null) return;
+        Class<?> sysClass = Class.forName("oshi.hardware.ComputerSystem");
+        Object sys = layer.hwLayerClass().getMethod("getComputerSystem").invoke(layer.hwLayer());
+        Class<?> boardClass = Class.forName("oshi.hardware.Baseboard");
+        Object board = sysClass.getMethod("getBaseboard").invoke(sys);
+        Class<?> firmwareClass = Class.forName("oshi.hardware.Firmware");
+        Object firmware = sysClass.getMethod("getFirmware").invoke(sys);
+        part.fetched = true;
+
+        // Extract Sys data.
+        DataOutputStream out = part.out;
+        String hwUid = (String) sysClass.getMethod("getHardwareUUID").invoke(sys);
+        String hwManufacturer = (String) sysClass.getMethod("getManufacturer").invoke(sys);
+        String hwModel = (String) sysClass.getMethod("getModel").invoke(sys);
+        out.write(hwUid.getBytes(StandardCharsets.UTF_8));
+        out.write(hwManufacturer.getBytes(StandardCharsets.UTF_8));
+        out.write(hwModel.getBytes(StandardCharsets.UTF_8));
+
+        // Extract Board data.
+        String boardSerial = (String) boardClass.getMethod("getSerialNumber").invoke(board);
+        String boardManufacturer = (String) boardClass.getMethod("getManufacturer").invoke(board);
+        String boardModel = (String) boardClass.getMethod("getModel").invoke(board);
+        String boardVersion = (String) boardClass.getMethod("getVersion").invoke(board);
+        out.write(boardSerial.getBytes(StandardCharsets.UTF_8));
+        out.write(boardManufacturer.getBytes(StandardCharsets.UTF_8));
+        out.write(boardModel.getBytes(StandardCharsets.UTF_8));
+        out.write(boardVersion.getBytes(StandardCharsets.UTF_8));
+
+        // Extract Firmware data.
+        String firmwareName = (String) firmwareClass.getMethod("getName").invoke(firmware);
+        // Not using BIOS version and release date - can be updated.
+        String firmwareDescription = (String) firmwareClass.getMethod("getDescription").invoke(firmware);
+        String firmwareManufacturer = (String) firmwareClass.getMethod("getManufacturer").invoke(firmware);
+        out.write(firmwareName.getBytes(StandardCharsets.UTF_8));
+        out.write(firmwareDescription.getBytes(StandardCharsets.UTF_8));
+        out.write(firmwareManufacturer.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Collects the OSHI disk data.
+     *
+     * @param layer OSHI layer, {@code null} if unavailable
+     * @param part  Target part
+     * @throws Throwable If unable to collect the data
+     */
+    private static void oshiDisks(@Nullable OshiLayer layer, @NotNull Part part) throws Throwable {
+        // Fetch.
+        if (layer == null) return;
+        Class<?> diskClass = Class.forName("oshi.hardware.HWDiskStore");
+        List<?> disks = (List<?>) layer.hwLayerClass().getMethod("getDiskStores").invoke(layer.hwLayer());
+        Method diskNameMethod = diskClass.getMethod("getName");
+        Method diskModelMethod = diskClass.getMethod("getModel");
+        Method diskSerialMethod = diskClass.getMethod("getSerial");
+        Method diskSizeMethod = diskClass.getMethod("getSize");
+        part.fetched = true;
+
+        // Extract DiscStore[] data.
+        // Not using partitions - can be changed.
+        DataOutputStream out = part.out;
+        for (Object disk : disks) {
+            String diskName = (String) diskNameMethod.invoke(disk);
+            String diskModel = (String) diskModelMethod.invoke(disk);
+            String diskSerial = (String) diskSerialMethod.invoke(disk);
+            long diskSize = (long) diskSizeMethod.invoke(disk);
+            out.write(diskName.getBytes(StandardCharsets.UTF_8));
+            out.write(diskModel.getBytes(StandardCharsets.UTF_8));
+            out.write(diskSerial.getBytes(StandardCharsets.UTF_8));
+            out.writeLong(diskSize);
+        }
+    }
+
+    /**
+     * Fetches the OSHI graphics card data without extracting it.
+     * <p>
+     * Not using graphics card data in V2, because
+     * OSHI changed it video card data on Windows:
+     * <a href="https://github.com/oshi/oshi/pull/2533">oshi/oshi#2533</a>
+     * and this is bumped between 1.20.4 and 1.20.5.
+     * The data is still fetched to keep the V2 behavior when it's unavailable.
+     *
+     * @param layer OSHI layer, {@code null} if unavailable
+     * @param part  Target part
+     * @return Fetched graphics cards
+     * @throws Throwable If unable to fetch the data
+     */
+    @Nullable
+    private static List<?> oshiCardsFetch(@Nullable OshiLayer layer, @NotNull Part part) throws Throwable {
+        // Fetch.
+        if (layer == null) return null;
+        // Not using displays - some cheap ones report unplugging when turned off.
+        Class<?> cardClass = Class.forName("oshi.hardware.GraphicsCard");
+        List<?> cards = (List<?>) layer.hwLayerClass().getMethod("getGraphicsCards").invoke(layer.hwLayer());
+        cardClass.getMethod("getName");
+        cardClass.getMethod("getDeviceId");
+        cardClass.getMethod("getVendor");
+        cardClass.getMethod("getVRam");
+        part.fetched = true;
+        return cards;
+    }
+
+    /**
+     * Collects the OSHI graphics card data. Used only in V1.
+     *
+     * @param layer OSHI layer, {@code null} if unavailable
+     * @param part  Target part
+     * @throws Throwable If unable to collect the data
+     */
+    private static void oshiCards(@Nullable OshiLayer layer, @NotNull Part part) throws Throwable {
+        // Fetch.
+        List<?> cards = oshiCardsFetch(layer, part);
+        if (cards == null) return;
+        Class<?> cardClass = Class.forName("oshi.hardware.GraphicsCard");
+        Method cardNameMethod = cardClass.getMethod("getName");
+        Method cardIdMethod = cardClass.getMethod("getDeviceId");
+        Method cardVendorMethod = cardClass.getMethod("getVendor");
+        Method cardRamMethod = cardClass.getMethod("getVRam");
+
+        // Extract GraphicsCard[] data.
+        // Not using version - can be a driver.
+        DataOutputStream out = part.out;
+        for (Object card : cards) {
+            String cardName = (String) cardNameMethod.invoke(card);
+            String cardId = (String) cardIdMethod.invoke(card);
+            String cardVendor = (String) cardVendorMethod.invoke(card);
+            long cardRam = (long) cardRamMethod.invoke(card);
+            out.write(cardName.getBytes(StandardCharsets.UTF_8));
+            out.write(cardId.getBytes(StandardCharsets.UTF_8));
+            out.write(cardVendor.getBytes(StandardCharsets.UTF_8));
+            out.writeLong(cardRam);
+        }
+    }
+
+    /**
+     * Hardware password component.
+     *
+     * @author VidTu
+     */
+    @FunctionalInterface
+    private interface Component {
+        /**
+         * Collects the component.
+         *
+         * @param layer OSHI layer, {@code null} if unavailable or not required
+         * @param part  Target part
+         * @throws Throwable If unable to collect the component
+         */
+        void collect(@Nullable OshiLayer layer, @NotNull Part part) throws Throwable;
+    }
+
+    /**
+     * Basic OSHI data.
+     *
+     * @param osClass      OperatingSystem class
+     * @param os           OperatingSystem instance
+     * @param hwLayerClass HardwareAbstractionLayer class
+     * @param hwLayer      HardwareAbstractionLayer instance
+     * @author VidTu
+     */
+    private record OshiLayer(@NotNull Class<?> osClass, @NotNull Object os,
+                             @NotNull Class<?> hwLayerClass, @NotNull Object hwLayer) {
+        // Empty
+    }
+
+    /**
+     * Collected hardware password component part.
+     *
+     * @author VidTu
+     */
+    private static final class Part {
+        /**
+         * Collected bytes.
+         */
+        @NotNull
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /**
+         * Collected bytes writer.
+         */
+        @NotNull
+        private final DataOutputStream out = new DataOutputStream(this.bytes);
+
+        /**
+         * Whether the data has been fetched. The part is written only if all parts in its group have been fetched.
+         */
+        private volatile boolean fetched;
+
+        /**
+         * Collection error, {@code null} if none. The bytes written before the error are still used.
+         */
+        @Nullable
+        private volatile Throwable error;
+
+        @Contract(pure = true)
+        @Override
+        @NotNull
+        public String toString() {
+            return "Part{" +
+                    "bytes=" + this.bytes.size() +
+                    ", fetched=" + this.fetched +
+                    ", error=" + this.error +
+                    '}';
+        }
+    }
 }
@@ -0,0 +1,645 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.crypt;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IASExecutors;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Master keyring for {@link PasswordCrypt} accounts.
+ * <p>
+ * The keyring stores derived per-account keys wrapped with a key derived from a single master password.
+ * The master key is derived once per session and is never written to the disk. While the keyring is
+ * unlocked, password-crypted accounts known to the keyring can be decrypted without prompting and
+ * without running the key derivation again.
+ *
+ * @author VidTu
+ */
+public final class Keyring {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/Keyring");
+
+    /**
+     * Value encrypted with the master key to verify the master password.
+     */
+    private static final byte @NotNull [] VERIFIER = "ias:keyring_v1".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Delay before saving the remembered keys in milliseconds.
+     */
+    private static final long SAVE_DELAY = 1000L;
+
+    /**
+     * Lock guarding the keyring state. Not a monitor, so the virtual login threads waiting for it don't pin their carriers.
+     */
+    @NotNull
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    /**
+     * Wrapped (IV and encrypted) per-account keys by hex-encoded account salt.
+     */
+    @NotNull
+    private static final Map<String, byte[]> WRAPPED = new HashMap<>(0);
+
+    /**
+     * Master password salt, {@code null} if the keyring doesn't exist yet.
+     */
+    private static byte @Nullable [] salt;
+
+    /**
+     * Wrapped (IV and encrypted) {@link #VERIFIER}, {@code null} if the keyring doesn't exist yet.
+     */
+    private static byte @Nullable [] verifier;
+
+    /**
+     * Master key for this session, {@code null} if locked.
+     */
+    private static byte @Nullable [] master;
+
+    /**
+     * Keyring file, {@code null} if not loaded.
+     */
+    @Nullable
+    private static Path file;
+
+    /**
+     * Whether the remembered keys are not saved yet.
+     */
+    private static boolean dirty;
+
+    /**
+     * Whether the {@link #flush()} is scheduled.
+     */
+    private static boolean scheduled;
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private Keyring() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Loads the keyring. This doesn't unlock it.
+     *
+     * @param path Game directory
+     * @throws RuntimeException If unable to load the keyring
+     */
+    public static void load(@NotNull Path path) {
+        LOCK.lock();
+        try {
+            // Log.
+            LOGGER.debug("IAS: Loading keyring for {}...", path);
+
+            // Lock and clear.
+            lock();
+            WRAPPED.clear();
+            salt = null;
+            verifier = null;
+            dirty = false;
+
+            // Get the file.
+            file = path.resolve("_IAS_ACCOUNTS_DO_NOT_SEND_TO_ANYONE/.hidden/keyring_v1.do_not_send_to_anyone");
+
+            // Skip if it doesn't exist.
+            if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+                LOGGER.debug("IAS: Keyring not found.");
+                return;
+            }
+
+            // Decode the data.
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file)))) {
+                // Read the master salt and verifier.
+                byte[] readSalt = new byte[128];
+                in.readFully(readSalt);
+                byte[] readVerifier = new byte[in.readUnsignedShort()];
+                in.readFully(readVerifier);
+
+                // Read the wrapped keys.
+                int length = in.readUnsignedShort();
+                for (int i = 0; i < length; i++) {
+                    byte[] accountSalt = new byte[128];
+                    in.readFully(accountSalt);
+                    byte[] wrapped = new byte[in.readUnsignedShort()];
+                    in.readFully(wrapped);
+                    WRAPPED.put(HexFormat.of().formatHex(accountSalt), wrapped);
+                }
+
+                // Flush.
+                salt = readSalt;
+                verifier = readVerifier;
+            }
+
+            // Log.
+            LOGGER.debug("IAS: Loaded {} keys from keyring {}.", WRAPPED.size(), file);
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to load IAS keyring.", t);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Saves the keyring.
+     *
+     * @throws RuntimeException If unable to save the keyring
+     */
+    public static void save() {
+        LOCK.lock();
+        try {
+            // Skip if nothing to save.
+            Path file = Keyring.file;
+            byte[] salt = Keyring.salt;
+            byte[] verifier = Keyring.verifier;
+            if (file == null || salt == null || verifier == null) return;
+
+            // Log.
+            LOGGER.debug("IAS: Saving keyring into {}...", file);
+
+            // Encode the data.
+            byte[] data;
+            try (ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+                 DataOutputStream out = new DataOutputStream(byteOut)) {
+                // Write the master salt and verifier.
+                out.write(salt);
+                out.writeShort(verifier.length);
+                out.write(verifier);
+
+                // Write the wrapped keys.
+                out.writeShort(WRAPPED.size());
+                for (Map.Entry<String, byte[]> entry : WRAPPED.entrySet()) {
+                    out.write(HexFormat.of().parseHex(entry.getKey()));
+                    byte[] wrapped = entry.getValue();
+                    out.writeShort(wrapped.length);
+                    out.write(wrapped);
+                }
+
+                // Flush the data.
+                data = byteOut.toByteArray();
+            }
+
+            // Write the data.
+            Files.createDirectories(file.getParent());
+            Files.write(file, data, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE,
+                    StandardOpenOption.SYNC, StandardOpenOption.DSYNC, LinkOption.NOFOLLOW_LINKS);
+
+            // Log it.
+            dirty = false;
+            LOGGER.debug("IAS: Saved {} keys to keyring {}.", WRAPPED.size(), file);
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to save IAS keyring.", t);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Creates the keyring with the master password and unlocks it.
+     *
+     * @param password Master password
+     * @throws IllegalStateException If the keyring already exists
+     * @throws RuntimeException      If unable to create the keyring
+     * @implNote This method derives the key from the password and is slow, the keyring isn't locked while deriving
+     */
+    public static void create(@NotNull String password) {
+        // Don't overwrite.
+        if (exists()) {
+            throw new IllegalStateException("Keyring already exists.");
+        }
+
+        // Derive without holding the lock.
+        Derived derived = derive(password);
+
+        LOCK.lock();
+        try {
+            // Don't overwrite the keyring created while deriving.
+            if (salt != null || verifier != null) {
+                Arrays.fill(derived.key(), (byte) 0);
+                throw new IllegalStateException("Keyring already exists.");
+            }
+
+            // Create.
+            salt = derived.salt();
+            verifier = derived.verifier();
+            master = derived.key();
+            save();
+            LOGGER.info("IAS: Keyring created and unlocked.");
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Tries to unlock the keyring with the master password.
+     *
+     * @param password Master password
+     * @return Whether the keyring is unlocked now, {@code false} if it doesn't exist or the password doesn't match
+     * @implNote This method derives the key from the password and is slow, the keyring isn't locked while deriving
+     */
+    public static boolean unlock(@NotNull String password) {
+        // Take the current keyring.
+        byte[] salt;
+        byte[] verifier;
+        LOCK.lock();
+        try {
+            // Already unlocked.
+            if (master != null) return true;
+            salt = Keyring.salt;
+            verifier = Keyring.verifier;
+        } finally {
+            LOCK.unlock();
+        }
+
+        // Skip if doesn't exist.
+        if (salt == null || verifier == null) return false;
+
+        // Derive the key and check the verifier without holding the lock.
+        byte[] key;
+        try {
+            key = Crypt.pbkdf(password, salt);
+            if (!Arrays.equals(VERIFIER, unwrap(verifier, key))) {
+                LOGGER.info("IAS: Keyring master password mismatch.");
+                return false;
+            }
+        } catch (Throwable t) {
+            // Most likely, a wrong password.
+            LOGGER.debug("IAS: Unable to unlock keyring.", t);
+            return false;
+        }
+
+        LOCK.lock();
+        try {
+            // Unlocked while deriving.
+            if (master != null) {
+                Arrays.fill(key, (byte) 0);
+                return true;
+            }
+
+            // Reset or changed while deriving.
+            if (Keyring.salt != salt) {
+                Arrays.fill(key, (byte) 0);
+                LOGGER.info("IAS: Keyring changed while unlocking.");
+                return false;
+            }
+
+            // Unlock.
+            master = key;
+            LOGGER.info("IAS: Keyring unlocked.");
+            return true;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Changes the master password of the unlocked keyring, re-wrapping all the stored keys.
+     *
+     * @param password New master password
+     * @throws IllegalStateException If the keyring is locked or has been locked while deriving
+     * @throws RuntimeException      If unable to change the password
+     * @implNote This method derives the key from the password and is slow, the keyring isn't locked while deriving
+     */
+    public static void change(@NotNull String password) {
+        // Require unlocked.
+        byte[] old;
+        LOCK.lock();
+        try {
+            old = master;
+        } finally {
+            LOCK.unlock();
+        }
+        if (old == null) {
+            throw new IllegalStateException("Keyring is locked.");
+        }
+
+        // Derive the new master key without holding the lock.
+        Derived derived = derive(password);
+
+        LOCK.lock();
+        try {
+            // Require the same master key, it might have been locked while deriving.
+            if (master != old) {
+                Arrays.fill(derived.key(), (byte) 0);
+                throw new IllegalStateException("Keyring has been locked while changing the password.");
+            }
+
+            // Re-wrap all the keys with the new master key.
+            Map<String, byte[]> rewrapped = new HashMap<>(WRAPPED.size());
+            try {
+                SecureRandom random = SecureRandom.getInstanceStrong();
+                for (Map.Entry<String, byte[]> entry : WRAPPED.entrySet()) {
+                    byte[] key = unwrap(entry.getValue(), old);
+                    rewrapped.put(entry.getKey(), wrap(key, derived.key(), random));
+                    Arrays.fill(key, (byte) 0);
+                }
+            } catch (Throwable t) {
+                Arrays.fill(derived.key(), (byte) 0);
+                throw new RuntimeException("Unable to re-wrap keyring keys.", t);
+            }
+
+            // Swap and save.
+            WRAPPED.putAll(rewrapped);
+            salt = derived.salt();
+            verifier = derived.verifier();
+            master = derived.key();
+            Arrays.fill(old, (byte) 0);
+            save();
+
+            // Log it.
+            LOGGER.info("IAS: Keyring master password changed.");
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Deletes the keyring with all the stored keys. Accounts can still be decrypted with their own passwords.
+     *
+     * @throws RuntimeException If unable to delete the keyring file
+     */
+    public static void reset() {
+        LOCK.lock();
+        try {
+            // Lock and clear.
+            lock();
+            WRAPPED.clear();
+            salt = null;
+            verifier = null;
+            dirty = false;
+
+            // Delete the file.
+            Path file = Keyring.file;
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+
+            // Log it.
+            LOGGER.info("IAS: Keyring reset.");
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to reset IAS keyring.", t);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Derives the new master key with a new salt and wraps the verifier. Doesn't touch the keyring.
+     *
+     * @param password New master password
+     * @return Derived master key with its salt and wrapped verifier
+     * @throws RuntimeException If unable to derive the key
+     */
+    @CheckReturnValue
+    @NotNull
+    private static Derived derive(@NotNull String password) {
+        try {
+            // Generate the salt.
+            SecureRandom random = SecureRandom.getInstanceStrong();
+            byte[] salt = new byte[128];
+            random.nextBytes(salt);
+
+            // Derive the key and wrap the verifier.
+            byte[] key = Crypt.pbkdf(password, salt);
+            return new Derived(salt, wrap(VERIFIER, key, random), key);
+        } catch (Throwable t) {
+            // Rethrow.
+            throw new RuntimeException("Unable to derive keyring master key.", t);
+        }
+    }
+
+    /**
+     * Locks the keyring, wiping the master key from memory.
+     */
+    public static void lock() {
+        LOCK.lock();
+        try {
+            byte[] key = master;
+            if (key == null) return;
+            Arrays.fill(key, (byte) 0);
+            master = null;
+            LOGGER.debug("IAS: Keyring locked.");
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Gets whether the keyring exists.
+     *
+     * @return Whether the keyring has been created
+     */
+    @Contract(pure = true)
+    public static boolean exists() {
+        LOCK.lock();
+        try {
+            return salt != null && verifier != null;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of the stored keys.
+     *
+     * @return Number of the stored account keys
+     */
+    @Contract(pure = true)
+    public static int size() {
+        LOCK.lock();
+        try {
+            return WRAPPED.size();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Gets whether the keyring is unlocked.
+     *
+     * @return Whether the keyring is unlocked
+     */
+    @Contract(pure = true)
+    public static boolean unlocked() {
+        LOCK.lock();
+        try {
+            return master != null;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Gets the unwrapped account key by its salt.
+     *
+     * @param accountSalt Account crypt salt
+     * @return Unwrapped key, {@code null} if locked, not found or unable to unwrap
+     */
+    @Contract(pure = true)
+    public static byte @Nullable [] key(byte @NotNull [] accountSalt) {
+        LOCK.lock();
+        try {
+            // Skip if locked.
+            byte[] key = master;
+            if (key == null) return null;
+
+            // Skip if unknown.
+            byte[] wrapped = WRAPPED.get(HexFormat.of().formatHex(accountSalt));
+            if (wrapped == null) return null;
+
+            // Unwrap.
+            try {
+                return unwrap(wrapped, key);
+            } catch (Throwable t) {
+                LOGGER.warn("IAS: Unable to unwrap keyring key.", t);
+                return null;
+            }
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Remembers the account key, if the keyring is unlocked. The keyring is saved
+     * {@link #SAVE_DELAY} later, so a burst of decrypted accounts writes it only once.
+     *
+     * @param accountSalt Account crypt salt
+     * @param accountKey  Derived account key
+     */
+    public static void remember(byte @NotNull [] accountSalt, byte @NotNull [] accountKey) {
+        LOCK.lock();
+        try {
+            // Skip if locked.
+            byte[] key = master;
+            if (key == null) return;
+
+            // Skip if already remembered.
+            String hex = HexFormat.of().formatHex(accountSalt);
+            if (WRAPPED.containsKey(hex)) return;
+
+            // Wrap and schedule the save.
+            WRAPPED.put(hex, wrap(accountKey, key, SecureRandom.getInstanceStrong()));
+            dirty = true;
+            if (scheduled) return;
+            scheduled = true;
+            try {
+                IASExecutors.schedule(Keyring::flush, SAVE_DELAY, TimeUnit.MILLISECONDS);
+            } catch (Throwable t) {
+                // Executors are down, save now.
+                scheduled = false;
+                save();
+            }
+        } catch (Throwable t) {
+            LOGGER.warn("IAS: Unable to remember key in keyring.", t);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Saves the keyring if any keys have been remembered since the last save.
+     *
+     * @throws RuntimeException If unable to save the keyring
+     */
+    public static void flush() {
+        LOCK.lock();
+        try {
+            scheduled = false;
+            if (!dirty) return;
+            save();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Wraps the value with the key.
+     *
+     * @param value  Target value
+     * @param key    Wrapping key
+     * @param random Random for IV generation
+     * @return IV followed by the encrypted value
+     */
+    private static byte @NotNull [] wrap(byte @NotNull [] value, byte @NotNull [] key, @NotNull SecureRandom random) {
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        byte[] encrypted = Crypt.aesEncrypt(value, key, iv);
+        byte[] wrapped = Arrays.copyOf(iv, iv.length + encrypted.length);
+        System.arraycopy(encrypted, 0, wrapped, iv.length, encrypted.length);
+        return wrapped;
+    }
+
+    /**
+     * Unwraps the value with the key.
+     *
+     * @param wrapped IV followed by the encrypted value
+     * @param key     Wrapping key
+     * @return Unwrapped value
+     * @throws RuntimeException If unable to unwrap
+     */
+    private static byte @NotNull [] unwrap(byte @NotNull [] wrapped, byte @NotNull [] key) {
+        byte[] iv = Arrays.copyOf(wrapped, 16);
+        byte[] encrypted = Arrays.copyOfRange(wrapped, 16, wrapped.length);
+        return Crypt.aesDecrypt(encrypted, key, iv);
+    }
+
+    /**
+     * Derived master key.
+     *
+     * @param salt     Master password salt
+     * @param verifier Wrapped (IV and encrypted) {@link #VERIFIER}
+     * @param key      Master key
+     * @author VidTu
+     */
+    private record Derived(byte @NotNull [] salt, byte @NotNull [] verifier, byte @NotNull [] key) {
+        // Empty
+    }
+}
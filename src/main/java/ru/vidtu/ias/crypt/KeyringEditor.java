@@ -0,0 +1,310 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.crypt;
+
+import com.google.errorprone.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IAS;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.config.IASConfig;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Version-independent state of the keyring screen. The screen only renders this state and forwards the input.
+ *
+ * @author VidTu
+ */
+public final class KeyringEditor {
+    /**
+     * Maximum master password length.
+     */
+    public static final int MAX_LENGTH = 32;
+
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/KeyringEditor");
+
+    /**
+     * Status override, {@code null} to display the keyring state.
+     */
+    @Nullable
+    private Status status;
+
+    /**
+     * Whether the key is being derived.
+     */
+    private boolean busy;
+
+    /**
+     * Gets whether the key is being derived. No actions are available while busy.
+     *
+     * @return Whether the key is being derived
+     */
+    @Contract(pure = true)
+    public boolean busy() {
+        return this.busy;
+    }
+
+    /**
+     * Gets the current status.
+     *
+     * @return Last action status, or the keyring state if there's none
+     */
+    @CheckReturnValue
+    @NotNull
+    public Status status() {
+        Status status = this.status;
+        if (status != null) return status;
+        if (!Keyring.exists()) return Status.NONE;
+        return Keyring.unlocked() ? Status.UNLOCKED : Status.LOCKED;
+    }
+
+    /**
+     * Gets the submit button translation key.
+     *
+     * @return Create, unlock, or change translation key
+     */
+    @CheckReturnValue
+    @NotNull
+    public String submitKey() {
+        if (!Keyring.exists()) return "ias.keyring.create";
+        return Keyring.unlocked() ? "ias.keyring.change" : "ias.keyring.unlock";
+    }
+
+    /**
+     * Gets the secondary button translation key.
+     *
+     * @return Lock or reset translation key, {@code null} if the keyring doesn't exist
+     * @see #resets()
+     */
+    @CheckReturnValue
+    @Nullable
+    public String secondaryKey() {
+        if (!Keyring.exists()) return null;
+        return Keyring.unlocked() ? "ias.keyring.lock" : "ias.keyring.reset";
+    }
+
+    /**
+     * Gets whether the secondary action deletes the keyring and should be displayed as dangerous.
+     *
+     * @return Whether the {@link #secondary()} resets the keyring
+     */
+    @CheckReturnValue
+    public boolean resets() {
+        return Keyring.exists() && !Keyring.unlocked();
+    }
+
+    /**
+     * Gets whether the master password can be submitted.
+     *
+     * @param password Entered master password
+     * @return Whether not busy and the password is not blank
+     */
+    @Contract(pure = true)
+    public boolean canSubmit(@NotNull String password) {
+        return !this.busy && !password.isBlank();
+    }
+
+    /**
+     * Creates, unlocks, or changes the keyring with the master password and enables the keyring on success.
+     *
+     * @param password Entered master password
+     * @param executor Executor for completing the returned future, usually the game thread
+     * @return Future that will complete on the executor with whether the action succeeded, {@code false} if it can't be submitted
+     */
+    @CheckReturnValue
+    @NotNull
+    public CompletableFuture<Boolean> submit(@NotNull String password, @NotNull Executor executor) {
+        // Skip if busy or blank.
+        if (!this.canSubmit(password)) return CompletableFuture.completedFuture(false);
+
+        // Display progress.
+        this.busy = true;
+        this.status = Status.WORKING;
+
+        // Derive the key. (slow)
+        boolean exists = Keyring.exists();
+        boolean unlocked = Keyring.unlocked();
+        return CompletableFuture.supplyAsync(() -> {
+            // Create.
+            if (!exists) {
+                Keyring.create(password);
+                return true;
+            }
+
+            // Change.
+            if (unlocked) {
+                Keyring.change(password);
+                return true;
+            }
+
+            // Unlock.
+            return Keyring.unlock(password);
+        }, IASExecutors.crypto()).handleAsync((success, t) -> {
+            // Display the result.
+            this.busy = false;
+            if (t != null) {
+                LOGGER.error("IAS: Unable to update keyring.", t);
+                this.status = Status.ERROR;
+                return false;
+            }
+            if (!success) {
+                this.status = Status.MISMATCH;
+                return false;
+            }
+
+            // Enable the keyring.
+            this.status = null;
+            IASConfig.keyring = true;
+            try {
+                IAS.saveConfig();
+            } catch (Throwable th) {
+                LOGGER.error("IAS: Unable to save config.", th);
+            }
+            return true;
+        }, executor);
+    }
+
+    /**
+     * Locks the unlocked keyring, or deletes the locked keyring and disables it.
+     */
+    public void secondary() {
+        // Skip if busy.
+        if (this.busy) return;
+        this.status = null;
+
+        // Lock.
+        if (Keyring.unlocked()) {
+            Keyring.lock();
+            return;
+        }
+
+        // Reset.
+        try {
+            // Delete.
+            Keyring.reset();
+
+            // Disable.
+            IASConfig.keyring = false;
+            IAS.saveConfig();
+        } catch (Throwable t) {
+            LOGGER.error("IAS: Unable to reset keyring.", t);
+        }
+    }
+
+    @Contract(pure = true)
+    @Override
+    @NotNull
+    public String toString() {
+        return "KeyringEditor{" +
+                "status=" + this.status +
+                ", busy=" + this.busy +
+                '}';
+    }
+
+    /**
+     * Keyring screen status.
+     *
+     * @author VidTu
+     */
+    public enum Status {
+        /**
+         * Keyring doesn't exist.
+         */
+        NONE("ias.keyring.none", false),
+
+        /**
+         * Keyring is locked.
+         */
+        LOCKED("ias.keyring.locked", false),
+
+        /**
+         * Keyring is unlocked.
+         */
+        UNLOCKED("ias.keyring.unlocked", false),
+
+        /**
+         * Key is being derived.
+         */
+        WORKING("ias.keyring.working", false),
+
+        /**
+         * Unable to update the keyring.
+         */
+        ERROR("ias.keyring.error", true),
+
+        /**
+         * Master password doesn't match.
+         */
+        MISMATCH("ias.keyring.mismatch", true);
+
+        /**
+         * Status translation key. Takes the number of the stored keys as the argument.
+         */
+        @NotNull
+        private final String key;
+
+        /**
+         * Whether the last action has failed.
+         */
+        private final boolean failed;
+
+        /**
+         * Creates a new status.
+         *
+         * @param key    Status translation key
+         * @param failed Whether the last action has failed
+         */
+        Status(@NotNull String key, boolean failed) {
+            this.key = key;
+            this.failed = failed;
+        }
+
+        /**
+         * Gets whether the last action has failed.
+         *
+         * @return Whether the status should be displayed as an error
+         */
+        @Contract(pure = true)
+        public boolean failed() {
+            return this.failed;
+        }
+
+        /**
+         * Gets the translation key.
+         *
+         * @return Translation key
+         */
+        @Contract(pure = true)
+        @Override
+        @NotNull
+        public String toString() {
+            return this.key;
+        }
+    }
+}
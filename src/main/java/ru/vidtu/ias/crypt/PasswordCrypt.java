@@ -22,11 +22,17 @@ package ru.vidtu.ias.crypt;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import ru.vidtu.ias.IASExecutors;
+import ru.vidtu.ias.config.IASConfig;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * Encryption with password.
@@ -35,11 +41,27 @@ import java.security.SecureRandom;
  */
 public final class PasswordCrypt implements Crypt {
     /**
-     * Encryption password.
+     * Encryption password, {@code null} if created from the {@link Keyring}.
      */
-    @NotNull
+    @Nullable
     private final String password;
 
+    /**
+     * Lock guarding the cached key. Not a monitor, so the virtual login threads waiting for it don't pin their carriers.
+     */
+    @NotNull
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Cached salt, {@code null} if not derived yet.
+     */
+    private byte @Nullable [] salt;
+
+    /**
+     * Cached key derived for {@link #salt}, {@code null} if not derived yet.
+     */
+    private byte @Nullable [] key;
+
     /**
      * Creates a new password encryption encryptor.
      *
@@ -53,6 +75,19 @@ public final class PasswordCrypt implements Crypt {
         this.password = password;
     }
 
+    /**
+     * Creates a new password encryption encryptor from the already derived key.
+     *
+     * @param salt Key salt
+     * @param key  Derived key
+     */
+    @Contract(pure = true)
+    private PasswordCrypt(byte @NotNull [] salt, byte @NotNull [] key) {
+        this.password = null;
+        this.salt = salt;
+        this.key = key;
+    }
+
     @Contract(pure = true)
     @Override
     @NotNull
@@ -73,14 +108,31 @@ public final class PasswordCrypt implements Crypt {
         return false;
     }
 
-    @Contract(pure = true)
     @Override
-    public byte @NotNull [] encrypt(byte @NotNull [] decrypted) {
+    public byte @NotNull [] encrypt(byte @NotNull [] decrypted, @NotNull CryptProgress progress) {
+        this.lock.lock();
         try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            // Generate and write salt.
             SecureRandom random = SecureRandom.getInstanceStrong();
-            byte[] salt = new byte[128];
-            random.nextBytes(salt);
+
+            // Derive the key, if not cached.
+            byte[] salt = this.salt;
+            byte[] key = this.key;
+            if (salt == null || key == null) {
+                // Generate the salt.
+                salt = new byte[128];
+                random.nextBytes(salt);
+
+                // Derive the key.
+                assert this.password != null : "IAS: Password crypt without password and key.";
+                key = Crypt.pbkdf(this.password, salt, progress);
+
+                // Cache the key.
+                this.salt = salt;
+                this.key = key;
+                Keyring.remember(salt, key);
+            }
+
+            // Write salt.
             out.write(salt);
 
             // Generate and write IV.
@@ -89,7 +141,7 @@ public final class PasswordCrypt implements Crypt {
             out.write(iv);
 
             // Encrypt and write the data.
-            byte[] data = Crypt.pbkdfAesEncrypt(decrypted, this.password, salt, iv);
+            byte[] data = Crypt.aesEncrypt(decrypted, key, iv);
             out.write(data);
 
             // Return data.
@@ -97,12 +149,14 @@ public final class PasswordCrypt implements Crypt {
         } catch (Throwable t) {
             // Rethrow.
             throw new RuntimeException("Unable to encrypt using PasswordCrypt.", t);
+        } finally {
+            this.lock.unlock();
         }
     }
 
-    @Contract(pure = true)
     @Override
-    public byte @NotNull [] decrypt(byte @NotNull [] encrypted) {
+    public byte @NotNull [] decrypt(byte @NotNull [] encrypted, @NotNull CryptProgress progress) {
+        this.lock.lock();
         try (ByteArrayInputStream in = new ByteArrayInputStream(encrypted)) {
             // Read the salt.
             byte[] salt = new byte[128];
@@ -121,11 +175,30 @@ public final class PasswordCrypt implements Crypt {
             // Read the data.
             byte[] data = in.readAllBytes();
 
-            // Decrypt and return the data.
-            return Crypt.pbkdfAesDecrypt(data, this.password, salt, iv);
+            // Use the cached key or keyring key, if any.
+            byte[] key = Arrays.equals(salt, this.salt) ? this.key : Keyring.key(salt);
+
+            // Derive the key otherwise.
+            if (key == null) {
+                if (this.password == null) {
+                    throw new IllegalStateException("Key not found in keyring and no password provided.");
+                }
+                key = Crypt.pbkdf(this.password, salt, progress);
+            }
+
+            // Decrypt the data.
+            byte[] decrypted = Crypt.aesDecrypt(data, key, iv);
+
+            // Cache the key and return the data.
+            this.salt = salt;
+            this.key = key;
+            Keyring.remember(salt, key);
+            return decrypted;
         } catch (Throwable t) {
             // Rethrow.
             throw new RuntimeException("Unable to decrypt using PasswordCrypt.", t);
+        } finally {
+            this.lock.unlock();
         }
     }
 
@@ -137,4 +210,29 @@ public final class PasswordCrypt implements Crypt {
                 "password='[PASSWORD]'" +
                 '}';
     }
+
+    /**
+     * Reads the password crypt, using the {@link Keyring} if enabled.
+     *
+     * @param encrypted Encrypted data, used to look up the keyring
+     * @param password  Password provider
+     * @return Future will contain crypt on success, will contain {@code null} if {@code password} returns {@code null} on request
+     */
+    @NotNull
+    static CompletableFuture<Crypt> read(byte @NotNull [] encrypted, @NotNull Supplier<CompletableFuture<String>> password) {
+        // Ask for password, if keyring is disabled.
+        if (!IASConfig.keyring) {
+            return password.get().thenApplyAsync(pass -> pass == null ? null : new PasswordCrypt(pass), IASExecutors.crypto());
+        }
+
+        // Use the keyring key, if any.
+        byte[] salt = Arrays.copyOf(encrypted, 128);
+        byte[] key = Keyring.key(salt);
+        if (key != null) {
+            return CompletableFuture.completedFuture(new PasswordCrypt(salt, key));
+        }
+
+        // Ask for password otherwise. The keyring is unlocked only explicitly with the master password.
+        return password.get().thenApplyAsync(pass -> pass == null ? null : new PasswordCrypt(pass), IASExecutors.crypto());
+    }
 }
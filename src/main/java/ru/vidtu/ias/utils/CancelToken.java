@@ -0,0 +1,118 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.utils;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import ru.vidtu.ias.IASExecutors;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Cancellation token that propagates the polled cancellation state into the in-flight work.
+ * <p>
+ * Futures {@link #bind(CompletableFuture) bound} to the token are cancelled as soon as the source reports
+ * the cancellation, instead of when the next stage checks it. Cancelling the futures returned
+ * by {@link ru.vidtu.ias.auth.microsoft.MSAuth} aborts the underlying HTTP exchange.
+ *
+ * @author VidTu
+ * @apiNote All methods in this class can be called from another thread
+ */
+public final class CancelToken {
+    /**
+     * Token that is never cancelled.
+     */
+    @NotNull
+    public static final CancelToken NONE = new CancelToken(() -> false);
+
+    /**
+     * Cancellation source.
+     */
+    @NotNull
+    private final BooleanSupplier source;
+
+    /**
+     * Whether the token has been cancelled, cached once the source reports it.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a new token.
+     *
+     * @param source Cancellation source, polled until it returns {@code true}
+     */
+    @Contract(pure = true)
+    public CancelToken(@NotNull BooleanSupplier source) {
+        this.source = source;
+    }
+
+    /**
+     * Gets whether the token has been cancelled.
+     *
+     * @return Whether the token has been cancelled
+     */
+    public boolean cancelled() {
+        // Check the cached state.
+        if (this.cancelled) return true;
+
+        // Poll the source.
+        if (!this.source.getAsBoolean()) return false;
+        this.cancelled = true;
+        return true;
+    }
+
+    /**
+     * Binds the future to this token. The future will be cancelled once the token is cancelled,
+     * unless it completes first.
+     *
+     * @param future Target future
+     * @param <T>    Future result type
+     * @return The same future, for chaining
+     */
+    @Contract("_ -> param1")
+    @NotNull
+    public <T> CompletableFuture<T> bind(@NotNull CompletableFuture<T> future) {
+        // Skip if never cancelled or already completed.
+        if (this == NONE || future.isDone()) return future;
+
+        // Cancel right away if cancelled.
+        if (this.cancelled()) {
+            future.cancel(true);
+            return future;
+        }
+
+        // Watch until completed.
+        ScheduledFuture<?> watchdog = IASExecutors.watch(this::cancelled, () -> future.cancel(true));
+        future.whenComplete((result, error) -> watchdog.cancel(false));
+        return future;
+    }
+
+    @Contract(pure = true)
+    @Override
+    @NotNull
+    public String toString() {
+        return "CancelToken{" +
+                "source=" + this.source +
+                ", cancelled=" + this.cancelled +
+                '}';
+    }
+}
@@ -23,9 +23,14 @@ import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Various GSON utils.
  *
@@ -152,4 +157,44 @@ public final class GSONUtils {
             throw new JsonParseException("Expected to have array '" + key + "': " + json, t);
         }
     }
+
+    /**
+     * Creates the streaming JSON reader over the UTF-8 data.
+     *
+     * @param data Target data
+     * @return New JSON reader
+     */
+    @Contract(value = "_ -> new", pure = true)
+    @NotNull
+    public static JsonReader reader(byte @NotNull [] data) {
+        return new JsonReader(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the string value from the JSON object stream, skipping other fields.
+     *
+     * @param reader Target reader, positioned before the object
+     * @param key    Target key
+     * @return Read string
+     * @throws JsonParseException If there was no string by that key, was a non-string element by that key, or the stream is not an object
+     */
+    @NotNull
+    public static String readStringOrThrow(@NotNull JsonReader reader, @NotNull String key) {
+        try {
+            String value = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (key.equals(reader.nextName())) {
+                    value = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (value == null) throw new IllegalStateException("Missing key.");
+            return value;
+        } catch (Throwable t) {
+            throw new JsonParseException("Expected to have string '" + key + "' at " + reader.getPath(), t);
+        }
+    }
 }
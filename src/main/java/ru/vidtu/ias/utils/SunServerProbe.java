@@ -0,0 +1,307 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.utils;
+
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.vidtu.ias.IASExecutors;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background probe for the {@link IUtils#canUseSunServer()} value.
+ * <p>
+ * The probe is started by {@link #start(Path)} on init. It tests the {@link IUtils#tryBindPorts() candidate ports}
+ * in parallel and stops at the first port that passes the bidirectional TCP self-test. The outcome is cached in
+ * {@code ias_sun_server.json} for {@link #TTL} days per Java version, so most launches don't probe at all.
+ *
+ * @author VidTu
+ * @apiNote All methods in this class can be called from another thread
+ */
+public final class SunServerProbe {
+    /**
+     * Logger for this class.
+     */
+    @NotNull
+    private static final Logger LOGGER = LoggerFactory.getLogger("IAS/SunServerProbe");
+
+    /**
+     * Cached outcome lifetime in days.
+     */
+    private static final long TTL = 7L;
+
+    /**
+     * Socket timeout in milliseconds.
+     */
+    private static final int TIMEOUT = 2000;
+
+    /**
+     * Whether the Sun server class is present, {@code null} if not yet checked.
+     */
+    @Nullable
+    private static volatile Boolean present;
+
+    /**
+     * Last known availability, {@code null} if unknown.
+     */
+    @Nullable
+    private static volatile Boolean available;
+
+    /**
+     * Whether the probe has been started.
+     */
+    private static volatile boolean started;
+
+    /**
+     * An instance of this class cannot be created.
+     *
+     * @throws AssertionError Always
+     */
+    @Contract(value = "-> fail", pure = true)
+    private SunServerProbe() {
+        throw new AssertionError("No instances.");
+    }
+
+    /**
+     * Starts loading the cached outcome and probing in the background, never blocks.
+     *
+     * @param path Config directory
+     */
+    public static void start(@NotNull Path path) {
+        // Skip if already started.
+        if (started) return;
+        started = true;
+
+        // Load off-thread.
+        IASExecutors.io().execute(() -> {
+            try {
+                load(path);
+            } catch (Throwable t) {
+                LOGGER.error("IAS: Unable to probe Sun HTTP server availability.", t);
+            }
+        });
+    }
+
+    /**
+     * Applies the cached outcome and probes the server if the cache is missing or stale.
+     *
+     * @param path Config directory
+     */
+    private static void load(@NotNull Path path) {
+        // Skip if there's no server at all.
+        if (!present()) {
+            available = false;
+            return;
+        }
+
+        // Load the cache.
+        Path file = path.resolve("ias_sun_server.json");
+        String java = Runtime.version().toString();
+        try {
+            if (Files.isRegularFile(file)) {
+                JsonObject json = GSONUtils.GSON.fromJson(Files.readString(file), JsonObject.class);
+                boolean cached = GSONUtils.getBooleanOrThrow(json, "available");
+                long age = System.currentTimeMillis() - GSONUtils.getLongOrThrow(json, "checked");
+
+                // Apply even if stale, until the probe completes.
+                available = cached;
+
+                // Skip the probe if fresh.
+                if (java.equals(GSONUtils.getStringOrThrow(json, "java")) && age >= 0L && age < TimeUnit.DAYS.toMillis(TTL)) {
+                    LOGGER.debug("IAS: Using cached Sun HTTP server availability: {}", cached);
+                    return;
+                }
+            }
+        } catch (Throwable t) {
+            LOGGER.debug("IAS: Unable to load Sun HTTP server availability cache.", t);
+        }
+
+        // Probe in the background.
+        probe().thenAccept(result -> {
+            // Flush the result.
+            available = result;
+
+            // Write the cache.
+            try {
+                JsonObject json = new JsonObject();
+                json.addProperty("available", result);
+                json.addProperty("checked", System.currentTimeMillis());
+                json.addProperty("java", java);
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, GSONUtils.GSON.toJson(json), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE,
+                        StandardOpenOption.SYNC, StandardOpenOption.DSYNC);
+            } catch (Throwable t) {
+                LOGGER.debug("IAS: Unable to save Sun HTTP server availability cache.", t);
+            }
+        });
+    }
+
+    /**
+     * Gets the last known availability. Never blocks.
+     *
+     * @return Probed or cached availability, or the presence of the server class if not yet known
+     */
+    public static boolean available() {
+        Boolean value = available;
+        return value != null ? value : present();
+    }
+
+    /**
+     * Gets whether the Sun server class is present.
+     *
+     * @return Whether the server class can be loaded
+     */
+    private static boolean present() {
+        // Check the cache.
+        Boolean value = present;
+        if (value != null) return value;
+
+        // Check for class presence.
+        try {
+            Class.forName("com.sun.net.httpserver.HttpServer");
+            value = true;
+        } catch (Throwable t) {
+            LOGGER.warn("IAS: Sun server is not available.", t);
+            value = false;
+        }
+        present = value;
+        return value;
+    }
+
+    /**
+     * Probes the candidate ports in parallel.
+     *
+     * @return Future that will complete with {@code true} once any port passes the self-test, or with {@code false} if none do
+     */
+    @NotNull
+    private static CompletableFuture<Boolean> probe() {
+        // Log.
+        LOGGER.info("IAS: Testing Sun HTTP server availability...");
+        int[] ports = IUtils.tryBindPorts();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(ports.length);
+        RuntimeException thrown = new RuntimeException("Unable to pass TCP self-test on any port.");
+        long start = System.nanoTime();
+
+        // Probe each port, skipping the rest once any passes.
+        ExecutorService io = IASExecutors.io();
+        for (int port : ports) {
+            io.execute(() -> {
+                try {
+                    // Skip if done.
+                    if (result.isDone()) return;
+
+                    // Test the port.
+                    test(port);
+
+                    // Success.
+                    if (!result.complete(true)) return;
+                    LOGGER.info("IAS: Exchanged TCP data on {} port, setting Sun server as available. ({} ms)", port, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } catch (Throwable t) {
+                    // Add to thrown exceptions.
+                    synchronized (thrown) {
+                        thrown.addSuppressed(new RuntimeException("Unable to test: " + port, t));
+                    }
+                } finally {
+                    // Fail if none passed.
+                    if (remaining.decrementAndGet() == 0 && result.complete(false)) {
+                        LOGGER.warn("IAS: Sun server is not accessible.", thrown);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Tests the port by binding TCP server and exchanging data bidirectionally.
+     *
+     * @param port Target port
+     * @throws Exception If unable to bind, connect, or exchange the data
+     */
+    private static void test(int port) throws Exception {
+        // Create the socket.
+        try (ServerSocket server = new ServerSocket();
+             Socket client = new Socket()) {
+            // Set up timeouts.
+            server.setSoTimeout(TIMEOUT);
+
+            // Try to bind it.
+            server.bind(new InetSocketAddress(port), 0);
+
+            // Try to connect.
+            client.setSoTimeout(TIMEOUT);
+            client.setTcpNoDelay(true);
+            client.connect(new InetSocketAddress(port), TIMEOUT);
+
+            // Try to exchange some random data.
+            try (Socket accepted = server.accept();
+                 InputStream clientIn = client.getInputStream();
+                 OutputStream clientOut = client.getOutputStream();
+                 InputStream serverIn = accepted.getInputStream();
+                 OutputStream serverOut = accepted.getOutputStream()) {
+
+                // Server-to-client.
+                Random random = new SecureRandom();
+                byte[] data = new byte[256];
+                random.nextBytes(data);
+                serverOut.write(data);
+                serverOut.flush();
+                byte[] read = clientIn.readNBytes(256);
+
+                // Something in the way.
+                if (!Arrays.equals(data, read)) {
+                    throw new IllegalStateException("S2C data doesn't match, sent " + HexFormat.of().formatHex(data) + ", got " + HexFormat.of().formatHex(read));
+                }
+
+                // Client-to-server.
+                random.nextBytes(data);
+                clientOut.write(data);
+                clientOut.flush();
+                read = serverIn.readNBytes(256);
+
+                // Something in the way.
+                if (!Arrays.equals(data, read)) {
+                    throw new IllegalStateException("C2S data doesn't match, sent " + HexFormat.of().formatHex(data) + ", got " + HexFormat.of().formatHex(read));
+                }
+            }
+        }
+    }
+}
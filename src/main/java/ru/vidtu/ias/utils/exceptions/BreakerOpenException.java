@@ -0,0 +1,43 @@
+/*
+ * In-Game Account Switcher is a mod for Minecraft that allows you to change your logged in account in-game, without restarting Minecraft.
+ * Copyright (C) 2015-2022 The_Fireplace
+ * Copyright (C) 2021-2024 VidTu
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>
+ */
+
+package ru.vidtu.ias.utils.exceptions;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.ConnectException;
+
+/**
+ * A connect exception indicating that the request was not sent because the circuit breaker for its host is open.
+ *
+ * @author VidTu
+ * @see ru.vidtu.ias.auth.microsoft.MSRetry
+ */
+public final class BreakerOpenException extends ConnectException {
+    /**
+     * Creates a new exception.
+     *
+     * @param message Target message
+     */
+    @Contract(pure = true)
+    public BreakerOpenException(@NotNull String message) {
+        super(message);
+    }
+}
@@ -29,6 +29,11 @@ import org.jetbrains.annotations.Nullable;
  * @author VidTu
  */
 public final class DevicePendingException extends RuntimeException {
+    /**
+     * Whether the polling interval should be increased.
+     */
+    private final boolean slowDown;
+
     /**
      * Creates a new exception.
      *
@@ -37,6 +42,19 @@ public final class DevicePendingException extends RuntimeException {
     @Contract(pure = true)
     public DevicePendingException(@NotNull String message) {
         super(message);
+        this.slowDown = false;
+    }
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message  Target message
+     * @param slowDown Whether the polling interval should be increased
+     */
+    @Contract(pure = true)
+    public DevicePendingException(@NotNull String message, boolean slowDown) {
+        super(message);
+        this.slowDown = slowDown;
     }
 
     /**
@@ -48,5 +66,16 @@ public final class DevicePendingException extends RuntimeException {
     @Contract(pure = true)
     public DevicePendingException(@NotNull String message, @Nullable Throwable cause) {
         super(message, cause);
+        this.slowDown = false;
+    }
+
+    /**
+     * Gets whether the polling interval should be increased.
+     *
+     * @return Whether the server has responded with {@code slow_down}
+     */
+    @Contract(pure = true)
+    public boolean slowDown() {
+        return this.slowDown;
     }
 }